@@ -0,0 +1,44 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+/**
+ * Processes requests before they are sent or responses once they are received, without holding up the event loop.<p>
+ * process starts the work and returns, the result is reported through the callback from any thread once it is
+ * known. The connection waits meanwhile and carries on with the next processor on its event loop, the other
+ * connections of the loop keep being served. A processor that does not report within its timeout fails the message.
+ * The message must not be used once the callback was called or the timeout expired.
+ */
+public interface AsyncHttpMessageProcessor {
+    /** Receives the outcome of process, exactly one of its methods should be called once */
+    public interface Callback {
+        /** The message after modification, or null if it must not be sent */
+        public void processed( HttpMessage message );
+        /** The message could not be processed, the exchange is given up */
+        public void failed( Exception e );
+    }
+    
+    /** Run this processor and the ones after it? */
+    public boolean doContinue( HttpMessage input );
+    /** Start processing the given message, its outcome is reported through the callback */
+    public void process( HttpMessage input, Callback callback );
+    /** How many milliseconds the connection waits for the callback, 0 to wait as long as it takes */
+    public long getTimeout();
+}
@@ -0,0 +1,102 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The filters of the registered HttpBodyProcessors that take part in the body of one message. Each filter
+ * writes straight into the next one and the last one into the sink, nothing is buffered on the way.
+ */
+class BodyFilterChain {
+    private final HttpBodyProcessor.Filter[] filters;
+    /** The output of the filter at the same index */
+    private final HttpBodyProcessor.Output[] outputs;
+    
+    private BodyFilterChain( HttpBodyProcessor.Filter[] filters, int count, final HttpBodyProcessor.Output sink ) {
+        this.filters = filters;
+        outputs = new HttpBodyProcessor.Output[count];
+        outputs[count-1] = new HttpBodyProcessor.Output() {
+            public void write( ByteBuffer data ) throws IOException {
+                //an empty chunk would end a chunked body
+                if( data.hasRemaining() )
+                    sink.write(data);
+            }
+        };
+        for( int i=count-2; i>= 0; i-- ) {
+            final HttpBodyProcessor.Filter next = filters[i+1];
+            final HttpBodyProcessor.Output nextOutput = outputs[i+1];
+            outputs[i] = new HttpBodyProcessor.Output() {
+                public void write( ByteBuffer data ) throws IOException {
+                    next.data(data, nextOutput);
+                }
+            };
+        }
+    }
+    
+    /** Ask the processors for the filters of the message's body, null if none of them wants to see it */
+    static BodyFilterChain start( HttpBodyProcessor[] processors, HttpMessage message, HttpBodyProcessor.Output sink ) {
+        if( processors.length == 0 )
+            return null;
+        HttpBodyProcessor.Filter[] filters = new HttpBodyProcessor.Filter[processors.length];
+        int count = 0;
+        for( int i=0; i< processors.length; i++ ) {
+            HttpBodyProcessor.Filter filter = processors[i].start(message);
+            if( filter != null )
+                filters[count++] = filter;
+        }
+        if( count == 0 )
+            return null;
+        return new BodyFilterChain(filters, count, sink);
+    }
+    
+    /** Run the collected body of the message through the filters, it is left alone if none of them wants to see it */
+    static void filter( HttpBodyProcessor[] processors, HttpMessage message ) throws IOException {
+        final MessageBody filtered = new MessageBody();
+        BodyFilterChain chain = start( processors, message, new HttpBodyProcessor.Output() {
+            public void write( ByteBuffer data ) {
+                filtered.append(data);
+            }
+        });
+        if( chain == null )
+            return;
+        try {
+            ByteBuffer[] views = message.body.views();
+            for( int i=0; i< views.length; i++ )
+                chain.data( views[i] );
+            chain.end();
+            message.body.takeOver(filtered);
+        } finally {
+            filtered.clear();
+        }
+    }
+    
+    /** Pass the next piece of the body through the filters */
+    void data( ByteBuffer data ) throws IOException {
+        filters[0].data(data, outputs[0]);
+    }
+    
+    /** End the body, each filter is ended once the ones before it wrote what they had left */
+    void end() throws IOException {
+        for( int i=0; i< outputs.length; i++ )
+            filters[i].end(outputs[i]);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of direct ByteBuffers in a few fixed size classes.<p>
+ * Allocating direct buffers is expensive and their memory is only returned to the system when
+ * the garbage collector gets around to it, so the proxy takes the buffers it needs for socket
+ * I/O from here and gives them back once they are drained.  Buffers larger than the largest
+ * size class are never pooled, callers needing more space take several buffers instead.
+ * The pool is safe to use from any thread.
+ */
+public class BufferPool {
+    /** The capacities of the pooled buffers, smallest first */
+    private static final int[] SIZE_CLASSES = { 1024*4, 1024*16, 1024*32, 1024*64 };
+
+    private BufferPool(){};
+    private final static BufferPool singleton = new BufferPool();
+    public static BufferPool getSingleton() {
+        return singleton;
+    }
+
+    /** The free buffers of one size class */
+    private static class SizeClass {
+        private final int capacity;
+        private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicInteger freeCount = new AtomicInteger();
+        private SizeClass( int capacity ) { this.capacity = capacity; }
+    }
+
+    private final SizeClass[] classes = createClasses();
+    private volatile int maxFreeBuffers = 1024;
+    private final AtomicLong allocatedCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+
+    private static SizeClass[] createClasses() {
+        SizeClass[] c = new SizeClass[SIZE_CLASSES.length];
+        for( int i=0; i< c.length; i++ )
+            c[i] = new SizeClass(SIZE_CLASSES[i]);
+        return c;
+    }
+
+    /** Get the capacity of the largest buffer the pool hands out */
+    public int getMaxBufferSize() { return SIZE_CLASSES[SIZE_CLASSES.length-1]; }
+    /** Set the number of free buffers kept per size class, buffers released beyond it are left to the garbage collector */
+    public void setMaxFreeBuffers( int i ) { maxFreeBuffers=i; }
+    /** Get the number of free buffers kept per size class */
+    public int getMaxFreeBuffers() { return maxFreeBuffers; }
+    /** Get the number of buffers allocated because no free one was available */
+    public long getAllocatedCount() { return allocatedCount.get(); }
+    /** Get the number of requests served with a free buffer */
+    public long getReusedCount() { return reusedCount.get(); }
+
+    /**
+     * Get a cleared buffer with at least the given capacity, or of the largest size class if more is requested.
+     * The buffer should be handed back with release once it is no longer used.
+     */
+    public ByteBuffer acquire( int size ) {
+        SizeClass c = classFor(size);
+        ByteBuffer buffer = c.free.poll();
+        if( buffer != null ) {
+            c.freeCount.decrementAndGet();
+            reusedCount.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        allocatedCount.incrementAndGet();
+        return ByteBuffer.allocateDirect(c.capacity);
+    }
+
+    /** Hand back a buffer obtained from acquire, buffers that did not come from the pool are ignored */
+    public void release( ByteBuffer buffer ) {
+        if( buffer == null || !buffer.isDirect() || buffer.isReadOnly() )
+            return;
+        for( int i=0; i< classes.length; i++ ) {
+            SizeClass c = classes[i];
+            if( c.capacity == buffer.capacity() ) {
+                if( c.freeCount.incrementAndGet() <= maxFreeBuffers ) {
+                    buffer.clear();
+                    c.free.offer(buffer);
+                } else {
+                    c.freeCount.decrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    /** Copy the remaining bytes of data into pooled buffers appended to out, returns the number of bytes copied */
+    public int copy( ByteBuffer data, List<ByteBuffer> out ) {
+        int copied = data.remaining();
+        while( data.hasRemaining() ) {
+            ByteBuffer buffer = acquire( data.remaining() );
+            if( data.remaining() <= buffer.remaining() ) {
+                buffer.put(data);
+            } else {
+                ByteBuffer part = data.duplicate();
+                part.limit( part.position() + buffer.remaining() );
+                buffer.put(part);
+                data.position( part.position() );
+            }
+            buffer.flip();
+            out.add(buffer);
+        }
+        return copied;
+    }
+
+    private SizeClass classFor( int size ) {
+        for( int i=0; i< classes.length; i++ ) {
+            if( classes[i].capacity >= size )
+                return classes[i];
+        }
+        return classes[classes.length-1];
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Issues a certificate for every host whose TLS connection is intercepted, signed by a CA the clients trust.<p>
+ * The SSLContext built around each certificate is kept in a size bounded LRU cache, so repeat visits to a host
+ * cost no cryptographic work at all.  Certificates are issued on a background pool, never on an event loop,
+ * and the pool keeps a few key pairs generated ahead so issuing a certificate only costs a signature.
+ * Register an instance with ProxyRegistry.setCertificateAuthority to have intercepted connections use it
+ * instead of the single keystore certificate.
+ */
+public class CertificateAuthority {
+    private static Logger logger = Logger.getLogger(CertificateAuthority.class);
+    private static final char[] KEY_PASSWORD = "wpg-proxy".toCharArray();
+    private static final String OID_COMMON_NAME = "2.5.4.3";
+    private static final String OID_ORGANIZATION = "2.5.4.10";
+    private static final String OID_SUBJECT_ALT_NAME = "2.5.29.17";
+    private static final String OID_KEY_USAGE = "2.5.29.15";
+    private static final String OID_BASIC_CONSTRAINTS = "2.5.29.19";
+    private static final String OID_EXT_KEY_USAGE = "2.5.29.37";
+    private static final String OID_SERVER_AUTH = "1.3.6.1.5.5.7.3.1";
+    private static final long DAY = 24L*60*60*1000;
+
+    /** Receives the SSLContext of a host once its certificate is issued, called from the background pool */
+    public interface Callback {
+        /** The certificate for the host was issued */
+        public void issued( String host, SSLContext context );
+        /** The certificate for the host could not be issued */
+        public void failed( String host, Exception e );
+    }
+
+    private final PrivateKey caKey;
+    private final X509Certificate caCert;
+    private final SecureRandom random = new SecureRandom();
+    private final ExecutorService executor;
+    private volatile int keySize = 2048;
+    private volatile int validityDays = 365;
+    private volatile int maxCachedHosts = 1000;
+    private volatile int spareKeyCount = 8;
+    private final ConcurrentLinkedQueue<KeyPair> spareKeys = new ConcurrentLinkedQueue<KeyPair>();
+    /** Spare key pairs available or being generated */
+    private final AtomicInteger spareKeysPlanned = new AtomicInteger();
+    private final Map<String, SSLContext> cache = new LinkedHashMap<String, SSLContext>(16, 0.75f, true) {
+        protected boolean removeEldestEntry( Map.Entry<String, SSLContext> eldest ) {
+            return size() > maxCachedHosts;
+        }
+    };
+    /** Hosts whose certificate is being issued, with everybody waiting for it */
+    private final Map<String, List<Callback>> pending = new HashMap<String, List<Callback>>();
+    private final AtomicLong issuedCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong spareKeyHitCount = new AtomicLong();
+
+    /** Creates an authority signing with the given key, whose certificate clients have to trust */
+    public CertificateAuthority( PrivateKey caKey, X509Certificate caCert ) {
+        this.caKey = caKey;
+        this.caCert = caCert;
+        this.executor = Executors.newFixedThreadPool( Math.max(1, Runtime.getRuntime().availableProcessors()/2), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread( Runnable r ) {
+                Thread t = new Thread(r, "Certificate authority "+ count.getAndIncrement());
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        refillSpareKeys();
+    }
+
+    /** Creates an authority from the key and certificate stored under the given alias of a JKS keystore */
+    public static CertificateAuthority load( String keystoreFile, char[] storePass, char[] keyPass, String alias ) throws GeneralSecurityException, IOException {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        FileInputStream in = new FileInputStream(keystoreFile);
+        try {
+            ks.load(in, storePass);
+        } finally {
+            in.close();
+        }
+        PrivateKey key = (PrivateKey) ks.getKey(alias, keyPass);
+        Certificate cert = ks.getCertificate(alias);
+        if( key == null || !(cert instanceof X509Certificate) )
+            throw new GeneralSecurityException("No private key and X.509 certificate under the alias: "+ alias);
+        return new CertificateAuthority(key, (X509Certificate) cert);
+    }
+
+    /**
+     * Creates an authority with a freshly generated self-signed CA certificate of the given name, valid for ten years.
+     * Its certificate, from getCertificate, has to be installed as trusted in the clients.
+     */
+    public static CertificateAuthority generate( String name ) throws GeneralSecurityException {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        KeyPair keys = kpg.generateKeyPair();
+        byte[] subject = DerEncoder.sequence(
+                DerEncoder.set( DerEncoder.sequence( DerEncoder.oid(OID_ORGANIZATION), DerEncoder.utf8String("WPG Proxy") ) ),
+                DerEncoder.set( DerEncoder.sequence( DerEncoder.oid(OID_COMMON_NAME), DerEncoder.utf8String(name) ) ) );
+        byte[] extensions = DerEncoder.sequence(
+                extension( OID_BASIC_CONSTRAINTS, true, DerEncoder.sequence( DerEncoder.bool(true) ) ),
+                extension( OID_KEY_USAGE, true, DerEncoder.bitString( new byte[] { 0x06 }, 1 ) ) ); //keyCertSign, cRLSign
+        long now = System.currentTimeMillis();
+        byte[] der = sign( subject, subject, keys.getPublic(), keys.getPrivate(), new BigInteger(63, new SecureRandom()).add(BigInteger.ONE),
+                new Date(now - DAY), new Date(now + 3650*DAY), extensions );
+        return new CertificateAuthority( keys.getPrivate(), toCertificate(der) );
+    }
+
+    /** Get the certificate of this authority, the one clients have to trust */
+    public X509Certificate getCertificate() { return caCert; }
+    /** Set the size in bits of the RSA keys of the issued certificates */
+    public void setKeySize( int i ) { keySize=i; }
+    /** Get the size in bits of the RSA keys of the issued certificates */
+    public int getKeySize() { return keySize; }
+    /** Set the number of days the issued certificates are valid for */
+    public void setValidityDays( int i ) { validityDays=i; }
+    /** Get the number of days the issued certificates are valid for */
+    public int getValidityDays() { return validityDays; }
+    /** Set the number of hosts whose SSLContext is kept, the least recently used ones are dropped beyond it */
+    public void setMaxCachedHosts( int i ) { maxCachedHosts=i; }
+    /** Get the number of hosts whose SSLContext is kept */
+    public int getMaxCachedHosts() { return maxCachedHosts; }
+    /** Set the number of key pairs generated ahead */
+    public void setSpareKeyCount( int i ) { spareKeyCount=i; refillSpareKeys(); }
+    /** Get the number of key pairs generated ahead */
+    public int getSpareKeyCount() { return spareKeyCount; }
+    /** Get the number of hosts whose SSLContext is cached */
+    public int getCachedHostCount() { synchronized( cache ) { return cache.size(); } }
+    /** Get the number of certificates issued */
+    public long getIssuedCount() { return issuedCount.get(); }
+    /** Get the number of requests served from the cache */
+    public long getHitCount() { return hitCount.get(); }
+    /** Get the number of certificates issued with a key pair generated ahead */
+    public long getSpareKeyHitCount() { return spareKeyHitCount.get(); }
+
+    /** Get the SSLContext of the given host if it is cached, null otherwise */
+    public SSLContext getCachedContext( String host ) {
+        SSLContext context;
+        synchronized( cache ) {
+            context = cache.get( host.toLowerCase() );
+        }
+        if( context != null )
+            hitCount.incrementAndGet();
+        return context;
+    }
+
+    /**
+     * Get the SSLContext of the given host without waiting.  When it is cached it is returned, otherwise null is returned
+     * and the certificate is issued on the background pool, the callback is called from there once it is ready, or told
+     * of the failure right away if the pool was shut down.
+     */
+    public SSLContext getContext( String host, Callback callback ) {
+        final String name = host.toLowerCase();
+        SSLContext context = getCachedContext(name);
+        if( context != null )
+            return context;
+        synchronized( pending ) {
+            List<Callback> waiting = pending.get(name);
+            if( waiting != null ) {
+                waiting.add(callback);
+                return null;
+            }
+            waiting = new ArrayList<Callback>();
+            waiting.add(callback);
+            pending.put(name, waiting);
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    SSLContext context = null;
+                    Exception error = null;
+                    try {
+                        context = createContext(name);
+                        synchronized( cache ) {
+                            cache.put(name, context);
+                        }
+                    } catch( Exception e ) {
+                        logger.error("Unable to issue a certificate for "+ name +": "+ e, e);
+                        error = e;
+                    }
+                    done(name, context, error);
+                }
+            });
+        } catch( RuntimeException e ) {
+            //the pool was shut down, nobody may wait for the certificate
+            logger.error("Unable to issue a certificate for "+ name +": "+ e, e);
+            done(name, null, e);
+        }
+        return null;
+    }
+
+    /** Hand the outcome of issuing the certificate of the given host to the callbacks waiting for it */
+    private void done( String name, SSLContext context, Exception error ) {
+        List<Callback> waiting;
+        synchronized( pending ) {
+            waiting = pending.remove(name);
+        }
+        for( int i=0; i< waiting.size(); i++ ) {
+            if( context != null )
+                waiting.get(i).issued(name, context);
+            else
+                waiting.get(i).failed(name, error);
+        }
+    }
+
+    /** Get the SSLContext of the given host, issuing its certificate on the calling thread if it is not cached */
+    public SSLContext getContext( String host ) throws GeneralSecurityException {
+        String name = host.toLowerCase();
+        SSLContext context = getCachedContext(name);
+        if( context == null ) {
+            context = createContext(name);
+            synchronized( cache ) {
+                cache.put(name, context);
+            }
+        }
+        return context;
+    }
+
+    /** Stop the background pool, the cached contexts stay usable */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /** Issue a certificate for the host and build the SSLContext presenting it */
+    private SSLContext createContext( String host ) throws GeneralSecurityException {
+        long start = System.currentTimeMillis();
+        KeyPair keys = spareKeys.poll();
+        if( keys != null ) {
+            spareKeysPlanned.decrementAndGet();
+            spareKeyHitCount.incrementAndGet();
+        } else {
+            keys = generateKeyPair();
+        }
+        refillSpareKeys();
+        X509Certificate cert = issue(host, keys.getPublic());
+        KeyStore ks = KeyStore.getInstance("JKS");
+        try {
+            ks.load(null, null);
+        } catch( IOException e ) {
+            throw new GeneralSecurityException(e.toString());
+        }
+        ks.setKeyEntry(host, keys.getPrivate(), KEY_PASSWORD, new Certificate[] { cert, caCert });
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+        kmf.init(ks, KEY_PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        issuedCount.incrementAndGet();
+        logger.debug("Issued a certificate for "+ host +" in "+ (System.currentTimeMillis() - start) +"ms");
+        return context;
+    }
+
+    private KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(keySize, random);
+        return kpg.generateKeyPair();
+    }
+
+    /** Generate key pairs on the background pool until the planned number of spare keys is reached */
+    private void refillSpareKeys() {
+        while( true ) {
+            int planned = spareKeysPlanned.get();
+            if( planned >= spareKeyCount )
+                return;
+            if( !spareKeysPlanned.compareAndSet(planned, planned+1) )
+                continue;
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            spareKeys.offer( generateKeyPair() );
+                        } catch( GeneralSecurityException e ) {
+                            spareKeysPlanned.decrementAndGet();
+                            logger.error("Unable to generate a key pair: "+ e, e);
+                        }
+                    }
+                });
+            } catch( RuntimeException e ) {
+                //the pool was shut down
+                spareKeysPlanned.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /** Write and sign the certificate of the given host */
+    X509Certificate issue( String host, PublicKey key ) throws GeneralSecurityException {
+        boolean address = isAddress(host);
+        byte[] altName;
+        if( address ) {
+            try {
+                altName = DerEncoder.encode(0x87, InetAddress.getByName(host).getAddress()); //iPAddress
+            } catch( IOException e ) {
+                throw new GeneralSecurityException("Not an address: "+ host);
+            }
+        } else {
+            altName = DerEncoder.encode(0x82, ascii(host)); //dNSName
+        }
+        //the common name is limited to 64 characters, without it the subject is empty and the alternative name critical
+        boolean named = host.length() <= 64;
+        byte[] subject = named
+                ? DerEncoder.sequence( DerEncoder.set( DerEncoder.sequence( DerEncoder.oid(OID_COMMON_NAME), DerEncoder.utf8String(host) ) ) )
+                : DerEncoder.sequence();
+        byte[] extensions = DerEncoder.sequence(
+                extension( OID_BASIC_CONSTRAINTS, false, DerEncoder.sequence() ),
+                extension( OID_KEY_USAGE, true, DerEncoder.bitString( new byte[] { (byte) 0xa0 }, 5 ) ), //digitalSignature, keyEncipherment
+                extension( OID_EXT_KEY_USAGE, false, DerEncoder.sequence( DerEncoder.oid(OID_SERVER_AUTH) ) ),
+                extension( OID_SUBJECT_ALT_NAME, !named, DerEncoder.sequence(altName) ) );
+        long now = System.currentTimeMillis();
+        Date notAfter = new Date(now + validityDays*DAY);
+        if( notAfter.after( caCert.getNotAfter() ) )
+            notAfter = caCert.getNotAfter();
+        BigInteger serial = new BigInteger(63, random).add(BigInteger.ONE);
+        byte[] der = sign( caCert.getSubjectX500Principal().getEncoded(), subject, key, caKey, serial, new Date(now - DAY), notAfter, extensions );
+        return toCertificate(der);
+    }
+
+    /** Write a version 3 certificate and sign it with the given key */
+    private static byte[] sign( byte[] issuer, byte[] subject, PublicKey key, PrivateKey signer, BigInteger serial,
+            Date notBefore, Date notAfter, byte[] extensions ) throws GeneralSecurityException {
+        String algorithm;
+        byte[] algorithmId;
+        if( "RSA".equals(signer.getAlgorithm()) ) {
+            algorithm = "SHA256withRSA";
+            algorithmId = DerEncoder.sequence( DerEncoder.oid("1.2.840.113549.1.1.11"), DerEncoder.nul() );
+        } else if( "EC".equals(signer.getAlgorithm()) ) {
+            algorithm = "SHA256withECDSA";
+            algorithmId = DerEncoder.sequence( DerEncoder.oid("1.2.840.10045.4.3.2") );
+        } else {
+            throw new GeneralSecurityException("Unsupported CA key algorithm: "+ signer.getAlgorithm());
+        }
+        byte[] tbs = DerEncoder.sequence(
+                DerEncoder.explicit(0, DerEncoder.integer(2)),
+                DerEncoder.integer(serial),
+                algorithmId,
+                issuer,
+                DerEncoder.sequence( DerEncoder.time(notBefore), DerEncoder.time(notAfter) ),
+                subject,
+                key.getEncoded(),
+                DerEncoder.explicit(3, extensions) );
+        Signature signature = Signature.getInstance(algorithm);
+        signature.initSign(signer);
+        signature.update(tbs);
+        return DerEncoder.sequence( tbs, algorithmId, DerEncoder.bitString( signature.sign() ) );
+    }
+
+    private static byte[] extension( String oid, boolean critical, byte[] value ) {
+        return DerEncoder.sequence( DerEncoder.oid(oid), critical ? DerEncoder.bool(true) : null, DerEncoder.octetString(value) );
+    }
+
+    private static X509Certificate toCertificate( byte[] der ) throws GeneralSecurityException {
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate( new ByteArrayInputStream(der) );
+    }
+
+    private static byte[] ascii( String s ) {
+        try {
+            return s.getBytes("ISO-8859-1");
+        } catch( UnsupportedEncodingException e ) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    /** Is the host an IPv4 or IPv6 address literal rather than a name? */
+    private static boolean isAddress( String host ) {
+        if( host.indexOf(':') >= 0 )
+            return true;
+        for( int i=0; i< host.length(); i++ ) {
+            char c = host.charAt(i);
+            if( c != '.' && (c < '0' || c > '9') )
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find the server name a TLS client asked for in the ClientHello at the start of the given bytes, the buffer is not changed.
+     * @return the name, an empty string if the hello names none or the bytes are no ClientHello, or null if more bytes are needed
+     */
+    static String readServerName( ByteBuffer data ) {
+        int p = data.position();
+        int end = data.limit();
+        if( end - p < 5 )
+            return null;
+        if( data.get(p) != 0x16 ) //handshake record
+            return "";
+        int recordEnd = p + 5 + readShort(data, p+3);
+        if( recordEnd > end )
+            return null;
+        p += 5;
+        if( p + 4 > recordEnd || data.get(p) != 0x01 ) //ClientHello
+            return "";
+        p += 4 + 2 + 32; //handshake header, version, random
+        if( p + 1 > recordEnd )
+            return "";
+        p += 1 + (data.get(p) & 0xff); //session id
+        if( p + 2 > recordEnd )
+            return "";
+        p += 2 + readShort(data, p); //cipher suites
+        if( p + 1 > recordEnd )
+            return "";
+        p += 1 + (data.get(p) & 0xff); //compression methods
+        if( p + 2 > recordEnd )
+            return "";
+        int extensionsEnd = Math.min(recordEnd, p + 2 + readShort(data, p));
+        p += 2;
+        while( p + 4 <= extensionsEnd ) {
+            int type = readShort(data, p);
+            int length = readShort(data, p+2);
+            p += 4;
+            if( type == 0 ) {
+                //server_name: list length, name type, name length, name
+                if( p + 5 <= extensionsEnd && data.get(p+2) == 0 ) {
+                    int nameLength = readShort(data, p+3);
+                    if( p + 5 + nameLength <= extensionsEnd ) {
+                        byte[] name = new byte[nameLength];
+                        for( int i=0; i< nameLength; i++ )
+                            name[i] = data.get(p+5+i);
+                        try {
+                            return new String(name, "ISO-8859-1");
+                        } catch( UnsupportedEncodingException e ) {
+                            return "";
+                        }
+                    }
+                }
+                return "";
+            }
+            p += length;
+        }
+        return "";
+    }
+
+    private static int readShort( ByteBuffer data, int index ) {
+        return ((data.get(index) & 0xff) << 8) | (data.get(index+1) & 0xff);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Incremental decoder of the chunked transfer coding.<p>
+ * Like the message parser it is fed whatever a non-blocking read returned and keeps its position
+ * across calls.  Chunk data is handed out as slices of the input, so the body is never copied,
+ * and no bytes past the end of the trailers are consumed.  Chunk extensions are ignored, the
+ * trailer fields are kept as lines to be sent on with the message.
+ */
+class ChunkedDecoder {
+    private static final int STATE_SIZE = 0;
+    private static final int STATE_DATA = 1;
+    private static final int STATE_DATA_END = 2;
+    private static final int STATE_TRAILERS = 3;
+    private static final int STATE_COMPLETE = 4;
+
+    private int maxLineSize = 1024*8;
+    private int maxTrailerSize = 1024*64;
+    private int state = STATE_SIZE;
+    private long chunkRemaining = 0;
+    private byte[] line = new byte[64];
+    private int lineLength = 0;
+    private int trailerSize = 0;
+    private Vector<String> trailers = null;
+
+    /** Set the maximum size of the trailer fields together */
+    public void setMaxTrailerSize( int i ) { maxTrailerSize=i; }
+    /** Get the maximum size of the trailer fields together */
+    public int getMaxTrailerSize() { return maxTrailerSize; }
+    /** Has the last chunk and the trailers been decoded? */
+    public boolean isComplete() { return state == STATE_COMPLETE; }
+    /** Get the trailer fields as received, null if there were none */
+    public List<String> getTrailers() { return trailers; }
+
+    /** Get ready to decode the next body */
+    public void reset() {
+        state = STATE_SIZE;
+        chunkRemaining = 0;
+        lineLength = 0;
+        trailerSize = 0;
+        trailers = null;
+    }
+
+    /**
+     * Consume bytes of the given buffer up to the end of the next piece of chunk data.
+     * @return the chunk data as a slice of the buffer, or null if all input was consumed without finding any
+     */
+    public ByteBuffer decode( ByteBuffer in ) throws IOException {
+        while( state != STATE_COMPLETE && in.hasRemaining() ) {
+            if( state == STATE_DATA ) {
+                int size = (int) Math.min( in.remaining(), chunkRemaining );
+                ByteBuffer data = in.slice();
+                data.limit(size);
+                in.position(in.position() + size);
+                chunkRemaining -= size;
+                if( chunkRemaining == 0 )
+                    state = STATE_DATA_END;
+                return data;
+            }
+            if( !readLine(in) )
+                return null;
+            String s = new String(line, 0, lineLength, "ISO-8859-1");
+            lineLength = 0;
+            if( state == STATE_SIZE ) {
+                chunkRemaining = parseSize(s);
+                state = chunkRemaining == 0 ? STATE_TRAILERS : STATE_DATA;
+            } else if( state == STATE_DATA_END ) {
+                if( s.length() > 0 )
+                    throw new IOException("Chunk data longer than its size");
+                state = STATE_SIZE;
+            } else if( s.length() == 0 ) {
+                state = STATE_COMPLETE;
+            } else {
+                trailer(s);
+            }
+        }
+        return null;
+    }
+
+    private long parseSize( String s ) throws IOException {
+        int semicolon = s.indexOf(';');
+        String hex = (semicolon == -1 ? s : s.substring(0, semicolon)).trim();
+        if( hex.length() == 0 || hex.length() > 15 || hex.charAt(0) == '-' || hex.charAt(0) == '+' )
+            throw new IOException("Malformed chunk size: "+ s);
+        try {
+            return Long.parseLong(hex, 16);
+        } catch( NumberFormatException e ) {
+            throw new IOException("Malformed chunk size: "+ s);
+        }
+    }
+
+    private void trailer( String s ) throws IOException {
+        trailerSize += s.length();
+        if( trailerSize > maxTrailerSize )
+            throw new IOException("Trailer larger than "+ maxTrailerSize +" bytes");
+        if( trailers == null )
+            trailers = new Vector<String>();
+        if( s.charAt(0) == ' ' || s.charAt(0) == '\t' ) {
+            //obsolete line folding, continues the previous field
+            if( trailers.isEmpty() )
+                throw new IOException("Continuation line without a trailer: "+ s);
+            trailers.setElementAt( trailers.lastElement() +" "+ s.trim(), trailers.size()-1 );
+            return;
+        }
+        if( s.indexOf(':') < 1 )
+            throw new IOException("Malformed trailer line: "+ s);
+        trailers.addElement(s);
+    }
+
+    /** Collect bytes up to the end of the line, returns true once a whole line is available */
+    private boolean readLine( ByteBuffer in ) throws IOException {
+        while( in.hasRemaining() ) {
+            byte b = in.get();
+            if( b == '\n' ) {
+                if( lineLength > 0 && line[lineLength-1] == '\r' )
+                    lineLength--;
+                return true;
+            }
+            if( lineLength == maxLineSize )
+                throw new IOException("Chunk line longer than "+ maxLineSize +" bytes");
+            if( lineLength == line.length ) {
+                byte[] tmp = new byte[line.length * 2];
+                System.arraycopy(line, 0, tmp, 0, lineLength);
+                line = tmp;
+            }
+            line[lineLength++] = b;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Encoder for the chunked transfer coding.<p>
+ * Every piece of body handed to encode becomes one or more chunks written to pooled buffers, so a
+ * body of unknown length can be sent on as it arrives.  encodeLast ends the body with the last
+ * chunk and the trailer fields.
+ */
+class ChunkedEncoder {
+    /** The most a chunk adds to its data: up to eight hex digits of size and two line ends */
+    private static final int CHUNK_OVERHEAD = 12;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private ChunkedEncoder(){};
+
+    /** Encode the remaining bytes of data as chunks appended to out, returns the number of bytes added */
+    public static int encode( ByteBuffer data, List<ByteBuffer> out ) {
+        BufferPool pool = BufferPool.getSingleton();
+        int added = 0;
+        while( data.hasRemaining() ) {
+            ByteBuffer buffer = pool.acquire( data.remaining() + CHUNK_OVERHEAD );
+            int size = Math.min( data.remaining(), buffer.remaining() - CHUNK_OVERHEAD );
+            putHex(buffer, size);
+            buffer.put((byte)'\r').put((byte)'\n');
+            ByteBuffer part = data.duplicate();
+            part.limit( part.position() + size );
+            buffer.put(part);
+            data.position( part.position() );
+            buffer.put((byte)'\r').put((byte)'\n');
+            buffer.flip();
+            added += buffer.remaining();
+            out.add(buffer);
+        }
+        return added;
+    }
+
+    /** Encode the last chunk followed by the given trailer lines, which may be null, appended to out, returns the number of bytes added */
+    public static int encodeLast( List<String> trailers, List<ByteBuffer> out ) {
+        StringBuffer sb = new StringBuffer("0\r\n");
+        if( trailers != null ) {
+            for( int i=0; i< trailers.size(); i++ )
+                sb.append(trailers.get(i)).append("\r\n");
+        }
+        sb.append("\r\n");
+        try {
+            return BufferPool.getSingleton().copy( ByteBuffer.wrap( sb.toString().getBytes("ISO-8859-1") ), out );
+        } catch( UnsupportedEncodingException e ) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    private static void putHex( ByteBuffer buffer, int size ) {
+        int shift = 28;
+        while( shift > 0 && (size >>> shift) == 0 )
+            shift -= 4;
+        for( ; shift >= 0; shift -= 4 )
+            buffer.put( HEX[(size >>> shift) & 0xf] );
+    }
+}
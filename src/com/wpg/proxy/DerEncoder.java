@@ -0,0 +1,169 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.StringTokenizer;
+import java.util.TimeZone;
+
+/**
+ * The few ASN.1 DER encodings needed to write X.509 certificates.<p>
+ * Every method returns a complete element, tag and length included, so elements are built
+ * from the inside out by nesting calls.
+ */
+class DerEncoder {
+    static final int INTEGER = 0x02;
+    static final int BIT_STRING = 0x03;
+    static final int OCTET_STRING = 0x04;
+    static final int NULL = 0x05;
+    static final int OID = 0x06;
+    static final int UTF8_STRING = 0x0c;
+    static final int UTC_TIME = 0x17;
+    static final int GENERALIZED_TIME = 0x18;
+    static final int SEQUENCE = 0x30;
+    static final int SET = 0x31;
+
+    private DerEncoder() {}
+
+    /** Encode an element with the given tag around the given content */
+    static byte[] encode( int tag, byte[] content ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( content.length + 6 );
+        out.write(tag);
+        int length = content.length;
+        if( length < 0x80 ) {
+            out.write(length);
+        } else {
+            int bytes = 0;
+            for( int i=length; i > 0; i >>>= 8 )
+                bytes++;
+            out.write(0x80 | bytes);
+            for( int i=bytes-1; i >= 0; i-- )
+                out.write(length >>> (i*8));
+        }
+        out.write(content, 0, content.length);
+        return out.toByteArray();
+    }
+
+    /** Encode an element with the given tag around the concatenated elements */
+    static byte[] constructed( int tag, byte[]... elements ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for( int i=0; i< elements.length; i++ ) {
+            if( elements[i] != null )
+                out.write(elements[i], 0, elements[i].length);
+        }
+        return encode(tag, out.toByteArray());
+    }
+
+    /** A SEQUENCE of the given elements, null elements are left out */
+    static byte[] sequence( byte[]... elements ) {
+        return constructed(SEQUENCE, elements);
+    }
+
+    /** A SET of the given elements, null elements are left out */
+    static byte[] set( byte[]... elements ) {
+        return constructed(SET, elements);
+    }
+
+    /** An explicitly tagged element, context specific tag number n */
+    static byte[] explicit( int n, byte[] element ) {
+        return constructed(0xa0 | n, element);
+    }
+
+    static byte[] integer( long value ) {
+        return integer( BigInteger.valueOf(value) );
+    }
+
+    static byte[] integer( BigInteger value ) {
+        return encode(INTEGER, value.toByteArray());
+    }
+
+    static byte[] bool( boolean value ) {
+        return encode(0x01, new byte[] { (byte) (value ? 0xff : 0) });
+    }
+
+    static byte[] nul() {
+        return new byte[] { NULL, 0 };
+    }
+
+    /** A BIT STRING of whole bytes */
+    static byte[] bitString( byte[] bits ) {
+        return bitString(bits, 0);
+    }
+
+    /** A BIT STRING whose last byte has the given number of unused bits */
+    static byte[] bitString( byte[] bits, int unused ) {
+        byte[] content = new byte[bits.length + 1];
+        content[0] = (byte) unused;
+        System.arraycopy(bits, 0, content, 1, bits.length);
+        return encode(BIT_STRING, content);
+    }
+
+    static byte[] octetString( byte[] bytes ) {
+        return encode(OCTET_STRING, bytes);
+    }
+
+    static byte[] utf8String( String s ) {
+        try {
+            return encode(UTF8_STRING, s.getBytes("UTF-8"));
+        } catch( UnsupportedEncodingException e ) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    /** An OBJECT IDENTIFIER given in dotted form */
+    static byte[] oid( String dotted ) {
+        StringTokenizer st = new StringTokenizer(dotted, ".");
+        long first = Long.parseLong(st.nextToken());
+        long second = Long.parseLong(st.nextToken());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeBase128(out, first*40 + second);
+        while( st.hasMoreTokens() )
+            writeBase128(out, Long.parseLong(st.nextToken()));
+        return encode(OID, out.toByteArray());
+    }
+
+    private static void writeBase128( ByteArrayOutputStream out, long value ) {
+        int groups = 1;
+        for( long v = value >>> 7; v != 0; v >>>= 7 )
+            groups++;
+        for( int i=groups-1; i > 0; i-- )
+            out.write( (int) (0x80 | ((value >>> (i*7)) & 0x7f)) );
+        out.write( (int) (value & 0x7f) );
+    }
+
+    /** A time as certificates want it, UTCTime up to 2049 and GeneralizedTime from 2050 on */
+    static byte[] time( Date date ) {
+        Calendar c = Calendar.getInstance( TimeZone.getTimeZone("UTC") );
+        c.setTime(date);
+        boolean utc = c.get(Calendar.YEAR) < 2050;
+        SimpleDateFormat format = new SimpleDateFormat( utc ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'" );
+        format.setTimeZone( TimeZone.getTimeZone("UTC") );
+        try {
+            return encode(utc ? UTC_TIME : GENERALIZED_TIME, format.format(date).getBytes("ISO-8859-1"));
+        } catch( UnsupportedEncodingException e ) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+}
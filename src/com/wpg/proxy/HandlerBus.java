@@ -0,0 +1,344 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hands the events of the HttpMessageHandlers to handler threads so a slow handler does not hold up the event loops.<p>
+ * Each handler thread drains its own bounded ring of events in batches, the events of a client connection always go
+ * to the same thread so its handlers see them in order.  The messages of an event are retained until every handler
+ * has seen them, handlers run while the proxy carries on with the transaction so they must only read the messages.
+ * When a ring is full the overflow policy decides whether the event loop waits for room, the oldest waiting event
+ * is dropped or the new one is.  With no handler threads, the default, handlers run on the event loop as before.
+ */
+public class HandlerBus {
+    private final static Logger logger = Logger.getLogger(HandlerBus.class);
+    /** The event loop waits for room in the ring, nothing is lost but a slow handler slows the proxy down */
+    public static final int OVERFLOW_BLOCK = 0;
+    /** The oldest waiting event makes room for the new one */
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+    /** The new event is dropped */
+    public static final int OVERFLOW_DROP_NEWEST = 2;
+
+    private int threads = 0;
+    private int queueSize = 4096;
+    private int batchSize = 64;
+    private volatile int overflowPolicy = OVERFLOW_DROP_NEWEST;
+    private volatile Ring[] rings = new Ring[0];
+
+    /** Set the number of handler threads, 0 runs handlers on the event loops, only used when the proxy starts */
+    public void setThreads( int i ) {
+        if( i < 0 )
+            throw new IllegalArgumentException("Handler Threads can not be negative, got: "+ i);
+        threads=i;
+    }
+    /** Get the number of handler threads, 0 when handlers run on the event loops */
+    public int getThreads() { return threads; }
+    /** Set the number of events waiting for each handler thread, only used when the proxy starts */
+    public void setQueueSize( int i ) {
+        if( i < 1 )
+            throw new IllegalArgumentException("Handler Queue Size must be at least 1, got: "+ i);
+        queueSize=i;
+    }
+    /** Get the number of events waiting for each handler thread */
+    public int getQueueSize() { return queueSize; }
+    /** Set the number of events a handler thread takes from its ring at once, only used when the proxy starts */
+    public void setBatchSize( int i ) {
+        if( i < 1 )
+            throw new IllegalArgumentException("Handler Batch Size must be at least 1, got: "+ i);
+        batchSize=i;
+    }
+    /** Get the number of events a handler thread takes from its ring at once */
+    public int getBatchSize() { return batchSize; }
+    /** Set what happens to an event when the ring is full, OVERFLOW_BLOCK, OVERFLOW_DROP_OLDEST or OVERFLOW_DROP_NEWEST */
+    public void setOverflowPolicy( int i ) {
+        if( i != OVERFLOW_BLOCK && i != OVERFLOW_DROP_OLDEST && i != OVERFLOW_DROP_NEWEST )
+            throw new IllegalArgumentException("Overflow Policy of: "+ i +" Unrecognized!");
+        overflowPolicy=i;
+    }
+    /** Get what happens to an event when the ring is full */
+    public int getOverflowPolicy() { return overflowPolicy; }
+
+    /** Are handler threads running? */
+    public boolean isRunning() { return rings.length > 0; }
+    /** Get the number of events waiting for the handler threads */
+    public long getQueued() {
+        long n = 0;
+        Ring[] r = rings;
+        for( int i=0; i< r.length; i++ )
+            n += r[i].count();
+        return n;
+    }
+    /** Get the number of events handed to the handler threads */
+    public long getPublishedCount() {
+        long n = 0;
+        Ring[] r = rings;
+        for( int i=0; i< r.length; i++ )
+            n += r[i].published;
+        return n;
+    }
+    /** Get the number of events seen by every handler */
+    public long getDeliveredCount() {
+        long n = 0;
+        Ring[] r = rings;
+        for( int i=0; i< r.length; i++ )
+            n += r[i].delivered;
+        return n;
+    }
+    /** Get the number of waiting events dropped to make room for new ones */
+    public long getDroppedOldestCount() {
+        long n = 0;
+        Ring[] r = rings;
+        for( int i=0; i< r.length; i++ )
+            n += r[i].droppedOldest;
+        return n;
+    }
+    /** Get the number of new events dropped because the ring was full */
+    public long getDroppedNewestCount() {
+        long n = 0;
+        Ring[] r = rings;
+        for( int i=0; i< r.length; i++ )
+            n += r[i].droppedNewest;
+        return n;
+    }
+    /** Get the number of times an event loop waited for room in a ring */
+    public long getBlockedCount() {
+        long n = 0;
+        Ring[] r = rings;
+        for( int i=0; i< r.length; i++ )
+            n += r[i].blocked;
+        return n;
+    }
+
+    /** Start the handler threads, called when the proxy starts */
+    synchronized void start() {
+        if( threads == 0 || rings.length > 0 )
+            return;
+        Ring[] r = new Ring[threads];
+        for( int i=0; i< r.length; i++ ) {
+            r[i] = new Ring(queueSize, batchSize);
+            Thread t = new Thread(r[i], "Handler "+ i);
+            t.setDaemon(true);
+            t.start();
+        }
+        rings = r;
+        logger.info("Started "+ r.length +" handler threads");
+    }
+
+    /** Stop the handler threads once they have delivered the waiting events, new events run on the event loops */
+    synchronized void shutdown() {
+        Ring[] r = rings;
+        rings = new Ring[0];
+        for( int i=0; i< r.length; i++ )
+            r[i].stop();
+    }
+
+    /**
+     * Hand an event to the handler thread of its source, the messages of the event are retained until it is delivered.
+     * @return false if there are no handler threads, the handlers are then to be run by the caller
+     */
+    boolean publish( Object source, HttpMessageHandler[] handlers, HttpMessageRequest request, HttpMessageResponse response, Exception e ) {
+        Ring[] r = rings;
+        if( r.length == 0 )
+            return false;
+        return r[(System.identityHashCode(source) & 0x7fffffff) % r.length].offer(handlers, request, response, e);
+    }
+
+    /** Call a handler with the event made up of the given request, response and exception */
+    static void deliver( HttpMessageHandler handler, HttpMessageRequest request, HttpMessageResponse response, Exception e ) {
+        if( response != null && request != null && e != null )
+            handler.failedResponse(response, request, e);
+        else if( request != null && e != null )
+            handler.failedRequest(request, e);
+        else if( e != null )
+            handler.failed(e);
+        else if( response != null && request != null )
+            handler.receivedResponse( response, request );
+        else if( request != null )
+            handler.receivedRequest( request );
+    }
+
+    /** A handler event, the slots of a ring are reused so publishing does not allocate */
+    private static class Event {
+        HttpMessageHandler[] handlers;
+        HttpMessageRequest request;
+        HttpMessageResponse response;
+        Exception exception;
+
+        /** Take over the content of another event, which is left empty */
+        void takeFrom( Event other ) {
+            handlers = other.handlers;
+            request = other.request;
+            response = other.response;
+            exception = other.exception;
+            other.handlers = null;
+            other.request = null;
+            other.response = null;
+            other.exception = null;
+        }
+
+        /** Let go of the messages of the event and forget it */
+        void release() {
+            if( request != null )
+                request.release();
+            if( response != null )
+                response.release();
+            handlers = null;
+            request = null;
+            response = null;
+            exception = null;
+        }
+    }
+
+    /** The bounded ring of events of one handler thread, which runs it */
+    private class Ring implements Runnable {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final Event[] events;
+        private final Event[] batch;
+        private int head = 0;
+        private int count = 0;
+        private boolean stopped = false;
+        volatile long published = 0;
+        volatile long delivered = 0;
+        volatile long droppedOldest = 0;
+        volatile long droppedNewest = 0;
+        volatile long blocked = 0;
+
+        Ring( int size, int batchSize ) {
+            events = new Event[size];
+            for( int i=0; i< events.length; i++ )
+                events[i] = new Event();
+            batch = new Event[Math.min(size, batchSize)];
+            for( int i=0; i< batch.length; i++ )
+                batch[i] = new Event();
+        }
+
+        int count() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Add an event to the ring, false if the ring stopped while the caller waited for room */
+        boolean offer( HttpMessageHandler[] handlers, HttpMessageRequest request, HttpMessageResponse response, Exception e ) {
+            //the dropped event is let go of outside the lock, releasing a message may recycle it
+            Event dropped = null;
+            lock.lock();
+            try {
+                if( count == events.length ) {
+                    int policy = overflowPolicy;
+                    if( policy == OVERFLOW_DROP_NEWEST ) {
+                        droppedNewest++;
+                        return true;
+                    } else if( policy == OVERFLOW_DROP_OLDEST ) {
+                        dropped = new Event();
+                        dropped.takeFrom(events[head]);
+                        head = (head + 1) % events.length;
+                        count--;
+                        droppedOldest++;
+                    } else {
+                        blocked++;
+                        try {
+                            while( count == events.length && !stopped )
+                                notFull.await();
+                        } catch( InterruptedException ie ) {
+                            Thread.currentThread().interrupt();
+                            droppedNewest++;
+                            return true;
+                        }
+                        if( stopped )
+                            return false;
+                    }
+                }
+                Event slot = events[(head + count) % events.length];
+                if( request != null )
+                    request.retain();
+                if( response != null )
+                    response.retain();
+                slot.handlers = handlers;
+                slot.request = request;
+                slot.response = response;
+                slot.exception = e;
+                count++;
+                published++;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+            if( dropped != null )
+                dropped.release();
+            return true;
+        }
+
+        void stop() {
+            lock.lock();
+            try {
+                stopped = true;
+                notEmpty.signalAll();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void run() {
+            int taken = 0;
+            while( true ) {
+                lock.lock();
+                try {
+                    delivered += taken;
+                    while( count == 0 && !stopped )
+                        notEmpty.awaitUninterruptibly();
+                    if( count == 0 )
+                        return;
+                    taken = Math.min(count, batch.length);
+                    for( int i=0; i< taken; i++ ) {
+                        batch[i].takeFrom(events[head]);
+                        head = (head + 1) % events.length;
+                    }
+                    count -= taken;
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                for( int i=0; i< taken; i++ ) {
+                    Event event = batch[i];
+                    for( int j=0; j< event.handlers.length; j++ ) {
+                        try {
+                            deliver( event.handlers[j], event.request, event.response, event.exception );
+                        } catch( RuntimeException re ) {
+                            logger.error("Handler failed: "+ re, re);
+                        }
+                    }
+                    event.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.util.LinkedList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Caps the number of TLS handshakes with clients of the proxy running at the same time.<p>
+ * A reconnect storm can keep every processor busy with handshakes alone, so once the cap is reached
+ * new handshakes wait in a bounded queue and start as running ones finish, and those that do not fit
+ * the queue are turned away.  With fast rejection nothing waits, a handshake over the cap is turned
+ * away right away so the client can retry elsewhere while established connections keep the processors.
+ * Intercepted CONNECT requests are held before the client is told the tunnel is up and turned away
+ * with a 503, connections to the secure port are held before the handshake starts and closed.
+ */
+public class HandshakeAdmission {
+    private final static Logger logger = Logger.getLogger(HandshakeAdmission.class);
+    /** The handshake may start now */
+    public static final int ADMITTED = 0;
+    /** The handshake waits, the waiter is called once it may start */
+    public static final int QUEUED = 1;
+    /** The handshake is turned away */
+    public static final int REJECTED = 2;
+
+    /** Told when a queued handshake may start, called on the thread of the handshake that made room */
+    interface Waiter {
+        public void admitted();
+    }
+
+    private int maxHandshakes = 0;
+    private int queueSize = 1024;
+    private boolean fastReject = false;
+    private int running = 0;
+    private final LinkedList<Waiter> waiting = new LinkedList<Waiter>();
+    private long admittedCount = 0;
+    private long queuedCount = 0;
+    private long rejectedCount = 0;
+
+    /** Set the number of handshakes running at the same time, 0 for no limit */
+    public synchronized void setMaxHandshakes( int i ) {
+        if( i < 0 )
+            throw new IllegalArgumentException("Max Handshakes can not be negative, got: "+ i);
+        maxHandshakes=i;
+    }
+    /** Get the number of handshakes running at the same time, 0 for no limit */
+    public synchronized int getMaxHandshakes() { return maxHandshakes; }
+    /** Set the number of handshakes waiting for a running one to finish, those over it are turned away */
+    public synchronized void setQueueSize( int i ) {
+        if( i < 0 )
+            throw new IllegalArgumentException("Handshake Queue Size can not be negative, got: "+ i);
+        queueSize=i;
+    }
+    /** Get the number of handshakes waiting for a running one to finish */
+    public synchronized int getQueueSize() { return queueSize; }
+    /** Turn handshakes over the limit away right away instead of queueing them */
+    public synchronized void setFastReject( boolean b ) { fastReject=b; }
+    /** Are handshakes over the limit turned away right away? */
+    public synchronized boolean isFastReject() { return fastReject; }
+
+    /** Get the number of handshakes running */
+    public synchronized int getRunning() { return running; }
+    /** Get the number of handshakes waiting */
+    public synchronized int getWaiting() { return waiting.size(); }
+    /** Get the number of handshakes started right away */
+    public synchronized long getAdmittedCount() { return admittedCount; }
+    /** Get the number of handshakes that had to wait */
+    public synchronized long getQueuedCount() { return queuedCount; }
+    /** Get the number of handshakes turned away */
+    public synchronized long getRejectedCount() { return rejectedCount; }
+
+    /**
+     * Ask to start a handshake.
+     * @return ADMITTED, QUEUED once the waiter is called release or cancel is due, or REJECTED
+     */
+    public synchronized int admit( Waiter waiter ) {
+        if( maxHandshakes == 0 || running < maxHandshakes ) {
+            running++;
+            admittedCount++;
+            return ADMITTED;
+        }
+        if( fastReject || waiting.size() >= queueSize ) {
+            rejectedCount++;
+            logger.debug("Handshake turned away, "+ running +" running and "+ waiting.size() +" waiting");
+            return REJECTED;
+        }
+        queuedCount++;
+        waiting.addLast(waiter);
+        return QUEUED;
+    }
+
+    /** A queued handshake gave up before it was admitted */
+    public synchronized void cancel( Waiter waiter ) {
+        waiting.remove(waiter);
+    }
+
+    /** An admitted handshake finished or failed, the next waiting one may start */
+    public void release() {
+        Waiter next;
+        synchronized( this ) {
+            running--;
+            if( waiting.isEmpty() || (maxHandshakes > 0 && running >= maxHandshakes) )
+                return;
+            running++;
+            next = waiting.removeFirst();
+        }
+        next.admitted();
+    }
+}
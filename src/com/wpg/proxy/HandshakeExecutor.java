@@ -0,0 +1,114 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the delegated tasks of SSLEngines, the expensive cryptography of a handshake, off the event loops.<p>
+ * The queue is bounded, once it is full a task runs on the thread submitting it, so a burst of new TLS
+ * connections slows down the loops accepting them instead of piling up without limit.  The time from
+ * submission to completion of every task is recorded.
+ */
+public class HandshakeExecutor implements Executor {
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong inlineCount = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /** Creates an executor with the given number of threads and room for the given number of waiting tasks */
+    public HandshakeExecutor( int threads, int queueSize ) {
+        executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread( Runnable r ) {
+                Thread t = new Thread(r, "Handshake "+ count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        }, new RejectedExecutionHandler() {
+            public void rejectedExecution( Runnable r, ThreadPoolExecutor executor ) {
+                //the queue is full or the executor was shut down, the caller does the work itself
+                inlineCount.incrementAndGet();
+                r.run();
+            }
+        });
+    }
+
+    /** Set the number of threads running tasks */
+    public void setThreads( int i ) {
+        if( i < 1 )
+            throw new IllegalArgumentException("At least one handshake thread is required, got: "+ i);
+        if( i > executor.getMaximumPoolSize() ) {
+            executor.setMaximumPoolSize(i);
+            executor.setCorePoolSize(i);
+        } else {
+            executor.setCorePoolSize(i);
+            executor.setMaximumPoolSize(i);
+        }
+    }
+    /** Get the number of threads running tasks */
+    public int getThreads() { return executor.getMaximumPoolSize(); }
+    /** Get the number of tasks waiting for a thread */
+    public int getQueueDepth() { return executor.getQueue().size(); }
+    /** Get the number of tasks being run */
+    public int getActiveCount() { return executor.getActiveCount(); }
+    /** Get the number of tasks completed */
+    public long getCompletedCount() { return completedCount.get(); }
+    /** Get the number of tasks that ran on the submitting thread because the queue was full */
+    public long getInlineCount() { return inlineCount.get(); }
+    /** Get the average time in milliseconds from submission to completion of a task */
+    public double getAverageLatency() {
+        long count = completedCount.get();
+        return count == 0 ? 0 : totalLatency.get() / 1000000.0 / count;
+    }
+    /** Get the longest time in milliseconds from submission to completion of a task */
+    public double getMaxLatency() { return maxLatency.get() / 1000000.0; }
+
+    /** Run the task on one of the threads, or on the calling thread if the queue is full */
+    public void execute( final Runnable task ) {
+        final long submitted = System.nanoTime();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    long latency = System.nanoTime() - submitted;
+                    completedCount.incrementAndGet();
+                    totalLatency.addAndGet(latency);
+                    long max;
+                    while( latency > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, latency) ) {}
+                }
+            }
+        });
+    }
+
+    /** Stop the threads once they are idle, tasks submitted afterwards run on the calling thread */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Looks the names of remote hosts up off the event loops.<p>
+ * A lookup runs on one of a few threads and the answer is handed back on the event loop that asked for it,
+ * while the loop keeps serving its other connections.  Addresses found are cached for a while, a lookup of a
+ * host that is already being looked up waits for the same answer, and literal addresses need no lookup at all.
+ */
+public class HostResolver {
+    /** Hears the answer to a lookup, on the event loop that asked for it */
+    public interface Listener {
+        /** The host was found */
+        void hostResolved( InetAddress address );
+        /** The host could not be found */
+        void hostNotFound( UnknownHostException e );
+    }
+
+    private static class Waiter {
+        private final ProxyEventLoop loop;
+        private final Listener listener;
+        private Waiter( ProxyEventLoop loop, Listener listener ) { this.loop = loop; this.listener = listener; }
+    }
+
+    private static class Cached {
+        private final InetAddress address;
+        private final long expires;
+        private Cached( InetAddress address, long expires ) { this.address = address; this.expires = expires; }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private volatile long cacheTime = 30000;
+    private volatile int maxCacheSize = 1024;
+    /** The addresses found, the least recently used first */
+    private final Map<String,Cached> cache = new LinkedHashMap<String,Cached>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        protected boolean removeEldestEntry( Map.Entry<String,Cached> eldest ) {
+            return size() > maxCacheSize;
+        }
+    };
+    /** The lookups running, with everyone waiting for them */
+    private final Map<String,List<Waiter>> pending = new HashMap<String,List<Waiter>>();
+
+    /** Creates a resolver running lookups on the given number of threads */
+    public HostResolver( int threads ) {
+        executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread( Runnable r ) {
+                Thread t = new Thread(r, "Resolver "+ count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** Set the number of threads running lookups */
+    public void setThreads( int i ) {
+        if( i < 1 )
+            throw new IllegalArgumentException("At least one resolver thread is required, got: "+ i);
+        if( i > executor.getMaximumPoolSize() ) {
+            executor.setMaximumPoolSize(i);
+            executor.setCorePoolSize(i);
+        } else {
+            executor.setCorePoolSize(i);
+            executor.setMaximumPoolSize(i);
+        }
+    }
+    /** Get the number of threads running lookups */
+    public int getThreads() { return executor.getMaximumPoolSize(); }
+    /** Set the time in milliseconds an address found is used without looking the host up again, 0 to not cache addresses */
+    public void setCacheTime( long l ) {
+        if( l < 0 )
+            throw new IllegalArgumentException("Resolver cache time can not be negative, got: "+ l);
+        cacheTime = l;
+        if( l == 0 )
+            clearCache();
+    }
+    /** Get the time in milliseconds an address found is used without looking the host up again */
+    public long getCacheTime() { return cacheTime; }
+    /** Set the number of hosts whose address is cached, the least recently used are dropped first */
+    public void setMaxCacheSize( int i ) {
+        if( i < 1 )
+            throw new IllegalArgumentException("Resolver cache size must be at least 1, got: "+ i);
+        maxCacheSize = i;
+    }
+    /** Get the number of hosts whose address is cached */
+    public int getMaxCacheSize() { return maxCacheSize; }
+    /** Get the number of hosts being looked up */
+    public synchronized int getPendingCount() { return pending.size(); }
+    /** Forget the addresses found so far */
+    public synchronized void clearCache() { cache.clear(); }
+
+    /**
+     * Find the address of the given host for the given event loop.
+     * @return the address if it is known right away, otherwise null and the listener hears the answer on the loop later
+     * @throws UnknownHostException if the host is a malformed literal address or the resolver was shut down
+     */
+    public InetAddress resolve( final String host, ProxyEventLoop loop, Listener listener ) throws UnknownHostException {
+        if( isLiteral(host) )
+            return InetAddress.getByName(host);
+        synchronized( this ) {
+            Cached cached = cache.get(host);
+            if( cached != null ) {
+                if( cached.expires > System.currentTimeMillis() )
+                    return cached.address;
+                cache.remove(host);
+            }
+            List<Waiter> waiters = pending.get(host);
+            if( waiters != null ) {
+                waiters.add( new Waiter(loop, listener) );
+                return null;
+            }
+            waiters = new ArrayList<Waiter>(1);
+            waiters.add( new Waiter(loop, listener) );
+            pending.put(host, waiters);
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    lookup(host);
+                }
+            });
+        } catch( RejectedExecutionException e ) {
+            synchronized( this ) {
+                pending.remove(host);
+            }
+            throw new UnknownHostException("Resolver shut down, unable to look up: "+ host);
+        }
+        return null;
+    }
+
+    /** Look the host up and hand the answer to everyone waiting for it */
+    private void lookup( String host ) {
+        InetAddress address = null;
+        UnknownHostException failure = null;
+        try {
+            address = InetAddress.getByName(host);
+        } catch( UnknownHostException e ) {
+            failure = e;
+        } catch( RuntimeException e ) {
+            failure = new UnknownHostException("Unable to look up "+ host +": "+ e);
+            failure.initCause(e);
+        }
+        List<Waiter> waiters;
+        synchronized( this ) {
+            waiters = pending.remove(host);
+            if( address != null && cacheTime > 0 )
+                cache.put( host, new Cached(address, System.currentTimeMillis() + cacheTime) );
+        }
+        final InetAddress found = address;
+        final UnknownHostException notFound = failure;
+        for( int i=0; i< waiters.size(); i++ ) {
+            final Listener listener = waiters.get(i).listener;
+            waiters.get(i).loop.execute(new Runnable() {
+                public void run() {
+                    if( found != null )
+                        listener.hostResolved(found);
+                    else
+                        listener.hostNotFound(notFound);
+                }
+            });
+        }
+    }
+
+    /** Is the host an IPv4 or IPv6 address, which is taken as it is without a lookup? */
+    static boolean isLiteral( String host ) {
+        if( host.indexOf(':') >= 0 )
+            return true;
+        int parts = 0;
+        int digits = 0;
+        int value = 0;
+        for( int i=0; i< host.length(); i++ ) {
+            char c = host.charAt(i);
+            if( c == '.' ) {
+                if( digits == 0 )
+                    return false;
+                parts++;
+                digits = 0;
+                value = 0;
+            } else if( c >= '0' && c <= '9' && digits < 3 ) {
+                digits++;
+                value = value*10 + (c - '0');
+                if( value > 255 )
+                    return false;
+            } else {
+                return false;
+            }
+        }
+        return parts == 3 && digits > 0;
+    }
+
+    /** Stop the threads once they are idle, lookups asked for afterwards fail */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
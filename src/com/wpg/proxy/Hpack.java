@@ -0,0 +1,431 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541).<p>
+ * A Decoder and an Encoder each keep the dynamic table of one direction of a connection, so every header
+ * block of that direction has to go through the same instance in the order the blocks are sent.
+ * The encoder indexes the fields that tend to repeat from one request to the next, and uses the Huffman
+ * code for every string it makes shorter.
+ */
+class Hpack {
+    /** The size of the dynamic table both ends start with */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+        {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+        {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+        {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+        {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+        {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+        {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""}, {"date", ""},
+        {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""}, {"if-match", ""},
+        {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""},
+        {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+        {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""},
+        {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+        {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+    /** The index of the first static entry with a given name */
+    private static final Hashtable<String,Integer> STATIC_NAMES = new Hashtable<String,Integer>();
+
+    /** Length in bits of the Huffman code of every byte and of EOS, the code is canonical so the lengths are all it takes */
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+    private static final int EOS = 256;
+    private static final int[] HUFFMAN_CODES = new int[257];
+    /** Decoding tree, node n has its children at 2n and 2n+1, a negative child is a leaf holding -1-symbol */
+    private static final int[] HUFFMAN_TREE;
+
+    static {
+        for( int i=STATIC_TABLE.length-1; i>= 0; i-- )
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i+1);
+
+        //assign the canonical codes, shorter codes first and symbols in order within a length
+        int code = 0;
+        int length = 0;
+        for( int bits=1; bits<= 30; bits++ ) {
+            for( int symbol=0; symbol< 257; symbol++ ) {
+                if( HUFFMAN_LENGTHS[symbol] != bits )
+                    continue;
+                code <<= bits - length;
+                length = bits;
+                HUFFMAN_CODES[symbol] = code++;
+            }
+        }
+        int[] tree = new int[2*512];
+        int nodes = 1;
+        for( int symbol=0; symbol< 257; symbol++ ) {
+            int node = 0;
+            for( int bit=HUFFMAN_LENGTHS[symbol]-1; bit> 0; bit-- ) {
+                int child = 2*node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if( tree[child] == 0 )
+                    tree[child] = nodes++;
+                node = tree[child];
+            }
+            tree[2*node + (HUFFMAN_CODES[symbol] & 1)] = -1-symbol;
+        }
+        HUFFMAN_TREE = tree;
+    }
+
+    /** Receives the fields of a decoded header block */
+    interface FieldListener {
+        public void field( String name, String value ) throws IOException;
+    }
+
+    /** The dynamic table, most recent entry first */
+    private static class Table {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int first = 0;
+        private int count = 0;
+        private int size = 0;
+        private int maxSize = DEFAULT_TABLE_SIZE;
+
+        /** Get the number of entries */
+        int length() { return count; }
+        /** Get the name of the entry with the given index, 0 being the most recent */
+        String getName( int i ) { return names[(first + i) % names.length]; }
+        /** Get the value of the entry with the given index, 0 being the most recent */
+        String getValue( int i ) { return values[(first + i) % names.length]; }
+
+        void add( String name, String value ) {
+            int entrySize = entrySize(name, value);
+            evict(maxSize - entrySize);
+            if( entrySize > maxSize )
+                return; //an entry larger than the table empties it and is not added
+            if( count == names.length ) {
+                String[] n = new String[count * 2];
+                String[] v = new String[count * 2];
+                for( int i=0; i< count; i++ ) {
+                    n[i] = getName(i);
+                    v[i] = getValue(i);
+                }
+                names = n;
+                values = v;
+                first = 0;
+            }
+            first = (first + names.length - 1) % names.length;
+            names[first] = name;
+            values[first] = value;
+            count++;
+            size += entrySize;
+        }
+
+        void setMaxSize( int max ) {
+            maxSize = max;
+            evict(max);
+        }
+
+        /** Drop the oldest entries until the table is no larger than the given size */
+        private void evict( int target ) {
+            while( count > 0 && size > target ) {
+                int last = (first + count - 1) % names.length;
+                size -= entrySize(names[last], values[last]);
+                names[last] = null;
+                values[last] = null;
+                count--;
+            }
+        }
+
+        private static int entrySize( String name, String value ) {
+            return name.length() + value.length() + 32;
+        }
+    }
+
+    /** Decodes the header blocks received on one connection */
+    static class Decoder {
+        private final Table table = new Table();
+        private final int maxTableSize;
+        private byte[] block;
+        private int position;
+        private int end;
+        private char[] chars = new char[256];
+
+        /** Create a decoder whose peer may grow the dynamic table up to the given size, the one advertised in SETTINGS */
+        Decoder( int maxTableSize ) {
+            this.maxTableSize = maxTableSize;
+            table.setMaxSize(maxTableSize);
+        }
+
+        /** Decode the whole header block in the given bytes, handing its fields to the listener in order */
+        void decode( byte[] b, int off, int len, FieldListener listener ) throws IOException {
+            block = b;
+            position = off;
+            end = off + len;
+            boolean fieldSeen = false;
+            try {
+                while( position < end ) {
+                    int first = block[position] & 0xff;
+                    if( (first & 0x80) != 0 ) {
+                        int index = readInt(7);
+                        listener.field( getName(index), getValue(index) );
+                        fieldSeen = true;
+                    } else if( (first & 0x40) != 0 ) {
+                        int index = readInt(6);
+                        String name = index == 0 ? readString() : getName(index);
+                        String value = readString();
+                        table.add(name, value);
+                        listener.field(name, value);
+                        fieldSeen = true;
+                    } else if( (first & 0x20) != 0 ) {
+                        //only allowed at the start of a block
+                        int size = readInt(5);
+                        if( fieldSeen || size > maxTableSize )
+                            throw new IOException("Invalid dynamic table size update: "+ size);
+                        table.setMaxSize(size);
+                    } else {
+                        //literal without indexing or never indexed, the same to a decoder
+                        int index = readInt(4);
+                        String name = index == 0 ? readString() : getName(index);
+                        listener.field(name, readString());
+                        fieldSeen = true;
+                    }
+                }
+            } finally {
+                block = null;
+            }
+        }
+
+        private String getName( int index ) throws IOException {
+            if( index > 0 && index <= STATIC_TABLE.length )
+                return STATIC_TABLE[index-1][0];
+            index -= STATIC_TABLE.length + 1;
+            if( index < 0 || index >= table.length() )
+                throw new IOException("Invalid header table index: "+ (index + STATIC_TABLE.length + 1));
+            return table.getName(index);
+        }
+
+        private String getValue( int index ) throws IOException {
+            if( index > 0 && index <= STATIC_TABLE.length )
+                return STATIC_TABLE[index-1][1];
+            index -= STATIC_TABLE.length + 1;
+            if( index < 0 || index >= table.length() )
+                throw new IOException("Invalid header table index: "+ (index + STATIC_TABLE.length + 1));
+            return table.getValue(index);
+        }
+
+        /** Read an integer whose first byte holds the given number of prefix bits */
+        private int readInt( int prefix ) throws IOException {
+            int max = (1 << prefix) - 1;
+            int value = block[position++] & max;
+            if( value < max )
+                return value;
+            int shift = 0;
+            int b;
+            do {
+                if( position == end || shift > 21 )
+                    throw new IOException("Truncated or oversized integer in header block");
+                b = block[position++] & 0xff;
+                value += (b & 0x7f) << shift;
+                shift += 7;
+            } while( (b & 0x80) != 0 );
+            return value;
+        }
+
+        private String readString() throws IOException {
+            if( position == end )
+                throw new IOException("Truncated header block");
+            boolean huffman = (block[position] & 0x80) != 0;
+            int length = readInt(7);
+            if( length > end - position )
+                throw new IOException("Truncated header block");
+            int start = position;
+            position += length;
+            if( huffman )
+                return decodeHuffman(start, length);
+            if( chars.length < length )
+                chars = new char[length];
+            for( int i=0; i< length; i++ )
+                chars[i] = (char) (block[start+i] & 0xff);
+            return new String(chars, 0, length);
+        }
+
+        private String decodeHuffman( int start, int length ) throws IOException {
+            //every code is at least 5 bits long
+            if( chars.length < length * 8 / 5 )
+                chars = new char[length * 8 / 5];
+            int count = 0;
+            int node = 0;
+            int depth = 0;
+            boolean ones = true;
+            for( int i=start; i< start+length; i++ ) {
+                int b = block[i];
+                for( int bit=7; bit>= 0; bit-- ) {
+                    int set = (b >>> bit) & 1;
+                    int child = HUFFMAN_TREE[2*node + set];
+                    depth++;
+                    ones &= set == 1;
+                    if( child < 0 ) {
+                        if( child == -1-EOS )
+                            throw new IOException("EOS in Huffman coded string");
+                        chars[count++] = (char) (-1-child);
+                        node = 0;
+                        depth = 0;
+                        ones = true;
+                    } else {
+                        node = child;
+                    }
+                }
+            }
+            //the padding is the most significant bits of EOS, all ones and shorter than a byte
+            if( depth > 7 || !ones )
+                throw new IOException("Invalid Huffman padding");
+            return new String(chars, 0, count);
+        }
+    }
+
+    /** Encodes the header blocks sent on one connection */
+    static class Encoder {
+        private final Table table = new Table();
+        private int sizeUpdate = -1;
+
+        /** The peer announced the size of its dynamic table, the encoder uses no more than that */
+        void setMaxTableSize( int size ) {
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            if( size == table.maxSize )
+                return;
+            table.setMaxSize(size);
+            //the peer learns the new size from the next block, the smallest one first if it changed twice since
+            sizeUpdate = sizeUpdate < 0 ? size : Math.min(sizeUpdate, size);
+        }
+
+        /** Encode a header block from the given list of alternate names and values, the names already in lower case */
+        void encode( List<String> fields, ByteArrayOutputStream out ) {
+            if( sizeUpdate >= 0 ) {
+                if( sizeUpdate != table.maxSize )
+                    writeInt(out, 0x20, 5, sizeUpdate);
+                writeInt(out, 0x20, 5, table.maxSize);
+                sizeUpdate = -1;
+            }
+            for( int i=0; i+1< fields.size(); i+=2 )
+                encode(fields.get(i), fields.get(i+1), out);
+        }
+
+        private void encode( String name, String value, ByteArrayOutputStream out ) {
+            int nameIndex = 0;
+            Integer first = STATIC_NAMES.get(name);
+            if( first != null ) {
+                nameIndex = first.intValue();
+                for( int i=nameIndex; i<= STATIC_TABLE.length && STATIC_TABLE[i-1][0].equals(name); i++ ) {
+                    if( STATIC_TABLE[i-1][1].equals(value) ) {
+                        writeInt(out, 0x80, 7, i);
+                        return;
+                    }
+                }
+            }
+            for( int i=0; i< table.length(); i++ ) {
+                if( table.getName(i).equals(name) ) {
+                    if( table.getValue(i).equals(value) ) {
+                        writeInt(out, 0x80, 7, STATIC_TABLE.length + 1 + i);
+                        return;
+                    }
+                    if( nameIndex == 0 )
+                        nameIndex = STATIC_TABLE.length + 1 + i;
+                }
+            }
+            if( name.equals("authorization") || name.equals("proxy-authorization") ) {
+                //credentials never go into a table, not even on intermediaries
+                writeInt(out, 0x10, 4, nameIndex);
+            } else if( isIndexed(name, value) ) {
+                writeInt(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            } else {
+                writeInt(out, 0x00, 4, nameIndex);
+            }
+            if( nameIndex == 0 )
+                writeString(out, name);
+            writeString(out, value);
+        }
+
+        /** Fields that change with every request would only push the others out of the table */
+        private boolean isIndexed( String name, String value ) {
+            return !name.equals(":path") && !name.equals("content-length")
+                && Table.entrySize(name, value) <= table.maxSize / 2;
+        }
+
+        private static void writeInt( ByteArrayOutputStream out, int flags, int prefix, int value ) {
+            int max = (1 << prefix) - 1;
+            if( value < max ) {
+                out.write(flags | value);
+                return;
+            }
+            out.write(flags | max);
+            value -= max;
+            while( value >= 0x80 ) {
+                out.write( (value & 0x7f) | 0x80 );
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private static void writeString( ByteArrayOutputStream out, String s ) {
+            int length = s.length();
+            long bits = 0;
+            for( int i=0; i< length; i++ )
+                bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xff];
+            int huffmanLength = (int) ((bits + 7) / 8);
+            if( huffmanLength >= length ) {
+                writeInt(out, 0x00, 7, length);
+                for( int i=0; i< length; i++ )
+                    out.write( s.charAt(i) );
+                return;
+            }
+            writeInt(out, 0x80, 7, huffmanLength);
+            long buffer = 0;
+            int count = 0;
+            for( int i=0; i< length; i++ ) {
+                int symbol = s.charAt(i) & 0xff;
+                buffer = (buffer << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+                count += HUFFMAN_LENGTHS[symbol];
+                while( count >= 8 ) {
+                    count -= 8;
+                    out.write( (int) (buffer >>> count) );
+                }
+            }
+            if( count > 0 )
+                out.write( (int) ((buffer << (8 - count)) | (0xff >>> count)) );
+        }
+    }
+}
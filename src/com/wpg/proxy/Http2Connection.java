@@ -0,0 +1,1050 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Vector;
+import javax.net.ssl.SSLEngine;
+
+import org.apache.log4j.Logger;
+
+/**
+ * HTTP/2 connection to a remote host, carrying the requests of one event loop to it side by side.<p>
+ * The connection is an UpstreamConnection that was handed over to HTTP/2, because the remote host selected h2
+ * through ALPN or is known to speak h2c without TLS, and it stays registered with its event loop so the requests
+ * that follow open streams on it instead of connections of their own.  Frames are read and written on the selector
+ * thread of the loop, each stream reports to the StreamListener that opened it.<p>
+ * Both directions are flow controlled.  The body of a request goes out in DATA frames as far as the windows the
+ * remote host granted allow, the streams that have something to send taking turns frame by frame.  The window of
+ * a stream is only opened again once its listener took the data, so a listener that pauses the stream stops the
+ * remote host after one window while the other streams carry on.  The window of the connection is likewise only opened
+ * for data that was taken or dropped, and a remote host that sends more than a window allows is stopped with a
+ * FLOW_CONTROL_ERROR rather than buffered without limit.
+ */
+class Http2Connection implements SelectionKeyHandler {
+    private final static Logger logger = Logger.getLogger(Http2Connection.class);
+    private static final byte[] PREFACE = { 'P','R','I',' ','*',' ','H','T','T','P','/','2','.','0','\r','\n','\r','\n','S','M','\r','\n','\r','\n' };
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int CANCEL = 0x8;
+    private static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int FRAME_HEADER_SIZE = 9;
+    /** The largest frame the remote host may send, the default the connection never raises */
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int DEFAULT_WINDOW = 65535;
+    /** Window of each stream, how much of one response the remote host may send before its listener took any */
+    private static final int STREAM_WINDOW = 1024*256;
+    /** Window of the whole connection, large enough for every stream to use its own window at once */
+    private static final int CONNECTION_WINDOW = 1024*1024*16;
+    /** DATA frames are only made while less than this waits to be written */
+    private static final int MAX_PENDING_OUTPUT = 1024*64;
+    /** A request body with more than this waiting to be sent asks the listener to wait */
+    private static final int MAX_PENDING_BODY = 1024*64;
+    /** Largest header block taken from the remote host, encoded or decoded, the same as the HTTP/1 parser allows */
+    private static final int MAX_HEADER_LIST_SIZE = 1024*64;
+    /** Size the header block buffer starts at and goes back to after a larger block */
+    private static final int HEADER_BLOCK_SIZE = 1024*4;
+
+    private final ProxyEventLoop loop;
+    private final UpstreamPool pool;
+    private final String address;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final SSLByteChannel tls;
+    private final ByteChannel io;
+    private ByteBuffer readBuffer;
+    private final LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+    private int outputBytes = 0;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final ByteArrayOutputStream headerOutput = new ByteArrayOutputStream();
+    private final Hashtable<Integer,Stream> streams = new Hashtable<Integer,Stream>();
+    /** Streams waiting for the remote host to allow more concurrent streams */
+    private final LinkedList<Stream> waiting = new LinkedList<Stream>();
+    /** Streams with body or an end of stream to send */
+    private final LinkedList<Stream> sending = new LinkedList<Stream>();
+    private int nextStreamId = 1;
+    private int maxConcurrentStreams = Integer.MAX_VALUE;
+    private int initialWindow = DEFAULT_WINDOW;
+    private int maxFrameSize = MAX_FRAME_SIZE;
+    private int sendWindow = DEFAULT_WINDOW;
+    /** Bytes received on the connection since its window was last opened */
+    private int receivedUnacknowledged = 0;
+    /** Of those, the bytes taken by the listeners or dropped, the window is opened by them */
+    private int receivedConsumed = 0;
+    private boolean settingsReceived = false;
+    private boolean goingAway = false;
+    private boolean closed = false;
+    private boolean writingData = false;
+    private boolean reading = false;
+    private boolean readQueued = false;
+    private long idleSince = System.currentTimeMillis();
+    /** The header block being received, it may span a HEADERS frame and any number of CONTINUATION frames */
+    private byte[] headerBlock = new byte[HEADER_BLOCK_SIZE];
+    private int headerBlockLength = 0;
+    private int headerListSize = 0;
+    private int headerStreamId = 0;
+    private boolean headerEndStream = false;
+    private final Vector<String> fields = new Vector<String>();
+    private final Hpack.FieldListener fieldCollector = new Hpack.FieldListener() {
+        public void field( String name, String value ) throws IOException {
+            //sized the way SETTINGS_MAX_HEADER_LIST_SIZE counts, with 32 bytes of overhead for each field
+            headerListSize += name.length() + value.length() + 32;
+            if( headerListSize > MAX_HEADER_LIST_SIZE )
+                throw new ProtocolException(PROTOCOL_ERROR, "Header list larger than "+ MAX_HEADER_LIST_SIZE +" bytes");
+            fields.addElement(name);
+            fields.addElement(value);
+        }
+    };
+
+    /** Receives what happens on a stream, on the selector thread of the connection */
+    interface StreamListener {
+        /** A header block arrived, the alternate names and values of its fields in the order received */
+        public void streamHeaders( Stream stream, List<String> fields );
+        /**
+         * The next piece of the response body, the buffer is only valid for the duration of the call.
+         * @return false to pause the stream until resume is called
+         */
+        public boolean streamData( Stream stream, ByteBuffer data );
+        /** The remote host ended the stream, the response is complete */
+        public void streamEnd( Stream stream );
+        /** The body queued with send has mostly been sent, after send reported the stream to be behind */
+        public void streamDrained( Stream stream );
+        /**
+         * The stream failed, nothing more comes from it.
+         * @param refused true if the remote host certainly did not process the request, it may be sent again
+         */
+        public void streamFailed( Stream stream, Exception exception, boolean refused );
+    }
+
+    /** A connection error, the remote host is told the code with GOAWAY */
+    private static class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int error;
+        ProtocolException( int error, String message ) {
+            super(message);
+            this.error = error;
+        }
+    }
+
+    /**
+     * Take over a connected socket, with its TLS session if it has one, and start HTTP/2 on it.
+     * @param received bytes the remote host sent that were already read through the session, they are processed first
+     */
+    public Http2Connection( final ProxyEventLoop loop, String address, SocketChannel channel, SelectionKey key, SSLByteChannel tls, ByteBuffer received ) {
+        this.loop = loop;
+        this.pool = loop.getProxy().getUpstreamPool();
+        this.address = address;
+        this.channel = channel;
+        this.key = key;
+        this.tls = tls;
+        io = tls != null ? tls : channel;
+        key.attach(this);
+        if( tls != null ) {
+            tls.setTaskExecutor( loop.getProxy().getHandshakeExecutor(), new Runnable() {
+                public void run() {
+                    loop.execute(new Runnable() {
+                        public void run() {
+                            processKey(null);
+                        }
+                    });
+                }
+            });
+        }
+        readBuffer = BufferPool.getSingleton().acquire(FRAME_HEADER_SIZE + MAX_FRAME_SIZE);
+        if( received != null )
+            readBuffer.put(received);
+        if( loop.getHttp2Connection(address) == null )
+            loop.addHttp2Connection(address, this);
+        ProxyStatistics.getSingleton().http2ConnectionOpened();
+        logger.debug("HTTP/2 connection to: "+ address);
+
+        queue( ByteBuffer.wrap(PREFACE) );
+        ByteBuffer settings = frame(SETTINGS, 0, 0, 18);
+        settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+        settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW);
+        settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE);
+        queue(settings);
+        windowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+        processKey(null);
+    }
+
+    /** Offer h2 and http/1.1 through ALPN on the given client engine, does nothing on a runtime without ALPN */
+    public static void setApplicationProtocols( SSLEngine engine ) {
+        try {
+            //looked up on the public classes, the implementation classes are not accessible
+            Method get = SSLEngine.class.getMethod("getSSLParameters");
+            Object params = get.invoke(engine);
+            get.getReturnType().getMethod("setApplicationProtocols", String[].class).invoke(params, (Object) new String[] { "h2", "http/1.1" });
+            SSLEngine.class.getMethod("setSSLParameters", get.getReturnType()).invoke(engine, params);
+        } catch( Exception e ) {
+            logger.debug("ALPN is not available: "+ e);
+        }
+    }
+
+    /** Get the protocol the remote host selected through ALPN once the handshake is done, null if none was */
+    public static String getApplicationProtocol( SSLEngine engine ) {
+        try {
+            return (String) SSLEngine.class.getMethod("getApplicationProtocol").invoke(engine);
+        } catch( Exception e ) {
+            return null;
+        }
+    }
+
+    /** Get the address of the remote host as used by the UpstreamPool */
+    public String getAddress() { return address; }
+    /** Get the number of streams open or waiting to be */
+    public int getStreamCount() { return streams.size() + waiting.size(); }
+    /** May new streams be opened on this connection? */
+    public boolean isUsable() { return !closed && !goingAway && nextStreamId > 0; }
+
+    /**
+     * Open a stream for a request with the given fields, pseudo-header fields first and names in lower case.
+     * @param bodyFollows false if the request has neither body nor trailers, the stream is ended with its header
+     * @return the stream, or null if the connection does not take new streams
+     */
+    public Stream newStream( List<String> requestFields, boolean bodyFollows, StreamListener listener ) {
+        if( !isUsable() )
+            return null;
+        Stream stream = new Stream(requestFields, listener);
+        stream.endQueued = !bodyFollows;
+        if( streams.size() < maxConcurrentStreams ) {
+            stream.start();
+        } else {
+            logger.trace("Stream waits for the remote host to allow more: "+ address);
+            waiting.addLast(stream);
+        }
+        flush();
+        //the connection failed on the way, the caller gets null as if it had been unusable
+        return stream.closed ? null : stream;
+    }
+
+    /** One request and its response */
+    class Stream {
+        private final StreamListener listener;
+        private List<String> requestFields;
+        private int id = 0;
+        private int window = 0;
+        private int receivedUnacknowledged = 0;
+        private final LinkedList<ByteBuffer> body = new LinkedList<ByteBuffer>();
+        private int bodyBytes = 0;
+        private boolean endQueued = false;
+        private List<String> trailerFields = null;
+        private boolean endSent = false;
+        private boolean drainWanted = false;
+        private boolean headersReceived = false;
+        private boolean endReceived = false;
+        private boolean paused = false;
+        private boolean resuming = false;
+        /** Response body received while the stream was paused */
+        private final LinkedList<ByteBuffer> input = new LinkedList<ByteBuffer>();
+        private int inputBytes = 0;
+        private boolean closed = false;
+
+        private Stream( List<String> requestFields, StreamListener listener ) {
+            this.requestFields = requestFields;
+            this.listener = listener;
+        }
+
+        /** Get the stream identifier, 0 while the stream waits to be opened */
+        public int getId() { return id; }
+        /** Get the connection the stream belongs to */
+        public Http2Connection getConnection() { return Http2Connection.this; }
+
+        /**
+         * Queue the next piece of the request body, the buffer is copied.
+         * @return false once the remote host is behind, streamDrained tells the listener when to continue
+         */
+        public boolean send( ByteBuffer data ) {
+            if( closed || endQueued )
+                return true;
+            bodyBytes += BufferPool.getSingleton().copy(data, body);
+            startSending();
+            flush();
+            if( bodyBytes < MAX_PENDING_BODY )
+                return true;
+            drainWanted = true;
+            return false;
+        }
+
+        /** The whole request body has been queued, the trailers given as alternate names and values follow it, null for none */
+        public void end( List<String> trailers ) {
+            if( closed || endQueued )
+                return;
+            endQueued = true;
+            trailerFields = trailers;
+            startSending();
+            flush();
+        }
+
+        /** Stop handing the response body to the listener, the remote host is stopped once the stream window is used up */
+        public void pause() {
+            paused = true;
+        }
+
+        /** Hand the response body to the listener again, later on the selector thread so the caller is not called back from within */
+        public void resume() {
+            if( !paused || resuming )
+                return;
+            resuming = true;
+            loop.execute(new Runnable() {
+                public void run() {
+                    resuming = false;
+                    if( closed )
+                        return;
+                    paused = false;
+                    deliverInput();
+                    if( !paused )
+                        acknowledge(0);
+                    flush();
+                }
+            });
+        }
+
+        /** Give up on the stream, the remote host is told to stop unless the stream is already done */
+        public void cancel() {
+            if( closed )
+                return;
+            if( id != 0 && !(endSent && endReceived) )
+                resetStream(id, CANCEL);
+            close();
+            flush();
+        }
+
+        private void start() {
+            if( nextStreamId < 0 ) {
+                //identifiers are used up, the stream has to go to a new connection
+                goingAway = true;
+                fail(new IOException("No stream identifiers left on the connection to "+ address), true);
+                return;
+            }
+            id = nextStreamId;
+            nextStreamId += 2;
+            window = initialWindow;
+            streams.put(id, this);
+            ProxyStatistics.getSingleton().http2StreamOpened();
+            boolean endNow = endQueued && bodyBytes == 0 && trailerFields == null;
+            queueHeaders(id, requestFields, endNow);
+            requestFields = null;
+            if( endNow )
+                endSent = true;
+            else
+                startSending();
+        }
+
+        private void startSending() {
+            if( id != 0 && !sending.contains(this) )
+                sending.addLast(this);
+        }
+
+        /**
+         * Queue the next DATA frame of the body as far as the windows allow, or the end of the stream once the body is out.
+         * @return true if a frame was queued
+         */
+        private boolean writeFrame() {
+            if( bodyBytes > 0 ) {
+                int size = Math.min( Math.min(bodyBytes, maxFrameSize), Math.min(window, sendWindow) );
+                if( size <= 0 )
+                    return false;
+                boolean last = endQueued && trailerFields == null && size == bodyBytes;
+                ByteBuffer header = frame(DATA, last ? FLAG_END_STREAM : 0, id, 0);
+                queue(header);
+                int left = size;
+                while( left > 0 ) {
+                    ByteBuffer buffer = body.getFirst();
+                    if( buffer.remaining() <= left ) {
+                        left -= buffer.remaining();
+                        queue( body.removeFirst() );
+                    } else {
+                        ByteBuffer part = buffer.duplicate();
+                        part.limit(part.position() + left);
+                        outputBytes += BufferPool.getSingleton().copy(part, output);
+                        buffer.position(buffer.position() + left);
+                        left = 0;
+                    }
+                }
+                header.put(0, (byte) (size >>> 16));
+                header.put(1, (byte) (size >>> 8));
+                header.put(2, (byte) size);
+                bodyBytes -= size;
+                window -= size;
+                sendWindow -= size;
+                if( last )
+                    endSent = true;
+                return true;
+            }
+            if( endQueued && !endSent ) {
+                if( trailerFields != null )
+                    queueHeaders(id, trailerFields, true);
+                else
+                    queue( frame(DATA, FLAG_END_STREAM, id, 0) );
+                endSent = true;
+                return true;
+            }
+            return false;
+        }
+
+        /** Is everything queued sent, or waiting for the windows to open? */
+        private boolean isSendDone() {
+            return endSent || (bodyBytes == 0 && !endQueued);
+        }
+
+        private void headers( List<String> fields, boolean end ) throws IOException {
+            headersReceived = true;
+            listener.streamHeaders(this, fields);
+            if( end )
+                endOfStream();
+        }
+
+        private void data( ByteBuffer data, int frameLength, boolean end ) {
+            if( !headersReceived ) {
+                resetStream(id, PROTOCOL_ERROR);
+                fail(new IOException("DATA before HEADERS on stream "+ id), false);
+                return;
+            }
+            //what the listener did not take yet still counts against the window, so the remote host may not send more
+            if( inputBytes + receivedUnacknowledged + frameLength > STREAM_WINDOW ) {
+                consumed( data.remaining() );
+                resetStream(id, FLOW_CONTROL_ERROR);
+                fail(new IOException("Stream window exceeded on stream "+ id), false);
+                return;
+            }
+            //the padding counts against the window too, it is acknowledged right away
+            receivedUnacknowledged += frameLength - data.remaining();
+            if( paused || !input.isEmpty() ) {
+                inputBytes += BufferPool.getSingleton().copy(data, input);
+            } else if( data.hasRemaining() ) {
+                int size = data.remaining();
+                if( !listener.streamData(this, data) )
+                    paused = true;
+                receivedUnacknowledged += size;
+                consumed(size);
+            }
+            if( end )
+                endOfStream();
+            else if( !closed && !paused )
+                acknowledge(STREAM_WINDOW/2);
+        }
+
+        /** Hand the body received while paused to the listener, as far as it takes it */
+        private void deliverInput() {
+            while( !paused && !closed && !input.isEmpty() ) {
+                ByteBuffer buffer = input.removeFirst();
+                int size = buffer.remaining();
+                inputBytes -= size;
+                consumed(size);
+                try {
+                    if( !listener.streamData(this, buffer) )
+                        paused = true;
+                } finally {
+                    BufferPool.getSingleton().release(buffer);
+                }
+                receivedUnacknowledged += size;
+            }
+            if( !paused && !closed && input.isEmpty() && endReceived )
+                endOfStream();
+        }
+
+        /** Open the stream window again by what the listener took, once that is at least the given amount */
+        private void acknowledge( int threshold ) {
+            if( !endReceived && receivedUnacknowledged > 0 && receivedUnacknowledged >= threshold ) {
+                windowUpdate(id, receivedUnacknowledged);
+                receivedUnacknowledged = 0;
+            }
+        }
+
+        private void endOfStream() {
+            endReceived = true;
+            if( closed || !input.isEmpty() )
+                return;
+            //the response may be complete before the request, the remote host does not want the rest
+            if( !endSent )
+                resetStream(id, NO_ERROR);
+            close();
+            listener.streamEnd(this);
+        }
+
+        private void fail( Exception e, boolean refused ) {
+            if( closed )
+                return;
+            close();
+            listener.streamFailed(this, e, refused);
+        }
+
+        private void close() {
+            closed = true;
+            if( id != 0 )
+                streams.remove(id);
+            else
+                waiting.remove(this);
+            sending.remove(this);
+            while( !body.isEmpty() )
+                BufferPool.getSingleton().release( body.removeFirst() );
+            while( !input.isEmpty() )
+                BufferPool.getSingleton().release( input.removeFirst() );
+            //the body nobody will take no longer holds the window of the connection
+            consumed(inputBytes);
+            inputBytes = 0;
+            bodyBytes = 0;
+            streamClosed();
+        }
+    }
+
+    /** Process the ready operations of the channel, null when called back after TLS tasks or to process received bytes */
+    public void processKey( SelectionKey key ) {
+        if( closed )
+            return;
+        try {
+            if( key == null || (key.isValid() && key.isWritable()) )
+                flushOutput();
+            if( key == null || (key.isValid() && key.isReadable()) )
+                read();
+            flushOutput();
+        } catch( ProtocolException e ) {
+            logger.debug("HTTP/2 protocol error on the connection to "+ address +": "+ e.getMessage());
+            goAway(e.error, e);
+        } catch( Exception e ) {
+            logger.debug("HTTP/2 connection to "+ address +" failed: "+ e);
+            close(e);
+        }
+    }
+
+    /** Close the connection if it had no streams for longer than the idle timeout of the pool */
+    public void checkTimeout( long now ) {
+        if( !closed && streams.isEmpty() && waiting.isEmpty() && now - idleSince > pool.getIdleTimeout() )
+            goAway(NO_ERROR, new IOException("Idle HTTP/2 connection closed"));
+    }
+
+    /** Write what the windows allow and update the interest, any failure closes the connection */
+    private void flush() {
+        try {
+            flushOutput();
+        } catch( IOException e ) {
+            close(e);
+        }
+    }
+
+    private void flushOutput() throws IOException {
+        if( closed )
+            return;
+        writeData();
+        if( tls != null )
+            tls.flush();
+        while( !output.isEmpty() ) {
+            ByteBuffer buffer = output.getFirst();
+            outputBytes -= io.write(buffer);
+            if( buffer.hasRemaining() )
+                break;
+            BufferPool.getSingleton().release( output.removeFirst() );
+            if( output.isEmpty() || outputBytes < MAX_PENDING_OUTPUT/2 )
+                writeData();
+        }
+        //the session may have decrypted input while writing, the socket will not become readable for it,
+        //it is read later on the selector thread so the callers of the streams are not called back from within
+        if( tls != null && !reading && !readQueued && tls.hasBufferedInput() ) {
+            readQueued = true;
+            loop.execute(new Runnable() {
+                public void run() {
+                    readQueued = false;
+                    processKey(null);
+                }
+            });
+        }
+        updateInterest();
+    }
+
+    /** Queue DATA frames of the streams with something to send, one frame per stream in turn */
+    private void writeData() {
+        if( writingData )
+            return;
+        writingData = true;
+        try {
+            boolean progress = true;
+            while( progress && outputBytes < MAX_PENDING_OUTPUT && !sending.isEmpty() ) {
+                progress = false;
+                Iterator<Stream> it = sending.iterator();
+                while( it.hasNext() && outputBytes < MAX_PENDING_OUTPUT ) {
+                    Stream stream = it.next();
+                    if( stream.writeFrame() )
+                        progress = true;
+                    if( stream.isSendDone() )
+                        it.remove();
+                }
+            }
+        } finally {
+            writingData = false;
+        }
+        //listeners may queue more body when told to go on, so they are only told once the frames are made
+        Stream[] open = streams.values().toArray(new Stream[0]);
+        for( int i=0; i< open.length; i++ ) {
+            Stream stream = open[i];
+            if( stream.drainWanted && stream.bodyBytes < MAX_PENDING_BODY/2 ) {
+                stream.drainWanted = false;
+                stream.listener.streamDrained(stream);
+            }
+        }
+    }
+
+    private void updateInterest() {
+        if( closed || !key.isValid() )
+            return;
+        int ops = SelectionKey.OP_READ;
+        if( !output.isEmpty() || (tls != null && tls.hasPendingOutput()) )
+            ops |= SelectionKey.OP_WRITE;
+        if( tls != null && tls.isTaskRunning() )
+            ops &= ~SelectionKey.OP_READ;
+        key.interestOps(ops);
+    }
+
+    private void read() throws IOException {
+        reading = true;
+        try {
+            readFrames();
+        } finally {
+            reading = false;
+        }
+    }
+
+    private void readFrames() throws IOException {
+        while( !closed ) {
+            int size = io.read(readBuffer);
+            if( size < 0 ) {
+                close( new IOException("Connection closed by the remote host") );
+                return;
+            }
+            if( size == 0 && readBuffer.position() == 0 )
+                return;
+            readBuffer.flip();
+            try {
+                processFrames();
+            } finally {
+                if( readBuffer != null )
+                    readBuffer.compact();
+            }
+            if( size == 0 )
+                return;
+        }
+    }
+
+    /** Handle every complete frame in the read buffer */
+    private void processFrames() throws IOException {
+        while( !closed && readBuffer.remaining() >= FRAME_HEADER_SIZE ) {
+            int start = readBuffer.position();
+            int length = ((readBuffer.get(start) & 0xff) << 16) | ((readBuffer.get(start+1) & 0xff) << 8) | (readBuffer.get(start+2) & 0xff);
+            int type = readBuffer.get(start+3) & 0xff;
+            int flags = readBuffer.get(start+4) & 0xff;
+            int streamId = readBuffer.getInt(start+5) & 0x7fffffff;
+            if( !settingsReceived && (type != SETTINGS || (flags & FLAG_ACK) != 0) ) {
+                //whatever answered does not speak HTTP/2
+                throw new ProtocolException(PROTOCOL_ERROR, "The remote host did not start with SETTINGS");
+            }
+            if( length > MAX_FRAME_SIZE )
+                throw new ProtocolException(FRAME_SIZE_ERROR, "Frame of "+ length +" bytes");
+            if( readBuffer.remaining() < FRAME_HEADER_SIZE + length )
+                return;
+            readBuffer.position(start + FRAME_HEADER_SIZE);
+            ByteBuffer payload = readBuffer.slice();
+            payload.limit(length);
+            readBuffer.position(start + FRAME_HEADER_SIZE + length);
+            if( headerStreamId != 0 && (type != CONTINUATION || streamId != headerStreamId) )
+                throw new ProtocolException(PROTOCOL_ERROR, "Header block interrupted by a frame of type "+ type);
+            switch( type ) {
+                case DATA: data(streamId, flags, payload); break;
+                case HEADERS: headers(streamId, flags, payload); break;
+                case CONTINUATION: continuation(streamId, flags, payload); break;
+                case RST_STREAM: resetReceived(streamId, payload); break;
+                case SETTINGS: settings(streamId, flags, payload); break;
+                case PING: ping(streamId, flags, payload); break;
+                case GOAWAY: goAwayReceived(streamId, payload); break;
+                case WINDOW_UPDATE: windowUpdateReceived(streamId, payload); break;
+                case PUSH_PROMISE: throw new ProtocolException(PROTOCOL_ERROR, "PUSH_PROMISE while push is disabled");
+                default: break; //PRIORITY and unknown frames are ignored
+            }
+        }
+    }
+
+    private void data( int streamId, int flags, ByteBuffer payload ) throws IOException {
+        if( streamId == 0 )
+            throw new ProtocolException(PROTOCOL_ERROR, "DATA on stream 0");
+        int length = payload.remaining();
+        receivedUnacknowledged += length;
+        if( receivedUnacknowledged > CONNECTION_WINDOW )
+            throw new ProtocolException(FLOW_CONTROL_ERROR, "Connection window exceeded");
+        unpad(flags, payload);
+        consumed( length - payload.remaining() );
+        Stream stream = streams.get(streamId);
+        if( stream == null ) {
+            //a stream cancelled here may still have data on the way
+            if( streamId >= nextStreamId )
+                throw new ProtocolException(PROTOCOL_ERROR, "DATA on idle stream "+ streamId);
+            consumed( payload.remaining() );
+            return;
+        }
+        if( stream.endReceived ) {
+            consumed( payload.remaining() );
+            resetStream(streamId, STREAM_CLOSED);
+            stream.fail(new IOException("DATA after the end of stream "+ streamId), false);
+            return;
+        }
+        stream.data(payload, length, (flags & FLAG_END_STREAM) != 0);
+    }
+
+    /** Received bytes were taken by a listener or dropped, the window of the connection is opened once enough were */
+    private void consumed( int size ) {
+        receivedConsumed += size;
+        if( !closed && receivedConsumed >= CONNECTION_WINDOW/2 ) {
+            windowUpdate(0, receivedConsumed);
+            receivedUnacknowledged -= receivedConsumed;
+            receivedConsumed = 0;
+        }
+    }
+
+    private void headers( int streamId, int flags, ByteBuffer payload ) throws IOException {
+        if( streamId == 0 )
+            throw new ProtocolException(PROTOCOL_ERROR, "HEADERS on stream 0");
+        unpad(flags, payload);
+        if( (flags & FLAG_PRIORITY) != 0 ) {
+            if( payload.remaining() < 5 )
+                throw new ProtocolException(FRAME_SIZE_ERROR, "HEADERS too short for its priority");
+            payload.position(payload.position() + 5);
+        }
+        headerBlockLength = 0;
+        headerEndStream = (flags & FLAG_END_STREAM) != 0;
+        appendHeaderBlock(payload);
+        if( (flags & FLAG_END_HEADERS) != 0 )
+            headerBlockComplete(streamId);
+        else
+            headerStreamId = streamId;
+    }
+
+    private void continuation( int streamId, int flags, ByteBuffer payload ) throws IOException {
+        if( headerStreamId == 0 )
+            throw new ProtocolException(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+        appendHeaderBlock(payload);
+        if( (flags & FLAG_END_HEADERS) != 0 ) {
+            headerStreamId = 0;
+            headerBlockComplete(streamId);
+        }
+    }
+
+    /** Add a fragment to the header block, a block larger than any header list allowed fails the connection */
+    private void appendHeaderBlock( ByteBuffer payload ) throws IOException {
+        int size = payload.remaining();
+        if( headerBlockLength + size > MAX_HEADER_LIST_SIZE )
+            throw new ProtocolException(PROTOCOL_ERROR, "Header block larger than "+ MAX_HEADER_LIST_SIZE +" bytes");
+        if( headerBlockLength + size > headerBlock.length ) {
+            byte[] tmp = new byte[Math.max(headerBlockLength + size, headerBlock.length * 2)];
+            System.arraycopy(headerBlock, 0, tmp, 0, headerBlockLength);
+            headerBlock = tmp;
+        }
+        payload.get(headerBlock, headerBlockLength, size);
+        headerBlockLength += size;
+    }
+
+    /** Decode the header block, always so the dynamic table stays in step, and hand it to its stream if there still is one */
+    private void headerBlockComplete( int streamId ) throws IOException {
+        fields.clear();
+        headerListSize = 0;
+        try {
+            decoder.decode(headerBlock, 0, headerBlockLength, fieldCollector);
+        } catch( ProtocolException e ) {
+            throw e;
+        } catch( IOException e ) {
+            throw new ProtocolException(COMPRESSION_ERROR, e.getMessage());
+        }
+        if( headerBlock.length > HEADER_BLOCK_SIZE )
+            headerBlock = new byte[HEADER_BLOCK_SIZE];
+        Stream stream = streams.get(streamId);
+        if( stream == null ) {
+            if( streamId >= nextStreamId )
+                throw new ProtocolException(PROTOCOL_ERROR, "HEADERS on idle stream "+ streamId);
+            return;
+        }
+        if( stream.endReceived ) {
+            resetStream(streamId, STREAM_CLOSED);
+            stream.fail(new IOException("HEADERS after the end of stream "+ streamId), false);
+            return;
+        }
+        stream.headers(fields, headerEndStream);
+    }
+
+    /** Remove the padding of a DATA or HEADERS frame */
+    private void unpad( int flags, ByteBuffer payload ) throws IOException {
+        if( (flags & FLAG_PADDED) == 0 )
+            return;
+        if( !payload.hasRemaining() )
+            throw new ProtocolException(FRAME_SIZE_ERROR, "Padded frame without its pad length");
+        int padding = payload.get() & 0xff;
+        if( padding > payload.remaining() )
+            throw new ProtocolException(PROTOCOL_ERROR, "Padding longer than the frame");
+        payload.limit(payload.limit() - padding);
+    }
+
+    private void resetReceived( int streamId, ByteBuffer payload ) throws IOException {
+        if( streamId == 0 || payload.remaining() != 4 )
+            throw new ProtocolException(PROTOCOL_ERROR, "Malformed RST_STREAM");
+        int error = payload.getInt();
+        Stream stream = streams.get(streamId);
+        if( stream == null )
+            return;
+        //a response complete before the request was sent ends with NO_ERROR, and the stream is gone by then
+        stream.fail( new IOException("Stream reset by the remote host, error "+ error), error == REFUSED_STREAM );
+    }
+
+    private void settings( int streamId, int flags, ByteBuffer payload ) throws IOException {
+        if( streamId != 0 || payload.remaining() % 6 != 0 )
+            throw new ProtocolException(PROTOCOL_ERROR, "Malformed SETTINGS");
+        if( (flags & FLAG_ACK) != 0 )
+            return;
+        while( payload.hasRemaining() ) {
+            int id = payload.getShort() & 0xffff;
+            int value = payload.getInt();
+            switch( id ) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    break;
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    maxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if( value < 0 )
+                        throw new ProtocolException(FLOW_CONTROL_ERROR, "Initial window too large");
+                    //the windows of the open streams move by the difference
+                    Iterator<Stream> it = streams.values().iterator();
+                    while( it.hasNext() )
+                        it.next().window += value - initialWindow;
+                    initialWindow = value;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if( value < MAX_FRAME_SIZE || value > 0xffffff )
+                        throw new ProtocolException(PROTOCOL_ERROR, "Invalid maximum frame size "+ value);
+                    maxFrameSize = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+        queue( frame(SETTINGS, FLAG_ACK, 0, 0) );
+        settingsReceived = true;
+        startWaiting();
+    }
+
+    private void ping( int streamId, int flags, ByteBuffer payload ) throws IOException {
+        if( streamId != 0 || payload.remaining() != 8 )
+            throw new ProtocolException(PROTOCOL_ERROR, "Malformed PING");
+        if( (flags & FLAG_ACK) != 0 )
+            return;
+        ByteBuffer pong = frame(PING, FLAG_ACK, 0, 8);
+        pong.put(payload);
+        queue(pong);
+    }
+
+    private void goAwayReceived( int streamId, ByteBuffer payload ) throws IOException {
+        if( streamId != 0 || payload.remaining() < 8 )
+            throw new ProtocolException(PROTOCOL_ERROR, "Malformed GOAWAY");
+        int lastStreamId = payload.getInt() & 0x7fffffff;
+        int error = payload.getInt();
+        logger.debug("GOAWAY from "+ address +", error "+ error +", last stream "+ lastStreamId);
+        stopNewStreams();
+        //the streams after the last one were not processed and may go elsewhere
+        Stream[] open = streams.values().toArray(new Stream[0]);
+        for( int i=0; i< open.length; i++ ) {
+            if( open[i].id > lastStreamId )
+                open[i].fail(new IOException("Stream refused by GOAWAY from the remote host, error "+ error), true);
+        }
+        failWaiting();
+        if( streams.isEmpty() )
+            close(null);
+    }
+
+    private void windowUpdateReceived( int streamId, ByteBuffer payload ) throws IOException {
+        if( payload.remaining() != 4 )
+            throw new ProtocolException(FRAME_SIZE_ERROR, "Malformed WINDOW_UPDATE");
+        int increment = payload.getInt() & 0x7fffffff;
+        if( streamId == 0 ) {
+            if( increment == 0 || sendWindow + increment < 0 )
+                throw new ProtocolException(FLOW_CONTROL_ERROR, "Invalid connection window update "+ increment);
+            sendWindow += increment;
+            return;
+        }
+        Stream stream = streams.get(streamId);
+        if( stream == null )
+            return;
+        if( increment == 0 || stream.window + increment < 0 ) {
+            resetStream(streamId, FLOW_CONTROL_ERROR);
+            stream.fail(new IOException("Invalid window update "+ increment +" on stream "+ streamId), false);
+            return;
+        }
+        stream.window += increment;
+    }
+
+    /** Open the waiting streams the remote host allows now */
+    private void startWaiting() {
+        while( !waiting.isEmpty() && streams.size() < maxConcurrentStreams && isUsable() )
+            waiting.removeFirst().start();
+    }
+
+    /** The streams that never started go elsewhere */
+    private void failWaiting() {
+        while( !waiting.isEmpty() )
+            waiting.getFirst().fail(new IOException("HTTP/2 connection to "+ address +" is going away"), true);
+    }
+
+    /** A stream closed, start waiting ones and close the connection once it has no more use */
+    private void streamClosed() {
+        if( !streams.isEmpty() )
+            return;
+        startWaiting();
+        if( streams.isEmpty() && waiting.isEmpty() ) {
+            idleSince = System.currentTimeMillis();
+            //connections other than the one registered with the loop do not stay open once their streams are done
+            if( goingAway || loop.getHttp2Connection(address) != this )
+                close(null);
+        }
+    }
+
+    private void stopNewStreams() {
+        goingAway = true;
+        loop.removeHttp2Connection(address, this);
+    }
+
+    /** Tell the remote host why the connection ends and close it, streams still open fail */
+    private void goAway( int error, Exception e ) {
+        stopNewStreams();
+        ByteBuffer frame = frame(GOAWAY, 0, 0, 8);
+        frame.putInt(0).putInt(error);
+        queue(frame);
+        try {
+            flushOutput();
+        } catch( IOException ignored ) {}
+        close(e);
+    }
+
+    /** Close the connection, failing the streams still open and giving its place in the pool back */
+    private void close( Exception e ) {
+        if( closed )
+            return;
+        stopNewStreams();
+        closed = true;
+        key.cancel();
+        //a remote host that never got as far as SETTINGS is not asked for HTTP/2 again
+        if( !settingsReceived )
+            pool.setHttp2Refused(address);
+        Stream[] open = streams.values().toArray(new Stream[0]);
+        for( int i=0; i< open.length; i++ )
+            open[i].fail( e != null ? e : new IOException("HTTP/2 connection to "+ address +" closed"), !settingsReceived );
+        while( !waiting.isEmpty() )
+            waiting.getFirst().fail( e != null ? e : new IOException("HTTP/2 connection to "+ address +" closed"), true );
+        pool.release(address, channel, null, tls, false);
+        while( !output.isEmpty() )
+            BufferPool.getSingleton().release( output.removeFirst() );
+        outputBytes = 0;
+        BufferPool.getSingleton().release(readBuffer);
+        readBuffer = null;
+        logger.debug("HTTP/2 connection to "+ address +" closed");
+    }
+
+    /** Encode and queue a header block, split into CONTINUATION frames if it does not fit one frame */
+    private void queueHeaders( int streamId, List<String> blockFields, boolean endStream ) {
+        headerOutput.reset();
+        encoder.encode(blockFields, headerOutput);
+        byte[] block = headerOutput.toByteArray();
+        int offset = 0;
+        int type = HEADERS;
+        do {
+            int size = Math.min(block.length - offset, maxFrameSize);
+            int flags = offset + size == block.length ? FLAG_END_HEADERS : 0;
+            if( type == HEADERS && endStream )
+                flags |= FLAG_END_STREAM;
+            ByteBuffer frame = frame(type, flags, streamId, size);
+            frame.put(block, offset, size);
+            queue(frame);
+            offset += size;
+            type = CONTINUATION;
+        } while( offset < block.length );
+    }
+
+    private void windowUpdate( int streamId, int increment ) {
+        ByteBuffer frame = frame(WINDOW_UPDATE, 0, streamId, 4);
+        frame.putInt(increment);
+        queue(frame);
+    }
+
+    private void resetStream( int streamId, int error ) {
+        ByteBuffer frame = frame(RST_STREAM, 0, streamId, 4);
+        frame.putInt(error);
+        queue(frame);
+    }
+
+    /** Create a frame with its header filled in and room for the given payload, which the caller puts */
+    private static ByteBuffer frame( int type, int flags, int streamId, int length ) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+        frame.put( (byte) (length >>> 16) ).put( (byte) (length >>> 8) ).put( (byte) length );
+        frame.put( (byte) type ).put( (byte) flags ).putInt(streamId);
+        return frame;
+    }
+
+    /** Add a buffer to the output, a frame being filled is flipped first */
+    private void queue( ByteBuffer buffer ) {
+        if( !buffer.isDirect() && buffer.position() > 0 )
+            buffer.flip();
+        outputBytes += buffer.remaining();
+        output.addLast(buffer);
+    }
+}
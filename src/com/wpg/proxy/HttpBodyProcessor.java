@@ -0,0 +1,50 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Processes the body of requests or responses piece by piece as it passes through the proxy.<p>
+ * Once the header of a message was processed every registered body processor is asked for a filter for its
+ * body. The filters then see the body in order as it arrives and write whatever should be sent instead, each
+ * filter feeding the next one, so content can be inspected or rewritten without ever holding the whole body.
+ * A message whose body is filtered is sent with the chunked transfer coding, or until the connection closes
+ * to HTTP/1.0 clients, since its length is only known at the end.
+ */
+public interface HttpBodyProcessor {
+    /** Receives the body written by a filter */
+    public interface Output {
+        /** Pass on the remaining bytes of the buffer, they are used before write returns */
+        public void write( ByteBuffer data ) throws IOException;
+    }
+    
+    /** Filters the body of one message */
+    public interface Filter {
+        /** The next piece of the body, the buffer is only valid for the duration of the call */
+        public void data( ByteBuffer data, Output out ) throws IOException;
+        /** The whole body was seen, write whatever is left */
+        public void end( Output out ) throws IOException;
+    }
+    
+    /** Get the filter for the body of the given message, null to let it pass unchanged */
+    public Filter start( HttpMessage message );
+}
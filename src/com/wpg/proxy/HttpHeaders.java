@@ -0,0 +1,436 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Compact table of the header fields of a message.<p>
+ * The names and values are kept as the raw bytes they arrived as, in one array, with the offsets of each
+ * field in another, so parsing a header allocates nothing per field and the header is written out again by
+ * copying those bytes.  Well known names, those of the HttpMessage.HEADER_* constants and the other hop-by-hop
+ * headers, are resolved to small ids once, other names are matched byte by byte ignoring case.  Strings are
+ * only created when a name or value is asked for.  Fields keep their order and repeated fields stay separate.
+ */
+public class HttpHeaders {
+    /** Id of names that are not well known */
+    public static final int UNKNOWN = -1;
+    /** The well known names, the id of a name is its index */
+    private static final String[] KNOWN_NAMES = {
+        HttpMessage.HEADER_ACCEPT, HttpMessage.HEADER_ACCEPT_CHARSET, HttpMessage.HEADER_ACCEPT_ENCODING,
+        HttpMessage.HEADER_ACCEPT_LANGUAGE, HttpMessage.HEADER_CONNECTION, HttpMessage.HEADER_CONTENT_LENGTH,
+        HttpMessage.HEADER_CONTENT_TYPE, HttpMessage.HEADER_COOKIE, HttpMessage.HEADER_DATE,
+        HttpMessage.HEADER_KEEP_ALIVE, HttpMessage.HEADER_PROXY_CONNECTION, HttpMessage.HEADER_REFERER,
+        HttpMessage.HEADER_SERVER, HttpMessage.HEADER_SET_COOKIE, HttpMessage.HEADER_TRANSFER_ENCODING,
+        HttpMessage.HEADER_USER_AGENT, HttpMessage.HEADER_HOST,
+        "te", "trailer", "upgrade", "proxy-authenticate", "proxy-authorization"
+    };
+    private static final byte[][] KNOWN_BYTES = new byte[KNOWN_NAMES.length][];
+    static {
+        for( int i=0; i< KNOWN_NAMES.length; i++ ) {
+            KNOWN_BYTES[i] = new byte[KNOWN_NAMES[i].length()];
+            for( int j=0; j< KNOWN_BYTES[i].length; j++ )
+                KNOWN_BYTES[i][j] = (byte) KNOWN_NAMES[i].charAt(j);
+        }
+    }
+
+    //layout of the entries of the fields array
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int NAME_LENGTH = 2;
+    private static final int VALUE = 3;
+    private static final int VALUE_LENGTH = 4;
+    private static final int STRIDE = 5;
+
+    private byte[] data = new byte[512];
+    private int dataLength = 0;
+    private int[] fields = new int[16*STRIDE];
+    private int count = 0;
+
+    /** Get the id of the given name, UNKNOWN if it is not well known */
+    public static int getId( String name ) {
+        int length = name.length();
+        for( int i=0; i< KNOWN_NAMES.length; i++ ) {
+            if( KNOWN_NAMES[i].length() == length && KNOWN_NAMES[i].regionMatches(true, 0, name, 0, length) )
+                return i;
+        }
+        return UNKNOWN;
+    }
+
+    private static int getId( byte[] b, int off, int length ) {
+        for( int i=0; i< KNOWN_BYTES.length; i++ ) {
+            byte[] known = KNOWN_BYTES[i];
+            if( known.length != length )
+                continue;
+            int j = 0;
+            while( j < length && toLower(b[off+j]) == known[j] )
+                j++;
+            if( j == length )
+                return i;
+        }
+        return UNKNOWN;
+    }
+
+    private static int toLower( int b ) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private static boolean isSpace( byte b ) {
+        return b == ' ' || b == '\t';
+    }
+
+    /** Get the number of fields */
+    public int size() { return count; }
+    /** Remove every field */
+    public void clear() {
+        count = 0;
+        dataLength = 0;
+    }
+
+    /**
+     * Add a field from a raw "name: value" line without its line end, the value is trimmed.
+     * @return the index of the new field, or -1 if the line is not a header field
+     */
+    public int add( byte[] b, int off, int len ) {
+        int colon = off;
+        int end = off + len;
+        while( colon < end && b[colon] != ':' )
+            colon++;
+        int nameEnd = colon;
+        while( nameEnd > off && isSpace(b[nameEnd-1]) )
+            nameEnd--;
+        if( colon == end || nameEnd == off )
+            return -1;
+        int valueStart = colon + 1;
+        while( valueStart < end && isSpace(b[valueStart]) )
+            valueStart++;
+        while( end > valueStart && isSpace(b[end-1]) )
+            end--;
+        int name = append(b, off, nameEnd - off);
+        int value = append(b, valueStart, end - valueStart);
+        return addField( getId(data, name, nameEnd - off), name, nameEnd - off, value, end - valueStart );
+    }
+
+    /** Add a field at the end of the table */
+    public int add( String name, String value ) {
+        int nameOffset = append(name);
+        int valueOffset = append(value);
+        return addField( getId(name), nameOffset, name.length(), valueOffset, value.length() );
+    }
+
+    /** Replace every field of the given name with one field per value, in place of the first of them */
+    public void set( String name, List<String> values ) {
+        int index = indexOf(name, 0);
+        remove(name);
+        if( index < 0 )
+            index = count;
+        int id = getId(name);
+        for( int i=0; i< values.size(); i++ ) {
+            String value = values.get(i);
+            int nameOffset = append(name);
+            int valueOffset = append(value);
+            insertField( index+i, id, nameOffset, name.length(), valueOffset, value.length() );
+        }
+    }
+
+    /** Remove every field of the given name, returns the number of fields removed */
+    public int remove( String name ) {
+        int id = getId(name);
+        int kept = 0;
+        for( int i=0; i< count; i++ ) {
+            if( matches(i, id, name) )
+                continue;
+            if( kept != i )
+                System.arraycopy(fields, i*STRIDE, fields, kept*STRIDE, STRIDE);
+            kept++;
+        }
+        int removed = count - kept;
+        count = kept;
+        return removed;
+    }
+
+    /** Get the index of the first field of the given name at or after from, -1 if there is none */
+    public int indexOf( String name, int from ) {
+        int id = getId(name);
+        for( int i=from; i< count; i++ ) {
+            if( matches(i, id, name) )
+                return i;
+        }
+        return -1;
+    }
+
+    /** Is there a field of the given name? */
+    public boolean contains( String name ) {
+        return indexOf(name, 0) >= 0;
+    }
+
+    /** Get the id of the name of the field at the given index, UNKNOWN if it is not well known */
+    public int getId( int index ) { return fields[index*STRIDE+ID]; }
+    /** Get the name of the field at the given index, as it was received */
+    public String getName( int index ) {
+        return toString( fields[index*STRIDE+NAME], fields[index*STRIDE+NAME_LENGTH] );
+    }
+    /** Get the value of the field at the given index */
+    public String getValue( int index ) {
+        return toString( fields[index*STRIDE+VALUE], fields[index*STRIDE+VALUE_LENGTH] );
+    }
+
+    /** Get the value of the first field of the given name, null if there is none */
+    public String get( String name ) {
+        int i = indexOf(name, 0);
+        return i < 0 ? null : getValue(i);
+    }
+
+    /** Get the values of every field of the given name, null if there is none */
+    public List<String> getValues( String name ) {
+        Vector<String> values = null;
+        for( int i = indexOf(name, 0); i >= 0; i = indexOf(name, i+1) ) {
+            if( values == null )
+                values = new Vector<String>();
+            values.addElement( getValue(i) );
+        }
+        return values;
+    }
+
+    /** Is the given token one of the comma separated values of the fields of the given name, ignoring case */
+    public boolean hasToken( String name, String token ) {
+        for( int i = indexOf(name, 0); i >= 0; i = indexOf(name, i+1) ) {
+            int start = fields[i*STRIDE+VALUE];
+            int end = start + fields[i*STRIDE+VALUE_LENGTH];
+            while( start < end ) {
+                int comma = start;
+                while( comma < end && data[comma] != ',' )
+                    comma++;
+                if( tokenEquals(start, comma, token) )
+                    return true;
+                start = comma + 1;
+            }
+        }
+        return false;
+    }
+
+    /** Is the given token the last of the comma separated values of the last field of the given name, ignoring case */
+    public boolean isLastToken( String name, String token ) {
+        int last = -1;
+        for( int i = indexOf(name, 0); i >= 0; i = indexOf(name, i+1) )
+            last = i;
+        if( last < 0 )
+            return false;
+        int start = fields[last*STRIDE+VALUE];
+        int end = start + fields[last*STRIDE+VALUE_LENGTH];
+        int comma = end;
+        while( comma > start && data[comma-1] != ',' )
+            comma--;
+        return tokenEquals(comma, end, token);
+    }
+
+    /** Get the value of the first field of the given name as a number, -1 if there is none */
+    public long getLong( String name ) {
+        int i = indexOf(name, 0);
+        if( i < 0 )
+            return -1;
+        int start = fields[i*STRIDE+VALUE];
+        int end = start + fields[i*STRIDE+VALUE_LENGTH];
+        boolean negative = start < end && data[start] == '-';
+        int pos = negative ? start+1 : start;
+        if( pos == end || end - pos > 18 )
+            throw new NumberFormatException("For input string: \""+ getValue(i) +"\"");
+        long value = 0;
+        for( ; pos < end; pos++ ) {
+            if( data[pos] < '0' || data[pos] > '9' )
+                throw new NumberFormatException("For input string: \""+ getValue(i) +"\"");
+            value = value*10 + (data[pos] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /** Get the number of bytes the field at the given index takes when written, including its line end */
+    public int getFieldLength( int index ) {
+        return fields[index*STRIDE+NAME_LENGTH] + fields[index*STRIDE+VALUE_LENGTH] + 4;
+    }
+
+    /** Get the number of bytes all fields take when written */
+    public int getEncodedLength() {
+        int length = 0;
+        for( int i=0; i< count; i++ )
+            length += getFieldLength(i);
+        return length;
+    }
+
+    /** Write the field at the given index as "name: value" and a line end, the buffer must have room for it */
+    public void writeField( int index, ByteBuffer dst ) {
+        int i = index*STRIDE;
+        dst.put(data, fields[i+NAME], fields[i+NAME_LENGTH]);
+        dst.put((byte) ':').put((byte) ' ');
+        dst.put(data, fields[i+VALUE], fields[i+VALUE_LENGTH]);
+        dst.put((byte) '\r').put((byte) '\n');
+    }
+
+    /**
+     * Write the given start line, every field and the empty line ending the header into pooled buffers
+     * appended to out, returns the number of bytes written.
+     */
+    public int copyTo( String startLine, List<ByteBuffer> out ) {
+        BufferPool pool = BufferPool.getSingleton();
+        int total = getEncodedLength() + 2 + (startLine == null ? 0 : startLine.length() + 2);
+        ByteBuffer buffer = pool.acquire(total);
+        if( startLine != null ) {
+            for( int i=0; i< startLine.length(); i++ ) {
+                buffer = room(buffer, 1, out);
+                buffer.put( (byte) startLine.charAt(i) );
+            }
+            buffer = room(buffer, 2, out);
+            buffer.put((byte) '\r').put((byte) '\n');
+        }
+        for( int i=0; i< count; i++ ) {
+            if( buffer.remaining() >= getFieldLength(i) ) {
+                writeField(i, buffer);
+                continue;
+            }
+            //the field does not fit, write it piece by piece over as many buffers as it takes
+            int f = i*STRIDE;
+            buffer = put(buffer, data, fields[f+NAME], fields[f+NAME_LENGTH], out);
+            buffer = room(buffer, 2, out);
+            buffer.put((byte) ':').put((byte) ' ');
+            buffer = put(buffer, data, fields[f+VALUE], fields[f+VALUE_LENGTH], out);
+            buffer = room(buffer, 2, out);
+            buffer.put((byte) '\r').put((byte) '\n');
+        }
+        buffer = room(buffer, 2, out);
+        buffer.put((byte) '\r').put((byte) '\n');
+        buffer.flip();
+        out.add(buffer);
+        return total;
+    }
+
+    /** Return the header as "name: value" lines */
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        for( int i=0; i< count; i++ )
+            sb.append(getName(i)).append(": ").append(getValue(i)).append("\r\n");
+        return sb.toString();
+    }
+
+    /** Get a buffer with room for the given number of bytes, handing the full one on */
+    private static ByteBuffer room( ByteBuffer buffer, int size, List<ByteBuffer> out ) {
+        if( buffer.remaining() >= size )
+            return buffer;
+        buffer.flip();
+        out.add(buffer);
+        return BufferPool.getSingleton().acquire(size);
+    }
+
+    private static ByteBuffer put( ByteBuffer buffer, byte[] src, int off, int len, List<ByteBuffer> out ) {
+        while( len > 0 ) {
+            buffer = room(buffer, 1, out);
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(src, off, n);
+            off += n;
+            len -= n;
+        }
+        return buffer;
+    }
+
+    private boolean matches( int index, int id, String name ) {
+        int i = index*STRIDE;
+        if( id != UNKNOWN || fields[i+ID] != UNKNOWN )
+            return fields[i+ID] == id;
+        int length = fields[i+NAME_LENGTH];
+        if( length != name.length() )
+            return false;
+        int off = fields[i+NAME];
+        for( int j=0; j< length; j++ ) {
+            if( toLower(data[off+j]) != toLower(name.charAt(j)) )
+                return false;
+        }
+        return true;
+    }
+
+    /** Does the value bytes between start and end equal the token once trimmed, ignoring case */
+    private boolean tokenEquals( int start, int end, String token ) {
+        while( start < end && isSpace(data[start]) )
+            start++;
+        while( end > start && isSpace(data[end-1]) )
+            end--;
+        if( end - start != token.length() )
+            return false;
+        for( int j=0; j< token.length(); j++ ) {
+            if( toLower(data[start+j]) != toLower(token.charAt(j)) )
+                return false;
+        }
+        return true;
+    }
+
+    private String toString( int off, int length ) {
+        char[] c = new char[length];
+        for( int i=0; i< length; i++ )
+            c[i] = (char) (data[off+i] & 0xff);
+        return new String(c);
+    }
+
+    private int append( byte[] b, int off, int len ) {
+        ensureData(len);
+        System.arraycopy(b, off, data, dataLength, len);
+        int start = dataLength;
+        dataLength += len;
+        return start;
+    }
+
+    private int append( String s ) {
+        int len = s.length();
+        ensureData(len);
+        int start = dataLength;
+        for( int i=0; i< len; i++ )
+            data[dataLength++] = (byte) s.charAt(i);
+        return start;
+    }
+
+    private void ensureData( int len ) {
+        if( dataLength + len > data.length ) {
+            byte[] tmp = new byte[Math.max(dataLength + len, data.length * 2)];
+            System.arraycopy(data, 0, tmp, 0, dataLength);
+            data = tmp;
+        }
+    }
+
+    private int addField( int id, int name, int nameLength, int value, int valueLength ) {
+        insertField(count, id, name, nameLength, value, valueLength);
+        return count-1;
+    }
+
+    private void insertField( int index, int id, int name, int nameLength, int value, int valueLength ) {
+        if( (count+1)*STRIDE > fields.length ) {
+            int[] tmp = new int[fields.length * 2];
+            System.arraycopy(fields, 0, tmp, 0, count*STRIDE);
+            fields = tmp;
+        }
+        if( index < count )
+            System.arraycopy(fields, index*STRIDE, fields, (index+1)*STRIDE, (count-index)*STRIDE);
+        int i = index*STRIDE;
+        fields[i+ID] = id;
+        fields[i+NAME] = name;
+        fields[i+NAME_LENGTH] = nameLength;
+        fields[i+VALUE] = value;
+        fields[i+VALUE_LENGTH] = valueLength;
+        count++;
+    }
+}
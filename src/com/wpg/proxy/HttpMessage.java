@@ -19,30 +19,37 @@
  */
 package com.wpg.proxy;
 
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Vector;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.List;
 import java.util.StringTokenizer;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 /**
  * Class to manage the  HTTP message headers and body content, which could be anything at this point
- * This class should be extended by HttpMessageRequest and HttpMessageResponse classes and never used directly
+ * This class should be extended by HttpMessageRequest and HttpMessageResponse classes and never used directly<p>
+ * The messages of a transaction are recycled by the proxy once the transaction is over, a handler that wants
+ * to keep a message beyond the call it was passed to must retain it and release it when done.  Setting the
+ * system property wpg.proxy.debugRecycling to true makes any use of a recycled message throw an exception.
  */
 public abstract class HttpMessage {
     public static final String HEADER_ACCEPT = "accept";
     public static final String HEADER_ACCEPT_CHARSET = "accept-charset";
     public static final String HEADER_ACCEPT_ENCODING = "accept-encoding";
-    public static final String HEADER_ACCEPT_LANGUAGE = "accep-language";
+    public static final String HEADER_ACCEPT_LANGUAGE = "accept-language";
     public static final String HEADER_CONNECTION = "connection";
     public static final String HEADER_CONTENT_LENGTH = "content-length";
     public static final String HEADER_CONTENT_TYPE = "content-type";
     public static final String HEADER_COOKIE = "cookie";
     public static final String HEADER_DATE = "date";
+    public static final String HEADER_HOST = "host";
     public static final String HEADER_KEEP_ALIVE = "keep-alive";
     public static final String HEADER_PROXY_CONNECTION = "proxy-connection";
     public static final String HEADER_REFERER = "referer";
@@ -52,8 +59,10 @@ public abstract class HttpMessage {
     public static final String HEADER_USER_AGENT = "user-agent";
     
     protected static final Logger logger = Logger.getLogger(HttpMessage.class);
+    private static final int HOST_ID = HttpHeaders.getId(HEADER_HOST);
     
-    protected byte[] body;
+    /** The collected body, empty while streaming */
+    protected final MessageBody body = new MessageBody();
     protected ByteBuffer data;
     protected String fromHost;
     protected int fromPort;
@@ -63,39 +72,118 @@ public abstract class HttpMessage {
     protected String protocol = "HTTP";
     protected String protocolVersion = "1.0";
     protected boolean isSecure = false;
-    protected Map<String,List<String>> headers = null;
-    protected Vector<String> headerOrder = new Vector<String>();
+    protected HttpHeaders headers = new HttpHeaders();
+    protected Vector<String> trailers = null;
+    
+    private static boolean debugRecycling = Boolean.getBoolean("wpg.proxy.debugRecycling");
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private HttpMessagePool pool = null;
+    private Throwable recycledAt = null;
+    
+    /** Is any use of a recycled message caught? */
+    public static boolean isDebugRecycling() { return debugRecycling; }
+    /** Catch any use of a recycled message, at the cost of a check on every access and of no longer reusing messages */
+    public static void setDebugRecycling( boolean b ) { debugRecycling=b; }
+    
+    /** Keep this message beyond the call it was passed to, every retain must be followed by a release */
+    public void retain() {
+        if( refCount.getAndIncrement() <= 0 ) {
+            refCount.decrementAndGet();
+            throw recycledException();
+        }
+    }
+    /** Drop a reference to this message, it is recycled once the last reference is gone */
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if( count > 0 )
+            return;
+        if( count < 0 ) {
+            refCount.incrementAndGet();
+            throw recycledException();
+        }
+        //when debugging the message is not reused, so a stale reference can never see it come back to life
+        if( debugRecycling )
+            recycledAt = new Throwable("Recycled here");
+        else if( pool != null )
+            pool.recycle(this);
+    }
+    /** Has the last reference to this message been released? */
+    public boolean isRecycled() { return refCount.get() <= 0; }
+    
+    /** Called by the pool when the message is handed out again */
+    void acquired( HttpMessagePool p ) {
+        pool = p;
+        recycledAt = null;
+        refCount.set(1);
+    }
+    /** Forget the content of the message so it can be reused, the header storage is kept */
+    protected void reset() {
+        body.clear();
+        data = null;
+        fromHost = null;
+        fromPort = 0;
+        toHost = null;
+        toPort = 80;
+        startLine = null;
+        protocol = "HTTP";
+        protocolVersion = "1.0";
+        isSecure = false;
+        headers.clear();
+        if( trailers != null )
+            trailers.clear();
+    }
+    /** Throw if debugging is on and the message was recycled */
+    protected void checkRecycled() {
+        if( debugRecycling && refCount.get() <= 0 )
+            throw recycledException();
+    }
+    private IllegalStateException recycledException() {
+        IllegalStateException e = new IllegalStateException("HttpMessage used after it was recycled");
+        if( recycledAt != null )
+            e.initCause(recycledAt);
+        return e;
+    }
     
     /** Set body content to input byte[] */
-    public void setBodyContent( final byte[] b ) { body=b.clone(); updateContentLength(); }
+    public void setBodyContent( final byte[] b ) { checkRecycled(); body.clear(); body.append(b, 0, b.length); updateContentLength(); }
     /** Add byte[] to body content */
     public void addToBody( final byte[] b, final int s ) {
-        if( body == null ) {
-            body = new byte[s];
-            System.arraycopy(b, 0, body, 0, s);
-        } else {
-            byte[] tmp = new byte[ body.length + s ];
-            System.arraycopy(body, 0, tmp, 0, body.length);
-            System.arraycopy(b, 0, tmp, body.length, s);
-            body=tmp;
-        }
+        checkRecycled();
+        body.append(b, 0, s);
+        updateContentLength();
+    }
+    /** Add the remaining bytes of the buffer to the body content, they are copied */
+    public void addToBody( final ByteBuffer b ) {
+        checkRecycled();
+        body.append(b);
         updateContentLength();
     }
     /** Update the content length header to the size of the new body */
     protected void updateContentLength() {
         Vector<Integer> v = new Vector<Integer>();
-        v.addElement(body.length);
+        v.addElement(body.length());
         //setHeader(HEADER_CONTENT_LENGTH, v);
     }
-    /** Get raw content as an Array of Bytes */
+    /** Get the number of bytes of body content */
+    public int getBodyLength() { checkRecycled(); return body.length(); }
+    /**
+     * Get read-only views of the body content in order, nothing is copied.
+     * The views are only valid until the message is recycled.
+     */
+    public ByteBuffer[] getBodyBuffers() { checkRecycled(); return body.views(); }
+    /** Get the content as a Stream of Bytes read from the body itself, only valid until the message is recycled */
+    public InputStream getBodyStream() { checkRecycled(); return body.newInputStream(); }
+    /** Get raw content as an Array of Bytes, a copy of the whole body, getBodyBuffers avoids it */
     public byte[] getBodyContent(){
-		if( body == null )
-			return null;
-        return body.clone();
+        checkRecycled();
+        if( body.length() == 0 )
+            return null;
+        return body.toArray();
     }
-    /** Get the content as a Stream of Bytes */
+    /** Get the content as a Stream of Bytes from a copy of the whole body, getBodyStream avoids it */
     public java.io.ByteArrayInputStream getBodyContentStream() {
-        return new java.io.ByteArrayInputStream(body);
+        byte[] b = getBodyContent();
+        return new java.io.ByteArrayInputStream( b == null ? new byte[0] : b );
     }
     
     /** Get entire message as a ByteBuffer containing the header and body if any */
@@ -105,7 +193,7 @@ public abstract class HttpMessage {
     }
     
     /** Get From Host, or the host initiating this request */
-    public String getFromHost() { return fromHost; }
+    public String getFromHost() { checkRecycled(); return fromHost; }
     /** Set From Host, or the host initiating this request */
     public void setFromHost( String h ) { fromHost=h; }
     /** Get From Port, or the port on the host initiating this request */
@@ -113,7 +201,7 @@ public abstract class HttpMessage {
     /** Set From Port, or the port on the host initiating this request */
     public void setFromPort( int p ) { fromPort=p; }
     /** Get To Host, or the host which is the target of this request */
-    public String getToHost() { return toHost; }
+    public String getToHost() { checkRecycled(); return toHost; }
     /** Set To Host, or the host which is the target of this request */
     public void setToHost( String h ) { toHost=h; }
     /** Get To Port, or the port on the host which is the target of this request */
@@ -121,8 +209,13 @@ public abstract class HttpMessage {
     /** Set To Port, or the port on the host which is the target of this request */
     public void setToPort( int p ) { toPort=p; }
     
+    /** Was the message received over, or is it to be sent over, an encrypted connection? */
+    public boolean isSecure() { return isSecure; }
+    /** Set whether the message goes over an encrypted connection */
+    public void setSecure( boolean b ) { isSecure=b; }
+    
     /** Get the Start Line of the Message */
-    public String getStartLine() { return startLine; }
+    public String getStartLine() { checkRecycled(); return startLine; }
     /** Set the Start Line of the Message */
     public abstract void setStartLine(String s);
     /** Get the protocol of this request as a string */
@@ -134,12 +227,37 @@ public abstract class HttpMessage {
     /** Set the protocol version of this request */
     public void setVersion( String s ) { protocolVersion=s; }
     
-    /** Get All Headers as a Map */
-    public Map<String,List<String>> getHeaders() { return headers; }
+    /** Get the header table of the message, the fields as they were received */
+    public HttpHeaders getHeaderTable() { checkRecycled(); return headers; }
+    /**
+     * Get All Headers as a Map of lower case names, null if there are none.<p>
+     * The map is a read-only snapshot, it no longer changes the message: trying to change it or its lists throws an
+     * UnsupportedOperationException, use setHeaders, setHeader and addHeader instead.
+     */
+    public Map<String,List<String>> getHeaders() {
+        checkRecycled();
+        if( headers.size() == 0 )
+            return null;
+        Map<String,List<String>> m = new Hashtable<String,List<String>>();
+        for( int i=0; i< headers.size(); i++ ) {
+            String key = headers.getName(i).toLowerCase();
+            List<String> items = m.get(key);
+            if( items == null ) {
+                items = new Vector<String>();
+                m.put(key, items);
+            }
+            items.add( headers.getValue(i) );
+        }
+        Iterator<Map.Entry<String,List<String>>> it = m.entrySet().iterator();
+        while( it.hasNext() ) {
+            Map.Entry<String,List<String>> entry = it.next();
+            entry.setValue( Collections.unmodifiableList(entry.getValue()) );
+        }
+        return Collections.unmodifiableMap(m);
+    }
     /** Set All Headers from a Map*/
     public void setHeaders( Map<String,List<String>> m ) {
-        headers = new Hashtable<String,List<String>>();
-        headerOrder = new Vector<String>();
+        headers.clear();
         Iterator it = m.keySet().iterator();
         while( it.hasNext() ) {
             String key = ((String) it.next()).toLowerCase();
@@ -151,40 +269,62 @@ public abstract class HttpMessage {
                 setHeader(key, items);
         }
     }
-    /** Get a specific Header as a List */
+    /**
+     * Get a specific Header as a List, null if the header is not set.<p>
+     * The list is a read-only snapshot, it no longer changes the message: trying to change it throws an
+     * UnsupportedOperationException, use setHeader and addHeader instead.
+     */
     public List<String> getHeaderValues( String header ) {
-        return headers.get(header);
+        checkRecycled();
+        List<String> values = headers.getValues(header);
+        return values == null ? null : Collections.unmodifiableList(values);
     }
     /** Set a specific Header from a List */
     public void setHeader( String h, Vector<String> l ) {
-        String s = h.toLowerCase();
-        if(headers == null)
-            headers = new Hashtable<String,List<String>>();
-        headers.put(s,l);
-        if( ! headerOrder.contains(s) )
-            headerOrder.addElement(s);
+        checkRecycled();
+        headers.set(h, l);
+        if( HEADER_HOST.equalsIgnoreCase(h) && !l.isEmpty() )
+            setTarget( l.get(0) );
     }
     /** Add to a specific Header from a String */
     public void addHeader( String h, String item ) {
-        String s = h.toLowerCase();
-        if(headers == null)
-            headers = new Hashtable<String,List<String>>();
-        if( headers.get(s) == null ) {
-            headers.put(s,new Vector<String>());
-            headerOrder.addElement(s);
-        }
-        ((Vector<String>)headers.get(s)).addElement(item);
-        logger.trace("Adding Header: "+ s +"["+ item +"]");
-        if( "host".equalsIgnoreCase(s) ) {
-            if( item.indexOf(':') == -1 ) {
-                setToHost(item);
-            } else {
-                StringTokenizer st = new StringTokenizer( item, ":");
-                setToHost( st.nextToken() );
-                setToPort( new Integer(st.nextToken()) );
-            }
+        checkRecycled();
+        headers.add(h, item);
+        logger.trace("Adding Header: "+ h +"["+ item +"]");
+        if( HEADER_HOST.equalsIgnoreCase(h) )
+            setTarget(item);
+    }
+    /** Add a header field from a raw "name: value" line, returns false if the line is not a header field */
+    boolean addHeaderLine( byte[] b, int off, int len ) {
+        int i = headers.add(b, off, len);
+        if( i < 0 )
+            return false;
+        if( logger.isTraceEnabled() )
+            logger.trace("Adding Header: "+ headers.getName(i) +"["+ headers.getValue(i) +"]");
+        if( headers.getId(i) == HOST_ID )
+            setTarget( headers.getValue(i) );
+        return true;
+    }
+    /** The host header names the target of the message */
+    private void setTarget( String item ) {
+        if( item.indexOf(':') == -1 ) {
+            setToHost(item);
+        } else {
+            StringTokenizer st = new StringTokenizer( item, ":");
+            setToHost( st.nextToken() );
+            setToPort( new Integer(st.nextToken()) );
         }
     }
+    /** Remove a specific Header, all of its values are dropped */
+    public void removeHeader( String h ) {
+        checkRecycled();
+        headers.remove(h);
+    }
+    /** Is the given token one of the comma separated values of a specific Header, ignoring case */
+    public boolean hasHeaderToken( String h, String token ) {
+        checkRecycled();
+        return headers.hasToken(h, token);
+    }
     /** Add Headers from a Vector of raw lines */
     public void setHeaders( Vector v ) {
         for(int i=0; i< v.size(); i++) {
@@ -201,29 +341,37 @@ public abstract class HttpMessage {
     }
     /** Return a String with the headers printed in their RFC compliant final version */
     public String getHeadersAsString() {
-        StringBuffer sb = new StringBuffer();
-        for( int j=0; j< headerOrder.size(); j++) {
-            String key = (String) headerOrder.elementAt(j);
-            sb.append(key+": ");
-            Vector items = (Vector) headers.get(key);
-            for(int i=0; i< items.size(); i++) {
-                Object item = (Object) items.elementAt(i);
-                sb.append(item.toString() +((i+1)<items.size()?", ":"\r\n") );
-            }
-        }
-        //sb.append("\r\n");
-        logger.trace("Header: \""+ sb.toString() +"\"");
-        return sb.toString();
+        checkRecycled();
+        String s = headers.toString();
+        logger.trace("Header: \""+ s +"\"");
+        return s;
+    }
+    /** Write the start line and the headers into pooled buffers appended to out, returns the number of bytes written */
+    int copyHeadTo( List<ByteBuffer> out ) {
+        return headers.copyTo(getStartLine(), out);
     }
     /** Return true|false if the content length header is set */
     public boolean isContentLengthSet() {
-        return headers.containsKey(HEADER_CONTENT_LENGTH);
+        return headers.contains(HEADER_CONTENT_LENGTH);
+    }
+    /** Return true|false if the body is sent with the chunked transfer coding, which is always the last coding applied */
+    public boolean isChunked() {
+        return headers.isLastToken(HEADER_TRANSFER_ENCODING, "chunked");
+    }
+    /** Add a trailer field, sent after the last chunk of a chunked body */
+    public void addTrailer( String h, String item ) {
+        if( trailers == null )
+            trailers = new Vector<String>();
+        trailers.addElement( h.toLowerCase() +": "+ item );
     }
+    /** Get the trailer fields as "name: value" lines, null if there are none */
+    public List<String> getTrailers() { checkRecycled(); return trailers == null || trailers.isEmpty() ? null : trailers; }
     /** Get the size of the stated content length */
     public int getContentLength() {
-        if( !isContentLengthSet() )
-            return -1;
-        return new Integer((String) ( (Vector) headers.get(HEADER_CONTENT_LENGTH)).elementAt(0));
+        long length = headers.getLong(HEADER_CONTENT_LENGTH);
+        if( length > Integer.MAX_VALUE )
+            throw new NumberFormatException("Content length too large: "+ length);
+        return (int) length;
     }
     
     
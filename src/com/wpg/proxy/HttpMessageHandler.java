@@ -19,7 +19,12 @@
  */
 package com.wpg.proxy;
 
-/** Interface for a user defined HTTP Message Handler */
+/**
+ * Interface for a user defined HTTP Message Handler.<p>
+ * The messages are only valid for the duration of the call, a handler that keeps them must retain them and release them when done.
+ * When the proxy has handler threads, see HandlerBus, handlers are called on them rather than on the event loops,
+ * possibly after the message was sent on, and may be skipped when the handler threads fall behind.
+ */
 public interface HttpMessageHandler {
     /** Failed to get a request */
     public void failed( Exception exception );
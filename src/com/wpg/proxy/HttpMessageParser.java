@@ -0,0 +1,277 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Incremental HTTP/1.x message parser.<p>
+ * The parser is a byte level state machine fed with whatever a non-blocking read returned.
+ * It keeps its position across calls, so a message may arrive in any number of pieces, and
+ * it never consumes bytes past the end of the current message, so pipelined bytes stay in
+ * the buffer for the next message.  The body is collected into the pooled buffers of the message, binary content is safe,
+ * or handed piece by piece to a BodyListener when the message is streamed.  Chunked bodies are
+ * decoded on the way, their trailer fields are added to the message.<p>
+ * Subclasses build the message from the start line and decide how the body is delimited.
+ */
+abstract class HttpMessageParser {
+    protected static final Logger logger = Logger.getLogger(HttpMessageParser.class);
+    /** Body length returned by getBodyLength when the body runs until the connection is closed */
+    protected static final long BODY_UNTIL_CLOSE = -1;
+    /** Body length returned by getBodyLength when the body uses the chunked transfer coding */
+    protected static final long BODY_CHUNKED = -2;
+
+    private static final int STATE_START_LINE = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_BODY = 2;
+    private static final int STATE_COMPLETE = 3;
+
+    private int maxHeaderSize = 1024*64;
+    private int state = STATE_START_LINE;
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+    private int headerSize = 0;
+    /** The last header line, kept until it is clear no continuation line follows */
+    private byte[] pendingHeader = new byte[256];
+    private int pendingLength = -1;
+    private HttpMessage message = null;
+    private long bodyLength = 0;
+    private long bodyRemaining = 0;
+    private ChunkedDecoder chunkedDecoder = null;
+
+    /** Receives the body of the message piece by piece instead of having the parser collect it */
+    interface BodyListener {
+        /** The header of the message is complete, body data follows if there is any */
+        public void headerComplete( HttpMessage message ) throws IOException;
+        /** The next bytes of the body, the buffer is only valid for the duration of the call */
+        public void bodyData( ByteBuffer data ) throws IOException;
+    }
+
+    private BodyListener bodyListener = null;
+    /** Where new messages come from, null to allocate them */
+    protected HttpMessagePool messagePool = null;
+
+    /** Take new messages from the given pool rather than allocating them, null to allocate */
+    public void setMessagePool( HttpMessagePool pool ) { messagePool=pool; }
+
+    /** Stream the body of the messages to the given listener rather than collecting it into the message, null to collect */
+    public void setBodyListener( BodyListener l ) { bodyListener=l; }
+
+    /** Create the message for the given start line, throws an IOException if the line is malformed */
+    protected abstract HttpMessage createMessage( String startLine ) throws IOException;
+    /** Get the length of the body of a message whose header is complete, 0 for none or BODY_UNTIL_CLOSE */
+    protected abstract long getBodyLength( HttpMessage message ) throws IOException;
+    /** Is this message only an interim response to be skipped, defaults to false */
+    protected boolean isInterim( HttpMessage message ) { return false; }
+
+    /** Set the maximum size of the start line and headers together */
+    public void setMaxHeaderSize( int i ) { maxHeaderSize=i; }
+    /** Get the maximum size of the start line and headers together */
+    public int getMaxHeaderSize() { return maxHeaderSize; }
+
+    /** Get the message being parsed, or the parsed message once isComplete returns true */
+    public HttpMessage getMessage() { return message; }
+    /** Has a complete message been parsed? */
+    public boolean isComplete() { return state == STATE_COMPLETE; }
+    /** Get the number of body bytes received so far */
+    public long getBodyLength() { return bodyLength; }
+    /** Have any bytes of a message been received yet? */
+    public boolean isStarted() { return state != STATE_START_LINE || lineLength > 0; }
+    /** Does a body follow the header, only meaningful once the header is complete */
+    public boolean isBodyExpected() { return state == STATE_BODY || (state == STATE_HEADERS && bodyRemaining != 0); }
+
+    /** Forget the current message and get ready for the next one on the same connection */
+    public void reset() {
+        state = STATE_START_LINE;
+        lineLength = 0;
+        headerSize = 0;
+        pendingLength = -1;
+        message = null;
+        bodyLength = 0;
+        bodyRemaining = 0;
+        if( chunkedDecoder != null )
+            chunkedDecoder.reset();
+    }
+
+    /**
+     * Consume the bytes of the given buffer that belong to the current message.
+     * @return true once the message is complete, the remaining bytes of the buffer belong to the next message
+     */
+    public boolean parse( ByteBuffer in ) throws IOException {
+        while( state != STATE_COMPLETE && in.hasRemaining() ) {
+            if( state == STATE_BODY ) {
+                readBody(in);
+            } else if( readLine(in) ) {
+                if( state == STATE_START_LINE ) {
+                    if( lineLength > 0 ) { //tolerate empty lines between messages
+                        message = createMessage( new String(line, 0, lineLength, "ISO-8859-1") );
+                        state = STATE_HEADERS;
+                    }
+                } else {
+                    header();
+                }
+                lineLength = 0;
+            }
+        }
+        return state == STATE_COMPLETE;
+    }
+
+    /**
+     * The connection was closed by the peer.
+     * @return true if this completes a message whose body runs until the connection is closed
+     * @throws IOException if the connection was closed in the middle of a message
+     */
+    public boolean endOfStream() throws IOException {
+        if( state == STATE_BODY && bodyRemaining == BODY_UNTIL_CLOSE ) {
+            complete();
+            return true;
+        }
+        if( isStarted() && state != STATE_COMPLETE )
+            throw new IOException("Connection closed before the end of the message");
+        return false;
+    }
+
+    /** Collect bytes up to the end of the line, returns true once a whole line is available */
+    private boolean readLine( ByteBuffer in ) throws IOException {
+        while( in.hasRemaining() ) {
+            byte b = in.get();
+            if( ++headerSize > maxHeaderSize )
+                throw new IOException("Message header larger than "+ maxHeaderSize +" bytes");
+            if( b == '\n' ) {
+                if( lineLength > 0 && line[lineLength-1] == '\r' )
+                    lineLength--;
+                return true;
+            }
+            if( lineLength == line.length ) {
+                byte[] tmp = new byte[line.length * 2];
+                System.arraycopy(line, 0, tmp, 0, lineLength);
+                line = tmp;
+            }
+            line[lineLength++] = b;
+        }
+        return false;
+    }
+
+    /** Handle the header line in the line buffer, the empty line ends the header */
+    private void header() throws IOException {
+        if( lineLength > 0 && (line[0] == ' ' || line[0] == '\t') ) {
+            //obsolete line folding, continues the previous header
+            if( pendingLength < 0 )
+                throw new IOException("Continuation line without a header: "+ new String(line, 0, lineLength, "ISO-8859-1"));
+            int start = 0;
+            while( start < lineLength && (line[start] == ' ' || line[start] == '\t') )
+                start++;
+            appendPending( (byte) ' ' );
+            for( int i=start; i< lineLength; i++ )
+                appendPending( line[i] );
+            return;
+        }
+        if( pendingLength >= 0 ) {
+            if( !message.addHeaderLine(pendingHeader, 0, pendingLength) )
+                throw new IOException("Malformed header line: "+ new String(pendingHeader, 0, pendingLength, "ISO-8859-1"));
+            pendingLength = -1;
+        }
+        if( lineLength > 0 ) {
+            //swap the buffers rather than copying the line
+            byte[] tmp = pendingHeader;
+            pendingHeader = line;
+            pendingLength = lineLength;
+            line = tmp;
+            return;
+        }
+        logger.trace("Finished Reading Header of Message");
+        if( isInterim(message) ) {
+            logger.debug("Skipping interim message: "+ message.getStartLine());
+            message.release();
+            reset();
+            return;
+        }
+        bodyRemaining = getBodyLength(message);
+        if( bodyListener != null )
+            bodyListener.headerComplete(message);
+        if( bodyRemaining == 0 )
+            complete();
+        else
+            state = STATE_BODY;
+    }
+
+    private void appendPending( byte b ) {
+        if( pendingLength == pendingHeader.length ) {
+            byte[] tmp = new byte[pendingHeader.length * 2];
+            System.arraycopy(pendingHeader, 0, tmp, 0, pendingLength);
+            pendingHeader = tmp;
+        }
+        pendingHeader[pendingLength++] = b;
+    }
+
+    private void readBody( ByteBuffer in ) throws IOException {
+        if( bodyRemaining == BODY_CHUNKED ) {
+            if( chunkedDecoder == null ) {
+                chunkedDecoder = new ChunkedDecoder();
+                chunkedDecoder.setMaxTrailerSize(maxHeaderSize);
+            }
+            ByteBuffer data = chunkedDecoder.decode(in);
+            if( data != null )
+                bodyData(data);
+            if( chunkedDecoder.isComplete() ) {
+                List<String> trailers = chunkedDecoder.getTrailers();
+                for( int i=0; trailers != null && i< trailers.size(); i++ ) {
+                    String s = trailers.get(i);
+                    int colon = s.indexOf(':');
+                    message.addTrailer( s.substring(0, colon).trim(), s.substring(colon+1).trim() );
+                }
+                chunkedDecoder.reset();
+                complete();
+            }
+            return;
+        }
+        int size = in.remaining();
+        if( bodyRemaining != BODY_UNTIL_CLOSE && size > bodyRemaining )
+            size = (int) bodyRemaining;
+        ByteBuffer data = in.slice();
+        data.limit(size);
+        in.position(in.position() + size);
+        bodyData(data);
+        if( bodyRemaining != BODY_UNTIL_CLOSE ) {
+            bodyRemaining -= size;
+            if( bodyRemaining == 0 )
+                complete();
+        }
+    }
+
+    /** Hand the next piece of the body to the listener or collect it */
+    private void bodyData( ByteBuffer data ) throws IOException {
+        int size = data.remaining();
+        if( bodyListener != null )
+            bodyListener.bodyData(data);
+        else
+            message.body.append(data);
+        bodyLength += size;
+    }
+
+    private void complete() {
+        state = STATE_COMPLETE;
+        logger.trace("Finished Reading Body of Message, size: "+ bodyLength);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.util.ArrayList;
+
+/**
+ * Free lists of HttpMessageRequest and HttpMessageResponse objects, one per event loop.<p>
+ * The parsers of a loop take their messages from here and the messages come back once the last
+ * reference is released, so a busy loop keeps reusing the same objects instead of allocating new
+ * ones for every transaction.  The lists are only touched by the loop thread, messages released
+ * from another thread are handed back through the loop.
+ */
+class HttpMessagePool {
+    private final ProxyEventLoop loop;
+    private final ArrayList<HttpMessageRequest> requests = new ArrayList<HttpMessageRequest>();
+    private final ArrayList<HttpMessageResponse> responses = new ArrayList<HttpMessageResponse>();
+    private int maxFreeMessages = 256;
+    private volatile long allocatedCount = 0;
+    private volatile long reusedCount = 0;
+
+    /** Create an empty pool for the given event loop */
+    public HttpMessagePool( ProxyEventLoop loop ) {
+        this.loop = loop;
+    }
+
+    /** Set the maximum number of free messages of each kind kept for reuse */
+    public void setMaxFreeMessages( int i ) { maxFreeMessages=i; }
+    /** Get the maximum number of free messages of each kind kept for reuse */
+    public int getMaxFreeMessages() { return maxFreeMessages; }
+    /** Get the number of messages allocated by this pool */
+    public long getAllocatedCount() { return allocatedCount; }
+    /** Get the number of times a free message was handed out again */
+    public long getReusedCount() { return reusedCount; }
+
+    /** Get an empty request, only to be called from the loop thread */
+    public HttpMessageRequest getRequest() {
+        HttpMessageRequest request;
+        if( requests.isEmpty() ) {
+            request = new HttpMessageRequest();
+            allocatedCount++;
+        } else {
+            request = requests.remove(requests.size()-1);
+            reusedCount++;
+        }
+        request.acquired(this);
+        return request;
+    }
+
+    /** Get an empty response, only to be called from the loop thread */
+    public HttpMessageResponse getResponse() {
+        HttpMessageResponse response;
+        if( responses.isEmpty() ) {
+            response = new HttpMessageResponse();
+            allocatedCount++;
+        } else {
+            response = responses.remove(responses.size()-1);
+            reusedCount++;
+        }
+        response.acquired(this);
+        return response;
+    }
+
+    /** Take back a message whose last reference was released */
+    void recycle( final HttpMessage message ) {
+        if( !loop.inEventLoop() ) {
+            loop.execute(new Runnable() {
+                public void run() {
+                    recycle(message);
+                }
+            });
+            return;
+        }
+        message.reset();
+        if( message instanceof HttpMessageRequest ) {
+            if( requests.size() < maxFreeMessages )
+                requests.add( (HttpMessageRequest) message );
+        } else if( responses.size() < maxFreeMessages ) {
+            responses.add( (HttpMessageResponse) message );
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+/**
+ * Runs a synchronous HttpMessageProcessor as an AsyncHttpMessageProcessor that reports before process returns.
+ * ProxyRegistry wraps every HttpMessageProcessor it is given in one, the event loop calls the wrapped processor
+ * directly without going through a callback.
+ */
+public class HttpMessageProcessorAdapter implements AsyncHttpMessageProcessor {
+    private final HttpMessageProcessor processor;
+    
+    /** Creates an adapter running the given processor */
+    public HttpMessageProcessorAdapter( HttpMessageProcessor processor ) {
+        this.processor = processor;
+    }
+    
+    /** Get the wrapped processor */
+    public HttpMessageProcessor getProcessor() { return processor; }
+    
+    public boolean doContinue( HttpMessage input ) {
+        return processor.doContinue(input);
+    }
+    
+    /** Run the wrapped processor, the message is dropped if it returns null or does not want it sent */
+    public void process( HttpMessage input, Callback callback ) {
+        HttpMessage message;
+        try {
+            message = processor.process(input);
+        } catch( RuntimeException e ) {
+            callback.failed(e);
+            return;
+        }
+        callback.processed( message == null || !processor.doSend(message) ? null : message );
+    }
+    
+    /** The wrapped processor is done before process returns */
+    public long getTimeout() { return 0; }
+}
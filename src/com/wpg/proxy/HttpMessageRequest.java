@@ -28,8 +28,16 @@ public class HttpMessageRequest extends HttpMessage {
     private int method;
     private URI uri;
     
+    /** Forget the content of the request so it can be reused */
+    protected void reset() {
+        super.reset();
+        method = 0;
+        uri = null;
+    }
+    
     /** Get the HTTP Method of this request */
     public String getMethod() {
+        checkRecycled();
         return methodStrings[method];
     }
     /** Set the HTTP Method of this request, with a String */
@@ -42,6 +50,7 @@ public class HttpMessageRequest extends HttpMessage {
     
     /** Get the Request Start Line */
     public String getStartLine() {
+        checkRecycled();
         StringBuffer sb = new StringBuffer();
         try {
             sb.append(getMethod() + " ");
@@ -62,8 +71,11 @@ public class HttpMessageRequest extends HttpMessage {
         startLine=s;
         setVersion( s.substring( s.lastIndexOf('/')+1 ) ); }
     
-    /** Get the URI of this request */
+    /** Get the URI of this request, rebuilt only when the target host or port was changed */
     public URI getUri() {
+        checkRecycled();
+        if( uri.getPort() == getToPort() && (uri.getHost() == null ? getToHost() == null : uri.getHost().equals(getToHost())) )
+            return uri;
         try {
             uri = new URI( uri.getScheme(), uri.getUserInfo(), getToHost(), getToPort(),
                     uri.getPath(), uri.getQuery(), uri.getFragment()
@@ -26,12 +26,19 @@ public class HttpMessageResponse extends HttpMessage {
     private int statusCode;
     private String reasonPhrase;
     
+    /** Forget the content of the response so it can be reused */
+    protected void reset() {
+        super.reset();
+        statusCode = 0;
+        reasonPhrase = null;
+    }
+    
     /** Get the HTTP Reason Phrase of this request */
     public String getReasonPhrase() { return reasonPhrase; }
     /** Set the HTTP Reason Phrase of this request*/
     public void setReasonPhrase( String s ) { reasonPhrase=s; }
     /** Get the HTTP Status Code of this request*/
-    public int getStatusCode() { return statusCode; }
+    public int getStatusCode() { checkRecycled(); return statusCode; }
     /** Set the HTTP Status Code of this request*/
     public void setStatusCode( int i ) { statusCode=i; }
     /** Set the Start Line of the Message */
@@ -43,6 +50,7 @@ public class HttpMessageResponse extends HttpMessage {
         setProtocol( st.nextToken() );
         setVersion( st.nextToken() );
         setStatusCode( new Integer( st.nextToken() ) );
-        setReasonPhrase( st.nextToken() );
+        //the reason phrase may contain spaces or be empty
+        setReasonPhrase( st.hasMoreTokens() ? st.nextToken("").trim() : "" );
     }
 }
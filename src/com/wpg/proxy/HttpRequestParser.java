@@ -0,0 +1,84 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.StringTokenizer;
+
+/** Incremental parser for the requests a client sends to the proxy */
+class HttpRequestParser extends HttpMessageParser {
+
+    /** Get the request parsed so far */
+    public HttpMessageRequest getRequest() { return (HttpMessageRequest) getMessage(); }
+
+    /** Create the request from its start line, e.g. GET http://host/path HTTP/1.1 */
+    protected HttpMessage createMessage( String startLine ) throws IOException {
+        logger.info("Request: "+ startLine);
+        StringTokenizer st = new StringTokenizer(startLine, " ");
+        if( st.countTokens() != 3 )
+            throw new IOException("Malformed request line: "+ startLine);
+        HttpMessageRequest request = messagePool != null ? messagePool.getRequest() : new HttpMessageRequest();
+        request.setStartLine(startLine);
+        request.setMethod( st.nextToken() );
+        String target = st.nextToken();
+        try {
+            if( "CONNECT".equals(request.getMethod()) ) {
+                //authority form, host:port
+                request.setUri( new URI(null, target, null, null, null) );
+            } else {
+                URI uri = new URI(target);
+                request.setUri(uri);
+                //an absolute target keeps its scheme, whichever port of the proxy it came in on
+                request.setSecure( "https".equalsIgnoreCase( uri.getScheme() ) );
+            }
+        } catch( URISyntaxException e ) {
+            request.release();
+            throw new IOException("Malformed request target: "+ target);
+        }
+        st = new StringTokenizer(st.nextToken(), "/");
+        if( st.countTokens() != 2 ) {
+            request.release();
+            throw new IOException("Malformed request line: "+ startLine);
+        }
+        request.setProtocol( st.nextToken() );
+        request.setVersion( st.nextToken() );
+        return request;
+    }
+
+    /** Requests only have a body when they are chunked or a Content-Length is given */
+    protected long getBodyLength( HttpMessage message ) throws IOException {
+        if( message.isChunked() )
+            return BODY_CHUNKED;
+        if( message.getHeaderValues(HttpMessage.HEADER_TRANSFER_ENCODING) != null )
+            throw new IOException("Unsupported Transfer-Encoding: "+ message.getHeaderValues(HttpMessage.HEADER_TRANSFER_ENCODING));
+        if( !message.isContentLengthSet() )
+            return 0;
+        try {
+            long length = message.getHeaderTable().getLong(HttpMessage.HEADER_CONTENT_LENGTH);
+            if( length < 0 )
+                throw new IOException("Negative Content-Length: "+ length);
+            return length;
+        } catch( NumberFormatException e ) {
+            throw new IOException("Malformed Content-Length: "+ e.getMessage());
+        }
+    }
+}
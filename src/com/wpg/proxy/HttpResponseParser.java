@@ -0,0 +1,73 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.IOException;
+
+/** Incremental parser for the responses a remote host sends back for a request */
+class HttpResponseParser extends HttpMessageParser {
+    private final String requestMethod;
+
+    /** Create a parser for the responses to a request using the given method, needed to tell HEAD responses apart */
+    public HttpResponseParser( String requestMethod ) {
+        this.requestMethod = requestMethod;
+    }
+
+    /** Get the response parsed so far */
+    public HttpMessageResponse getResponse() { return (HttpMessageResponse) getMessage(); }
+
+    /** Create the response from its status line, e.g. HTTP/1.1 200 OK */
+    protected HttpMessage createMessage( String startLine ) throws IOException {
+        HttpMessageResponse response = messagePool != null ? messagePool.getResponse() : new HttpMessageResponse();
+        try {
+            response.setStartLine(startLine);
+        } catch( RuntimeException e ) {
+            response.release();
+            throw new IOException("Malformed status line: "+ startLine);
+        }
+        logger.debug("Response: "+ startLine);
+        return response;
+    }
+
+    /** 1xx responses other than 101 Switching Protocols are followed by the final response */
+    protected boolean isInterim( HttpMessage message ) {
+        int status = ((HttpMessageResponse) message).getStatusCode();
+        return status >= 100 && status < 200 && status != 101;
+    }
+
+    /** Responses to HEAD and 1xx, 204 and 304 responses never have a body, others that are neither chunked nor have a Content-Length run until close */
+    protected long getBodyLength( HttpMessage message ) throws IOException {
+        int status = ((HttpMessageResponse) message).getStatusCode();
+        if( "HEAD".equals(requestMethod) || (status >= 100 && status < 200) || status == 204 || status == 304 )
+            return 0;
+        if( message.isChunked() )
+            return BODY_CHUNKED;
+        if( message.getHeaderValues(HttpMessage.HEADER_TRANSFER_ENCODING) != null || !message.isContentLengthSet() )
+            return BODY_UNTIL_CLOSE;
+        try {
+            long length = message.getHeaderTable().getLong(HttpMessage.HEADER_CONTENT_LENGTH);
+            if( length < 0 )
+                throw new IOException("Negative Content-Length: "+ length);
+            return length;
+        } catch( NumberFormatException e ) {
+            throw new IOException("Malformed Content-Length: "+ e.getMessage());
+        }
+    }
+}
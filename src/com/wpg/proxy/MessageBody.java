@@ -0,0 +1,170 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The collected body of a HttpMessage, kept as a list of pooled buffers instead of one array.<p>
+ * Appending fills the last buffer and then takes new ones from the BufferPool, so the body is copied
+ * once as it arrives and never again as it grows. The body is read through read-only views of its
+ * buffers, which can be handed straight to a gathering write, or through a stream over them.
+ * The buffers go back to the pool when the message is recycled, views must not outlive the message.<p>
+ * Direct memory is limited by -XX:MaxDirectMemorySize, by default to the size of the heap, and every collected
+ * body lives as long as its message.  Only the first DIRECT_LIMIT bytes of a body are therefore kept in pooled
+ * direct buffers, the rest goes into heap buffers the garbage collector takes care of, so a large collected
+ * response costs heap and not direct memory.  Writing a heap buffer to a socket goes through a temporary direct
+ * buffer of the JDK, which only copies what is written at a time.
+ */
+class MessageBody {
+    /** The number of bytes of a body kept in direct buffers from the pool */
+    static final int DIRECT_LIMIT = 1024*256;
+    /** The capacity of the heap buffers holding the rest of a body */
+    private static final int HEAP_SEGMENT_SIZE = 1024*64;
+
+    /** The buffers of the body in order, each holding its bytes between 0 and its limit */
+    private final ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+    private int length = 0;
+    
+    /** Get the number of bytes in the body */
+    int length() { return length; }
+    
+    /** Copy the remaining bytes of data to the end of the body */
+    void append( ByteBuffer data ) {
+        length += data.remaining();
+        if( !segments.isEmpty() ) {
+            //fill the room left in the last buffer first
+            ByteBuffer last = segments.get( segments.size()-1 );
+            if( last.limit() < last.capacity() ) {
+                last.position( last.limit() );
+                last.limit( last.capacity() );
+                put( data, last );
+                last.flip();
+            }
+        }
+        while( data.hasRemaining() ) {
+            ByteBuffer buffer = length - data.remaining() < DIRECT_LIMIT
+                ? BufferPool.getSingleton().acquire( data.remaining() )
+                : ByteBuffer.allocate(HEAP_SEGMENT_SIZE);
+            put( data, buffer );
+            buffer.flip();
+            segments.add(buffer);
+        }
+    }
+    
+    /** Copy the given bytes to the end of the body */
+    void append( byte[] b, int offset, int size ) {
+        append( ByteBuffer.wrap(b, offset, size) );
+    }
+    
+    /** Copy as much of data as fits into the buffer */
+    private static void put( ByteBuffer data, ByteBuffer buffer ) {
+        if( data.remaining() <= buffer.remaining() ) {
+            buffer.put(data);
+            return;
+        }
+        int limit = data.limit();
+        data.limit( data.position() + buffer.remaining() );
+        buffer.put(data);
+        data.limit(limit);
+    }
+    
+    /** Replace the content of this body with that of the other one, which is left empty */
+    void takeOver( MessageBody other ) {
+        clear();
+        segments.addAll( other.segments );
+        length = other.length;
+        other.segments.clear();
+        other.length = 0;
+    }
+    
+    /** Empty the body, its direct buffers go back to the pool */
+    void clear() {
+        for( int i=0; i< segments.size(); i++ )
+            BufferPool.getSingleton().release( segments.get(i) );
+        segments.clear();
+        length = 0;
+    }
+    
+    /** Get read-only views of the buffers of the body, positioned at their start */
+    ByteBuffer[] views() {
+        ByteBuffer[] views = new ByteBuffer[segments.size()];
+        for( int i=0; i< views.length; i++ )
+            views[i] = segments.get(i).asReadOnlyBuffer();
+        return views;
+    }
+    
+    /** Add read-only views of the buffers of the body to the end of the list, the pool ignores them when they are released */
+    void addViewsTo( List<ByteBuffer> out ) {
+        for( int i=0; i< segments.size(); i++ )
+            out.add( segments.get(i).asReadOnlyBuffer() );
+    }
+    
+    /** Copy the whole body into a new array */
+    byte[] toArray() {
+        byte[] b = new byte[length];
+        int offset = 0;
+        for( int i=0; i< segments.size(); i++ ) {
+            ByteBuffer view = segments.get(i).duplicate();
+            int size = view.remaining();
+            view.get(b, offset, size);
+            offset += size;
+        }
+        return b;
+    }
+    
+    /** Get a stream reading the body from its buffers without copying it first */
+    InputStream newInputStream() {
+        final ByteBuffer[] views = views();
+        return new InputStream() {
+            private int index = 0;
+            
+            /** Skip to the next view with bytes left, false at the end of the body */
+            private boolean next() {
+                while( index < views.length && !views[index].hasRemaining() )
+                    index++;
+                return index < views.length;
+            }
+            public int read() {
+                if( !next() )
+                    return -1;
+                return views[index].get() & 0xff;
+            }
+            public int read( byte[] b, int offset, int size ) {
+                if( size == 0 )
+                    return 0;
+                if( !next() )
+                    return -1;
+                size = Math.min( size, views[index].remaining() );
+                views[index].get(b, offset, size);
+                return size;
+            }
+            public int available() {
+                int available = 0;
+                for( int i=index; i< views.length; i++ )
+                    available += views[i].remaining();
+                return available;
+            }
+        };
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs a chain of processors over one message on an event loop.<p>
+ * Synchronous processors and asynchronous ones that report before process returns are run one after the
+ * other without leaving the loop. The run is suspended at an asynchronous processor that reports later and
+ * resumed on the loop once it does, or failed by checkTimeout once the timeout of the processor expired.
+ * The outcome is always given to the listener on the loop, either from within start or once resumed.
+ */
+class ProcessorRun implements AsyncHttpMessageProcessor.Callback {
+    private final static Logger logger = Logger.getLogger(ProcessorRun.class);
+    
+    /** Told on the event loop how the run ended */
+    interface Listener {
+        /** Every processor ran, the message is null if it must not be sent */
+        public void processed( HttpMessage message );
+        /** A processor failed or did not report in time */
+        public void processingFailed( Exception e );
+    }
+    
+    private final ProxyEventLoop loop;
+    private final AsyncHttpMessageProcessor[] chain;
+    private final Listener listener;
+    private int index = 0;
+    private HttpMessage message;
+    /** The processor at index was called and has not reported yet */
+    private boolean waiting = false;
+    /** The loop is inside process of the processor at index, a report now is picked up when it returns */
+    private boolean calling = false;
+    /** The run is over, reports that still come are ignored */
+    private boolean finished = false;
+    private HttpMessage result;
+    private Exception failure;
+    private long deadline = 0;
+    
+    /** Resumes the run on the loop once a suspended processor reported */
+    private final Runnable resume = new Runnable() {
+        public void run() {
+            if( finished )
+                return;
+            if( advance() )
+                proceed();
+        }
+    };
+    
+    /** Creates a run of the given chain over the message */
+    ProcessorRun( ProxyEventLoop loop, AsyncHttpMessageProcessor[] chain, HttpMessage message, Listener listener ) {
+        this.loop = loop;
+        this.chain = chain;
+        this.message = message;
+        this.listener = listener;
+    }
+    
+    /** Start the run, must be called on the loop */
+    void start() {
+        proceed();
+    }
+    
+    /** Give up on the run, whatever the processor reports later is ignored */
+    synchronized void cancel() {
+        finished = true;
+        waiting = false;
+    }
+    
+    /** Fail the run if the processor it waits for is past its timeout, called periodically on the loop */
+    void checkTimeout( long now ) {
+        synchronized( this ) {
+            if( !waiting || deadline == 0 || now < deadline )
+                return;
+            waiting = false;
+        }
+        String name = chain[index].getClass().getName();
+        logger.debug("Processor did not report in time: "+ name);
+        finished = true;
+        listener.processingFailed( new TimeoutException("Processor "+ name +" did not report within "+ chain[index].getTimeout() +"ms") );
+    }
+    
+    public void processed( HttpMessage message ) {
+        report( message, null );
+    }
+    
+    public void failed( Exception e ) {
+        report( null, e != null ? e : new Exception("Processor failed") );
+    }
+    
+    /** Keep the report of the processor, it is applied on the loop */
+    private void report( HttpMessage message, Exception e ) {
+        synchronized( this ) {
+            if( !waiting )
+                return;
+            waiting = false;
+            result = message;
+            failure = e;
+            if( calling )
+                return;
+        }
+        loop.execute(resume);
+    }
+    
+    /** Apply the report of the processor at index, returns false if it ended the run */
+    private boolean advance() {
+        if( failure != null ) {
+            finished = true;
+            listener.processingFailed(failure);
+            return false;
+        }
+        message = result;
+        result = null;
+        index++;
+        if( message == null ) {
+            finished = true;
+            listener.processed(null);
+            return false;
+        }
+        return true;
+    }
+    
+    /** Run processors from index until the end of the chain or one that reports later */
+    private void proceed() {
+        while( index < chain.length ) {
+            AsyncHttpMessageProcessor hmp = chain[index];
+            if( ! hmp.doContinue(message) )
+                break;
+            if( hmp instanceof HttpMessageProcessorAdapter ) {
+                HttpMessageProcessor sync = ((HttpMessageProcessorAdapter) hmp).getProcessor();
+                boolean send;
+                try {
+                    message = sync.process(message);
+                    send = message != null && sync.doSend(message);
+                } catch( RuntimeException e ) {
+                    finished = true;
+                    listener.processingFailed(e);
+                    return;
+                }
+                index++;
+                if( !send ) {
+                    finished = true;
+                    listener.processed(null);
+                    return;
+                }
+                continue;
+            }
+            synchronized( this ) {
+                waiting = true;
+                calling = true;
+            }
+            try {
+                hmp.process(message, this);
+            } catch( RuntimeException e ) {
+                report( null, e );
+            }
+            synchronized( this ) {
+                calling = false;
+                if( waiting ) {
+                    long timeout = hmp.getTimeout();
+                    deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+                    return;
+                }
+            }
+            if( !advance() )
+                return;
+        }
+        finished = true;
+        listener.processed(message);
+    }
+}
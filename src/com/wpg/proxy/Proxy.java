@@ -54,15 +54,42 @@ public class Proxy extends Thread {
     private int backlog = 50;
     private int socketTimeout = 30000;
     private ServerSocketChannel ssChannel;
+    private ServerSocketChannel secureChannel;
     private Selector selector;
-    private Selector secureSelector;
     private Charset utf8 = Charset.forName("UTF-8");
 
+    /** hand new connections to the event loops in turn */
+    public static final int LOOP_SELECTION_ROUND_ROBIN = 0;
+    /** hand new connections to the event loop serving the fewest connections */
+    public static final int LOOP_SELECTION_LEAST_LOADED = 1;
+    private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+    private int loopSelection = LOOP_SELECTION_ROUND_ROBIN;
+    private ProxyEventLoop[] eventLoops = new ProxyEventLoop[0];
+    private int nextEventLoop = 0;
+    private volatile int keepAliveTimeout = 15000;
+    private volatile int upstreamTimeout = 60000;
+    private volatile int maxKeepAliveRequests = 100;
+    private final UpstreamPool upstreamPool = new UpstreamPool();
+    private final HandshakeExecutor handshakeExecutor = new HandshakeExecutor( Runtime.getRuntime().availableProcessors(), 1024 );
+    private final HandshakeAdmission handshakeAdmission = new HandshakeAdmission();
+    private final HostResolver hostResolver = new HostResolver(4);
+    private final HandlerBus handlerBus = new HandlerBus();
+
     private boolean running=false;
     /** is the server running? */
     public boolean isRunning() { return running; }
     /** stop the proxy server */
-    public void shutdown() { running=false; }
+    public void shutdown() {
+        running=false;
+        if( selector != null )
+            selector.wakeup();
+        for( int i=0; i< eventLoops.length; i++ )
+            eventLoops[i].shutdown();
+        upstreamPool.closeIdle();
+        handshakeExecutor.shutdown();
+        hostResolver.shutdown();
+        handlerBus.shutdown();
+    }
 
     
    
@@ -100,6 +127,84 @@ public class Proxy extends Thread {
     public int getPort() { return port; }
     /** Get the backlog, or number of awaiting requests to queue */
     public int getBacklog() { return backlog; }
+    /** Set the port clients speaking TLS to the proxy itself connect to, 0 for none, only used when the proxy starts */
+    public void setSecurePort( int i ) {
+        if( i < 0 )
+            throw new IllegalArgumentException("Secure Port can not be negative, got: "+ i);
+        securePort=i;
+    }
+    /** Get the port clients speaking TLS to the proxy itself connect to, only listened on with a keystore or a certificate authority */
+    public int getSecurePort() { return securePort; }
+    /** Set the number of event loop threads serving connections, defaults to the number of processors, only used when the proxy starts */
+    public void setEventLoopCount( int i ) {
+        if( i < 1 )
+            throw new IllegalArgumentException("At least one event loop is required, got: "+ i);
+        eventLoopCount=i;
+    }
+    /** Get the number of event loop threads serving connections */
+    public int getEventLoopCount() { return eventLoopCount; }
+    /** Set how new connections are spread over the event loops, LOOP_SELECTION_ROUND_ROBIN or LOOP_SELECTION_LEAST_LOADED */
+    public void setLoopSelection( int i ) {
+        if( i != LOOP_SELECTION_ROUND_ROBIN && i != LOOP_SELECTION_LEAST_LOADED )
+            throw new IllegalArgumentException("Loop Selection of: "+ i +" Unrecognized!");
+        loopSelection=i;
+    }
+    /** Get how new connections are spread over the event loops */
+    public int getLoopSelection() { return loopSelection; }
+    /** Set how long in milliseconds an idle client connection is kept open waiting for its next request, 0 closes every connection after its response */
+    public void setKeepAliveTimeout( int i ) {
+        if( i < 0 )
+            throw new IllegalArgumentException("Keep-Alive Timeout can not be negative, got: "+ i);
+        keepAliveTimeout=i;
+    }
+    /** Get how long in milliseconds an idle client connection is kept open */
+    public int getKeepAliveTimeout() { return keepAliveTimeout; }
+    /**
+     * Set how long in milliseconds the remote host may keep a request waiting, for a connection and then for each next part
+     * of the response, before the exchange fails and the connection is closed, 0 for no limit
+     */
+    public void setUpstreamTimeout( int i ) {
+        if( i < 0 )
+            throw new IllegalArgumentException("Upstream Timeout can not be negative, got: "+ i);
+        upstreamTimeout=i;
+    }
+    /** Get how long in milliseconds the remote host may keep a request waiting */
+    public int getUpstreamTimeout() { return upstreamTimeout; }
+    /** Set the number of requests served over one client connection before it is closed, 0 for no limit */
+    public void setMaxKeepAliveRequests( int i ) {
+        if( i < 0 )
+            throw new IllegalArgumentException("Max Keep-Alive Requests can not be negative, got: "+ i);
+        maxKeepAliveRequests=i;
+    }
+    /** Get the number of requests served over one client connection before it is closed, 0 for no limit */
+    public int getMaxKeepAliveRequests() { return maxKeepAliveRequests; }
+    /** Get the pool of connections to remote hosts shared by the event loops */
+    public UpstreamPool getUpstreamPool() { return upstreamPool; }
+    /** Get the executor running the expensive steps of TLS handshakes off the event loops */
+    public HandshakeExecutor getHandshakeExecutor() { return handshakeExecutor; }
+    /** Get the limit on TLS handshakes with clients running at the same time */
+    public HandshakeAdmission getHandshakeAdmission() { return handshakeAdmission; }
+    /** Get the resolver looking the names of remote hosts up off the event loops */
+    public HostResolver getHostResolver() { return hostResolver; }
+    /** Get the bus handing handler events to handler threads */
+    public HandlerBus getHandlerBus() { return handlerBus; }
+    /** Get the running event loops, empty until the proxy is started */
+    public ProxyEventLoop[] getEventLoops() { return eventLoops.clone(); }
+
+    /** Pick the event loop that will serve the next connection */
+    private ProxyEventLoop nextEventLoop() {
+        if( loopSelection == LOOP_SELECTION_LEAST_LOADED ) {
+            ProxyEventLoop best = eventLoops[0];
+            for( int i=1; i< eventLoops.length; i++ ) {
+                if( eventLoops[i].getConnectionCount() < best.getConnectionCount() )
+                    best = eventLoops[i];
+            }
+            return best;
+        }
+        ProxyEventLoop loop = eventLoops[nextEventLoop];
+        nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+        return loop;
+    }
 
     
     
@@ -111,13 +216,37 @@ public class Proxy extends Thread {
             ssChannel.configureBlocking(false);
             ssChannel.socket().bind( new InetSocketAddress(inetAddr,port), backlog );
             selector = Selector.open();
-            secureSelector = Selector.open();
             ssChannel.register(selector, SelectionKey.OP_ACCEPT);
+            //the secure listener shares the acceptor, its connections are told apart by the attachment of the key
+            if( securePort > 0 && (ProxyRegistry.getKeystoreFilename() != null || ProxyRegistry.getCertificateAuthority() != null) ) {
+                secureChannel = ServerSocketChannel.open();
+                secureChannel.configureBlocking(false);
+                secureChannel.socket().bind( new InetSocketAddress(inetAddr,securePort), backlog );
+                secureChannel.register(selector, SelectionKey.OP_ACCEPT, Boolean.TRUE);
+                logger.info("Proxy listening for TLS on: "+ inetAddr.toString() +":"+ securePort);
+            }
+            handlerBus.start();
+            ProxyEventLoop[] loops = new ProxyEventLoop[eventLoopCount];
+            for( int i=0; i< loops.length; i++ ) {
+                loops[i] = new ProxyEventLoop(this, "Event loop "+ i);
+                loops[i].start();
+            }
+            eventLoops = loops;
+            logger.info("Started "+ loops.length +" event loops");
         } catch( IOException e ) {
             logger.error("Error while listening for requests: "+ e, e);
             logger.fatal("Shutting down due to previous error!");
             shutdown();
         }
+        //read the keystore now rather than on the event loop of the first intercepted connection
+        if( ProxyRegistry.getKeystoreFilename() != null ) {
+            try {
+                ProxyRegistry.getServerSSLContext();
+                ProxyRegistry.getClientSSLContext();
+            } catch( Exception e ) {
+                logger.error("Error loading the keystore, intercepted connections will fail: "+ e, e);
+            }
+        }
         new Thread(new Runnable() {
             public void run() {
                 while(running){
@@ -134,45 +263,24 @@ public class Proxy extends Thread {
                     while(it.hasNext()) {
                         SelectionKey key = (SelectionKey) it.next();
                         it.remove();
+                        if( !key.isValid() || !key.isAcceptable() )
+                            continue;
+                        boolean secure = key.attachment() == Boolean.TRUE;
                         try {
-                            new ProxyProcessor(false,inetAddr,key);
-                        } catch( IOException e ) {
-                            logger.error("Error processing client: "+ key +" Exception: "+e,e);
-                            key.cancel();
-                            try { key.channel().close(); } catch(IOException ioe) {}
-                        }
-                    }
-                }
-            }
-        },"Unsecure cons thread").start();
-        
-        new Thread(new Runnable() {
-            public void run() {
-                while(running){
-                    try{
-                        secureSelector.select();
-                    }catch(IOException e) {
-                        logger.error("Error selecting next available connection: "+ e,e);
-                        shutdown();
-                        break;
-                    }
-                    Set readyKeys = secureSelector.selectedKeys();
-                    Iterator it = readyKeys.iterator();
-                    while(it.hasNext()) {
-                        SelectionKey key = (SelectionKey) it.next();
-                        it.remove();
-                        try {
-                            new ProxyProcessor(true,inetAddr,key);
+                            ServerSocketChannel server = (ServerSocketChannel) key.channel();
+                            SocketChannel client;
+                            while( (client = server.accept()) != null )
+                                nextEventLoop().register(client, secure);
                         } catch( IOException e ) {
-                            logger.error("Error processing client: "+ key +" Exception: "+e,e);
-                            key.cancel();
-                            try { key.channel().close(); } catch(IOException ioe) {}
+                            logger.error("Error accepting client: "+ e,e);
                         }
                     }
-                    
                 }
+                try { ssChannel.close(); } catch(IOException ignored) {}
+                if( secureChannel != null )
+                    try { secureChannel.close(); } catch(IOException ignored) {}
             }
-        },"Secure conns thread").start();
+        },"Acceptor thread").start();
     }
     
 
@@ -0,0 +1,218 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A selector thread of the proxy.<p>
+ * The acceptor in Proxy hands every new client connection to one of its event loops, from then
+ * on all events of that connection and of the upstream connections opened for it are processed
+ * by this loop alone, so ProxyProcessors never need to synchronize with each other.
+ * Other threads may only talk to a loop through register and execute.
+ */
+public class ProxyEventLoop extends Thread {
+    private final static Logger logger = Logger.getLogger(ProxyEventLoop.class);
+    private final Proxy proxy;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final HttpMessagePool messagePool = new HttpMessagePool(this);
+    /** The HTTP/2 connection this loop sends the requests for each remote host over, by pool address */
+    private final HashMap<String,Http2Connection> http2Connections = new HashMap<String,Http2Connection>();
+    private volatile boolean running = false;
+    /** How often in milliseconds the loop looks for connections that were idle for too long */
+    private static final long TIMEOUT_CHECK_INTERVAL = 1000;
+    private long lastTimeoutCheck = System.currentTimeMillis();
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong eventCount = new AtomicLong();
+
+    /** Creates a new event loop for the given proxy, the loop does nothing until started */
+    public ProxyEventLoop( Proxy proxy, String name ) throws IOException {
+        super(name);
+        this.proxy = proxy;
+        this.selector = Selector.open();
+    }
+
+    /** Get the proxy this loop belongs to */
+    public Proxy getProxy() { return proxy; }
+    /** Get the selector of this loop, only to be used from the loop thread */
+    protected Selector getSelector() { return selector; }
+    /** Get the pool the messages parsed on this loop come from, only to be used from the loop thread */
+    HttpMessagePool getMessagePool() { return messagePool; }
+    /** Is the calling thread this event loop? */
+    public boolean inEventLoop() { return Thread.currentThread() == this; }
+    /** is the loop running? */
+    public boolean isRunning() { return running; }
+
+    /** Get the number of client connections currently served by this loop */
+    public int getConnectionCount() { return connectionCount.get(); }
+    /** Get the number of client connections handed to this loop since it started */
+    public long getAcceptedCount() { return acceptedCount.get(); }
+    /** Get the number of selection events processed by this loop since it started */
+    public long getEventCount() { return eventCount.get(); }
+
+    /** Hand a freshly accepted client connection to this loop */
+    public void register( SocketChannel client ) {
+        register(client, false);
+    }
+
+    /** Hand a freshly accepted client connection to this loop, a secure one speaks TLS to the proxy from the start */
+    public void register( final SocketChannel client, final boolean secure ) {
+        connectionCount.incrementAndGet();
+        acceptedCount.incrementAndGet();
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    new ProxyProcessor(ProxyEventLoop.this, client, secure);
+                } catch( IOException e ) {
+                    logger.error("Error registering client: "+ client +" Exception: "+e,e);
+                    connectionClosed();
+                    try { client.close(); } catch(IOException ioe) {}
+                }
+            }
+        });
+    }
+
+    /** Run the given task on this loop, tasks run in the order they were submitted */
+    public void execute( Runnable task ) {
+        tasks.add(task);
+        if( !inEventLoop() )
+            selector.wakeup();
+    }
+
+    /** Get the HTTP/2 connection of this loop to the given pool address, null if it has none */
+    protected Http2Connection getHttp2Connection( String address ) { return http2Connections.get(address); }
+    /** Send the requests of this loop for the given pool address over the given HTTP/2 connection */
+    protected void addHttp2Connection( String address, Http2Connection connection ) { http2Connections.put(address, connection); }
+    /** Stop using the given HTTP/2 connection for new requests */
+    protected void removeHttp2Connection( String address, Http2Connection connection ) {
+        if( http2Connections.get(address) == connection )
+            http2Connections.remove(address);
+    }
+
+    /** A client connection of this loop was closed or handed elsewhere */
+    protected void connectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    /** stop the loop, closing every channel still registered with it */
+    public void shutdown() {
+        running=false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        running=true;
+        while(running) {
+            try{
+                selector.select(TIMEOUT_CHECK_INTERVAL);
+            }catch(IOException e) {
+                logger.error("Error selecting next available connection: "+ e,e);
+                break;
+            }
+            runTasks();
+
+            Set<SelectionKey> readyKeys = selector.selectedKeys();
+            Iterator<SelectionKey> it = readyKeys.iterator();
+            while(it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                //an earlier handler may have closed the key, or parked its connection in the pool without a handler
+                SelectionKeyHandler handler = (SelectionKeyHandler) key.attachment();
+                if( handler == null || !key.isValid() )
+                    continue;
+                eventCount.incrementAndGet();
+                try {
+                    handler.processKey(key);
+                } catch( Exception e ) {
+                    logger.error("Error processing channel: "+ key.channel() +" Exception: "+e,e);
+                    //a client connection goes the usual way, its upstream connection, buffers and count released
+                    if( handler instanceof ProxyProcessor ) {
+                        try {
+                            ((ProxyProcessor) handler).abort(e);
+                        } catch( Exception ae ) {
+                            logger.error("Error closing channel: "+ key.channel() +" Exception: "+ae,ae);
+                        }
+                    }
+                    key.cancel();
+                    try { key.channel().close(); } catch(IOException ioe) {}
+                }
+            }
+            long now = System.currentTimeMillis();
+            if( now - lastTimeoutCheck >= TIMEOUT_CHECK_INTERVAL ) {
+                lastTimeoutCheck = now;
+                checkTimeouts(now);
+            }
+        }
+        running=false;
+        closeAll();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while( (task = tasks.poll()) != null ) {
+            try {
+                task.run();
+            } catch( Exception e ) {
+                logger.error("Error running event loop task: "+ e,e);
+            }
+        }
+    }
+
+    /** Let every client connection of this loop check whether it has been idle for too long, and expire idle upstream connections */
+    private void checkTimeouts( long now ) {
+        proxy.getUpstreamPool().evictIdle(now);
+        Http2Connection[] http2 = http2Connections.values().toArray( new Http2Connection[0] );
+        for( int i=0; i< http2.length; i++ )
+            http2[i].checkTimeout(now);
+        SelectionKey[] keys = selector.keys().toArray( new SelectionKey[0] );
+        for( int i=0; i< keys.length; i++ ) {
+            Object handler = keys[i].attachment();
+            if( keys[i].isValid() && handler instanceof ProxyProcessor ) {
+                try {
+                    ((ProxyProcessor) handler).checkTimeout(now);
+                } catch( Exception e ) {
+                    logger.error("Error checking channel timeout: "+ keys[i].channel() +" Exception: "+e,e);
+                }
+            }
+        }
+    }
+
+    private void closeAll() {
+        Iterator<SelectionKey> it = selector.keys().iterator();
+        while( it.hasNext() ) {
+            try { it.next().channel().close(); } catch(IOException ignored) {}
+        }
+        try { selector.close(); } catch(IOException ignored) {}
+    }
+}
@@ -20,124 +20,345 @@
 
 package com.wpg.proxy;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.security.KeyStore;
-import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.StringTokenizer;
-import java.util.Vector;
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
+import java.util.LinkedList;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
+import javax.net.ssl.SSLEngine;
 import org.apache.log4j.Logger;
 
 /**
  *
  * @author opsi
  */
-public class ProxyProcessor {
+public class ProxyProcessor implements UpstreamListener, SelectionKeyHandler {
     private InetAddress inetAddr = null;
+    private ProxyEventLoop loop = null;
     private Selector selector;
-    private Selector secureSelector;
     private int port = 8080;
-    private int securePort = 14111;
+    private static final int READ_BUFFER_SIZE = 1024*16;
+    private SocketChannel client;
+    /** The channel requests and responses go through, the client socket or the TLS session on top of it */
+    private ByteChannel channel;
+    private SSLByteChannel tls;
+    private SSLContext tlsContext;
+    private boolean upgradeToTls = false;
+    /** The client connected to the secure port and speaks TLS to the proxy itself, its requests name their own targets */
+    private boolean secureClient = false;
+    /** The TLS handshake with the client waits in the HandshakeAdmission */
+    private boolean handshakeWaiting = false;
+    /** The TLS handshake with the client holds a place in the HandshakeAdmission */
+    private boolean handshakeAdmitted = false;
+    /** When the phases of the TLS handshake with the client started, 0 for those not reached */
+    private long tlsRequestedAt = 0;
+    private long tlsAdmittedAt = 0;
+    private long helloAt = 0;
+    private long tlsStartedAt = 0;
+    private boolean readingHello = false;
+    private String tunnelHost;
+    private int tunnelPort;
+    private SelectionKey clientKey;
+    private ByteBuffer readBuffer;
+    private final HttpRequestParser parser = new HttpRequestParser();
+    private static final int MAX_PENDING_OUTPUT = 1024*64;
+    private boolean streaming = false;
+    private UpstreamConnection upstream;
+    private HttpMessageResponse streamedResponse;
+    private boolean responseComplete = false;
+    private boolean chunkedOutput = false;
+    private boolean keepAlive = false;
+    private boolean readingRequest = true;
+    private boolean streamingRequest = false;
+    private boolean requestPaused = false;
+    private boolean parsing = false;
+    private int requestCount = 0;
+    private long lastActivity = System.currentTimeMillis();
+    private final LinkedList<ByteBuffer> pendingOutput = new LinkedList<ByteBuffer>();
+    private int pendingOutputBytes = 0;
+    /** The buffers of the pending output handed to one gathering write */
+    private final ByteBuffer[] gather = new ByteBuffer[16];
+    /** The processors running over the current request or response, null once they are done */
+    private ProcessorRun processorRun;
+    /** What carries on once the processors are done */
+    private int processing;
+    private static final int PROCESSING_REQUEST = 0;
+    private static final int PROCESSING_RESPONSE = 1;
+    private static final int PROCESSING_HEADER = 2;
+    /** Streaming: the parts of a body that arrived while the processors were running on its header */
+    private final LinkedList<ByteBuffer> heldBody = new LinkedList<ByteBuffer>();
+    /** Streaming responses: the body ended while the processors were running on the header */
+    private boolean responseEnded = false;
+    /** Streaming: the body filters of the request and of the response, null while the bodies pass unchanged */
+    private BodyFilterChain requestFilters;
+    private BodyFilterChain responseFilters;
+    /** Streaming requests: the remote host fell behind while the request filters wrote to it */
+    private boolean requestBodyFull = false;
+    
+    /** Streaming requests: the filtered request body goes to the remote host */
+    private final HttpBodyProcessor.Output requestBodyOutput = new HttpBodyProcessor.Output() {
+        public void write( ByteBuffer data ) {
+            if( !upstream.sendRequestBody(data) )
+                requestBodyFull = true;
+        }
+    };
+    
+    /** Streaming responses: the filtered response body goes to the client */
+    private final HttpBodyProcessor.Output responseBodyOutput = new HttpBodyProcessor.Output() {
+        public void write( ByteBuffer data ) {
+            if( chunkedOutput )
+                pendingOutputBytes += ChunkedEncoder.encode(data, pendingOutput);
+            else
+                copyToOutput(data);
+        }
+    };
+    private long startTimeStamp;
+    
+    /** Sends the body of a streamed request on to the remote host as it arrives */
+    private final HttpMessageParser.BodyListener requestBodyListener = new HttpMessageParser.BodyListener() {
+        public void headerComplete( HttpMessage message ) throws IOException {
+            HttpMessageRequest request = (HttpMessageRequest) message;
+            if( !parser.isBodyExpected() || request.getMethod().equals("CONNECT")
+                    || ( ProxyRegistry.isStatusBrowserEnabled() && isLocalRequest( request.getToHost(), request.getToPort() ) ) )
+                return;
+            streamingRequest = true;
+            request.setFromHost( client.socket().getLocalAddress().getHostAddress() );
+            request.setFromPort( client.socket().getLocalPort() );
+            processRequest( request );
+        }
+        public void bodyData( ByteBuffer data ) throws IOException {
+            if( processorRun != null ) {
+                //the request processors are still running, keep the body until the request may be sent
+                BufferPool.getSingleton().copy(data, heldBody);
+                requestPaused = true;
+                updateInterest();
+                return;
+            }
+            if( upstream != null && !sendRequestBody(data) ) {
+                requestPaused = true;
+                updateInterest();
+            }
+        }
+    };
+    
+    /** The handshake tasks of the client TLS session are done, carry on with the session on the event loop */
+    private final Runnable tlsTasksDone = new Runnable() {
+        public void run() {
+            loop.execute(new Runnable() {
+                public void run() {
+                    if( !client.isOpen() )
+                        return;
+                    try {
+                        flushOutput();
+                        if( readingRequest && !requestPaused && client.isOpen() )
+                            readRequest();
+                    } catch( IOException e ) {
+                        abortResponse(e);
+                    }
+                }
+            });
+        }
+    };
+    
+    /** Carries on with the message once the processors are done with it */
+    private final ProcessorRun.Listener processorListener = new ProcessorRun.Listener() {
+        public void processed( HttpMessage message ) {
+            processorRun = null;
+            processingDone(message);
+        }
+        public void processingFailed( Exception e ) {
+            processorRun = null;
+            if( processing != PROCESSING_REQUEST ) {
+                abortResponse(e);
+                return;
+            }
+            stopTransaction( startTimeStamp, ProxyStatistics.FAILURE );
+            logger.error("Exception while processing the request: "+ e,e);
+            runHandlers(ProxyRegistry.getHandlers(),parser.getRequest(),e);
+            closeQuietly();
+        }
+    };
+    
+    /** Called back by the HandshakeAdmission once the TLS handshake with the client may start */
+    private final HandshakeAdmission.Waiter admissionWaiter = new HandshakeAdmission.Waiter() {
+        public void admitted() {
+            loop.execute(new Runnable() {
+                public void run() {
+                    handshakeAdmitted();
+                }
+            });
+        }
+    };
+    
+    /** The TLS handshake with the client finished, it makes room for the next one and its phases are recorded */
+    private final Runnable handshakeDone = new Runnable() {
+        public void run() {
+            releaseAdmission();
+            long[] phases = new long[6];
+            phases[ProxyStatistics.PHASE_QUEUE] = tlsAdmittedAt - tlsRequestedAt;
+            if( helloAt > 0 ) {
+                phases[ProxyStatistics.PHASE_HELLO] = helloAt - tlsAdmittedAt;
+                phases[ProxyStatistics.PHASE_CERTIFICATE] = tlsStartedAt - helloAt;
+            } else {
+                phases[ProxyStatistics.PHASE_HELLO] = tlsStartedAt - tlsAdmittedAt;
+            }
+            phases[ProxyStatistics.PHASE_HANDSHAKE] = tls.getHandshakeTime();
+            phases[ProxyStatistics.PHASE_TASKS] = tls.getTaskTime();
+            ProxyStatistics.getSingleton().handshakeTimed(false, tls.isResumed(), phases);
+        }
+    };
     
     private final static Logger logger = Logger.getLogger(ProxyProcessor.class);
-    /** Run registered HttpMessageProcessors on a HttpMessage and return it
-     * or null if doSend() returned false */
-    private HttpMessage runProcessors( Vector procs, HttpMessage message) {
-        if( message == null )
-            return null;
-        boolean doSend=true;
-        for(int i=0; i< procs.size(); i++ ) {
-            logger.trace("Processing Processor "+ (i+1) +" of "+ procs.size());
-            HttpMessageProcessor hmp = (HttpMessageProcessor) procs.elementAt(i);
-            if( ! hmp.doContinue(message) )
-                break;
-            message = (HttpMessageRequest) hmp.process(message);
-            if( message == null || !hmp.doSend(message) ) {
-                doSend=false;
-                break;
+    /**
+     * Run registered processors on a HttpMessage, processingDone carries on with the message they return
+     * or null if it must not be sent, right away or once the asynchronous ones among them reported
+     */
+    private void runProcessors( AsyncHttpMessageProcessor[] procs, HttpMessage message, int stage ) {
+        processing = stage;
+        if( procs.length == 0 ) {
+            processingDone(message);
+            return;
+        }
+        processorRun = new ProcessorRun( loop, procs, message, processorListener );
+        processorRun.start();
+    }
+    
+    /** The processors are done with the message, carry on with the stage they ran for */
+    private void processingDone( HttpMessage message ) {
+        try {
+            if( processing == PROCESSING_REQUEST )
+                requestProcessed( (HttpMessageRequest) message );
+            else if( processing == PROCESSING_HEADER )
+                headerProcessed( (HttpMessageResponse) message );
+            else
+                responseProcessed( (HttpMessageResponse) message );
+        } catch( IOException e ) {
+            if( processing == PROCESSING_HEADER ) {
+                abortResponse(e);
+            } else if( processing == PROCESSING_RESPONSE ) {
+                logger.error("Exception while closing the client connection: "+ e,e);
+            } else {
+                stopTransaction( startTimeStamp, ProxyStatistics.FAILURE );
+                logger.error("Exception while processing the request: "+ e,e);
+                runHandlers(ProxyRegistry.getHandlers(),e);
+                closeQuietly();
             }
         }
-        if( doSend == false )
-            return null;
-        return message;
     }
     
     /** Run registered HttpMessageHandlers on a HttpMessage */
-    private void runHandlers( Vector handlers, Exception e ) {
+    private void runHandlers( HttpMessageHandler[] handlers, Exception e ) {
         runHandlers( handlers, null, null, e );
     }
     /** Run registered HttpMessageHandlers on a HttpMessage */
-    private void runHandlers( Vector handlers, HttpMessageRequest request ) {
+    private void runHandlers( HttpMessageHandler[] handlers, HttpMessageRequest request ) {
         runHandlers( handlers, request, null, null );
     }
     /** Run registered HttpMessageHandlers on a HttpMessage */
-    private void runHandlers( Vector handlers, HttpMessageResponse response ) {
+    private void runHandlers( HttpMessageHandler[] handlers, HttpMessageResponse response ) {
         runHandlers( handlers, null, response, null );
     }
     /** Run registered HttpMessageHandlers on a HttpMessage */
-    private void runHandlers( Vector handlers, HttpMessageRequest request, Exception e ) {
+    private void runHandlers( HttpMessageHandler[] handlers, HttpMessageRequest request, Exception e ) {
         runHandlers( handlers, request, null, e );
     }
     /** Run registered HttpMessageHandlers on a HttpMessage */
-    private void runHandlers( Vector handlers, HttpMessageResponse response, Exception e ) {
+    private void runHandlers( HttpMessageHandler[] handlers, HttpMessageResponse response, Exception e ) {
         runHandlers( handlers, null, response, e );
     }
     /** Run registered HttpMessageHandlers on a HttpMessage */
-    private void runHandlers( Vector handlers, HttpMessageRequest request, HttpMessageResponse response ) {
+    private void runHandlers( HttpMessageHandler[] handlers, HttpMessageRequest request, HttpMessageResponse response ) {
         runHandlers( handlers, request, response, null );
     }
-    /** Run registered HttpMessageHandlers on a HttpMessage */
-    private void runHandlers( Vector handlers, final HttpMessageRequest request, final HttpMessageResponse response, final Exception e) {
-        if( handlers.isEmpty() ) {
-            logger.info("No handlers registered, continuing");
+    /** Run registered HttpMessageHandlers on a HttpMessage, on the handler threads when the proxy has them */
+    private void runHandlers( HttpMessageHandler[] handlers, final HttpMessageRequest request, final HttpMessageResponse response, final Exception e) {
+        if( handlers.length == 0 ) {
+            logger.debug("No handlers registered, continuing");
             return;
         }
-        for(int i=0; i< handlers.size(); i++) {
-            logger.trace("Processing Request Handler "+ (i+1) +" of "+ handlers.size());
-            HttpMessageHandler hml = (HttpMessageHandler) handlers.elementAt(i);
-            if( response != null && request != null && e != null )
-                hml.failedResponse(response, request, e);
-            else if( request != null && e != null )
-                hml.failedRequest(request, e);
-            else if( e != null )
-                hml.failed(e);
-            else if( response != null && request != null )
-                hml.receivedResponse( response, request );
-            else if( request != null )
-                hml.receivedRequest( request );
+        if( loop != null && loop.getProxy().getHandlerBus().publish(this, handlers, request, response, e) )
+            return;
+        boolean trace = logger.isTraceEnabled();
+        for(int i=0; i< handlers.length; i++) {
+            if( trace )
+                logger.trace("Processing Request Handler "+ (i+1) +" of "+ handlers.length);
+            HandlerBus.deliver( handlers[i], request, response, e );
         }
     }
     /** method to determin if the target of this request is the proxy server itself */
     private boolean isLocalRequest( final String targetHost, final int targetPort ) {
         logger.trace("Checking for local request: "+ targetHost +":"+ targetPort +" == "+ inetAddr.getHostName() +":"+ this.port +" or "+ inetAddr.getHostAddress());
-        if( ( inetAddr.getHostName().startsWith(targetHost) || targetHost.equals( inetAddr.getHostAddress() ) ) && targetPort == this.port )
+        boolean localPort = targetPort == this.port || (secureClient && targetPort == loop.getProxy().getSecurePort());
+        if( ( inetAddr.getHostName().startsWith(targetHost) || targetHost.equals( inetAddr.getHostAddress() ) ) && localPort )
             return true;
         return false;
     }
     
+    /** Close the client connection, it no longer counts towards the load of its event loop */
+    private void closeClient() throws IOException {
+        if( loop != null && client.isOpen() )
+            loop.connectionClosed();
+        if( processorRun != null ) {
+            processorRun.cancel();
+            processorRun = null;
+        }
+        if( handshakeWaiting ) {
+            handshakeWaiting = false;
+            loop.getProxy().getHandshakeAdmission().cancel(admissionWaiter);
+        }
+        releaseAdmission();
+        if( tls != null )
+            tls.close();
+        client.close();
+        if( upstream != null )
+            upstream.close();
+        //the parser may still be working on the read buffer and the request, they are released once it is done
+        if( parsing )
+            return;
+        releaseBuffers();
+        releaseMessages();
+    }
+    
+    /** The transaction is over, hand its messages back unless a handler retained them */
+    private void releaseMessages() {
+        HttpMessage request = parser.getRequest();
+        HttpMessage sentRequest = upstream == null ? null : upstream.getRequest();
+        HttpMessage response = upstream == null ? null : upstream.getResponse();
+        releaseMessage(request);
+        if( sentRequest != request )
+            releaseMessage(sentRequest);
+        releaseMessage(response);
+        if( streamedResponse != response )
+            releaseMessage(streamedResponse);
+        parser.reset();
+        upstream = null;
+        streamedResponse = null;
+    }
+    
+    private void releaseMessage( HttpMessage message ) {
+        if( message != null && !message.isRecycled() )
+            message.release();
+    }
+    
+    /** Hand the read buffer and any unwritten output back to the pool */
+    private void releaseBuffers() {
+        BufferPool pool = BufferPool.getSingleton();
+        pool.release(readBuffer);
+        readBuffer = null;
+        while( !pendingOutput.isEmpty() )
+            pool.release( pendingOutput.removeFirst() );
+        pendingOutputBytes = 0;
+        while( !heldBody.isEmpty() )
+            pool.release( heldBody.removeFirst() );
+    }
+    
     private void stopTransaction( long startTimeStamp, int status ) {
         long endTimeStamp = System.currentTimeMillis();
         long duration = endTimeStamp - startTimeStamp;
@@ -146,796 +367,864 @@ public class ProxyProcessor {
         ProxyStatistics.getSingleton().incrementTransactionCount( status );
     }
     
-    private void processConnection( SelectionKey key ) throws IOException {
-        long startTimeStamp = System.currentTimeMillis();
-        if(key.isValid() && key.isAcceptable()) {
-            logger.trace("Event found, isAcceptable");
-            ServerSocketChannel server = (ServerSocketChannel) key.channel();
-            SocketChannel client = server.accept();
-            logger.trace("Accepted connection from: "+ client);
-            
-            HttpMessageRequest request = null;
-            try {
-                request = parseRequest(client);
-            } catch (Exception e) {
-                stopTransaction( startTimeStamp, ProxyStatistics.FAILURE );
-                logger.error("Exception while parsing the request: "+ e,e);
-                runHandlers(ProxyRegistry.getHandlers(),e);
-                client.close();
-                return;
-            }
-            
-            if( ProxyRegistry.isStatusBrowserEnabled() && isLocalRequest( request.getToHost(), request.getToPort() ) ) {
-                processLocalRequest( request, client );
+    /** Process the ready operations of the client channel */
+    public void processKey( SelectionKey key ) throws IOException {
+        if(key.isValid() && key.isReadable()) {
+            if( readingHello )
+                readHello();
+            else
+                readRequest();
+        }
+        //the connection may have been handed to a tunnel
+        if( key.attachment() != this )
+            return;
+        if(key.isValid() && key.isWritable() ) {
+            writeResponse();
+        }
+    }
+    
+    /** Feed whatever the client sent to the request parser, once the request is complete stop reading and process it */
+    private void readRequest() throws IOException {
+        try {
+            //idle connections do not hold on to a buffer
+            if( readBuffer == null )
+                readBuffer = BufferPool.getSingleton().acquire(READ_BUFFER_SIZE);
+            //a pipelined request may already be waiting in the buffer
+            if( readBuffer.position() > 0 && parseRequest() )
                 return;
-            }
-            
-            //TODO implement HTTP/1.1 RFC2817 TLS OPTIONS "Upgrade" request as well as HTTP/1.0 CONNECT
-            if( request.getMethod().equals("CONNECT") ) {
-                try {
-                    //TODO upgrade this socket to an SSL connection back to our internal ssl server
-                    if( ProxyRegistry.getKeystoreFilename() == null ) {
-                        throw new Exception("SSL Not Enabled on this proxy instance");
-                    } else {
-                        logger.debug("Switching this connection to SSL");
-					}
-                } catch( Exception e ) {
-                    logger.error("Exception while establishing the SSL Layer: "+ e,e);
-                    client.configureBlocking(false);
-                    SelectionKey clientKey = client.register(selector, SelectionKey.OP_WRITE);
-                    ByteBuffer buf = ByteBuffer.allocateDirect(1024*10);
-                    buf.clear();
-                    String errorString = "HTTP/1.0 500 Error "+ e;
-                    buf.put(errorString.getBytes() );
-                    buf.put((byte)'\r');
-                    buf.put((byte)'\n');
-                    buf.put("Proxy-agent: WPG-RecordingProxy/1.0".getBytes() );
-                    buf.put((byte)'\r');
-                    buf.put((byte)'\n');
-                    buf.put((byte)'\r');
-                    buf.put((byte)'\n');
-                    //TODO put a pretty html message here explaining the error in more detail
-                    buf.flip();
-                    clientKey.attach(buf);
+            int size;
+            while( !requestPaused && (size = channel.read(readBuffer)) != 0 ) {
+                if( size < 0 ) {
+                    if( parser.isStarted() )
+                        throw new IOException("Connection closed by client before the end of the request");
+                    logger.trace("Connection closed by client: "+ client);
+                    closeClient();
                     return;
                 }
-                logger.trace("CONNECT method found, sending reply");
-								/*
-                                client.configureBlocking(false);
-                                SelectionKey clientKey = client.register(selector, SelectionKey.OP_WRITE);
-                                ByteBuffer buf = ByteBuffer.allocateDirect(1024*10);
-                                buf.clear();
-                                buf.put("HTTP/1.0 200 Connection established".getBytes() );
-                                buf.put((byte)'\r');
-                                buf.put((byte)'\n');
-                                buf.put("Proxy-agent: WPG-RecordingProxy/1.0".getBytes() );
-                                buf.put((byte)'\r');
-                                buf.put((byte)'\n');
-                                buf.put((byte)'\r');
-                                buf.put((byte)'\n');
-                                buf.flip();
-                                clientKey.attach(buf);
-                                logger.trace("200 Connection established reply sent");
-								*/
-				/*
-				SSLSocketFactory sslSocketFactory = (SSLSocketFactory)SSLSocketFactory.getDefault();
-				Socket socket = client.socket();
-				SSLSocket sslSocket = (SSLSocket)sslSocketFactory.createSocket( socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
-				sslSocket.setUseClientMode(false);
-				sslSocket.startHandshake();
-				socket = sslSocket;
-				logger.debug("Switched this connection to SSL");
-				*/
-                //SSLServerThread sslServerThread = new SSLServerThread( securePort, request.getToHost(), request.getToPort(), client.socket() );
-                SSLServerThread sslServerThread = new SSLServerThread( securePort, request.getToHost(), 443, client.socket() );
-                sslServerThread.start();
-                return;
+                lastActivity = System.currentTimeMillis();
+                if( parseRequest() )
+                    return;
             }
-            
-            request = (HttpMessageRequest) runProcessors( ProxyRegistry.getRequestProcessors(), request);
-            if( request == null ) {
-                stopTransaction( startTimeStamp, ProxyStatistics.STOPPED );
-                client.close();
-                return;
+            if( readBuffer.position() == 0 ) {
+                BufferPool.getSingleton().release(readBuffer);
+                readBuffer = null;
             }
-            
-            
-            runHandlers(ProxyRegistry.getHandlers(),request);
-            
-            HttpMessageResponse response = null;
-            try {
-                response = executeRequest( request );
-            } catch( Exception e ) {
+            //reading may have moved a TLS handshake on
+            if( tls != null )
+                updateInterest();
+        } catch (Exception e) {
+            //a failed TLS handshake comes before any request was started
+            if( startTimeStamp != 0 )
                 stopTransaction( startTimeStamp, ProxyStatistics.FAILURE );
-                logger.error("Exception while executing the request: "+ e,e);
-                runHandlers(ProxyRegistry.getHandlers(),request,e);
-                client.close();
-                return;
+            logger.error("Exception while parsing the request: "+ e,e);
+            runHandlers(ProxyRegistry.getHandlers(),e);
+            closeClient();
+        }
+    }
+    
+    /** Parse the bytes in the read buffer, returns true once a complete request was handed on, the bytes after it stay in the buffer */
+    private boolean parseRequest() throws IOException {
+        if( !parser.isStarted() ) {
+            startTimeStamp = System.currentTimeMillis();
+            parser.setBodyListener( ProxyRegistry.isRequestStreamingEnabled() ? requestBodyListener : null );
+            streamingRequest = false;
+        }
+        readBuffer.flip();
+        boolean complete;
+        parsing = true;
+        try {
+            complete = parser.parse(readBuffer);
+        } finally {
+            parsing = false;
+        }
+        //a streamed request may already have been answered and the connection closed
+        if( !client.isOpen() ) {
+            releaseBuffers();
+            releaseMessages();
+            return true;
+        }
+        readBuffer.compact();
+        if( !complete )
+            return false;
+        readingRequest = false;
+        updateInterest();
+        if( readBuffer.position() == 0 ) {
+            BufferPool.getSingleton().release(readBuffer);
+            readBuffer = null;
+        }
+        HttpMessageRequest request = parser.getRequest();
+        if( streamingRequest ) {
+            if( upstream != null )
+                endRequestBody();
+            return true;
+        }
+        request.setFromHost( client.socket().getLocalAddress().getHostAddress() );
+        request.setFromPort( client.socket().getLocalPort() );
+        processRequest( request );
+        return true;
+    }
+    
+    /** Does the client want the connection kept open after the response to this request, and may it be? */
+    private boolean isKeepAliveRequested( HttpMessageRequest request ) {
+        if( loop == null )
+            return false;
+        Proxy proxy = loop.getProxy();
+        if( !proxy.isRunning() || proxy.getKeepAliveTimeout() == 0 )
+            return false;
+        if( proxy.getMaxKeepAliveRequests() > 0 && requestCount >= proxy.getMaxKeepAliveRequests() )
+            return false;
+        if( request.hasHeaderToken(HttpMessage.HEADER_CONNECTION, "close") || request.hasHeaderToken(HttpMessage.HEADER_PROXY_CONNECTION, "close") )
+            return false;
+        if( "1.0".equals(request.getVersion()) )
+            return request.hasHeaderToken(HttpMessage.HEADER_CONNECTION, "keep-alive") || request.hasHeaderToken(HttpMessage.HEADER_PROXY_CONNECTION, "keep-alive");
+        return true;
+    }
+    
+    /**
+     * Decide how the body of the response is framed for the client and whether the connection stays open after it,
+     * then replace the hop-by-hop headers of the remote host with our own. Bodies without a length are chunked for
+     * HTTP/1.1 clients, collected bodies get their actual length unless they came chunked.
+     */
+    private void prepareResponseHeader( HttpMessageRequest request, HttpMessageResponse response ) {
+        boolean http10 = "1.0".equals(request.getVersion());
+        boolean hasTransferEncoding = response.getHeaderValues(HttpMessage.HEADER_TRANSFER_ENCODING) != null;
+        chunkedOutput = false;
+        if( !hasBody(request, response) ) {
+            //no body, the headers describe the body a GET would have had
+        } else if( streaming ) {
+            if( response.isChunked() || (!hasTransferEncoding && !response.isContentLengthSet()) ) {
+                if( http10 ) {
+                    //the body runs until the connection is closed
+                    response.removeHeader(HttpMessage.HEADER_TRANSFER_ENCODING);
+                    keepAlive = false;
+                } else {
+                    chunkedOutput = true;
+                    response.removeHeader(HttpMessage.HEADER_CONTENT_LENGTH);
+                    if( !hasTransferEncoding )
+                        response.addHeader(HttpMessage.HEADER_TRANSFER_ENCODING, "chunked");
+                }
+            } else if( hasTransferEncoding ) {
+                keepAlive = false;
             }
-            
-            //run response processors after the final request handlers
-            response = (HttpMessageResponse) runProcessors( ProxyRegistry.getResponseProcessors(), response);
-            if( response == null ) {
-                stopTransaction( startTimeStamp, ProxyStatistics.STOPPED );
-                client.close();
+        } else if( response.isChunked() && !http10 ) {
+            chunkedOutput = true;
+            response.removeHeader(HttpMessage.HEADER_CONTENT_LENGTH);
+        } else {
+            response.removeHeader(HttpMessage.HEADER_TRANSFER_ENCODING);
+            response.removeHeader(HttpMessage.HEADER_CONTENT_LENGTH);
+            response.addHeader(HttpMessage.HEADER_CONTENT_LENGTH, String.valueOf( response.getBodyLength() ));
+        }
+        //the client may still be sending the body of a streamed request
+        if( readingRequest )
+            keepAlive = false;
+        response.removeHeader(HttpMessage.HEADER_CONNECTION);
+        response.removeHeader(HttpMessage.HEADER_PROXY_CONNECTION);
+        response.removeHeader(HttpMessage.HEADER_KEEP_ALIVE);
+        response.addHeader(HttpMessage.HEADER_CONNECTION, keepAlive ? "keep-alive" : "close");
+    }
+    
+    /** May the response have a body? */
+    private static boolean hasBody( HttpMessageRequest request, HttpMessageResponse response ) {
+        int status = response.getStatusCode();
+        return !( "HEAD".equals(request.getMethod()) || (status >= 100 && status < 200) || status == 204 || status == 304 );
+    }
+    
+    /** Set the interest of the client channel from the state of the connection */
+    private void updateInterest() {
+        if( !clientKey.isValid() )
+            return;
+        if( handshakeWaiting ) {
+            clientKey.interestOps(0);
+            return;
+        }
+        int ops = 0;
+        if( tls != null && tls.isTaskRunning() ) {
+            //nothing moves until the handshake tasks are done
+            if( tls.hasPendingOutput() )
+                ops = SelectionKey.OP_WRITE;
+            clientKey.interestOps(ops);
+            return;
+        }
+        if( (readingRequest && !requestPaused) || readingHello || (tls != null && tls.isHandshaking()) )
+            ops |= SelectionKey.OP_READ;
+        if( !pendingOutput.isEmpty() || (tls != null && tls.hasPendingOutput()) )
+            ops |= SelectionKey.OP_WRITE;
+        clientKey.interestOps(ops);
+    }
+    
+    /** The response was written and the connection stays open, get ready for the next request */
+    private void nextRequest() throws IOException {
+        logger.trace("Keeping connection open for the next request: "+ client);
+        releaseMessages();
+        startTimeStamp = 0;
+        streaming = false;
+        responseComplete = false;
+        responseEnded = false;
+        requestFilters = null;
+        responseFilters = null;
+        chunkedOutput = false;
+        keepAlive = false;
+        readingRequest = true;
+        streamingRequest = false;
+        requestPaused = false;
+        lastActivity = System.currentTimeMillis();
+        updateInterest();
+        //the next request may be waiting in the buffer, or decrypted or not without the socket becoming readable again
+        if( readBuffer != null || (tls != null && tls.hasBufferedInput()) )
+            readRequest();
+    }
+    
+    /**
+     * Close the connection if it has been waiting too long for its next request or left with a finished exchange and
+     * nothing to write, or fail the exchange if the remote host has been keeping it waiting too long, called periodically
+     * by the event loop
+     */
+    void checkTimeout( long now ) throws IOException {
+        if( processorRun != null ) {
+            processorRun.checkTimeout(now);
+            return;
+        }
+        if( loop == null || !client.isOpen() )
+            return;
+        if( upstream != null && !upstream.isDone() ) {
+            int timeout = loop.getProxy().getUpstreamTimeout();
+            if( timeout > 0 )
+                upstream.checkTimeout(now, timeout);
+            return;
+        }
+        //with the exchange over and nothing left to write the connection waits on the client, or got stuck on the way
+        if( !pendingOutput.isEmpty() || (tls != null && tls.hasPendingOutput()) )
+            return;
+        int timeout = loop.getProxy().getKeepAliveTimeout();
+        if( timeout > 0 && now - lastActivity > timeout ) {
+            logger.debug("Closing idle connection: "+ client);
+            if( parser.isStarted() )
+                stopTransaction( startTimeStamp, ProxyStatistics.FAILURE );
+            closeClient();
+        }
+    }
+    
+    /** Handle a complete request, either locally or by sending it on to the remote host */
+    private void processRequest( HttpMessageRequest request ) throws IOException {
+        requestCount++;
+        if( tls != null && !secureClient ) {
+            //intercepted request, the target is the host the tunnel was opened for whatever the request names
+            request.setSecure(true);
+            request.setToHost(tunnelHost);
+            request.setToPort(tunnelPort);
+        }
+        if( ProxyRegistry.isStatusBrowserEnabled() && isLocalRequest( request.getToHost(), request.getToPort() ) ) {
+            processLocalRequest( request, client );
+            return;
+        }
+        
+        //TODO implement HTTP/1.1 RFC2817 TLS OPTIONS "Upgrade" request as well as HTTP/1.0 CONNECT
+        if( request.getMethod().equals("CONNECT") ) {
+            if( tls == null && ProxyRegistry.isTunneled( request.getToHost() ) ) {
+                startTunnel( request );
                 return;
             }
-            
-            //run response handlers after response processors
-            runHandlers(ProxyRegistry.getHandlers(),request,response);
-            
             try {
-                client.configureBlocking(false);
-                SelectionKey clientKey = client.register(selector, SelectionKey.OP_WRITE);
-                clientKey.attach(response);
+                if( tls != null )
+                    throw new Exception("CONNECT inside a TLS connection");
+                if( ProxyRegistry.getCertificateAuthority() == null )
+                    tlsContext = ProxyRegistry.getServerSSLContext();
+                logger.debug("Switching this connection to SSL");
             } catch( Exception e ) {
-                stopTransaction( startTimeStamp, ProxyStatistics.FAILURE );
-                logger.error("Exception while returning the response: "+ e,e);
-                runHandlers(ProxyRegistry.getHandlers(),request,response,e);
-                client.close();
+                logger.error("Exception while establishing the SSL Layer: "+ e,e);
+                String errorString = "HTTP/1.0 500 Error "+ e +"\r\n"
+                        + "Proxy-agent: WPG-RecordingProxy/1.0\r\n"
+                        + "\r\n";
+                //TODO put a pretty html message here explaining the error in more detail
+                copyToOutput( ByteBuffer.wrap( errorString.getBytes() ) );
+                responseComplete = true;
+                flushOutput();
                 return;
             }
-            logger.trace("Finished Handler for request");
+            logger.trace("CONNECT method found, sending reply");
+            //the requests that follow inside the TLS session all go to the host and port named here
+            tunnelHost = request.getToHost();
+            tunnelPort = request.getToPort() > 0 ? request.getToPort() : 443;
+            requestHandshake();
+            return;
         }
         
-        if(key.isValid() && key.isConnectable()) {
-            logger.trace("Event found, isConnectable");
-            SocketChannel sChannel = (SocketChannel)key.channel();
-            if(! sChannel.finishConnect() ) {
-                key.cancel();
-            }
+        runProcessors( ProxyRegistry.getRequestProcessors(), request, PROCESSING_REQUEST );
+    }
+    
+    /** The request processors are done, run the handlers and send the request on to the remote host */
+    private void requestProcessed( HttpMessageRequest request ) throws IOException {
+        if( request == null ) {
+            stopTransaction( startTimeStamp, ProxyStatistics.STOPPED );
+            closeClient();
+            return;
         }
         
-                /*
-                if(key.isValid() && key.isReadable()) {
-                        logger.trace("Event found, isReadable");
-                        SocketChannel socket = (SocketChannel)key.channel();
-                        try {
-                                buf.clear();
-                                while( (socket.read(buf)) != -1 ) {
-                                        CharBuffer cb = utf8.decode(buf);
-                                        logger.trace("Read From Socket: "+ cb);
-                                }
-                                socket.close();
-                        } catch( IOException e ) {
-                                logger.error("IOException while reading the channel: "+ e,e);
-                        }
-                }
-                 */
+        if( streamingRequest ) {
+            //a filtered body only has a length once it is complete
+            requestFilters = BodyFilterChain.start( ProxyRegistry.getRequestBodyProcessors(), request, requestBodyOutput );
+            if( requestFilters != null && !request.isChunked() ) {
+                request.removeHeader(HttpMessage.HEADER_CONTENT_LENGTH);
+                request.addHeader(HttpMessage.HEADER_TRANSFER_ENCODING, "chunked");
+            }
+        } else if( request.getBodyLength() > 0 ) {
+            BodyFilterChain.filter( ProxyRegistry.getRequestBodyProcessors(), request );
+        }
         
+        runHandlers(ProxyRegistry.getHandlers(),request);
         
-        if(key.isValid() && key.isWritable() ) {
-            logger.trace("Event found, isWritable");
-            Object object = key.attachment();
-            logger.trace("Object: "+ object.toString());
-            SocketChannel client = (SocketChannel) key.channel();
-			logger.debug("Old Send Buffer Size: "+ client.socket().getSendBufferSize() );
-			client.socket().setSendBufferSize( 32768 );
-			logger.debug("New Send Buffer Size: "+ client.socket().getSendBufferSize() );
-			ByteBuffer buffer = null;
-			HttpMessageResponse response = null;
-            if( object instanceof HttpMessageResponse ) {
-                response = (HttpMessageResponse) object;
-				buffer = ByteBuffer.allocateDirect(1024*1024*10);
-				buffer.clear();
-				buffer.put( response.getStartLine().getBytes() );
-				buffer.put((byte)'\r');
-				buffer.put((byte)'\n');
-				buffer.put( response.getHeadersAsString().getBytes() );
-				buffer.put((byte)'\r');
-				buffer.put((byte)'\n');
-				if(response.getBodyContent() != null) {
-					if( !response.isContentLengthSet() ) {
-						buffer.put( new Integer(response.getBodyContent().length).toString().getBytes() );
-						buffer.put((byte)'\r');
-						buffer.put((byte)'\n');
-					}
-					buffer.put( response.getBodyContent() );
-				}
-				buffer.flip();
-            } else if( object instanceof ByteBuffer ) {
-				buffer = (ByteBuffer) object;
-            }
-			/*
-			if( logger.isTraceEnabled() ) {
-				byte[] buf = new byte[buffer.limit()];
-				buffer.get(buf);
-				logger.trace("Ouput to Browser: \n"+ new String(buf).replaceAll("[\r]?\n","\r\nWire==> ") );
-				buffer.flip();
-			}
-			*/
-			try {
-				int sendBufferSize = client.socket().getSendBufferSize();
-				byte[] sendBuffer = new byte[sendBufferSize];
-				while( buffer.position() < buffer.limit() ) {
-					int remaining = buffer.limit() - buffer.position();
-					int writeSize = ( (remaining > sendBufferSize) ? sendBufferSize : remaining );
-					logger.debug("Remaining: "+ remaining +" WriteSize: "+ writeSize +" SendBufferSize: "+ sendBufferSize);
-					buffer.get(sendBuffer, 0, writeSize); 
-					client.write( ByteBuffer.wrap(sendBuffer, 0, writeSize) );
-					try { Thread.sleep(100); } catch( Exception ignored ) {}
-				}
-				client.close();
-			} catch( Exception e ) {
-				stopTransaction( startTimeStamp, ProxyStatistics.FAILURE );
-				logger.error("Exception while returning the response: "+ e,e);
-				if( response != null )
-					runHandlers(ProxyRegistry.getHandlers(),response,e);
-				client.close();
-				return;
-			}
+        keepAlive = isKeepAliveRequested(request);
+        try {
+            streaming = ProxyRegistry.isResponseStreamingEnabled();
+            upstream = new UpstreamConnection( request, this );
+            upstream.setStreaming( streaming );
+            upstream.setRequestStreaming( streamingRequest );
+            if( loop != null )
+                upstream.connect( loop );
+            else
+                upstream.connect( selector );
+        } catch( Exception e ) {
+            stopTransaction( startTimeStamp, ProxyStatistics.FAILURE );
+            logger.error("Exception while executing the request: "+ e,e);
+            runHandlers(ProxyRegistry.getHandlers(),request,e);
+            closeClient();
+            return;
         }
-        stopTransaction( startTimeStamp, ProxyStatistics.SUCCESS );
+        if( streamingRequest )
+            sendHeldBody();
+        logger.trace("Finished Handler for request, waiting for the remote host");
     }
-    private void processSecureConnection( SelectionKey key ) throws IOException {
-        if(key.isValid() && key.isWritable() && key.channel() instanceof SocketChannel ) {
-            SocketChannel client = (SocketChannel) key.channel();
-            try {
-                logger.trace("processSecureConnection Event found, isWritable");
-                ByteBuffer buffer = (ByteBuffer) key.attachment();
-                if( logger.isTraceEnabled() ) {
-                    byte[] buf = new byte[buffer.limit()];
-                    buffer.get(buf);
-                    //logger.trace("Ouput to Browser(SSL): \n"+ new String(buf).replaceAll("[\r]?\n","\r\nWire==> ") );
-                    buffer.flip();
-                }
-                client.write(buffer);
-                buffer.flip();
-                                /*
-                                SSLEngine engine = initServer();
-                                SSLByteChannel sslByteChannel = new SSLByteChannel(client, engine);
-                                 */
-                
-            } catch( Exception e ) {
-                logger.error("Exception while returning the response: "+ e,e);
-                client.close();
+    
+    /** Streaming requests: send on the body that arrived while the request processors were running */
+    private void sendHeldBody() throws IOException {
+        if( heldBody.isEmpty() && readingRequest )
+            return;
+        boolean drained = true;
+        while( !heldBody.isEmpty() ) {
+            ByteBuffer data = heldBody.removeFirst();
+            drained = sendRequestBody(data);
+            BufferPool.getSingleton().release(data);
+        }
+        if( !readingRequest )
+            endRequestBody();
+        else if( drained )
+            requestBodyDrained(upstream);
+    }
+    
+    /** Streaming requests: send the next piece of the body through the request filters, returns false once the remote host is behind */
+    private boolean sendRequestBody( ByteBuffer data ) throws IOException {
+        if( requestFilters == null )
+            return upstream.sendRequestBody(data);
+        requestBodyFull = false;
+        requestFilters.data(data);
+        return !requestBodyFull;
+    }
+    
+    /** Streaming requests: the whole body was read, let the request filters write what they have left and finish the request */
+    private void endRequestBody() throws IOException {
+        if( requestFilters != null )
+            requestFilters.end();
+        upstream.endRequestBody( parser.getRequest().getTrailers() );
+    }
+    
+    /** Ask the HandshakeAdmission for room for the TLS handshake with the client, it starts once there is */
+    private void requestHandshake() throws IOException {
+        tlsRequestedAt = System.currentTimeMillis();
+        int admission = loop.getProxy().getHandshakeAdmission().admit(admissionWaiter);
+        if( admission == HandshakeAdmission.ADMITTED ) {
+            handshakeAdmitted();
+        } else if( admission == HandshakeAdmission.QUEUED ) {
+            logger.debug("TLS handshake waits for admission: "+ client);
+            handshakeWaiting = true;
+            updateInterest();
+        } else if( secureClient ) {
+            closeClient();
+        } else {
+            String reply = "HTTP/1.0 503 Service Unavailable\r\n"
+                    + "Proxy-agent: WPG-RecordingProxy/1.0\r\n"
+                    + "Retry-After: 1\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "\r\n";
+            copyToOutput( ByteBuffer.wrap( reply.getBytes() ) );
+            keepAlive = false;
+            responseComplete = true;
+            flushOutput();
+        }
+    }
+    
+    /** The TLS handshake with the client may start, tell an intercepted client the tunnel is established */
+    private void handshakeAdmitted() {
+        handshakeWaiting = false;
+        handshakeAdmitted = true;
+        tlsAdmittedAt = System.currentTimeMillis();
+        try {
+            if( !client.isOpen() ) {
+                releaseAdmission();
                 return;
             }
+            if( secureClient ) {
+                startTls();
+                return;
+            }
+            String reply = "HTTP/1.0 200 Connection established\r\n"
+                    + "Proxy-agent: WPG-RecordingProxy/1.0\r\n"
+                    + "\r\n";
+            copyToOutput( ByteBuffer.wrap( reply.getBytes() ) );
+            upgradeToTls = true;
+            responseComplete = true;
+            flushOutput();
+        } catch( IOException e ) {
+            logger.error("Exception while starting the TLS handshake: "+ e,e);
+            closeQuietly();
         }
     }
-    private HttpMessageRequest parseRequest( SocketChannel socket ) throws Exception {
-        HttpMessageRequest request = new HttpMessageRequest();
-        Socket s = socket.socket();
-        request.setFromHost( s.getLocalAddress().getHostAddress() );
-        request.setFromPort( s.getLocalPort() );
-        InputStream reader = s.getInputStream();
-        BufferedReader is = new BufferedReader( new InputStreamReader( reader ) );
-        String startLine = is.readLine();
-        logger.info("Request: "+ startLine);
-        request.setStartLine(startLine);
-        StringTokenizer st = new StringTokenizer(startLine, " ");
-        request.setMethod( st.nextToken() );
-        request.setUri( st.nextToken() );
-        
-        st=new StringTokenizer(st.nextToken(),"/");
-        request.setProtocol( st.nextToken() );
-        request.setVersion( st.nextToken() );
-        
-        String line = null;
-        Vector<String> headers = new Vector<String>();
-        while( (line = is.readLine()).length() > 0 ) {
-            headers.addElement(line.replaceAll("[\r\n]+",""));
-            logger.trace("request line: \""+ line +"\"");
-            if( line.endsWith("\r\n\r\n") )
-                break;
+    
+    /** Give the place of the TLS handshake in the HandshakeAdmission to the next one, if it holds one */
+    private void releaseAdmission() {
+        if( !handshakeAdmitted )
+            return;
+        handshakeAdmitted = false;
+        loop.getProxy().getHandshakeAdmission().release();
+    }
+    
+    /** The client accepts more bytes, continue writing the pending output */
+    private void writeResponse() {
+        logger.trace("Event found, isWritable");
+        try {
+            flushOutput();
+        } catch( IOException e ) {
+            abortResponse(e);
         }
-        request.setHeaders(headers);
-        logger.trace("Finished Reading Header of Request");
-						/*
-						StringBuffer sb = new StringBuffer();
-						char c;
-						while( is.ready() ) {
-							c = (char) is.read();
-							sb.append(c);
-						}
-						byte[] body = sb.toString().getBytes();
-						request.addToBody( body, body.length );
-						*/
-		if( request.isContentLengthSet() ) {
-			try {
-				logger.trace("Reading Body of request, size: "+ request.getContentLength() );
-				char[] buff = new char[request.getContentLength()];
-				s.setSoTimeout(10);
-				int size = is.read(buff);
-				byte[] body = new String(buff).getBytes();
-				if( size > 0 )
-					request.addToBody( body, body.length );
-			} catch (java.net.SocketTimeoutException ex ) {
-				logger.warn("Warning: "+ ex);
-			}
-		}
-        logger.trace("Finished Reading Body of Request, size: "+ (request.getBodyContent()==null?0:request.getBodyContent().length) );
-        return request;
-    }
-    
-    /** Open a connection to the remote and execute it */
-    private HttpMessageResponse executeRequest( HttpMessageRequest request ) throws Exception {
-        URL url = request.getUri().toURL();
-        logger.trace("Opening socket to: "+ url);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setFollowRedirects(false);
-        connection.setDoOutput(true);
-        Iterator it = request.getHeaders().keySet().iterator();
-        while( it.hasNext() ) {
-            String key = (String) it.next();
-            if( !key.equals(HttpMessage.HEADER_ACCEPT_ENCODING) ) {
-                Vector items = (Vector) request.getHeaders().get(key);
-                StringBuffer sb = new StringBuffer();
-                for( int i =0; i< items.size(); i++ ) {
-                    sb.append((String) items.elementAt(i));
-                    if( (i+1) < items.size() )
-                        sb.append(", ");
-                }
-                connection.setRequestProperty(key,sb.toString());
-                logger.debug("Setting Header: "+key+": "+ sb.toString() );
-            } else {
-                //TODO add handle for compressed response
-                logger.debug("Ignoring Accept-Encoding Header");
-            }
+    }
+    /** Streaming mode: the header of the response arrived, run the processors and handlers on it and start relaying */
+    public void responseHeaderReceived( UpstreamConnection connection, HttpMessageResponse response ) {
+        //run response processors after the final request handlers
+        runProcessors( ProxyRegistry.getResponseProcessors(), response, PROCESSING_HEADER );
+    }
+    
+    /** Streaming mode: the response processors are done with the header, relay it and the body that arrived meanwhile */
+    private void headerProcessed( HttpMessageResponse response ) throws IOException {
+        HttpMessageRequest request = upstream.getRequest();
+        if( response == null ) {
+            upstream.close();
+            stopTransaction( startTimeStamp, ProxyStatistics.STOPPED );
+            closeClient();
+            return;
         }
         
-        if( request.getBodyContent() != null ) {
-			logger.trace("Beginning request body write to url connection");
-                        /*
-                        java.io.OutputStreamWriter os = new java.io.OutputStreamWriter( new java.io.BufferedOutputStream(connection.getOutputStream() ), "8859_1");
-                        os.write( new String(request.getBodyContent()) );
-                        logger.trace("sending: "+ request.getBodyContent());
-                        os.flush();
-                        os.close();
-                         */
-            OutputStream writer = connection.getOutputStream();
-            writer.write(request.getBodyContent());
-			writer.flush();
-			writer.close();
-            logger.debug("Size of write: "+ request.getBodyContent().length);
+        if( hasBody(request, response) ) {
+            //a filtered body only has a length once it is complete
+            responseFilters = BodyFilterChain.start( ProxyRegistry.getResponseBodyProcessors(), response, responseBodyOutput );
+            if( responseFilters != null )
+                response.removeHeader(HttpMessage.HEADER_CONTENT_LENGTH);
         }
         
-        HttpMessageResponse response = new HttpMessageResponse();
-        response.setStartLine( connection.getHeaderField(0) );
-        logger.debug("Response: "+ response.getStartLine());
-        response.setStatusCode( connection.getResponseCode() );
-        response.setReasonPhrase( connection.getResponseMessage() );
-        //response.setHeaders( connection.getHeaderFields() );
-        boolean done=false;
-        for(int num=1; !done; num++) {
-            String key = connection.getHeaderFieldKey(num);
-            String value = connection.getHeaderField(num);
-            if( key!=null && value!=null ) {
-                response.addHeader( key, value );
-            } else {
-                done=true;
+        prepareResponseHeader(request, response);
+        
+        //run response handlers after response processors, they only get to see the header
+        runHandlers(ProxyRegistry.getHandlers(),request,response);
+        
+        streamedResponse = response;
+        pendingOutputBytes += response.copyHeadTo(pendingOutput);
+        while( !heldBody.isEmpty() ) {
+            ByteBuffer data = heldBody.removeFirst();
+            if( responseFilters == null && !chunkedOutput ) {
+                queueOutput(data);
+                continue;
             }
+            relayResponseBody(data);
+            BufferPool.getSingleton().release(data);
         }
-		int total =0;
-        if(response.getStatusCode() != 404) {
-            InputStream reader = null;
-            try {
-                reader = connection.getInputStream();
-                while(reader != null ) {
-                    byte[] buff = new byte[1024*50];
-                    int size = reader.read(buff,0,buff.length);
-					if( size > -1 ) total+=size;
-                    logger.debug("Size of read: "+ size +" subtotal: "+ total);
-                    if( size<1 )
-                        break;
-                    response.addToBody(buff,size);
-                }
-            } catch (IOException ex) {
-                logger.error("Error reading response from request: "+ ex,ex);
-            } finally {
-                if(reader!=null) reader.close();
-                if(connection!=null) connection.disconnect();
-            }
+        if( responseEnded )
+            endStreamedResponse();
+        else
+            flushOutput();
+    }
+    
+    /** Streaming mode: relay the next piece of the body, asking the remote host to wait while the client is behind */
+    public boolean responseBodyReceived( UpstreamConnection connection, ByteBuffer data ) {
+        if( processorRun != null ) {
+            //the response processors are still running on the header, keep the body until it may be relayed
+            BufferPool.getSingleton().copy(data, heldBody);
+            return false;
         }
-        if( logger.isTraceEnabled() && response.getBodyContent() != null ) {
-            BufferedReader br = new BufferedReader( new InputStreamReader( response.getBodyContentStream()) );
-            char c;
-            StringBuffer sb = new StringBuffer();
-            while( br.ready() ){
-                c = (char) br.read();
-                sb.append(c);
-            }
-            logger.trace("Set Body To: \n"+ sb.toString() );
-            br.close();
+        try {
+            relayResponseBody(data);
+            flushOutput();
+        } catch( IOException e ) {
+            abortResponse(e);
+            return false;
         }
-        return response;
+        return pendingOutputBytes < MAX_PENDING_OUTPUT;
     }
     
-    /** Initialized SSL Server if ssl is configured */
-        /*
-        private SSLEngine initServer() {
-                if( keyfile == null ) {
-                        logger.info("SSL Not enabled, running unencrypted proxy only");
-                        return null;
-                }
-                try {
-                        logger.trace("Starting SSL Init");
-                        KeyStore ks = KeyStore.getInstance("JKS");
-                        ks.load( new FileInputStream(keyfile), keystorePass);
-         
-                        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
-                        kmf.init(ks,keystoreKeysPass);
-         
-                        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
-                        tmf.init(ks);
-         
-                        SSLContext context = SSLContext.getInstance("TLS");
-                        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-         
-                        SSLEngine engine = context.createSSLEngine();
-                        engine.setUseClientMode(false);
-                        engine.beginHandshake();
-                        logger.trace("Finished SSL Init");
-                        return engine;
-                } catch( Exception e ) {
-                        logger.fatal("Error creating SSLEngine Exception: "+ e,e);
-                }
-                return null;
-        }
-         */
-    private static class WorkAroundX509TrustManager implements X509TrustManager {
-                /*
-                public boolean isClientTrusted(X2509Certificate[] chain){ return true; }
-                public boolean isServerTrusted(X509Certificate[] chain){ return true; }
-                public X509Certificate[] getAcceptedIssuers(){ return null; }
-                 */
-        private X509Certificate[] c;
-        public void checkClientTrusted( X509Certificate[] chain, String type ) { c=chain; }
-        public void checkServerTrusted( X509Certificate[] chain, String type ) { c=chain; }
-        public X509Certificate[] getAcceptedIssuers() { return c; }
-        
+    /** Streaming mode: queue the next piece of the response body for the client, through the response filters if there are any */
+    private void relayResponseBody( ByteBuffer data ) throws IOException {
+        if( responseFilters != null )
+            responseFilters.data(data);
+        else
+            responseBodyOutput.write(data);
     }
     
+    /** Add bytes to the end of the output waiting to be written to the client, the buffer is not copied */
+    private void queueOutput( ByteBuffer buffer ) {
+        pendingOutputBytes += buffer.remaining();
+        pendingOutput.addLast(buffer);
+    }
     
-    private class SSLServerThread extends Thread {
-        private int securePort = -1;
-        private String targetHost = "";
-        private int targetPort = 443;
-        private Socket clientSocket = null;
-        private SSLServerSocket serverSocket = null;
-        private SSLSocket targetSocket = null;
-        private SSLSocket localClientSocket = null;
-        private boolean run = false;
-        
-        public boolean isRunning() { return run; }
-        public void setRunning( boolean b ) { run=b; }
-        
-        public SSLServerThread( int localSecurePort, String host, int port, Socket socket ) {
-            super();
-            securePort = localSecurePort;
-            targetHost = host;
-            targetPort = port;
-            clientSocket = socket;
-            
-            KeyStore ks;
-            KeyManagerFactory kmf;
-            KeyManager[] km;
-            X509TrustManager tm = new WorkAroundX509TrustManager();
-            TrustManager[] tma = {tm};
-            SSLContext context;
-            SSLServerSocketFactory sockFactory = null;
-            
-            
-            logger.trace("Starting SSL Init");
-            try {
-                //This code creates a local ssl server for our man-in-the-middle stuff
-                ks = KeyStore.getInstance("JKS");
-                ks.load( new FileInputStream(ProxyRegistry.getKeystoreFilename()), ProxyRegistry.getKeystorePassword());
-                kmf = KeyManagerFactory.getInstance("SunX509");
-                kmf.init(ks,ProxyRegistry.getKeystoreKeysPassword());
-                km = null;
-                
-                                /*
-                                TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
-                                tmf.init(ks);
-                                context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-                                 */
-                
-                context = SSLContext.getInstance("SSL");
-                context.init(km, tma, null);
-                sockFactory = context.getServerSocketFactory();
-            }catch(Exception e) {
-                logger.error("Error Initializing SSL: "+e,e);
-            }
-            
-            boolean connected = false;
-            while(!connected) {
-                try{
-                    logger.info("Trying to open local ssl server on port: "+ localSecurePort);
-                    serverSocket = (SSLServerSocket) sockFactory.createServerSocket(localSecurePort);
-                    connected=true;
-                } catch (Exception e ) {
-                    connected=false;
-                    localSecurePort++;
+    /** Copy the remaining bytes of the given buffer into pooled buffers at the end of the pending output */
+    private void copyToOutput( ByteBuffer data ) {
+        pendingOutputBytes += BufferPool.getSingleton().copy(data, pendingOutput);
+    }
+    
+    /**
+     * Write as much of the pending output as the client accepts without blocking. Whatever is left waits for OP_WRITE,
+     * once the client has caught up the remote host may send more, and once the response is complete the client is closed.
+     */
+    private void flushOutput() throws IOException {
+        if( tls != null )
+            tls.flush();
+        while( !pendingOutput.isEmpty() ) {
+            //both the socket and the TLS session take several buffers in one write
+            int count = 0;
+            Iterator<ByteBuffer> it = pendingOutput.iterator();
+            while( count < gather.length && it.hasNext() )
+                gather[count++] = it.next();
+            pendingOutputBytes -= ((GatheringByteChannel) channel).write(gather, 0, count);
+            boolean full = gather[count-1].hasRemaining();
+            Arrays.fill(gather, 0, count, null);
+            while( !pendingOutput.isEmpty() && !pendingOutput.getFirst().hasRemaining() )
+                BufferPool.getSingleton().release( pendingOutput.removeFirst() );
+            if( full )
+                break;
+        }
+        if( upstream != null && upstream.isPaused() && processorRun == null && pendingOutputBytes < MAX_PENDING_OUTPUT/2 )
+            upstream.resumeReading();
+        updateInterest();
+        if( responseComplete && pendingOutput.isEmpty() && (tls == null || !tls.hasPendingOutput()) ) {
+            stopTransaction( startTimeStamp, ProxyStatistics.SUCCESS );
+            if( upgradeToTls )
+                startTls();
+            else if( keepAlive && !readingRequest )
+                nextRequest();
+            else
+                closeClient();
+        }
+    }
+    
+    /**
+     * The client was told the tunnel is established, from now on it talks TLS to us and we talk TLS to the remote host.
+     * With a certificate authority the certificate is chosen once the ClientHello tells which server the client expects.
+     */
+    private void startTls() throws IOException {
+        upgradeToTls = false;
+        if( ProxyRegistry.getCertificateAuthority() == null ) {
+            beginTls(tlsContext);
+            return;
+        }
+        readingHello = true;
+        updateInterest();
+        readHello();
+    }
+    
+    /** Collect the ClientHello until the server name it asks for is known */
+    private void readHello() throws IOException {
+        try {
+            if( readBuffer == null )
+                readBuffer = BufferPool.getSingleton().acquire(READ_BUFFER_SIZE);
+            while( true ) {
+                ByteBuffer hello = readBuffer.duplicate();
+                hello.flip();
+                String name = CertificateAuthority.readServerName(hello);
+                //a hello too large for the buffer is served by the name of the CONNECT request
+                if( name != null || !readBuffer.hasRemaining() ) {
+                    helloReceived( name == null || name.length() == 0 ? tunnelHost : name );
+                    return;
                 }
-            }
-            
-            try {
-                String[] supported = serverSocket.getSupportedCipherSuites();
-                String[] anonSupported = new String[supported.length];
-                int numAnonSupported = 0;
-                for(int i=0; i< supported.length; i++) {
-                    if( supported[i].indexOf("_anon_") > 0)
-                        anonSupported[numAnonSupported++] = supported[i];
+                int size = client.read(readBuffer);
+                if( size == 0 )
+                    return;
+                if( size < 0 ) {
+                    logger.trace("Connection closed by client before the TLS handshake: "+ client);
+                    closeClient();
+                    return;
                 }
-                
-                String[] oldEnabled = serverSocket.getEnabledCipherSuites();
-                String[] newEnabled = new String[ oldEnabled.length + numAnonSupported ];
-                System.arraycopy( oldEnabled, 0, newEnabled, 0, oldEnabled.length);
-                System.arraycopy( anonSupported, 0, newEnabled, oldEnabled.length, numAnonSupported);
-                
-                serverSocket.setEnabledCipherSuites( newEnabled );
-                
-                //Create the connection to the actual intended target:
-                SSLSocketFactory clientSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-                targetSocket = (SSLSocket) clientSocketFactory.createSocket(targetHost, targetPort);
-                targetSocket.setEnabledCipherSuites( targetSocket.getSupportedCipherSuites() );
-                targetSocket.setUseClientMode(true);
-                
-                logger.trace("Finished SSL Init");
-            }catch(Exception e) {
-                logger.error("Error Initializing SSL: "+e,e);
+                lastActivity = System.currentTimeMillis();
             }
-            
-                        /*
-                        SSLEngine engine = context.createSSLEngine();
-                        engine.setUseClientMode(false);
-                        engine.beginHandshake();
-                         */
+        } catch( Exception e ) {
+            logger.error("Exception while reading the TLS ClientHello: "+ e,e);
+            closeClient();
         }
-        
-        public void run() {
-            logger.info("Listening for connection");
-            try{
-                LocalServer localServerThread = new LocalServer(serverSocket);
-                localServerThread.start();
-                logger.trace("Started local server");
-                SSLSocketFactory clientSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-                localClientSocket = (SSLSocket) clientSocketFactory.createSocket("localhost",securePort);
-                localClientSocket.setEnabledCipherSuites( serverSocket.getSupportedCipherSuites() );
-                localClientSocket.setUseClientMode(true);
-                logger.trace("Started local client");
-                while( localServerThread.socket == null ) {}
-                Socket server = localServerThread.socket;
-                logger.trace("Connected local client to local server");
-
-				String respString = new String("HTTP/1.0 200 Connection established\r\nProxy-agent: WPG-RecordingProxy/1.0\r\n\r\n");
-				OutputStream out = clientSocket.getOutputStream();
-				out.write( respString.getBytes() );
-				out.flush();
-
-				//upgrade connection to ssl
-				SSLSocketFactory sslSocketFactory = (SSLSocketFactory)SSLSocketFactory.getDefault();
-				SSLSocket sslSocket = (SSLSocket)sslSocketFactory.createSocket( clientSocket, clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort(), true);
-				sslSocket.setUseClientMode(false);
-				sslSocket.setEnabledCipherSuites( sslSocket.getSupportedCipherSuites() );
-				try {
-					sslSocket.startHandshake();
-				} catch( javax.net.ssl.SSLHandshakeException sslEx ) {
-					logger.error("Exception in SSL Handshake: "+ sslEx,sslEx);
-					printStringArray( "Enabled Cipher Suites", sslSocket.getEnabledCipherSuites() );
-					printStringArray( "Supported Cipher Suites", sslSocket.getSupportedCipherSuites() );
-					printStringArray( "Enabled Protocols", sslSocket.getEnabledProtocols() );
-					printStringArray( "Supported Protocols", sslSocket.getSupportedProtocols() );
-					return;
-				}
-				clientSocket = sslSocket;
-                logger.trace("Upgraded client socket to SSL");
-
-                IORedirector c2l, l2c, l2s, s2l, s2t, t2s;
-                
-                //write the connect dialog to the client
-				/*
-                OutputStream os = clientSocket.getOutputStream();
-                byte[] msg = new String("HTTP/1.0 200 Connection established\r\nProxy-agent: WPG-RecordingProxy/1.0\r\n\r\n").getBytes();
-                os.write(msg);
-				*/
-
-				IORedirector c2s, s2c;
-                c2s = new IORedirector( clientSocket.getInputStream(), targetSocket.getOutputStream());
-                c2s.setName("remoteClient->remoteServer");
-                c2s.start();
-                Thread.sleep(500);
-
-                s2c = new IORedirector( targetSocket.getInputStream(), clientSocket.getOutputStream());
-                s2c.setName("remoteServer->remoteClient");
-                s2c.start();
-                Thread.sleep(500);
-                
-				/* let's just get a regular proxy working for now, so the below is commented out
-                /** send all client requests on to the local client * /
-                c2l = new IORedirector( clientSocket.getInputStream(), localClientSocket.getOutputStream());
-                c2l.setName("remoteCleint->localClient");
-                c2l.start();
-                Thread.sleep(500);
-                
-                /** send all local client requests on to the client * /
-                l2c = new IORedirector( localClientSocket.getInputStream(), clientSocket.getOutputStream());
-                l2c.setName("localClient->remoteClient");
-                l2c.start();
-                Thread.sleep(500);
-                
-                /** send all client requests on to the local ssl server * /
-                l2s = new IORedirector( localClientSocket.getInputStream(), server.getOutputStream());
-                l2s.setName("localClient->localServer");
-                l2s.start();
-                Thread.sleep(500);
-                
-                /**forward all local ssl server input to the client output * /
-                s2l = new IORedirector( server.getInputStream(), localClientSocket.getOutputStream());
-                s2l.setName("localServer->localClient");
-                s2l.start();
-                Thread.sleep(500);
-                
-                /**forward all server traffic to target server * /
-                s2t = new IORedirector( server.getInputStream(), targetSocket.getOutputStream());
-                s2t.setName("localServer->remoteServer");
-                s2t.start();
-                Thread.sleep(500);
-                
-                t2s = new IORedirector( targetSocket.getInputStream(), server.getOutputStream() );
-                t2s.setName("remoteServer->localServer");
-                t2s.start();
-                Thread.sleep(500);
-                
-                logger.trace("Everything setup, start another handshake");
-                localClientSocket.startHandshake();
-				*/
-            }catch( IOException e ) {
-                logger.error("IOException while starting IORedirector Threads: "+ e,e);
-                return;
-            }catch( InterruptedException e ) { }
-            
-							/*
-							run=true;
-							while(run) { }
-							*/
+    }
+    
+    /** Start the handshake with the certificate of the given host, it is issued on the background pool if it is not cached */
+    private void helloReceived( String host ) throws Exception {
+        readingHello = false;
+        helloAt = System.currentTimeMillis();
+        updateInterest();
+        CertificateAuthority ca = ProxyRegistry.getCertificateAuthority();
+        if( loop == null ) {
+            beginTls( ca.getContext(host) );
+            return;
         }
-
-		/** print an array of Strings via the logger */
-		private void printStringArray( String desc, String[] list ) {
-			StringBuffer sb = new StringBuffer(desc +":");
-			for(int i=0; i< list.length; i++ ) {
-				sb.append("\n\t"+list[i]);
-			}
-			logger.info(sb.toString());
-		}
-        
-        /** internal thread to read packets from client and forward to remote */
-        private class IORedirector extends Thread {
-            protected InputStream in = null;
-            protected OutputStream out = null;
-			private byte[] buffer = new byte[4096];
-            public boolean run=false;
-			public IORedirector( InputStream in, OutputStream out ) {
-				this.in = in;
-				this.out = out;
-			}
-            public void run() {
-                run=true;
-                logger.trace("Starting: "+ getName());
-				try{
-					while(run) {
-						int length = in.read(buffer);
-						if( length == 0 ) break;
-						out.write(buffer, 0 ,length);
-					}
-					run=false;
-				}catch( IOException e ) {
-					logger.error("IOException: "+e,e);
-					run=false;
-				} finally {
-					try { in.close(); } catch( Exception ignored ) {}
-					try { out.close(); } catch( Exception ignored ) {}
-				}
+        SSLContext context = ca.getContext(host, new CertificateAuthority.Callback() {
+            public void issued( String host, final SSLContext context ) {
+                loop.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if( client.isOpen() )
+                                beginTls(context);
+                        } catch( IOException e ) {
+                            logger.error("Exception while starting the TLS handshake: "+ e,e);
+                            closeQuietly();
+                        }
+                    }
+                });
             }
+            public void failed( String host, Exception e ) {
+                loop.execute(new Runnable() {
+                    public void run() {
+                        closeQuietly();
+                    }
+                });
+            }
+        });
+        if( context != null )
+            beginTls(context);
+    }
+    
+    private void closeQuietly() {
+        try {
+            closeClient();
+        } catch( IOException e ) {
+            logger.error("Exception while closing the client connection: "+ e,e);
         }
-        
-        /**Server thread to assist in connecting the client to the local server */
-        private class LocalServer extends Thread {
-            public SSLServerSocket serverSocket;
-            public Socket socket;
-            public LocalServer( SSLServerSocket s ) { serverSocket=s; }
-            public void run() {
-                try{
-                    socket = serverSocket.accept();
-                } catch( Exception e) {
-                    logger.error("Socket Accept Exception: "+e,e);
-                    return;
-                }
-                while( socket != null ) { }
+    }
+    
+    /** Wrap the client connection in a TLS session presenting the certificate of the given context */
+    private void beginTls( SSLContext context ) throws IOException {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        tls = new SSLByteChannel(client, engine);
+        channel = tls;
+        tlsStartedAt = System.currentTimeMillis();
+        tls.setHandshakeListener(handshakeDone);
+        if( loop != null )
+            tls.setTaskExecutor( loop.getProxy().getHandshakeExecutor(), tlsTasksDone );
+        //the client may not have waited for the reply before starting the handshake
+        if( readBuffer != null && readBuffer.position() > 0 ) {
+            readBuffer.flip();
+            tls.addReceivedData(readBuffer);
+            readBuffer.clear();
+        }
+        if( secureClient )
+            logger.debug("TLS connection from: "+ client);
+        else
+            logger.debug("Intercepting the connection to "+ tunnelHost +":"+ tunnelPort);
+        nextRequest();
+    }
+    
+    /** Hand the client connection over to a blind relay to the host named by the CONNECT request */
+    private void startTunnel( HttpMessageRequest request ) {
+        stopTransaction( startTimeStamp, ProxyStatistics.SUCCESS );
+        ByteBuffer received = null;
+        if( readBuffer != null ) {
+            readBuffer.flip();
+            received = readBuffer;
+        }
+        TunnelRelay relay = new TunnelRelay( loop, clientKey, request.getToHost(), request.getToPort() > 0 ? request.getToPort() : 443, received );
+        releaseBuffers();
+        releaseMessages();
+        relay.connect();
+    }
+    
+    /** Give up on the connection after an unexpected failure while processing its events, close it as any other */
+    void abort( Exception e ) {
+        if( upstream != null )
+            upstream.close();
+        if( startTimeStamp != 0 )
+            stopTransaction( startTimeStamp, ProxyStatistics.FAILURE );
+        runHandlers(ProxyRegistry.getHandlers(),parser.getRequest(),e);
+        closeQuietly();
+    }
+    
+    /** Give up on a response, the client may already have part of it so all that can be done is to close */
+    private void abortResponse( Exception e ) {
+        if( upstream != null )
+            upstream.close();
+        stopTransaction( startTimeStamp, ProxyStatistics.FAILURE );
+        logger.error("Exception while returning the response: "+ e,e);
+        runHandlers(ProxyRegistry.getHandlers(),upstream == null ? null : upstream.getRequest(),streamedResponse,e);
+        try {
+            closeClient();
+        } catch( IOException ioe ) {
+            logger.error("Exception while closing the client connection: "+ ioe,ioe);
+        }
+    }
+    
+    /** The remote host answered, run the response processors and handlers then queue the response for the client */
+    public void responseReceived( UpstreamConnection connection, HttpMessageResponse response ) {
+        if( streaming ) {
+            if( processorRun != null ) {
+                //the header is still with the response processors, the end follows the held body
+                responseEnded = true;
+                return;
             }
+            endStreamedResponse();
+            return;
+        }
+        //run response processors after the final request handlers
+        runProcessors( ProxyRegistry.getResponseProcessors(), response, PROCESSING_RESPONSE );
+    }
+    
+    /** Streaming mode: the whole body was relayed, finish the response once the client has it */
+    private void endStreamedResponse() {
+        try {
+            if( responseFilters != null )
+                responseFilters.end();
+            if( chunkedOutput )
+                pendingOutputBytes += ChunkedEncoder.encodeLast(upstream.getResponse().getTrailers(), pendingOutput);
+            responseComplete = true;
+            flushOutput();
+        } catch( IOException e ) {
+            abortResponse(e);
         }
+    }
+    
+    /** The response processors are done, run the handlers then queue the response for the client */
+    private void responseProcessed( HttpMessageResponse response ) throws IOException {
+        if( response == null ) {
+            stopTransaction( startTimeStamp, ProxyStatistics.STOPPED );
+            closeClient();
+            return;
+        }
+        HttpMessageRequest request = upstream.getRequest();
+        if( response.getBodyLength() > 0 && hasBody(request, response) )
+            BodyFilterChain.filter( ProxyRegistry.getResponseBodyProcessors(), response );
+        
+        prepareResponseHeader(request, response);
         
+        //run response handlers after response processors
+        runHandlers(ProxyRegistry.getHandlers(),request,response);
+        
+        streamedResponse = response;
+        try {
+            queueResponse(response);
+            responseComplete = true;
+            flushOutput();
+        } catch( IOException e ) {
+            abortResponse(e);
+        }
+    }
+    
+    /**
+     * Queue a complete response for the client, the body is written straight from the buffers of the message
+     * without copying, read-only views of them that go nowhere once written
+     */
+    private void queueResponse( HttpMessageResponse response ) throws IOException {
+        pendingOutputBytes += response.copyHeadTo(pendingOutput);
+        int length = response.getBodyLength();
+        if( chunkedOutput && length > 0 )
+            copyToOutput( ByteBuffer.wrap( (Integer.toHexString(length) +"\r\n").getBytes("ISO-8859-1") ) );
+        response.body.addViewsTo(pendingOutput);
+        pendingOutputBytes += length;
+        if( chunkedOutput ) {
+            if( length > 0 )
+                copyToOutput( ByteBuffer.wrap( "\r\n".getBytes("ISO-8859-1") ) );
+            pendingOutputBytes += ChunkedEncoder.encodeLast(response.getTrailers(), pendingOutput);
+        }
+    }
+    
+    /** Streaming requests: the remote host caught up with the request body, continue reading it from the client */
+    public void requestBodyDrained( UpstreamConnection connection ) {
+        requestPaused = false;
+        updateInterest();
+        //decrypted bytes may be waiting without the socket ever becoming readable again
+        if( tls != null && tls.hasBufferedInput() ) {
+            loop.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if( client.isOpen() && readingRequest && !requestPaused )
+                            readRequest();
+                    } catch( IOException e ) {
+                        logger.error("Exception while reading the request: "+ e,e);
+                    }
+                }
+            });
+        }
+    }
+    
+    /** The exchange with the remote host failed, report it and drop the client */
+    public void requestFailed( UpstreamConnection connection, Exception exception ) {
+        stopTransaction( startTimeStamp, ProxyStatistics.FAILURE );
+        logger.error("Exception while executing the request: "+ exception,exception);
+        runHandlers(ProxyRegistry.getHandlers(),connection.getRequest(),exception);
+        try {
+            closeClient();
+        } catch( IOException e ) {
+            logger.error("Exception while closing the client connection: "+ e,e);
+        }
     }
     
     /*internal method to collect the statistics and return that information to the browser/user making the request*/
     private void processLocalRequest( HttpMessageRequest request, SocketChannel client ) {
         logger.trace("Processing a local statistics request");
         try {
-            client.configureBlocking(false);
-            SelectionKey clientKey = client.register(selector, SelectionKey.OP_WRITE);
-            ByteBuffer buf = ByteBuffer.allocateDirect(1024*10);
-            buf.clear();
-            buf.put( "HTTP/1.0 200 OK".getBytes() ); buf.put((byte)'\r'); buf.put((byte)'\n');
-            buf.put("Server: WPG-Proxy/1.0".getBytes() ); buf.put((byte)'\r'); buf.put((byte)'\n');
-            buf.put("cache-control: no-store, no-cache, must-revalidate, post-check=0, pre-check=0".getBytes() ); buf.put((byte)'\r'); buf.put((byte)'\n');
-            buf.put("pragma: no-cache".getBytes() ); buf.put((byte)'\r'); buf.put((byte)'\n');
-            buf.put("connection: close".getBytes() ); buf.put((byte)'\r'); buf.put((byte)'\n');
-            buf.put("transfer-encoding: chunked".getBytes() ); buf.put((byte)'\r'); buf.put((byte)'\n');
-            buf.put("content-type: text/html".getBytes() ); buf.put((byte)'\r'); buf.put((byte)'\n');
-            buf.put((byte)'\r');
-            buf.put((byte)'\n');
-            buf.put( ProxyStatistics.getSingleton().getHTMLPage().getBytes() );
-            buf.put((byte)'\r');
-            buf.put((byte)'\n');
-            buf.flip();
-            clientKey.attach(buf);
+            byte[] page = ProxyStatistics.getSingleton().getHTMLPage().getBytes();
+            StringBuffer sb = new StringBuffer();
+            sb.append("HTTP/1.0 200 OK\r\n");
+            sb.append("Server: WPG-Proxy/1.0\r\n");
+            sb.append("cache-control: no-store, no-cache, must-revalidate, post-check=0, pre-check=0\r\n");
+            sb.append("pragma: no-cache\r\n");
+            sb.append("connection: close\r\n");
+            sb.append("content-length: "+ page.length +"\r\n");
+            sb.append("content-type: text/html\r\n");
+            sb.append("\r\n");
+            copyToOutput( ByteBuffer.wrap( sb.toString().getBytes() ) );
+            copyToOutput( ByteBuffer.wrap(page) );
+            responseComplete = true;
+            flushOutput();
         } catch( Exception e ) {
             logger.error("Exception while returning statistics web page: "+ e, e);
         }
         return;
     }
     
-/*
-        public void spoofSSH( Socket s, RequestObject ro ) throws Exception {
-                //browser streams
-                InputStreamReader userIS = new InputStreamReader( s.getInputStream() );
-                OutputStreamWriter userOS = new OutputStreamWriter(s.getOutputStream());
- 
-                //temp internal server sockets and streams
-                logger.debug("trying to setup local ssl server");
-                ServerSocket ts = getSecureServerSocket(securePort);
-                LocalSSLServer lssT = new LocalSSLServer();
-                lssT.serverSock = ts;
-                URL url = new URL("https://"+ ro.url);
-                lssT.clientSock = getSecureClientSocket(url.getHost(), url.getPort() );
-                lssT.start();
-                logger.debug("local ssl server setup");
-                logger.debug("trying to connect local ssl client to local ssl server");
-                SSLSocket tcs = getSecureClientSocket("localhost",securePort);
-                logger.debug("local ssl client connected to local ssl server");
-                InputStreamReader tcin = new InputStreamReader( tcs.getInputStream() );
-                OutputStreamWriter tcout = new OutputStreamWriter(tcs.getOutputStream());
- 
-                //destination host socket and stream
- 
-                //now that everything is set, tell the browser to continue
-                userOS.write("HTTP/1.1 200 Connection Established\r\n");
-                logger.info("HTTP/1.1 200 Connection Established");
-                userOS.write("Proxy-agent: WPG-RecordingProxy/1.0\r\n" );
-                logger.info("Proxy-agent: WPG-RecordingProxy/1.0" );
-                userOS.write("\r\n");
-                userOS.flush();
-                int ch;
-                StringBuffer sb = new StringBuffer();
-                logger.trace("entering read from browser -> write to internal ssl");
-                while( (ch = userIS.read() ) != -1 ) {
-                        tcout.write(ch);
-                        sb.append(ch);
-                }
-                sb.append("\nBREAK\n");
-                logger.trace("entering read from internal ssl -> write to browser");
-                while( (ch = tcin.read() ) != -1 ) {
-                        userOS.write(ch);
-                        sb.append(ch);
+    /** Creates a new ProxyProcessor serving the given client connection on the given event loop */
+    public ProxyProcessor( ProxyEventLoop loop, SocketChannel client ) throws IOException {
+        this(loop, client, false);
+    }
+    
+    /**
+     * Creates a new ProxyProcessor serving the given client connection on the given event loop, a secure client gets
+     * the TLS handshake right away and then goes through the same pipeline as a plain one.
+     */
+    public ProxyProcessor( ProxyEventLoop loop, SocketChannel client, boolean secure ) throws IOException {
+        this.loop = loop;
+        this.inetAddr = loop.getProxy().getInetAddress();
+        this.port = loop.getProxy().getPort();
+        this.selector = loop.getSelector();
+        this.client = client;
+        this.channel = client;
+        logger.trace("Accepted connection from: "+ client);
+        client.configureBlocking(false);
+        clientKey = client.register(selector, SelectionKey.OP_READ, this);
+        parser.setMessagePool( loop.getMessagePool() );
+        if( secure ) {
+            secureClient = true;
+            //without a server name from the client the certificate is issued for the name of the proxy
+            tunnelHost = inetAddr.getHostName();
+            tunnelPort = loop.getProxy().getSecurePort();
+            if( ProxyRegistry.getCertificateAuthority() == null ) {
+                try {
+                    tlsContext = ProxyRegistry.getServerSSLContext();
+                } catch( Exception e ) {
+                    IOException ioe = new IOException("No TLS context for the secure port: "+ e);
+                    ioe.initCause(e);
+                    throw ioe;
                 }
-                logger.debug("Request: "+ sb.toString());
-        }
- 
- */
-    /** Creates a new instance of ProxyProcessor */
-    public ProxyProcessor(boolean secure, InetAddress inetAddr, SelectionKey key) throws IOException{
-        this.inetAddr = inetAddr;
-        if(!secure)
-        {
-            selector = key.selector();
-            processConnection(key);
-        }
-        else
-        {
-            secureSelector = key.selector();
-            processSecureConnection(key);
+            }
+            requestHandshake();
         }
-    }    
+    }
 }
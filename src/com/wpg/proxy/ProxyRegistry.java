@@ -20,7 +20,13 @@
 
 package com.wpg.proxy;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.util.Vector;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
 
 /**
  * A static data container that keeps references to every HttpMessageHandler/Processor that
@@ -28,68 +34,269 @@ import java.util.Vector;
  */
 public class ProxyRegistry {
     private static boolean statusBrowser=false;
+    private static boolean responseStreaming=false;
+    private static boolean requestStreaming=false;
+    private static boolean tunnelAll=false;
+    private final static Vector<String> tunnelHosts = new Vector<String>();
+    private static boolean http2=false;
+    private final static Vector<String> http2Hosts = new Vector<String>();
     private static String keyfile = null;
     private static char[] keystorePass = null;
     private static char[] keystoreKeysPass = null;
-    private final static Vector<HttpMessageProcessor> requestProcessors = new Vector<HttpMessageProcessor>();
-    private final static Vector<HttpMessageHandler> handlers = new Vector<HttpMessageHandler>();
-    private final static Vector<HttpMessageProcessor> responseProcessors = new Vector<HttpMessageProcessor>();
+    private static SSLContext serverContext = null;
+    private static SSLContext clientContext = null;
+    private static int clientSessionCacheSize = 1024*4;
+    private static int clientSessionTimeout = 60*60*4;
+    private static volatile CertificateAuthority certificateAuthority = null;
+    /** guards changes to the processor and handler chains, readers never take it */
+    private final static Object chainLock = new Object();
+    private static volatile AsyncHttpMessageProcessor[] requestProcessors = new AsyncHttpMessageProcessor[0];
+    private static volatile HttpMessageHandler[] handlers = new HttpMessageHandler[0];
+    private static volatile AsyncHttpMessageProcessor[] responseProcessors = new AsyncHttpMessageProcessor[0];
+    private static volatile HttpBodyProcessor[] requestBodyProcessors = new HttpBodyProcessor[0];
+    private static volatile HttpBodyProcessor[] responseBodyProcessors = new HttpBodyProcessor[0];
         
     /** is the status browser capability enabled? */
     public static boolean isStatusBrowserEnabled() { return statusBrowser; }
     /** enable or dissable the status browser capability */
     public static void enableStatusBrowser( boolean enable ) { statusBrowser=enable; }
+    /** are response bodies relayed to the client as they arrive instead of being collected first? */
+    public static boolean isResponseStreamingEnabled() { return responseStreaming; }
+    /**
+     * enable or dissable response streaming, when enabled response processors and handlers only see the
+     * header of the response and the body goes straight to the client, when disabled every response body is held in
+     * memory until it is complete, its first 256KB in direct buffers and the rest on the heap
+     */
+    public static void enableResponseStreaming( boolean enable ) { responseStreaming=enable; }
+    /** are request bodies relayed to the remote host as they arrive instead of being collected first? */
+    public static boolean isRequestStreamingEnabled() { return requestStreaming; }
+    /**
+     * enable or dissable request streaming, when enabled request processors and handlers only see the
+     * header of requests with a body and the body goes straight to the remote host
+     */
+    public static void enableRequestStreaming( boolean enable ) { requestStreaming=enable; }
+    /** are all CONNECT requests relayed blindly instead of being intercepted? */
+    public static boolean isTunnelingEnabled() { return tunnelAll; }
+    /**
+     * enable or dissable blind tunneling for every CONNECT request, tunneled connections are relayed as they are
+     * and never seen by processors and handlers
+     */
+    public static void enableTunneling( boolean enable ) { tunnelAll=enable; }
+    /** Relay CONNECT requests to the given host blindly, a name starting with a dot stands for every host of that domain */
+    public static void addTunnelHost( String host ) {
+        tunnelHosts.addElement( host.toLowerCase() );
+    }
+    /** Removes a host added with addTunnelHost */
+    public static boolean removeTunnelHost( String host ) {
+        return tunnelHosts.remove( host.toLowerCase() );
+    }
+    /** Is a CONNECT request to the given host relayed blindly? */
+    public static boolean isTunneled( String host ) {
+        return tunnelAll || matches( tunnelHosts, host );
+    }
+    /** is HTTP/2 offered to remote hosts over TLS? */
+    public static boolean isHttp2Enabled() { return http2; }
+    /**
+     * enable or dissable HTTP/2 to remote hosts over TLS, those that select h2 through ALPN get the requests of an
+     * event loop multiplexed over one connection, the others keep HTTP/1.1
+     */
+    public static void enableHttp2( boolean enable ) { http2=enable; }
+    /**
+     * Send plain requests to the given host with HTTP/2 right away (h2c with prior knowledge), a name starting with a dot
+     * stands for every host of that domain.  A host that does not answer HTTP/2 gets HTTP/1.1 from then on, and so does
+     * a streamed request body unless an HTTP/2 connection to the host is already open.
+     */
+    public static void addHttp2Host( String host ) {
+        http2Hosts.addElement( host.toLowerCase() );
+    }
+    /** Removes a host added with addHttp2Host */
+    public static boolean removeHttp2Host( String host ) {
+        return http2Hosts.remove( host.toLowerCase() );
+    }
+    /** Are plain requests to the given host sent with HTTP/2 right away? */
+    public static boolean isHttp2Host( String host ) {
+        return matches( http2Hosts, host );
+    }
+    /** Is the host in the given list, where a name starting with a dot stands for a whole domain? */
+    private static boolean matches( Vector<String> hosts, String host ) {
+        if( host == null )
+            return false;
+        host = host.toLowerCase();
+        synchronized( hosts ) {
+            for( int i=0; i< hosts.size(); i++ ) {
+                String s = hosts.elementAt(i);
+                if( s.startsWith(".") ? host.endsWith(s) || host.equals(s.substring(1)) : host.equals(s) )
+                    return true;
+            }
+        }
+        return false;
+    }
     
     /** Add a new handler to receive incomming http responses, as well as the request */
     public static void addHandler( HttpMessageHandler hml ) {
-        handlers.addElement( hml );
+        synchronized( chainLock ) {
+            handlers = (HttpMessageHandler[]) append( handlers, hml, new HttpMessageHandler[handlers.length+1] );
+        }
     }
     /** Removes a response handler*/
     public static boolean removeHandler( HttpMessageHandler hml ) {
-        return handlers.remove( hml );
+        synchronized( chainLock ) {
+            int i = indexOf( handlers, hml );
+            if( i < 0 )
+                return false;
+            handlers = (HttpMessageHandler[]) remove( handlers, i, new HttpMessageHandler[handlers.length-1] );
+            return true;
+        }
     }
-    /** Get the list of request handlers */
-    protected static Vector<HttpMessageHandler> getHandlers(){
+    /** Get the current snapshot of request handlers, the array must not be modified */
+    protected static HttpMessageHandler[] getHandlers(){
         return handlers;
     }
     
     /** Add a new request processor */
     public static void addRequestProcessor( HttpMessageProcessor hmp ) {
-        requestProcessors.addElement( hmp );
+        addRequestProcessor( new HttpMessageProcessorAdapter(hmp) );
+    }
+    /** Add a new request processor that reports its outcome later, it runs after the ones already added */
+    public static void addRequestProcessor( AsyncHttpMessageProcessor hmp ) {
+        synchronized( chainLock ) {
+            requestProcessors = (AsyncHttpMessageProcessor[]) append( requestProcessors, hmp, new AsyncHttpMessageProcessor[requestProcessors.length+1] );
+        }
     }
     /** Removes a response processor*/
     public static boolean removeRequestProcessor( HttpMessageProcessor hmp ) {
-        return requestProcessors.remove( hmp );
+        return removeRequestProcessor( (Object) hmp );
     }
-    /** Get the list of request processors */
-    protected static Vector<HttpMessageProcessor> getRequestProcessors(){
+    /** Removes a request processor that reports its outcome later */
+    public static boolean removeRequestProcessor( AsyncHttpMessageProcessor hmp ) {
+        return removeRequestProcessor( (Object) hmp );
+    }
+    private static boolean removeRequestProcessor( Object hmp ) {
+        synchronized( chainLock ) {
+            int i = indexOf( requestProcessors, hmp );
+            if( i < 0 )
+                return false;
+            requestProcessors = (AsyncHttpMessageProcessor[]) remove( requestProcessors, i, new AsyncHttpMessageProcessor[requestProcessors.length-1] );
+            return true;
+        }
+    }
+    /** Get the current snapshot of request processors, the array must not be modified */
+    protected static AsyncHttpMessageProcessor[] getRequestProcessors(){
         return requestProcessors;
     }
     
     /** Add a new response processor */
     public static void addResponseProcessor( HttpMessageProcessor hmp ) {
-        responseProcessors.addElement( hmp );
+        addResponseProcessor( new HttpMessageProcessorAdapter(hmp) );
+    }
+    /** Add a new response processor that reports its outcome later, it runs after the ones already added */
+    public static void addResponseProcessor( AsyncHttpMessageProcessor hmp ) {
+        synchronized( chainLock ) {
+            responseProcessors = (AsyncHttpMessageProcessor[]) append( responseProcessors, hmp, new AsyncHttpMessageProcessor[responseProcessors.length+1] );
+        }
     }
     /** Removes a response processor*/
     public static boolean removeResponseProcessor( HttpMessageProcessor hmp ) {
-        return responseProcessors.remove( hmp );
+        return removeResponseProcessor( (Object) hmp );
+    }
+    /** Removes a response processor that reports its outcome later */
+    public static boolean removeResponseProcessor( AsyncHttpMessageProcessor hmp ) {
+        return removeResponseProcessor( (Object) hmp );
     }
-    /** Get the list of response processors */
-    protected static Vector<HttpMessageProcessor> getResponseProcessors(){
+    private static boolean removeResponseProcessor( Object hmp ) {
+        synchronized( chainLock ) {
+            int i = indexOf( responseProcessors, hmp );
+            if( i < 0 )
+                return false;
+            responseProcessors = (AsyncHttpMessageProcessor[]) remove( responseProcessors, i, new AsyncHttpMessageProcessor[responseProcessors.length-1] );
+            return true;
+        }
+    }
+    /** Get the current snapshot of response processors, the array must not be modified */
+    protected static AsyncHttpMessageProcessor[] getResponseProcessors(){
         return responseProcessors;
     }
     
+    /** Add a new processor for the bodies of requests, it sees the output of the ones already added */
+    public static void addRequestBodyProcessor( HttpBodyProcessor hbp ) {
+        synchronized( chainLock ) {
+            requestBodyProcessors = (HttpBodyProcessor[]) append( requestBodyProcessors, hbp, new HttpBodyProcessor[requestBodyProcessors.length+1] );
+        }
+    }
+    /** Removes a processor for the bodies of requests */
+    public static boolean removeRequestBodyProcessor( HttpBodyProcessor hbp ) {
+        synchronized( chainLock ) {
+            int i = indexOf( requestBodyProcessors, hbp );
+            if( i < 0 )
+                return false;
+            requestBodyProcessors = (HttpBodyProcessor[]) remove( requestBodyProcessors, i, new HttpBodyProcessor[requestBodyProcessors.length-1] );
+            return true;
+        }
+    }
+    /** Get the current snapshot of request body processors, the array must not be modified */
+    protected static HttpBodyProcessor[] getRequestBodyProcessors(){
+        return requestBodyProcessors;
+    }
+    
+    /** Add a new processor for the bodies of responses, it sees the output of the ones already added */
+    public static void addResponseBodyProcessor( HttpBodyProcessor hbp ) {
+        synchronized( chainLock ) {
+            responseBodyProcessors = (HttpBodyProcessor[]) append( responseBodyProcessors, hbp, new HttpBodyProcessor[responseBodyProcessors.length+1] );
+        }
+    }
+    /** Removes a processor for the bodies of responses */
+    public static boolean removeResponseBodyProcessor( HttpBodyProcessor hbp ) {
+        synchronized( chainLock ) {
+            int i = indexOf( responseBodyProcessors, hbp );
+            if( i < 0 )
+                return false;
+            responseBodyProcessors = (HttpBodyProcessor[]) remove( responseBodyProcessors, i, new HttpBodyProcessor[responseBodyProcessors.length-1] );
+            return true;
+        }
+    }
+    /** Get the current snapshot of response body processors, the array must not be modified */
+    protected static HttpBodyProcessor[] getResponseBodyProcessors(){
+        return responseBodyProcessors;
+    }
+    
+    /** Copy a chain into a new array one longer and put the element at its end */
+    private static Object[] append( Object[] chain, Object o, Object[] copy ) {
+        System.arraycopy( chain, 0, copy, 0, chain.length );
+        copy[chain.length] = o;
+        return copy;
+    }
+    /** Copy a chain into a new array one shorter, leaving out the element at index i */
+    private static Object[] remove( Object[] chain, int i, Object[] copy ) {
+        System.arraycopy( chain, 0, copy, 0, i );
+        System.arraycopy( chain, i+1, copy, i, chain.length-i-1 );
+        return copy;
+    }
+    /** Position of the first element of a chain equal to o or wrapping it in an adapter, or -1 */
+    private static int indexOf( Object[] chain, Object o ) {
+        for( int i=0; i< chain.length; i++ ) {
+            Object element = chain[i];
+            if( element instanceof HttpMessageProcessorAdapter && !(o instanceof HttpMessageProcessorAdapter) )
+                element = ((HttpMessageProcessorAdapter) element).getProcessor();
+            if( o == null ? element == null : o.equals( element ) )
+                return i;
+        }
+        return -1;
+    }
+    
     /** Set Keystore File Name */
-    protected static void setKeystoreFilename( String s ) {
+    protected static synchronized void setKeystoreFilename( String s ) {
         keyfile=s;
+        serverContext=null;
     }
     /** Set Keystore password */
-    protected static void setKeystorePassword( char[] c ) {
+    protected static synchronized void setKeystorePassword( char[] c ) {
         keystorePass=c;
+        serverContext=null;
     }
     /** Set Keystore keys password */
-    protected static void setKeystoreKeysPassword( char[] c ) {
+    protected static synchronized void setKeystoreKeysPassword( char[] c ) {
         keystoreKeysPass=c;
+        serverContext=null;
     }
     /** Get Keystore File Name */
     protected static String getKeystoreFilename() {
@@ -104,6 +311,65 @@ public class ProxyRegistry {
         return keystoreKeysPass;
     }
     
+    /** Get the SSL context the proxy presents to clients of intercepted connections, built from the keystore on first use */
+    protected static synchronized SSLContext getServerSSLContext() throws GeneralSecurityException, IOException {
+        if( keyfile == null )
+            throw new GeneralSecurityException("SSL Not Enabled on this proxy instance");
+        if( serverContext == null ) {
+            KeyStore ks = KeyStore.getInstance("JKS");
+            FileInputStream in = new FileInputStream(keyfile);
+            try {
+                ks.load(in, keystorePass);
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+            kmf.init(ks, keystoreKeysPass);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            serverContext = context;
+        }
+        return serverContext;
+    }
+    /**
+     * Get the SSL context the proxy uses for its connections to remote hosts, it trusts what the JVM trusts.
+     * It is built once, its session cache lets later connections to the same host resume the session.
+     */
+    protected static synchronized SSLContext getClientSSLContext() throws GeneralSecurityException {
+        if( clientContext == null ) {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            context.getClientSessionContext().setSessionCacheSize(clientSessionCacheSize);
+            context.getClientSessionContext().setSessionTimeout(clientSessionTimeout);
+            clientContext = context;
+        }
+        return clientContext;
+    }
+    /** Set the number of sessions with remote hosts kept for resumption, 0 for no limit */
+    public static synchronized void setClientSessionCacheSize( int i ) {
+        clientSessionCacheSize=i;
+        if( clientContext != null )
+            clientContext.getClientSessionContext().setSessionCacheSize(i);
+    }
+    /** Get the number of sessions with remote hosts kept for resumption */
+    public static int getClientSessionCacheSize() { return clientSessionCacheSize; }
+    /** Set the number of seconds a session with a remote host may be resumed for, 0 for no limit */
+    public static synchronized void setClientSessionTimeout( int i ) {
+        clientSessionTimeout=i;
+        if( clientContext != null )
+            clientContext.getClientSessionContext().setSessionTimeout(i);
+    }
+    /** Get the number of seconds a session with a remote host may be resumed for */
+    public static int getClientSessionTimeout() { return clientSessionTimeout; }
+    
+    /**
+     * Have intercepted connections present a certificate issued for their host by the given authority
+     * instead of the keystore certificate, null to go back to the keystore
+     */
+    public static void setCertificateAuthority( CertificateAuthority ca ) { certificateAuthority=ca; }
+    /** Get the authority issuing the certificates of intercepted connections, null if the keystore certificate is used */
+    public static CertificateAuthority getCertificateAuthority() { return certificateAuthority; }
+    
     /** Creates a new instance of ProxyRegistry */
     private ProxyRegistry() {
     }
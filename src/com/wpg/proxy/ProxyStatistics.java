@@ -30,6 +30,19 @@ public class ProxyStatistics {
     public static final int SUCCESS = 0;
     public static final int FAILURE = 1;
     public static final int STOPPED = 2;
+    /**handshake phase: waiting for the HandshakeAdmission*/
+    public static final int PHASE_QUEUE = 0;
+    /**handshake phase: connecting to the remote host of a tunnel*/
+    public static final int PHASE_CONNECT = 1;
+    /**handshake phase: until the ClientHello arrived*/
+    public static final int PHASE_HELLO = 2;
+    /**handshake phase: issuing the certificate for the server name the client asked for*/
+    public static final int PHASE_CERTIFICATE = 3;
+    /**handshake phase: from the ClientHello to the end of the handshake*/
+    public static final int PHASE_HANDSHAKE = 4;
+    /**handshake phase: the delegated tasks of the engine, part of PHASE_HANDSHAKE*/
+    public static final int PHASE_TASKS = 5;
+    private static final String[] PHASE_NAMES = { "queue", "connect", "client hello", "certificate", "handshake", "of which tasks" };
     
     private ProxyStatistics(){};
     private final static ProxyStatistics singleton = new ProxyStatistics();
@@ -47,6 +60,22 @@ public class ProxyStatistics {
     private long cntDuration = 0;
     private Vector<Double> durations = new Vector<Double>();
     private double stdDevDuration = -1; //this is never the case because stddev is the sqrt of variance, thus it tells us to init this
+    private long tunnelCount = 0;
+    private long openTunnels = 0;
+    private long tunnelBytesSent = 0;
+    private long tunnelBytesReceived = 0;
+    private long clientHandshakes = 0;
+    private long clientResumed = 0;
+    private long clientHandshakeTime = 0;
+    private long serverHandshakes = 0;
+    private long serverResumed = 0;
+    private long serverHandshakeTime = 0;
+    private long http2Connections = 0;
+    private long http2Streams = 0;
+    /*timed handshakes with clients, by kind: intercepted or tunnelled, full or resumed*/
+    private final long[] timedHandshakes = new long[4];
+    private final long[][] phaseTime = new long[4][PHASE_NAMES.length];
+    private final long[] maxHandshakeTime = new long[4];
     private Proxy proxy = null;
     private String title = "WPG Proxy Statistics";
     
@@ -61,6 +90,23 @@ public class ProxyStatistics {
         cntDuration = 0;
         durations.clear();
         stdDevDuration = -1;
+        tunnelCount = 0;
+        tunnelBytesSent = 0;
+        tunnelBytesReceived = 0;
+        clientHandshakes = 0;
+        clientResumed = 0;
+        clientHandshakeTime = 0;
+        serverHandshakes = 0;
+        serverResumed = 0;
+        serverHandshakeTime = 0;
+        http2Connections = 0;
+        http2Streams = 0;
+        for( int i=0; i< timedHandshakes.length; i++ ) {
+            timedHandshakes[i] = 0;
+            maxHandshakeTime[i] = 0;
+            for( int j=0; j< PHASE_NAMES.length; j++ )
+                phaseTime[i][j] = 0;
+        }
     }
     
     /**set title of web pages returned*/
@@ -98,6 +144,87 @@ public class ProxyStatistics {
         stdDevDuration=-1; //we set this to -1 in order to figure out we need to recalculate this, because a sqrt is never negative ;)
     }
     
+    /**a blind CONNECT tunnel was opened*/
+    public synchronized void tunnelOpened() {
+        tunnelCount++;
+        openTunnels++;
+    }
+    /**a blind CONNECT tunnel was closed after relaying the given number of bytes each way*/
+    public synchronized void tunnelClosed( long bytesSent, long bytesReceived ) {
+        openTunnels--;
+        tunnelBytesSent += bytesSent;
+        tunnelBytesReceived += bytesReceived;
+    }
+    /**an HTTP/2 connection to a remote host was opened*/
+    public synchronized void http2ConnectionOpened() { http2Connections++; }
+    /**a request was sent as a stream of an HTTP/2 connection*/
+    public synchronized void http2StreamOpened() { http2Streams++; }
+    /**get the number of HTTP/2 connections opened to remote hosts*/
+    public long getHttp2Connections() { return http2Connections; }
+    /**get the number of requests sent over HTTP/2*/
+    public long getHttp2Streams() { return http2Streams; }
+    /**get the number of blind tunnels opened*/
+    public long getTunnelCount() { return tunnelCount; }
+    /**get the number of blind tunnels currently open*/
+    public long getOpenTunnels() { return openTunnels; }
+    /**get the number of bytes clients sent through closed tunnels*/
+    public long getTunnelBytesSent() { return tunnelBytesSent; }
+    /**get the number of bytes remote hosts sent through closed tunnels*/
+    public long getTunnelBytesReceived() { return tunnelBytesReceived; }
+    
+    /**a TLS handshake finished, client side ones are those with remote hosts, server side ones those with clients of the proxy*/
+    public synchronized void handshakeCompleted( boolean clientSide, boolean resumed, long millis ) {
+        if( clientSide ) {
+            clientHandshakes++;
+            if( resumed ) clientResumed++;
+            clientHandshakeTime += millis;
+        } else {
+            serverHandshakes++;
+            if( resumed ) serverResumed++;
+            serverHandshakeTime += millis;
+        }
+    }
+    /**
+     * a TLS handshake with a client finished, intercepted ones were done by the proxy, tunnelled ones only passed
+     * through a blind tunnel, the milliseconds each phase took are indexed by the PHASE constants
+     */
+    public synchronized void handshakeTimed( boolean tunnelled, boolean resumed, long[] phases ) {
+        int kind = kind(tunnelled, resumed);
+        long total = 0;
+        for( int i=0; i< PHASE_NAMES.length && i< phases.length; i++ ) {
+            phaseTime[kind][i] += phases[i];
+            if( i != PHASE_TASKS )
+                total += phases[i];
+        }
+        timedHandshakes[kind]++;
+        if( total > maxHandshakeTime[kind] )
+            maxHandshakeTime[kind] = total;
+    }
+    /**get the number of timed handshakes of the given kind*/
+    public synchronized long getTimedHandshakes( boolean tunnelled, boolean resumed ) {
+        return timedHandshakes[kind(tunnelled, resumed)];
+    }
+    /**get the average milliseconds the given phase took in the timed handshakes of the given kind*/
+    public synchronized long getAveragePhaseTime( boolean tunnelled, boolean resumed, int phase ) {
+        int kind = kind(tunnelled, resumed);
+        return average(phaseTime[kind][phase], timedHandshakes[kind]);
+    }
+    /**get the longest time in milliseconds a timed handshake of the given kind took from start to end*/
+    public synchronized long getMaxHandshakeTime( boolean tunnelled, boolean resumed ) {
+        return maxHandshakeTime[kind(tunnelled, resumed)];
+    }
+    private static int kind( boolean tunnelled, boolean resumed ) {
+        return (tunnelled ? 2 : 0) + (resumed ? 1 : 0);
+    }
+    /**get the number of TLS handshakes with remote hosts*/
+    public long getClientHandshakes() { return clientHandshakes; }
+    /**get the number of TLS handshakes with remote hosts that resumed a session*/
+    public long getClientResumedHandshakes() { return clientResumed; }
+    /**get the number of TLS handshakes with clients of the proxy*/
+    public long getServerHandshakes() { return serverHandshakes; }
+    /**get the number of TLS handshakes with clients of the proxy that resumed a session*/
+    public long getServerResumedHandshakes() { return serverResumed; }
+    
     public double getDurationCnt() { return cntDuration; }
     public double getDurationMin() { return minDuration; }
     public double getDurationMax() { return maxDuration; }
@@ -134,6 +261,40 @@ public class ProxyStatistics {
     /**Get Proxy for this statistic collector*/
     public Proxy getProxy() { return proxy; }
     
+    private static String percent( long part, long total ) {
+        return total == 0 ? "0%" : (part*100/total) +"%";
+    }
+    
+    private static long average( long sum, long count ) {
+        return count == 0 ? 0 : sum/count;
+    }
+    
+    /*one line per kind of timed handshake, with the average of each phase that took any time*/
+    private synchronized void appendHandshakePhases( StringBuffer sb ) {
+        String[] kinds = { "Intercepted, full", "Intercepted, resumed", "Tunnelled, full", "Tunnelled, resumed" };
+        boolean any = false;
+        for( int kind=0; kind< kinds.length; kind++ ) {
+            long count = timedHandshakes[kind];
+            if( count == 0 )
+                continue;
+            if( !any )
+                sb.append("Handshake Phases, average milliseconds:\r\n<ul>\r\n");
+            any = true;
+            sb.append("<li>"+ kinds[kind] +": <b>"+ count +"</b>");
+            long total = 0;
+            for( int i=0; i< PHASE_NAMES.length; i++ ) {
+                if( phaseTime[kind][i] == 0 )
+                    continue;
+                sb.append(", "+ PHASE_NAMES[i] +" <b>"+ average(phaseTime[kind][i], count) +"</b>");
+                if( i != PHASE_TASKS )
+                    total += phaseTime[kind][i];
+            }
+            sb.append(", total <b>"+ average(total, count) +"</b> maximum <b>"+ maxHandshakeTime[kind] +"</b></li>\r\n");
+        }
+        if( any )
+            sb.append("</ul><br>\r\n");
+    }
+    
     /**Get the html page for this request*/
     public String getHTMLPage() {
         StringBuffer sb = new StringBuffer("<html><head><title>"+ getTitle() +"</title></head><body>\r\n");
@@ -156,10 +317,71 @@ public class ProxyStatistics {
         sb.append("</ul><br>\r\n");
         sb.append("Registered Processors and Handlers:\r\n");
         sb.append("<ul>\r\n");
-        sb.append("<li>Request Processors Registered: <b>"+ ProxyRegistry.getRequestProcessors().size() +"</b></li>\r\n");
-        sb.append("<li>Message Handlers Registered: <b>"+ ProxyRegistry.getHandlers().size() +"</b></li>\r\n");
-        sb.append("<li>Response Processors Registered: <b>"+ ProxyRegistry.getResponseProcessors().size() +"</b></li>\r\n");
+        sb.append("<li>Request Processors Registered: <b>"+ ProxyRegistry.getRequestProcessors().length +"</b></li>\r\n");
+        sb.append("<li>Message Handlers Registered: <b>"+ ProxyRegistry.getHandlers().length +"</b></li>\r\n");
+        sb.append("<li>Response Processors Registered: <b>"+ ProxyRegistry.getResponseProcessors().length +"</b></li>\r\n");
+        sb.append("<li>Request Body Processors Registered: <b>"+ ProxyRegistry.getRequestBodyProcessors().length +"</b></li>\r\n");
+        sb.append("<li>Response Body Processors Registered: <b>"+ ProxyRegistry.getResponseBodyProcessors().length +"</b></li>\r\n");
         sb.append("</ul><br>\r\n");
+        if( proxy != null ) {
+            ProxyEventLoop[] loops = proxy.getEventLoops();
+            sb.append("Event Loops:\r\n");
+            sb.append("<ul>\r\n");
+            for( int i=0; i< loops.length; i++ ) {
+                sb.append("<li>"+ loops[i].getName() +": <b>"+ loops[i].getConnectionCount() +"</b> open connections, <b>"
+                        + loops[i].getAcceptedCount() +"</b> accepted, <b>"+ loops[i].getEventCount() +"</b> events processed, <b>"
+                        + loops[i].getMessagePool().getAllocatedCount() +"</b> messages allocated, <b>"
+                        + loops[i].getMessagePool().getReusedCount() +"</b> reused</li>\r\n");
+            }
+            sb.append("</ul><br>\r\n");
+        }
+        if( proxy != null ) {
+            UpstreamPool upstreamPool = proxy.getUpstreamPool();
+            sb.append("Upstream Pool: <b>"+ upstreamPool.getOpenCount() +"</b> open connections, <b>"+ upstreamPool.getIdleCount() +"</b> idle, <b>"
+                    + upstreamPool.getHitCount() +"</b> hits, <b>"+ upstreamPool.getMissCount() +"</b> misses, <b>"
+                    + upstreamPool.getWaitCount() +"</b> waits, <b>"+ upstreamPool.getEvictedCount() +"</b> evicted<br>\r\n");
+        }
+        if( proxy != null ) {
+            HandshakeExecutor handshakes = proxy.getHandshakeExecutor();
+            NumberFormat ms = NumberFormat.getInstance();
+            ms.setMaximumFractionDigits(1);
+            sb.append("Handshake Executor: <b>"+ handshakes.getQueueDepth() +"</b> tasks queued, <b>"+ handshakes.getActiveCount() +"</b> running, <b>"
+                    + handshakes.getCompletedCount() +"</b> completed, <b>"+ handshakes.getInlineCount() +"</b> run inline, latency average <b>"
+                    + ms.format(handshakes.getAverageLatency()) +"</b>ms maximum <b>"+ ms.format(handshakes.getMaxLatency()) +"</b>ms<br>\r\n");
+        }
+        if( clientHandshakes > 0 || serverHandshakes > 0 ) {
+            sb.append("TLS Handshakes:\r\n");
+            sb.append("<ul>\r\n");
+            sb.append("<li>With Remote Hosts: <b>"+ clientHandshakes +"</b>, <b>"+ percent(clientResumed, clientHandshakes) +"</b> resumed, average <b>"
+                    + average(clientHandshakeTime, clientHandshakes) +"</b>ms</li>\r\n");
+            sb.append("<li>With Clients: <b>"+ serverHandshakes +"</b>, <b>"+ percent(serverResumed, serverHandshakes) +"</b> resumed, average <b>"
+                    + average(serverHandshakeTime, serverHandshakes) +"</b>ms</li>\r\n");
+            sb.append("</ul><br>\r\n");
+        }
+        if( proxy != null && proxy.getHandshakeAdmission().getMaxHandshakes() > 0 ) {
+            HandshakeAdmission admission = proxy.getHandshakeAdmission();
+            sb.append("Handshake Admission: <b>"+ admission.getRunning() +"</b> running of <b>"+ admission.getMaxHandshakes() +"</b>, <b>"
+                    + admission.getWaiting() +"</b> waiting, <b>"+ admission.getAdmittedCount() +"</b> admitted, <b>"
+                    + admission.getQueuedCount() +"</b> queued, <b>"+ admission.getRejectedCount() +"</b> rejected<br>\r\n");
+        }
+        if( proxy != null && proxy.getHandlerBus().isRunning() ) {
+            HandlerBus bus = proxy.getHandlerBus();
+            sb.append("Handler Bus: <b>"+ bus.getQueued() +"</b> queued, <b>"+ bus.getPublishedCount() +"</b> published, <b>"
+                    + bus.getDeliveredCount() +"</b> delivered, <b>"+ bus.getDroppedOldestCount() +"</b> dropped oldest, <b>"
+                    + bus.getDroppedNewestCount() +"</b> dropped newest, <b>"+ bus.getBlockedCount() +"</b> blocked<br>\r\n");
+        }
+        appendHandshakePhases(sb);
+        if( http2Connections > 0 )
+            sb.append("HTTP/2: <b>"+ http2Connections +"</b> connections, <b>"+ http2Streams +"</b> streams<br>\r\n");
+        sb.append("Tunnels: <b>"+ getOpenTunnels() +"</b> open, <b>"+ getTunnelCount() +"</b> total, <b>"
+                + getTunnelBytesSent() +"</b> bytes sent, <b>"+ getTunnelBytesReceived() +"</b> bytes received<br>\r\n");
+        CertificateAuthority ca = ProxyRegistry.getCertificateAuthority();
+        if( ca != null ) {
+            sb.append("Certificate Authority: <b>"+ ca.getCachedHostCount() +"</b> hosts cached, <b>"+ ca.getIssuedCount() +"</b> certificates issued, <b>"
+                    + ca.getSpareKeyHitCount() +"</b> with a key generated ahead, <b>"+ ca.getHitCount() +"</b> cache hits<br>\r\n");
+        }
+        BufferPool pool = BufferPool.getSingleton();
+        sb.append("Buffer Pool: <b>"+ pool.getAllocatedCount() +"</b> buffers allocated, <b>"+ pool.getReusedCount() +"</b> reused<br>\r\n");
         sb.append("</body></html>\r\n");
         return sb.toString();
     }
@@ -20,14 +20,14 @@
 package com.wpg.proxy;
 
 import java.io.IOException;
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.Executor;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
-import javax.net.ssl.SSLSession;
 
 import org.apache.log4j.Logger;
 
@@ -67,21 +67,46 @@ import org.apache.log4j.Logger;
  *
  * SSLByteChannel sslByteChannel = new SSLByteChannel(channel, engine);
  *
+ * <p>
+ * The channel may be non-blocking.  read and write never wait: whatever cannot be done right away,
+ * handshake steps included, is left for the next call.  A selector driven caller keeps OP_READ while
+ * isHandshaking and OP_WRITE while hasPendingOutput, and calls flush when the channel is writable.
+ * With a task executor the expensive handshake steps run there, the caller drops OP_READ while
+ * isTaskRunning and carries on once the task listener is called.
+ * </p>
+ *
  * @author David Crosson
  * @author david.crosson@wanadoo.fr
  * @version 1.0.0
  */
-public class SSLByteChannel implements ByteChannel {
+public class SSLByteChannel implements ByteChannel, GatheringByteChannel {
     private static Logger logger = Logger.getLogger(SSLByteChannel.class);
     private ByteChannel wrappedChannel;
     private boolean closed = false;
     private SSLEngine engine;
+    /** No more application data will arrive, the peer closed the TLS session or the connection */
+    private boolean inboundDone = false;
+    /** The wrapped channel reached its end */
+    private boolean endOfStream = false;
+    private final long handshakeStart = System.currentTimeMillis();
+    private long handshakeTime = -1;
+    private boolean resumed = false;
+    private Executor taskExecutor;
+    private Runnable taskListener;
+    private Runnable handshakeListener;
+    /** Nanoseconds spent running delegated tasks, the expensive cryptography of the handshake */
+    private volatile long taskTime = 0;
+    /** Delegated tasks of the engine are running on the task executor */
+    private volatile boolean taskRunning = false;
     
-    private final ByteBuffer inAppData;
-    private final ByteBuffer outAppData;
+ 
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    /** Buffers come from the BufferPool when needed and go back once they are empty, null in between */
+    private ByteBuffer inAppData;
+    private ByteBuffer outAppData;
     
-    private final ByteBuffer inNetData;
-    private final ByteBuffer outNetData;
+    private ByteBuffer inNetData;
+    private ByteBuffer outNetData;
     
     
     /**
@@ -95,28 +120,76 @@ public class SSLByteChannel implements ByteChannel {
     public SSLByteChannel(ByteChannel wrappedChannel, SSLEngine engine) {
         this.wrappedChannel = wrappedChannel;
         this.engine = engine;
-        
-        SSLSession session = engine.getSession();
-        inAppData  = ByteBuffer.allocate(session.getApplicationBufferSize());
-        outAppData = ByteBuffer.allocate(session.getApplicationBufferSize());
-        
-        inNetData  = ByteBuffer.allocate(session.getPacketBufferSize());
-        outNetData = ByteBuffer.allocate(session.getPacketBufferSize());
     }
     
+    /** Get the engine of this channel */
+    public SSLEngine getEngine() {
+        return engine;
+    }
+    
+    /**
+     * Run the delegated tasks of the engine on the given executor instead of the thread calling read, write or flush.
+     * While they run the channel does nothing but write pending output, once they are done the listener is called
+     * from the executor so the owner of the channel can carry on, with flush or read, on its own thread.
+     */
+    public void setTaskExecutor(Executor executor, Runnable listener) {
+        this.taskExecutor = executor;
+        this.taskListener = listener;
+    }
+    
+    /** Call the given listener on the thread doing the wrap or unwrap that finishes the initial handshake */
+    public void setHandshakeListener(Runnable listener) {
+        this.handshakeListener = listener;
+    }
+    
+    /** Are delegated tasks running? Nothing moves until they are done, reading the wrapped channel is pointless. */
+    public boolean isTaskRunning() {
+        return taskRunning;
+    }
+    
+    /** Get the time in milliseconds the initial handshake took, -1 while it is not finished */
+    public long getHandshakeTime() {
+        return handshakeTime;
+    }
+    
+    /** Get the time in milliseconds the delegated tasks of the engine ran so far */
+    public long getTaskTime() {
+        return taskTime / 1000000;
+    }
+    
+    /** Did the initial handshake resume an earlier session instead of negotiating a new one? */
+    public boolean isResumed() {
+        return resumed;
+    }
+    
+    /**
+     * Hand over encrypted bytes that were already read from the wrapped channel, before this channel was
+     * created, they are processed before anything read from the wrapped channel
+     */
+    public void addReceivedData(ByteBuffer data) {
+        if (inNetData == null)
+            inNetData = acquire(Math.max(data.remaining(), engine.getSession().getPacketBufferSize()));
+        else if (data.remaining() > inNetData.remaining())
+            inNetData = enlarge(inNetData, inNetData.position() + data.remaining());
+        inNetData.put(data);
+    }
     
     /**
-     * Ends SSL operation and close the wrapped byte channel
+     * Ends SSL operation and close the wrapped byte channel, the close_notify alert is only sent if the
+     * wrapped channel accepts it right away
      * @throws java.io.IOException May be raised by close operation on wrapped byte channel
      */
     public void close() throws java.io.IOException {
         if (!closed) {
             try {
                 engine.closeOutbound();
-                sslLoop(wrap());
-                wrappedChannel.close();
+                process();
+            } catch(IOException e) {
+                logger.debug("Exception while closing the SSL session: "+ e);
             } finally {
                 closed=true;
+                releaseBuffers(true);
+                wrappedChannel.close();
             }
         }
     }
@@ -129,6 +202,33 @@ public class SSLByteChannel implements ByteChannel {
         return !closed;
     }
     
+    /** Is the handshake still in progress? The channel needs to read before it can send application data. */
+    public boolean isHandshaking() {
+        return engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+    
+    /** Are there bytes waiting to be written to the wrapped channel as soon as it accepts them? */
+    public boolean hasPendingOutput() {
+        return (outNetData != null && outNetData.position() > 0)
+            || (outAppData != null && outAppData.position() > 0 && !isHandshaking());
+    }
+    
+    /** Are there received bytes that read has not returned yet? */
+    public boolean hasBufferedInput() {
+        return (inAppData != null && inAppData.position() > 0) || (inNetData != null && inNetData.position() > 0);
+    }
+    
+    /** Continue the handshake and write whatever is pending, as far as the wrapped channel allows without waiting */
+    public void flush() throws IOException {
+        if (!closed) {
+            try {
+                process();
+            } finally {
+                releaseBuffers(false);
+            }
+        }
+    }
+    
     /**
      * Fill the given buffer with some bytes and return the number of bytes
      * added in the buffer.<br>
@@ -141,24 +241,28 @@ public class SSLByteChannel implements ByteChannel {
      * @return The number of bytes read
      */
     public int read(java.nio.ByteBuffer byteBuffer) throws java.io.IOException {
-        if (isOpen()) {
-            try {
-                SSLEngineResult r = sslLoop(unwrap());
-            } catch(SSLException e) {
-                logger.fatal("SSLException while reading: "+ e,e);
-            } catch(ClosedChannelException e) {
-                close();
+        int size = 0;
+        try {
+            if (!closed)
+                process();
+            
+            if (inAppData != null) {
+                inAppData.flip();
+                size = Math.min(inAppData.remaining(), byteBuffer.remaining());
+                if (size > 0) {
+                    int limit = inAppData.limit();
+                    inAppData.limit(inAppData.position() + size);
+                    byteBuffer.put(inAppData);
+                    inAppData.limit(limit);
+                }
+                inAppData.compact();
             }
+        } finally {
+            releaseBuffers(false);
         }
         
-        inAppData.flip();
-        int posBefore = inAppData.position();
-        byteBuffer.put(inAppData);
-        int posAfter = inAppData.position();
-        inAppData.compact();
-        
-        if (posAfter - posBefore > 0) return posAfter - posBefore ;
-        if (isOpen())
+        if (size > 0) return size;
+        if (!closed && !inboundDone)
             return 0;
         else
             return -1;
@@ -166,7 +270,9 @@ public class SSLByteChannel implements ByteChannel {
     
     /**
      * Write remaining bytes of the given byte buffer.
-     * This method may return immediately with nothing written.
+     * The bytes are encrypted and written record by record for as long as the wrapped channel accepts them,
+     * what it does not take right away stays buffered up to the size of one record, the rest is left in the
+     * given buffer.  This method may return immediately with nothing written.
      * This method must be use exactly in the same way of ByteChannel write
      * operation, so be careful with buffer position, limit, ... Check
      * corresponding javadoc.
@@ -175,97 +281,279 @@ public class SSLByteChannel implements ByteChannel {
      * @return The number of bytes written
      */
     public int write(java.nio.ByteBuffer byteBuffer) throws java.io.IOException {
-        if (!isOpen()) return 0;
-        int posBefore, posAfter;
-        
-        posBefore = byteBuffer.position();
-        if (byteBuffer.remaining() < outAppData.remaining()) {
-            outAppData.put(byteBuffer);  // throw a BufferOverflowException if byteBuffer.remaining() > outAppData.remaining()
-        } else {
-            while (byteBuffer.hasRemaining() && outAppData.hasRemaining()) {
-                outAppData.put(byteBuffer.get());
+        if (closed)
+            throw new ClosedChannelException();
+        int written = 0;
+        try {
+            while (byteBuffer.hasRemaining()) {
+                if (outAppData == null)
+                    outAppData = acquire(engine.getSession().getApplicationBufferSize());
+                int size = Math.min(byteBuffer.remaining(), outAppData.remaining());
+                if (size == 0)
+                    break;
+                int limit = byteBuffer.limit();
+                byteBuffer.limit(byteBuffer.position() + size);
+                outAppData.put(byteBuffer);
+                byteBuffer.limit(limit);
+                written += size;
+                //wraps and writes until the wrapped channel is full, the buffer then stays full and ends the loop
+                process();
             }
+        } finally {
+            releaseBuffers(false);
         }
-        posAfter = byteBuffer.position();
-        
-        if (isOpen()) {
-            try {
-                while(true) {
-                    SSLEngineResult r = sslLoop(wrap());
-                    if (r.bytesConsumed() == 0 && r.bytesProduced()==0) break;
-                };
-            } catch(SSLException e) {
-                logger.fatal("SSLException while reading: "+ e,e);
-            } catch(ClosedChannelException e) {
-                close();
+        return written;
+    }
+    
+    /** Write from several buffers in order, filling each TLS record from as many of them as fit */
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+        int end = offset + length;
+        long written = 0;
+        try {
+            while (true) {
+                while (offset < end && !srcs[offset].hasRemaining())
+                    offset++;
+                if (offset == end)
+                    break;
+                if (outAppData == null)
+                    outAppData = acquire(engine.getSession().getApplicationBufferSize());
+                int copied = 0;
+                for (int i = offset; i < end && outAppData.hasRemaining(); i++) {
+                    ByteBuffer src = srcs[i];
+                    int size = Math.min(src.remaining(), outAppData.remaining());
+                    int limit = src.limit();
+                    src.limit(src.position() + size);
+                    outAppData.put(src);
+                    src.limit(limit);
+                    copied += size;
+                }
+                if (copied == 0)
+                    break;
+                written += copied;
+                process();
             }
+        } finally {
+            releaseBuffers(false);
         }
-        
-        return posAfter - posBefore;
+        return written;
     }
     
-    
-    
-    
-    
-    private SSLEngineResult unwrap() throws IOException, SSLException {
-        while(wrappedChannel.read(inNetData) > 0) ;
-        
-        inNetData.flip();
-        SSLEngineResult ser = engine.unwrap(inNetData, inAppData);
-        inNetData.compact();
-        
-        return ser;
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
     }
     
-    private SSLEngineResult wrap() throws IOException, SSLException {
-        SSLEngineResult ser=null;
-        
-        outAppData.flip();
-        ser = engine.wrap(outAppData,  outNetData);
-        outAppData.compact();
-        
-        outNetData.flip();
-        while(outNetData.hasRemaining()) wrappedChannel.write(outNetData); // TODO : To be enhanced (potential deadlock ?)
-        outNetData.compact();
-        
-        return ser;
+    /**
+     * Move data through the engine until nothing more can be done without waiting: write pending
+     * network data, run handshake tasks, wrap and unwrap.  Never blocks or spins on a channel that
+     * has nothing to offer.
+     */
+    private void process() throws IOException {
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            flushNetData();
+            if (taskRunning)
+                return;
+            SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+            if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                //continue right away unless the tasks are still running elsewhere
+                progress = runTasks();
+                continue;
+            }
+            if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                    || (outAppData != null && outAppData.position() > 0 && hs == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)) {
+                progress |= wrap();
+                hs = engine.getHandshakeStatus();
+            }
+            if (!inboundDone && hs != SSLEngineResult.HandshakeStatus.NEED_WRAP && hs != SSLEngineResult.HandshakeStatus.NEED_TASK)
+                progress |= unwrap();
+        }
     }
     
-    private SSLEngineResult sslLoop(SSLEngineResult ser) throws SSLException, IOException {
-        if (ser==null) return ser;
-        //log.finest(String.format("%s - %s\n", ser.getStatus().toString(), ser.getHandshakeStatus().toString()));
-        logger.trace(ser.getStatus().toString() +" - "+ ser.getHandshakeStatus().toString());
-        while(   ser.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED
-                && ser.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
-            switch(ser.getHandshakeStatus()) {
-                case NEED_TASK:
-                    //Executor exec = Executors.newSingleThreadExecutor();
+    /** Run the delegated tasks, on the task executor if there is one, returns true if they are done */
+    private boolean runTasks() {
+        if (taskExecutor == null) {
+            long start = System.nanoTime();
+            Runnable task;
+            while ((task=engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            taskTime += System.nanoTime() - start;
+            return true;
+        }
+        taskRunning = true;
+        taskExecutor.execute(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                try {
                     Runnable task;
                     while ((task=engine.getDelegatedTask()) != null) {
-                        //exec.execute(task);
                         task.run();
                     }
-                    // Must continue with wrap as data must be sent
-                case NEED_WRAP:
-                    ser = wrap();
-                    break;
-                case NEED_UNWRAP:
-                    ser = unwrap();
-                    break;
+                } catch (RuntimeException e) {
+                    logger.error("Error running a handshake task: "+ e, e);
+                } finally {
+                    //only one batch of tasks runs at a time, the owner reads the sum once they are done
+                    taskTime += System.nanoTime() - start;
+                    taskRunning = false;
+                    if (taskListener != null)
+                        taskListener.run();
+                }
             }
+        });
+        return !taskRunning;
+    }
+    
+    /** Write as much of the encrypted output as the wrapped channel accepts */
+    private void flushNetData() throws IOException {
+        if (outNetData == null || outNetData.position() == 0)
+            return;
+        outNetData.flip();
+        try {
+            wrappedChannel.write(outNetData);
+        } finally {
+            outNetData.compact();
         }
-        switch(ser.getStatus()) {
-            case CLOSED:
-                logger.trace("SSLEngine operations finishes, closing the socket");
-                try {
-                    wrappedChannel.close();
-                } finally {
-                    closed=true;
+    }
+    
+    /** Encrypt pending application data or produce the next handshake message, returns true on progress */
+    private boolean wrap() throws IOException {
+        if (outNetData == null)
+            outNetData = acquire(engine.getSession().getPacketBufferSize());
+        SSLEngineResult ser;
+        if (outAppData == null) {
+            //a handshake message, no application data involved
+            ser = engine.wrap(EMPTY, outNetData);
+        } else {
+            outAppData.flip();
+            try {
+                ser = engine.wrap(outAppData, outNetData);
+            } finally {
+                outAppData.compact();
+            }
+        }
+        logger.trace("wrap: "+ ser.getStatus() +" - "+ ser.getHandshakeStatus());
+        if (ser.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+            handshakeFinished();
+        if (ser.bytesProduced() > 0)
+            flushNetData();
+        return ser.bytesConsumed() > 0 || ser.bytesProduced() > 0
+            || ser.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+    
+    /** Read what the wrapped channel has and decrypt as many records as fit, returns true on progress */
+    private boolean unwrap() throws IOException {
+        if (inNetData == null)
+            inNetData = acquire(engine.getSession().getPacketBufferSize());
+        if (inAppData == null)
+            inAppData = acquire(engine.getSession().getApplicationBufferSize());
+        int read = 0;
+        if (!endOfStream && inNetData.hasRemaining()) {
+            read = wrappedChannel.read(inNetData);
+            if (read < 0) {
+                endOfStream = true;
+                read = 0;
+            }
+        }
+        SSLEngineResult.HandshakeStatus before = engine.getHandshakeStatus();
+        inNetData.flip();
+        SSLEngineResult ser;
+        try {
+            ser = engine.unwrap(inNetData, inAppData);
+        } finally {
+            inNetData.compact();
+        }
+        logger.trace("unwrap: "+ ser.getStatus() +" - "+ ser.getHandshakeStatus());
+        if (ser.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+            handshakeFinished();
+        switch (ser.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                //a partial record, wait for the rest unless there is no room for it
+                if (!inNetData.hasRemaining())
+                    inNetData = enlarge(inNetData, engine.getSession().getPacketBufferSize());
+                else if (endOfStream)
+                    endOfInput();
+                return read > 0 || !inNetData.hasRemaining();
+            case BUFFER_OVERFLOW:
+                //the caller has to take the application data out first, unless the buffer is too small for a record
+                if (inAppData.position() == 0) {
+                    inAppData = enlarge(inAppData, engine.getSession().getApplicationBufferSize());
+                    return true;
                 }
-                break;
+                return false;
+            case CLOSED:
+                logger.trace("SSLEngine operations finishes, no more data to read");
+                inboundDone = true;
+                return true;
+            default:
+                //the first unwrap of a client engine only starts the handshake
+                return read > 0 || ser.bytesConsumed() > 0 || ser.bytesProduced() > 0
+                    || ser.getHandshakeStatus() != before;
+        }
+    }
+    
+    /** Record the outcome of the initial handshake, a session created before it started was resumed */
+    private void handshakeFinished() {
+        if (handshakeTime >= 0)
+            return;
+        handshakeTime = System.currentTimeMillis() - handshakeStart;
+        resumed = engine.getSession().getCreationTime() < handshakeStart;
+        logger.trace("Handshake finished in "+ handshakeTime +"ms, resumed: "+ resumed);
+        ProxyStatistics.getSingleton().handshakeCompleted(engine.getUseClientMode(), resumed, handshakeTime);
+        if (handshakeListener != null)
+            handshakeListener.run();
+    }
+    
+    /** The connection ended without a close_notify, whatever was received is all there will be */
+    private void endOfInput() {
+        inboundDone = true;
+        try {
+            engine.closeInbound();
+        } catch (SSLException e) {
+            logger.debug("Connection closed without close_notify: "+ e);
+        }
+    }
+    
+    /** Get a buffer of at least the given capacity holding the content of the given one, which goes back to the pool */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int capacity) {
+        if (capacity <= buffer.capacity())
+            capacity = buffer.capacity() * 2;
+        ByteBuffer tmp = acquire(capacity);
+        buffer.flip();
+        tmp.put(buffer);
+        BufferPool.getSingleton().release(buffer);
+        return tmp;
+    }
+    
+    /** Get a cleared buffer of at least the given capacity, from the pool unless it is larger than the pooled ones */
+    private static ByteBuffer acquire(int capacity) {
+        BufferPool pool = BufferPool.getSingleton();
+        if (capacity > pool.getMaxBufferSize())
+            return ByteBuffer.allocate(capacity);
+        return pool.acquire(capacity);
+    }
+    
+    /** Hand the buffers back to the pool, only the empty ones unless all is set, so an idle channel holds none */
+    private void releaseBuffers(boolean all) {
+        BufferPool pool = BufferPool.getSingleton();
+        if (inAppData != null && (all || inAppData.position() == 0)) {
+            pool.release(inAppData);
+            inAppData = null;
+        }
+        if (outAppData != null && (all || outAppData.position() == 0)) {
+            pool.release(outAppData);
+            outAppData = null;
+        }
+        if (inNetData != null && (all || inNetData.position() == 0)) {
+            pool.release(inNetData);
+            inNetData = null;
+        }
+        if (outNetData != null && (all || outNetData.position() == 0)) {
+            pool.release(outNetData);
+            outNetData = null;
         }
-        return ser;
     }
     
 }
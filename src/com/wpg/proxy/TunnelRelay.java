@@ -0,0 +1,379 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Blind relay of a CONNECT tunnel.<p>
+ * Once the connection to the remote host is established the client is told so and from then on
+ * bytes are copied between the two sockets as they are, on the event loop of the client, without
+ * looking at them.  Each direction only holds a pooled direct buffer while bytes are on their way,
+ * stops reading while the other side is not taking them, and passes on the end of its stream as
+ * a half-close, the tunnel is closed once both directions are done.  The remote host is looked up by the
+ * HostResolver of the proxy, off the loop.<p>
+ * Without decrypting anything the relay follows the TLS record headers going by until the client sends
+ * its first application data record, which ends the handshake from its side, and times the handshake
+ * for the statistics.  The ServerHello tells whether the session was resumed.
+ */
+class TunnelRelay implements SelectionKeyHandler, HostResolver.Listener {
+    private final static Logger logger = Logger.getLogger(TunnelRelay.class);
+    private static final int BUFFER_SIZE = 1024*16;
+    private static final String ESTABLISHED = "HTTP/1.0 200 Connection established\r\n"
+            + "Proxy-agent: WPG-RecordingProxy/1.0\r\n"
+            + "\r\n";
+    private static final String BAD_GATEWAY = "HTTP/1.0 502 Bad Gateway\r\n"
+            + "Proxy-agent: WPG-RecordingProxy/1.0\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    /** One direction of the tunnel */
+    private static class Direction {
+        private final String name;
+        private SocketChannel from;
+        private SocketChannel to;
+        /** Bytes read but not written yet, ready to be written, null when there are none */
+        private ByteBuffer buffer;
+        private long bytes = 0;
+        /** The sending side closed its end */
+        private boolean endOfStream = false;
+        /** The end of the stream was passed on */
+        private boolean shutdown = false;
+        /** TLS record header being collected, and the bytes left of the record it starts */
+        private final byte[] recordHeader = new byte[5];
+        private int recordHeaderLength = 0;
+        private int recordLeft = 0;
+        private Direction( String name ) { this.name = name; }
+    }
+
+    private final ProxyEventLoop loop;
+    private final String host;
+    private final int port;
+    private final SocketChannel client;
+    private final SelectionKey clientKey;
+    private SocketChannel server;
+    private SelectionKey serverKey;
+    private final Direction upstream = new Direction("client to remote host");
+    private final Direction downstream = new Direction("remote host to client");
+    private boolean connected = false;
+    private boolean closed = false;
+    private final long startTimeStamp = System.currentTimeMillis();
+    /** The TLS handshake is still being followed */
+    private boolean observing = true;
+    private long establishedAt = 0;
+    private long clientHelloAt = 0;
+    private byte[] clientSessionId = null;
+    private boolean resumed = false;
+
+    /**
+     * Creates the tunnel for a client whose CONNECT request was read, the key of the client is taken over.
+     * Bytes the client sent after the request are in the given buffer, which may be null, and are copied.
+     */
+    public TunnelRelay( ProxyEventLoop loop, SelectionKey clientKey, String host, int port, ByteBuffer received ) {
+        this.loop = loop;
+        this.clientKey = clientKey;
+        this.client = (SocketChannel) clientKey.channel();
+        this.host = host;
+        this.port = port;
+        upstream.from = client;
+        downstream.to = client;
+        if( received != null && received.hasRemaining() ) {
+            upstream.buffer = BufferPool.getSingleton().acquire( received.remaining() );
+            upstream.buffer.put(received);
+            upstream.buffer.flip();
+            observe(upstream, upstream.buffer);
+        }
+        clientKey.attach(this);
+        clientKey.interestOps(0);
+    }
+
+    /** Get the number of bytes the client sent through the tunnel so far */
+    public long getBytesSent() { return upstream.bytes; }
+    /** Get the number of bytes the remote host sent through the tunnel so far */
+    public long getBytesReceived() { return downstream.bytes; }
+
+    /** Start connecting to the remote host, the client hears back once the connection is established or failed */
+    public void connect() {
+        logger.debug("Tunneling the connection to "+ host +":"+ port);
+        ProxyStatistics.getSingleton().tunnelOpened();
+        try {
+            //without an event loop to hand the answer back to, the host is looked up right away
+            InetAddress address = loop != null ? loop.getProxy().getHostResolver().resolve(host, loop, this) : InetAddress.getByName(host);
+            if( address != null )
+                open(address);
+        } catch( IOException e ) {
+            failed(e);
+        }
+    }
+
+    /** The address of the remote host was found, connect unless the client is gone meanwhile */
+    public void hostResolved( InetAddress address ) {
+        if( closed )
+            return;
+        try {
+            open(address);
+        } catch( IOException e ) {
+            failed(e);
+        }
+    }
+
+    /** The remote host could not be found */
+    public void hostNotFound( UnknownHostException e ) {
+        if( !closed )
+            failed(e);
+    }
+
+    /** Open the connection to the remote host at the given address */
+    private void open( InetAddress address ) throws IOException {
+        server = SocketChannel.open();
+        server.configureBlocking(false);
+        upstream.to = server;
+        downstream.from = server;
+        connected = server.connect( new InetSocketAddress(address, port) );
+        serverKey = server.register(clientKey.selector(), connected ? 0 : SelectionKey.OP_CONNECT, this);
+        if( connected )
+            established();
+    }
+
+    /** Process the ready operations of either side of the tunnel */
+    public void processKey( SelectionKey key ) throws IOException {
+        if( closed )
+            return;
+        try {
+            if( !connected ) {
+                if( key == serverKey && key.isValid() && key.isConnectable() && server.finishConnect() ) {
+                    connected = true;
+                    established();
+                }
+                return;
+            }
+            relay(upstream);
+            relay(downstream);
+            if( upstream.shutdown && downstream.shutdown )
+                close();
+            else
+                updateInterest();
+        } catch( IOException e ) {
+            if( !connected ) {
+                failed(e);
+                return;
+            }
+            logger.debug("Tunnel to "+ host +":"+ port +" failed: "+ e);
+            close();
+        }
+    }
+
+    /** The remote host accepted the connection, tell the client and start relaying */
+    private void established() throws IOException {
+        establishedAt = System.currentTimeMillis();
+        ByteBuffer reply = ByteBuffer.wrap( ESTABLISHED.getBytes("ISO-8859-1") );
+        downstream.buffer = BufferPool.getSingleton().acquire( reply.remaining() );
+        downstream.buffer.put(reply);
+        downstream.buffer.flip();
+        processKey(serverKey);
+    }
+
+    /** The remote host could not be reached, answer the client with a 502 and close */
+    private void failed( IOException e ) {
+        logger.error("Unable to open a tunnel to "+ host +":"+ port +": "+ e);
+        try {
+            //the reply is small enough for the socket buffer of a connection that has seen nothing else
+            client.write( ByteBuffer.wrap( BAD_GATEWAY.getBytes("ISO-8859-1") ) );
+        } catch( IOException ignored ) {}
+        close();
+    }
+
+    /** Move bytes in one direction until the sender has none or the receiver takes no more */
+    private void relay( Direction d ) throws IOException {
+        BufferPool pool = BufferPool.getSingleton();
+        while( true ) {
+            if( d.buffer != null ) {
+                d.to.write(d.buffer);
+                if( d.buffer.hasRemaining() )
+                    return;
+                pool.release(d.buffer);
+                d.buffer = null;
+            }
+            if( d.endOfStream ) {
+                if( !d.shutdown ) {
+                    logger.trace("End of stream from "+ d.name);
+                    d.shutdown = true;
+                    d.to.socket().shutdownOutput();
+                }
+                return;
+            }
+            ByteBuffer buffer = pool.acquire(BUFFER_SIZE);
+            int size = d.from.read(buffer);
+            if( size <= 0 ) {
+                pool.release(buffer);
+                if( size == 0 )
+                    return;
+                d.endOfStream = true;
+                continue;
+            }
+            d.bytes += size;
+            buffer.flip();
+            d.buffer = buffer;
+            if( observing )
+                observe(d, buffer);
+        }
+    }
+
+    /** Follow the TLS records in bytes that were read, the buffer is left as it is */
+    private void observe( Direction d, ByteBuffer data ) {
+        int p = data.position();
+        int end = data.limit();
+        while( observing && p < end ) {
+            if( d.recordLeft > 0 ) {
+                int skip = Math.min(d.recordLeft, end - p);
+                d.recordLeft -= skip;
+                p += skip;
+                continue;
+            }
+            while( d.recordHeaderLength < d.recordHeader.length && p < end )
+                d.recordHeader[d.recordHeaderLength++] = data.get(p++);
+            if( d.recordHeaderLength < d.recordHeader.length )
+                return;
+            d.recordHeaderLength = 0;
+            int type = d.recordHeader[0] & 0xff;
+            d.recordLeft = ((d.recordHeader[3] & 0xff) << 8) | (d.recordHeader[4] & 0xff);
+            if( type < 20 || type > 23 ) {
+                //not TLS, nothing to time
+                observing = false;
+                return;
+            }
+            record(d, type, data, p, Math.min(end, p + d.recordLeft));
+        }
+    }
+
+    /** A TLS record of the given type starts at the given index, the buffer may not hold all of it */
+    private void record( Direction d, int type, ByteBuffer data, int p, int end ) {
+        if( d == upstream ) {
+            if( clientHelloAt == 0 )
+                clientHelloAt = System.currentTimeMillis();
+            if( type == 22 && clientSessionId == null && p < end && data.get(p) == 1 )
+                clientSessionId = readSessionId(data, p + 4 + 2 + 32, end);
+            else if( type == 23 )
+                handshakeDone();
+        } else if( type == 22 && p < end && data.get(p) == 2 ) {
+            //ServerHello: resumed if TLS 1.3 accepted a pre-shared key, or an earlier version took the session id of the client
+            int q = p + 4 + 2 + 32;
+            byte[] sessionId = readSessionId(data, q, end);
+            if( sessionId == null )
+                return;
+            q += 1 + sessionId.length + 2 + 1;
+            boolean tls13 = false;
+            boolean psk = false;
+            if( q + 2 <= end ) {
+                int extensionsEnd = Math.min(end, q + 2 + readShort(data, q));
+                q += 2;
+                while( q + 4 <= extensionsEnd ) {
+                    int extension = readShort(data, q);
+                    if( extension == 43 )
+                        tls13 = true;
+                    else if( extension == 41 )
+                        psk = true;
+                    q += 4 + readShort(data, q + 2);
+                }
+            }
+            resumed = tls13 ? psk : sessionId.length > 0 && Arrays.equals(sessionId, clientSessionId);
+        }
+    }
+
+    /** The client sent application data, its side of the handshake is done */
+    private void handshakeDone() {
+        observing = false;
+        long now = System.currentTimeMillis();
+        long[] phases = new long[6];
+        phases[ProxyStatistics.PHASE_CONNECT] = (establishedAt > 0 ? establishedAt : now) - startTimeStamp;
+        phases[ProxyStatistics.PHASE_HELLO] = Math.max(0, clientHelloAt - establishedAt);
+        phases[ProxyStatistics.PHASE_HANDSHAKE] = now - Math.max(clientHelloAt, establishedAt);
+        ProxyStatistics.getSingleton().handshakeTimed(true, resumed, phases);
+        logger.trace("Tunnelled handshake with "+ host +":"+ port +" took "+ phases[ProxyStatistics.PHASE_HANDSHAKE] +"ms, resumed: "+ resumed);
+    }
+
+    /** Read the session id of a hello starting at the given index, null if the buffer does not hold it */
+    private static byte[] readSessionId( ByteBuffer data, int p, int end ) {
+        if( p >= end )
+            return null;
+        int length = data.get(p) & 0xff;
+        if( p + 1 + length > end )
+            return null;
+        byte[] id = new byte[length];
+        for( int i=0; i< length; i++ )
+            id[i] = data.get(p + 1 + i);
+        return id;
+    }
+
+    private static int readShort( ByteBuffer data, int index ) {
+        return ((data.get(index) & 0xff) << 8) | (data.get(index+1) & 0xff);
+    }
+
+    /** Read from a side whose bytes can be taken, write to a side that has bytes waiting */
+    private void updateInterest() {
+        if( clientKey.isValid() )
+            clientKey.interestOps( interest(upstream, downstream) );
+        if( serverKey.isValid() )
+            serverKey.interestOps( interest(downstream, upstream) );
+    }
+
+    /** The interest of the side that is the sender of out and the receiver of in */
+    private static int interest( Direction out, Direction in ) {
+        int ops = 0;
+        if( !out.endOfStream && out.buffer == null )
+            ops |= SelectionKey.OP_READ;
+        if( in.buffer != null )
+            ops |= SelectionKey.OP_WRITE;
+        return ops;
+    }
+
+    /** Close both sides of the tunnel, may be called more than once */
+    public void close() {
+        if( closed )
+            return;
+        closed = true;
+        if( loop != null )
+            loop.connectionClosed();
+        clientKey.cancel();
+        try { client.close(); } catch( IOException ignored ) {}
+        if( serverKey != null )
+            serverKey.cancel();
+        if( server != null ) {
+            try { server.close(); } catch( IOException ignored ) {}
+        }
+        BufferPool pool = BufferPool.getSingleton();
+        pool.release(upstream.buffer);
+        upstream.buffer = null;
+        pool.release(downstream.buffer);
+        downstream.buffer = null;
+        logger.debug("Closed the tunnel to "+ host +":"+ port +" after "+ (System.currentTimeMillis() - startTimeStamp) +"ms, "
+                + upstream.bytes +" bytes sent, "+ downstream.bytes +" bytes received");
+        ProxyStatistics.getSingleton().tunnelClosed( upstream.bytes, downstream.bytes );
+    }
+}
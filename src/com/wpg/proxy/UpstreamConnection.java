@@ -0,0 +1,993 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Vector;
+import javax.net.ssl.SSLEngine;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Non-blocking HTTP connection to the remote host of a request.<p>
+ * The exchange is driven entirely by selector events: OP_CONNECT finishes the connection,
+ * OP_WRITE sends the request and OP_READ collects the response, so a slow remote host
+ * only delays its own transaction and never the selector thread that serves everybody else.
+ * The outcome is reported to an UpstreamListener on the selector thread.<p>
+ * When started on an event loop the connection comes from the UpstreamPool of the proxy and is
+ * handed back once the response is complete, if the remote host agreed to keep it open.
+ * The remote host of a new connection is looked up by the HostResolver of the proxy, off the loop.
+ * A request failing on a reused connection before any response arrived is retried once on a
+ * new connection if its method is idempotent.<p>
+ * In streaming mode the body is not collected, every piece is handed to the listener as it
+ * arrives and reading from the remote host pauses whenever the listener cannot keep up.
+ * The body of a streamed request is likewise sent on piece by piece through sendRequestBody.<p>
+ * Secure requests are sent over TLS, through an SSLByteChannel wrapped around the socket once it is
+ * connected.  The session stays with the connection in the pool, so a reused connection needs no handshake.<p>
+ * When HTTP/2 is enabled a new TLS connection offers h2 through ALPN, and a new connection to a host known to
+ * speak h2c starts with HTTP/2 right away.  Such a connection is handed over to an Http2Connection that the
+ * event loop keeps, the request becomes its first stream and the requests that follow open streams of their own
+ * on it.  A remote host that does not select h2 keeps getting HTTP/1.1 on the same connection, and one that does
+ * not answer h2c gets the request again over HTTP/1.1.  Only requests whose body is complete open new HTTP/2
+ * connections, a streamed body only goes over one that is already open.
+ */
+class UpstreamConnection implements SelectionKeyHandler, HttpMessageParser.BodyListener, UpstreamPool.Waiter, Http2Connection.StreamListener, HostResolver.Listener {
+    private final static Logger logger = Logger.getLogger(UpstreamConnection.class);
+    private static final int READ_BUFFER_SIZE = 1024*16;
+    private static final int MAX_PENDING_BODY = 1024*64;
+    private static final int ACCEPT_ENCODING = HttpHeaders.getId(HttpMessage.HEADER_ACCEPT_ENCODING);
+    private static final int CONNECTION = HttpHeaders.getId(HttpMessage.HEADER_CONNECTION);
+    private static final int PROXY_CONNECTION = HttpHeaders.getId(HttpMessage.HEADER_PROXY_CONNECTION);
+    private static final int KEEP_ALIVE = HttpHeaders.getId(HttpMessage.HEADER_KEEP_ALIVE);
+    private static final int CONTENT_LENGTH = HttpHeaders.getId(HttpMessage.HEADER_CONTENT_LENGTH);
+    private static final int HOST = HttpHeaders.getId(HttpMessage.HEADER_HOST);
+    private static final int TRANSFER_ENCODING = HttpHeaders.getId(HttpMessage.HEADER_TRANSFER_ENCODING);
+
+    private final HttpMessageRequest request;
+    private final UpstreamListener listener;
+    private SocketChannel channel;
+    /** The channel the request and response go through, the socket itself or the TLS session on top of it */
+    private ByteChannel io;
+    private SSLByteChannel tls;
+    private SelectionKey key;
+    /** The request as it goes out, the header followed by the buffers of the body and its framing */
+    private ByteBuffer[] requestBuffers;
+    private ByteBuffer readBuffer;
+    private HttpResponseParser parser;
+    private boolean done = false;
+    private boolean streaming = false;
+    private boolean paused = false;
+    private boolean reading = false;
+    private ProxyEventLoop loop;
+    private UpstreamPool pool;
+    private String address;
+    private boolean granted = false;
+    /** The address of the remote host is being looked up, the connection is opened once it is known */
+    private boolean resolving = false;
+    private boolean reused = false;
+    private boolean retried = false;
+    private boolean connected = false;
+    private boolean requestStreaming = false;
+    private boolean requestComplete = true;
+    private boolean bodyPaused = false;
+    private final LinkedList<ByteBuffer> bodyOutput = new LinkedList<ByteBuffer>();
+    private int bodyOutputBytes = 0;
+    /** Should a new connection try HTTP/2? */
+    private boolean http2Wanted = false;
+    private boolean protocolSelected = false;
+    private Http2Connection.Stream stream;
+    /** The response received over HTTP/2, its body is collected into it */
+    private HttpMessageResponse response;
+    /** When the remote host last moved the exchange on, or the client handed it back to the remote host */
+    private long lastActivity = System.currentTimeMillis();
+
+    /** Creates a new connection for the given request, nothing happens until connect is called */
+    public UpstreamConnection( HttpMessageRequest request, UpstreamListener listener ) {
+        this.request = request;
+        this.listener = listener;
+    }
+
+    /** Get the request this connection is executing */
+    public HttpMessageRequest getRequest() { return request; }
+    /** Get the response received so far, null before its status line arrived */
+    public HttpMessageResponse getResponse() {
+        if( response != null )
+            return response;
+        return parser == null ? null : parser.getResponse();
+    }
+    /** Stream the response body to the listener instead of collecting it, must be set before connecting */
+    public void setStreaming( boolean b ) { streaming=b; }
+    /** Is the response body streamed to the listener? */
+    public boolean isStreaming() { return streaming; }
+    /** Is reading from the remote host paused until the listener catches up? */
+    public boolean isPaused() { return paused; }
+    /** Is the exchange over, the response received or the request failed? */
+    public boolean isDone() { return done; }
+    /** Send the request body as it is handed to sendRequestBody instead of from the request, must be set before connecting */
+    public void setRequestStreaming( boolean b ) { requestStreaming=b; requestComplete=!b; }
+    /** Is the request body sent as it is handed to sendRequestBody? */
+    public boolean isRequestStreaming() { return requestStreaming; }
+
+    /** Stop reading from the remote host */
+    public void pauseReading() {
+        paused = true;
+        if( stream != null )
+            stream.pause();
+        else
+            updateInterest();
+    }
+    /** Continue reading from the remote host after pauseReading */
+    public void resumeReading() {
+        paused = false;
+        if( stream != null ) {
+            stream.resume();
+            return;
+        }
+        updateInterest();
+        //decrypted bytes may be waiting without the socket ever becoming readable again
+        if( tls != null && tls.hasBufferedInput() && loop != null ) {
+            loop.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if( !done && !paused )
+                            read();
+                        updateInterest();
+                    } catch( Exception e ) {
+                        fail(e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Streaming requests: queue the next piece of the request body, the buffer is copied.
+     * @return false once the remote host is behind, requestBodyDrained tells the listener when to continue
+     */
+    public boolean sendRequestBody( ByteBuffer data ) {
+        if( done )
+            return true;
+        if( stream != null ) {
+            if( stream.send(data) )
+                return true;
+            bodyPaused = true;
+            return false;
+        }
+        if( request.isChunked() )
+            bodyOutputBytes += ChunkedEncoder.encode(data, bodyOutput);
+        else
+            bodyOutputBytes += BufferPool.getSingleton().copy(data, bodyOutput);
+        updateInterest();
+        if( bodyOutputBytes < MAX_PENDING_BODY )
+            return true;
+        bodyPaused = true;
+        return false;
+    }
+
+    /** Streaming requests: the whole body has been queued, the trailers are sent after a chunked body */
+    public void endRequestBody( List<String> trailers ) {
+        if( done )
+            return;
+        if( stream != null ) {
+            requestComplete = true;
+            stream.end( trailerFields(trailers) );
+            return;
+        }
+        if( request.isChunked() )
+            bodyOutputBytes += ChunkedEncoder.encodeLast(trailers, bodyOutput);
+        requestComplete = true;
+        updateInterest();
+    }
+
+    /** Start connecting to the remote host, registering the channel with the given selector, the connection is not pooled */
+    public void connect( Selector selector ) throws IOException {
+        requestBuffers = encodeRequest();
+        createParser();
+        //without an event loop to hand the answer back to, the host is looked up right away
+        open( selector, new InetSocketAddress(request.getToHost(), getPort()) );
+    }
+
+    /** Start the exchange on the given event loop, over an idle connection from the pool of the proxy if there is one */
+    public void connect( ProxyEventLoop loop ) throws IOException {
+        this.loop = loop;
+        pool = loop.getProxy().getUpstreamPool();
+        address = UpstreamPool.getAddress( request.isSecure() ? "https" : "http", request.getToHost(), getPort() );
+        start();
+    }
+
+    /** Send the request over the HTTP/2 connection the loop has to the remote host, or over a connection from the pool */
+    private void start() throws IOException {
+        createParser();
+        Http2Connection connection = loop.getHttp2Connection(address);
+        if( connection != null && startStream(connection) ) {
+            reused = true;
+            return;
+        }
+        http2Wanted = !requestStreaming && !pool.isHttp2Refused(address)
+            && (request.isSecure() ? ProxyRegistry.isHttp2Enabled() : ProxyRegistry.isHttp2Host( request.getToHost() ));
+        if( requestBuffers == null ) {
+            requestBuffers = encodeRequest();
+        } else {
+            for( int i=0; i< requestBuffers.length; i++ )
+                requestBuffers[i].rewind();
+        }
+        pool.acquire(address, loop, this);
+    }
+
+    /** Send the request as a new stream of the given HTTP/2 connection, false if the connection takes no new streams */
+    private boolean startStream( Http2Connection connection ) throws IOException {
+        boolean bodyFollows = requestStreaming || request.getBodyLength() > 0 || request.isChunked();
+        stream = connection.newStream( encodeHttp2Request(), bodyFollows, this );
+        if( stream == null )
+            return false;
+        if( bodyFollows && !requestStreaming ) {
+            ByteBuffer[] body = request.getBodyBuffers();
+            for( int i=0; i< body.length; i++ )
+                stream.send( body[i] );
+            stream.end( trailerFields(request.getTrailers()) );
+        }
+        return true;
+    }
+
+    /** The pool has a connection for us, an idle one or null if a new one is to be opened */
+    public void connectionAvailable( SocketChannel idleChannel, SelectionKey idleKey, SSLByteChannel idleTls ) {
+        granted = true;
+        if( done ) {
+            //the exchange was aborted while waiting for the pool
+            pool.release(address, idleChannel, idleKey, idleTls, idleChannel != null);
+            return;
+        }
+        try {
+            if( idleChannel == null ) {
+                resolve();
+                return;
+            }
+            logger.trace("Reusing connection to: "+ address);
+            reused = true;
+            channel = idleChannel;
+            io = channel;
+            if( idleTls != null ) {
+                tls = idleTls;
+                io = tls;
+                setTaskExecutor();
+            }
+            if( readBuffer == null )
+                readBuffer = BufferPool.getSingleton().acquire(READ_BUFFER_SIZE);
+            connected = true;
+            if( idleKey != null && idleKey.isValid() && idleKey.selector() == loop.getSelector() ) {
+                key = idleKey;
+                key.attach(this);
+            } else {
+                //last used by another event loop, take the registration over
+                if( idleKey != null )
+                    idleKey.cancel();
+                key = channel.register(loop.getSelector(), 0, this);
+            }
+            updateInterest();
+        } catch( Exception e ) {
+            fail(e);
+        }
+    }
+
+    private int getPort() {
+        if( request.getToPort() > 0 )
+            return request.getToPort();
+        return request.isSecure() ? 443 : 80;
+    }
+
+    private void createParser() {
+        parser = new HttpResponseParser( request.getMethod() );
+        if( loop != null )
+            parser.setMessagePool( loop.getMessagePool() );
+        if( streaming )
+            parser.setBodyListener(this);
+    }
+
+    /** Look the remote host up off the event loop, a new connection is opened once its address is known */
+    private void resolve() throws IOException {
+        InetAddress resolved = loop.getProxy().getHostResolver().resolve( request.getToHost(), loop, this );
+        if( resolved != null ) {
+            open( loop.getSelector(), new InetSocketAddress(resolved, getPort()) );
+            return;
+        }
+        logger.trace("Looking up: "+ request.getToHost());
+        resolving = true;
+    }
+
+    /** The address of the remote host was found, open the connection unless the exchange was aborted meanwhile */
+    public void hostResolved( InetAddress resolved ) {
+        if( !resolving )
+            return;
+        resolving = false;
+        try {
+            open( loop.getSelector(), new InetSocketAddress(resolved, getPort()) );
+        } catch( Exception e ) {
+            fail(e);
+        }
+    }
+
+    /** The remote host could not be found */
+    public void hostNotFound( UnknownHostException e ) {
+        if( !resolving )
+            return;
+        resolving = false;
+        fail(e);
+    }
+
+    /** Open a new connection to the remote host at the given address */
+    private void open( Selector selector, InetSocketAddress remote ) throws IOException {
+        if( readBuffer == null )
+            readBuffer = BufferPool.getSingleton().acquire(READ_BUFFER_SIZE);
+        logger.trace("Opening socket to: "+ remote);
+        channel = SocketChannel.open();
+        io = channel;
+        try {
+            channel.configureBlocking(false);
+            connected = channel.connect(remote);
+            key = channel.register(selector, 0, this);
+            if( connected )
+                connectionEstablished();
+            updateInterest();
+        } catch( IOException e ) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Process the ready operations of the upstream channel */
+    public void processKey( SelectionKey key ) throws IOException {
+        lastActivity = System.currentTimeMillis();
+        try {
+            if(key.isValid() && key.isConnectable()) {
+                logger.trace("Event found, isConnectable");
+                connected = channel.finishConnect();
+                if( connected )
+                    connectionEstablished();
+                updateInterest();
+            }
+            if(key.isValid() && key.isWritable() && stream == null) {
+                writeRequest();
+            }
+            //the connection may have gone over to HTTP/2, which takes the key
+            if(key.isValid() && key.isReadable() && stream == null) {
+                read();
+                //reading may have moved the handshake on
+                if( tls != null )
+                    updateInterest();
+            }
+        } catch( Exception e ) {
+            fail(e);
+        }
+    }
+
+    /** The socket is connected, start TLS for a secure request or HTTP/2 for a host known to speak it without */
+    private void connectionEstablished() throws IOException {
+        if( request.isSecure() )
+            startTls();
+        else if( http2Wanted )
+            startHttp2();
+    }
+
+    /** Secure requests: start the TLS handshake on the freshly connected socket */
+    private void startTls() throws IOException {
+        if( !request.isSecure() )
+            return;
+        SSLEngine engine;
+        try {
+            engine = ProxyRegistry.getClientSSLContext().createSSLEngine( request.getToHost(), getPort() );
+        } catch( GeneralSecurityException e ) {
+            IOException ioe = new IOException("Unable to set up TLS to "+ request.getToHost() +":"+ getPort() +": "+ e);
+            ioe.initCause(e);
+            throw ioe;
+        }
+        engine.setUseClientMode(true);
+        if( http2Wanted )
+            Http2Connection.setApplicationProtocols(engine);
+        tls = new SSLByteChannel(channel, engine);
+        io = tls;
+        setTaskExecutor();
+        tls.flush();
+    }
+
+    /** Once the handshake is done, hand the connection over to HTTP/2 if the remote host selected it through ALPN */
+    private boolean selectProtocol() {
+        if( protocolSelected || tls == null || tls.isHandshaking() )
+            return false;
+        protocolSelected = true;
+        if( !http2Wanted || !"h2".equals( Http2Connection.getApplicationProtocol(tls.getEngine()) ) )
+            return false;
+        startHttp2();
+        return true;
+    }
+
+    /** Hand the connection over to HTTP/2, with whatever was already read from it, and send the request as its first stream */
+    private void startHttp2() {
+        readBuffer.flip();
+        Http2Connection connection = new Http2Connection(loop, address, channel, key, tls, readBuffer);
+        releaseReadBuffer();
+        //the socket and its place in the pool belong to the HTTP/2 connection now
+        channel = null;
+        key = null;
+        tls = null;
+        io = null;
+        granted = false;
+        reused = false;
+        try {
+            if( startStream(connection) )
+                return;
+        } catch( IOException e ) {
+            fail(e);
+            return;
+        }
+        fail( new IOException("HTTP/2 connection to "+ address +" failed"), true );
+    }
+
+    /** Have the handshake tasks of the TLS session run on the handshake executor and come back to this connection */
+    private void setTaskExecutor() {
+        if( loop == null )
+            return;
+        tls.setTaskExecutor( loop.getProxy().getHandshakeExecutor(), new Runnable() {
+            public void run() {
+                loop.execute(new Runnable() {
+                    public void run() {
+                        tlsTasksDone();
+                    }
+                });
+            }
+        });
+    }
+
+    /** The handshake tasks ran on the handshake executor, carry on with the handshake and the exchange */
+    private void tlsTasksDone() {
+        //the connection may have gone over to HTTP/2 or been given up on while the tasks ran
+        if( done || io == null )
+            return;
+        writeRequest();
+        if( stream != null )
+            return;
+        if( !done && !paused ) {
+            try {
+                read();
+            } catch( Exception e ) {
+                fail(e);
+                return;
+            }
+        }
+        updateInterest();
+    }
+
+    /** Write as much of the request as the remote host accepts, the response is read once the header is out */
+    private void writeRequest() {
+        try {
+            if( tls != null ) {
+                tls.flush();
+                //nothing goes out before the handshake tells which protocol the remote host selected
+                if( tls.isHandshaking() ) {
+                    updateInterest();
+                    return;
+                }
+                if( selectProtocol() )
+                    return;
+            }
+            if( isRequestPending() ) {
+                //the header and a collected body go out in one gathering write, straight from the buffers of the message
+                ((GatheringByteChannel) io).write(requestBuffers);
+                logger.trace("Request written, more left: "+ isRequestPending());
+            }
+            while( !isRequestPending() && !bodyOutput.isEmpty() ) {
+                ByteBuffer buffer = bodyOutput.getFirst();
+                bodyOutputBytes -= io.write(buffer);
+                if( buffer.hasRemaining() )
+                    break;
+                BufferPool.getSingleton().release( bodyOutput.removeFirst() );
+            }
+            //the session may have decrypted the response while writing, the socket will not become readable for it
+            if( tls != null && tls.hasBufferedInput() && !isRequestPending() && !paused && !reading )
+                read();
+        } catch( Exception e ) {
+            fail(e);
+            return;
+        }
+        if( done )
+            return;
+        updateInterest();
+        if( bodyPaused && bodyOutputBytes < MAX_PENDING_BODY/2 ) {
+            bodyPaused = false;
+            listener.requestBodyDrained(this);
+        }
+    }
+
+    /** Is part of the request header or of a collected body still to be written? They are written in order, none of them empty */
+    private boolean isRequestPending() {
+        return requestBuffers[requestBuffers.length-1].hasRemaining();
+    }
+
+    /** Set the interest of the channel from the state of the exchange */
+    private void updateInterest() {
+        if( done || key == null || !key.isValid() )
+            return;
+        if( !connected ) {
+            key.interestOps(SelectionKey.OP_CONNECT);
+            return;
+        }
+        int ops = 0;
+        if( tls != null && tls.isHandshaking() ) {
+            //nothing but the handshake can move until it is done, and nothing at all while its tasks run
+            if( !tls.isTaskRunning() )
+                ops = SelectionKey.OP_READ;
+            if( tls.hasPendingOutput() )
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+            return;
+        }
+        if( isRequestPending() || !bodyOutput.isEmpty() || (tls != null && tls.hasPendingOutput()) )
+            ops |= SelectionKey.OP_WRITE;
+        if( !isRequestPending() && !paused )
+            ops |= SelectionKey.OP_READ;
+        key.interestOps(ops);
+    }
+
+    /**
+     * Fail the exchange if the remote host has kept it waiting for longer than the given time in milliseconds, the
+     * connection is closed and not retried.  Time spent waiting for the client to take the response or to send more
+     * of the request body does not count.
+     */
+    public void checkTimeout( long now, int timeout ) {
+        if( done )
+            return;
+        if( isWaitingForClient() ) {
+            lastActivity = now;
+            return;
+        }
+        if( now - lastActivity <= timeout )
+            return;
+        logger.debug("No answer from "+ request.getToHost() +":"+ getPort() +" for "+ (now - lastActivity) +"ms, giving up");
+        finish(false);
+        listener.requestFailed(this, new SocketTimeoutException("No answer from "+ request.getToHost() +":"+ getPort() +" within "+ timeout +"ms"));
+    }
+
+    /** Is the exchange waiting for the client, to take more of the response or to send more of the request body? */
+    private boolean isWaitingForClient() {
+        if( paused )
+            return true;
+        if( requestComplete )
+            return false;
+        if( stream != null )
+            return !bodyPaused;
+        return granted && connected && bodyOutput.isEmpty() && !isRequestPending();
+    }
+
+    /** Abort the exchange, closing the channel without notifying the listener, may be called more than once */
+    public void close() {
+        finish(false);
+    }
+
+    /** End the exchange, handing the connection back to the pool or closing it */
+    private void finish( boolean reusable ) {
+        if( done )
+            return;
+        done = true;
+        resolving = false;
+        if( stream != null ) {
+            stream.cancel();
+        } else if( pool != null ) {
+            if( granted ) {
+                if( reusable ) {
+                    key.interestOps(0);
+                    key.attach(null);
+                } else if( key != null ) {
+                    key.cancel();
+                }
+                pool.release(address, channel, reusable ? key : null, tls, reusable);
+            }
+        } else {
+            if( key != null )
+                key.cancel();
+            if( channel != null ) {
+                try { channel.close(); } catch( IOException ignored ) {}
+            }
+        }
+        while( !bodyOutput.isEmpty() )
+            BufferPool.getSingleton().release( bodyOutput.removeFirst() );
+        bodyOutputBytes = 0;
+        //the parser may still be working on the read buffer, it is released once it is done
+        if( !reading )
+            releaseReadBuffer();
+    }
+    
+    private void releaseReadBuffer() {
+        BufferPool.getSingleton().release(readBuffer);
+        readBuffer = null;
+    }
+
+    private void read() throws Exception {
+        reading = true;
+        try {
+            int size;
+            while( !done && !paused && (size = io.read(readBuffer)) != 0 ) {
+                if( size < 0 ) {
+                    if( !parser.endOfStream() )
+                        throw new IOException("Connection closed by remote host before the response was received");
+                    complete(false);
+                    return;
+                }
+                if( selectProtocol() )
+                    return;
+                readBuffer.flip();
+                boolean complete = parser.parse(readBuffer);
+                if( done )
+                    return;
+                boolean unexpected = readBuffer.hasRemaining();
+                readBuffer.clear();
+                if( complete ) {
+                    //a response may arrive before the whole request was sent, the connection is then in an unknown state,
+                    //as it is when the TLS session holds bytes past the response
+                    boolean sent = requestComplete && !isRequestPending() && bodyOutput.isEmpty()
+                        && (tls == null || (!tls.hasBufferedInput() && !tls.hasPendingOutput()));
+                    complete( sent && !unexpected && isPersistent(parser.getResponse()) );
+                    return;
+                }
+            }
+        } finally {
+            reading = false;
+            if( done )
+                releaseReadBuffer();
+        }
+    }
+
+    /** Streaming mode: the parser finished the response header */
+    public void headerComplete( HttpMessage message ) {
+        listener.responseHeaderReceived(this, (HttpMessageResponse) message);
+    }
+
+    /** Streaming mode: the parser found the next piece of the body */
+    public void bodyData( ByteBuffer data ) {
+        if( done )
+            return;
+        if( !listener.responseBodyReceived(this, data) )
+            pauseReading();
+    }
+
+    private void complete( boolean reusable ) {
+        finish(reusable);
+        deliver( parser.getResponse() );
+    }
+
+    /** Hand the complete response to the listener, if it throws the exchange fails instead of leaving the client waiting */
+    private void deliver( HttpMessageResponse response ) {
+        try {
+            listener.responseReceived(this, response);
+        } catch( RuntimeException e ) {
+            logger.error("Exception while handling the response from "+ address +": "+ e,e);
+            listener.requestFailed(this, e);
+        }
+    }
+
+    private void fail( Exception e ) {
+        fail(e, false);
+    }
+
+    /** @param refused true if the remote host certainly did not process the request */
+    private void fail( Exception e, boolean refused ) {
+        if( done )
+            return;
+        boolean unanswered = stream != null ? response == null : !parser.isStarted();
+        if( !retried && !requestStreaming && (refused || (reused && unanswered && isIdempotent())) ) {
+            //the remote host closed the idle connection just as it was reused, or turned the request away
+            logger.debug("Request to "+ address +" failed, retrying on a new connection: "+ e);
+            finish(false);
+            done = false;
+            granted = false;
+            reused = false;
+            retried = true;
+            connected = false;
+            protocolSelected = false;
+            tls = null;
+            stream = null;
+            try {
+                start();
+            } catch( IOException ioe ) {
+                fail(ioe);
+            }
+            return;
+        }
+        finish(false);
+        listener.requestFailed(this, e);
+    }
+
+    /** HTTP/2: a header block arrived, the response header, an interim response or the trailers */
+    public void streamHeaders( Http2Connection.Stream stream, List<String> fields ) {
+        if( done )
+            return;
+        lastActivity = System.currentTimeMillis();
+        if( response != null ) {
+            for( int i=0; i+1< fields.size(); i+=2 )
+                response.addTrailer( fields.get(i), fields.get(i+1) );
+            return;
+        }
+        int status = 0;
+        for( int i=0; i+1< fields.size(); i+=2 ) {
+            if( fields.get(i).equals(":status") ) {
+                try {
+                    status = Integer.parseInt( fields.get(i+1) );
+                } catch( NumberFormatException ignored ) {}
+            }
+        }
+        if( status < 100 || status > 999 ) {
+            fail( new IOException("Response without a valid :status from "+ address) );
+            return;
+        }
+        if( status < 200 && status != 101 )
+            return; //interim response
+        response = loop.getMessagePool().getResponse();
+        response.setStartLine( "HTTP/1.1 "+ status +" "+ reasonPhrase(status) );
+        for( int i=0; i+1< fields.size(); i+=2 ) {
+            if( fields.get(i).charAt(0) != ':' )
+                response.addHeader( fields.get(i), fields.get(i+1) );
+        }
+        logger.debug("Response: "+ response.getStartLine() +" over HTTP/2");
+        if( streaming )
+            listener.responseHeaderReceived(this, response);
+    }
+
+    /** HTTP/2: the next piece of the response body */
+    public boolean streamData( Http2Connection.Stream stream, ByteBuffer data ) {
+        if( done )
+            return true;
+        lastActivity = System.currentTimeMillis();
+        if( streaming ) {
+            if( listener.responseBodyReceived(this, data) )
+                return true;
+            paused = true;
+            return false;
+        }
+        response.addToBody(data);
+        return true;
+    }
+
+    /** HTTP/2: the response is complete */
+    public void streamEnd( Http2Connection.Stream stream ) {
+        if( done )
+            return;
+        if( response == null ) {
+            fail( new IOException("Stream ended without a response from "+ address) );
+            return;
+        }
+        finish(true);
+        deliver(response);
+    }
+
+    /** HTTP/2: the request body queued went out */
+    public void streamDrained( Http2Connection.Stream stream ) {
+        if( done || !bodyPaused )
+            return;
+        lastActivity = System.currentTimeMillis();
+        bodyPaused = false;
+        listener.requestBodyDrained(this);
+    }
+
+    /** HTTP/2: the stream failed */
+    public void streamFailed( Http2Connection.Stream stream, Exception exception, boolean refused ) {
+        if( stream != this.stream )
+            return; //not handed out yet, or given up on already
+        fail(exception, refused);
+    }
+
+    /** May the connection be used again once the response is complete? */
+    private boolean isPersistent( HttpMessageResponse response ) {
+        if( response.hasHeaderToken(HttpMessage.HEADER_CONNECTION, "close") )
+            return false;
+        if( "1.0".equals(response.getVersion()) )
+            return response.hasHeaderToken(HttpMessage.HEADER_CONNECTION, "keep-alive");
+        return true;
+    }
+
+    /** Can the request be sent again without changing its outcome? */
+    private boolean isIdempotent() {
+        String method = request.getMethod();
+        return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS") || method.equals("TRACE")
+            || method.equals("PUT") || method.equals("DELETE");
+    }
+
+    /** Is a request header with the given id passed on to the remote host? */
+    private static boolean isForwarded( int id ) {
+        //TODO add handle for compressed response, until then Accept-Encoding is not passed on
+        return id != ACCEPT_ENCODING && id != CONNECTION && id != PROXY_CONNECTION && id != KEEP_ALIVE && id != CONTENT_LENGTH;
+    }
+
+    /** Build the buffers of the request as sent to the remote host, a collected body is not copied */
+    private ByteBuffer[] encodeRequest() throws IOException {
+        StringBuffer sb = new StringBuffer();
+        URI uri = request.getUri();
+        String path = uri.getRawPath();
+        sb.append(request.getMethod()).append(' ');
+        sb.append( (path == null || path.length() == 0) ? "/" : path );
+        if( uri.getRawQuery() != null )
+            sb.append('?').append(uri.getRawQuery());
+        sb.append(" HTTP/1.1\r\n");
+        byte[] requestLine = sb.toString().getBytes("ISO-8859-1");
+        sb.setLength(0);
+        if( !request.getHeaderTable().contains(HttpMessage.HEADER_HOST) )
+            sb.append("host: ").append(request.getToHost()).append("\r\n");
+        //the body is framed again, a chunked body keeps its transfer-encoding header, anything else gets its actual length
+        int bodyLength = request.getBodyLength();
+        if( !request.isChunked() ) {
+            if( requestStreaming )
+                sb.append(HttpMessage.HEADER_CONTENT_LENGTH).append(": ").append(request.getHeaderTable().getLong(HttpMessage.HEADER_CONTENT_LENGTH)).append("\r\n");
+            else if( bodyLength > 0 || request.isContentLengthSet() )
+                sb.append(HttpMessage.HEADER_CONTENT_LENGTH).append(": ").append(bodyLength).append("\r\n");
+        }
+        sb.append(HttpMessage.HEADER_CONNECTION).append( pool != null ? ": keep-alive\r\n\r\n" : ": close\r\n\r\n" );
+        byte[] headEnd = sb.toString().getBytes("ISO-8859-1");
+
+        //the fields of the client are copied as they were received, except those the proxy sets itself
+        HttpHeaders headers = request.getHeaderTable();
+        int headLength = requestLine.length + headEnd.length;
+        for( int i=0; i< headers.size(); i++ ) {
+            if( isForwarded(headers.getId(i)) )
+                headLength += headers.getFieldLength(i);
+        }
+        ByteBuffer head = ByteBuffer.allocate(headLength);
+        head.put(requestLine);
+        for( int i=0; i< headers.size(); i++ ) {
+            if( isForwarded(headers.getId(i)) )
+                headers.writeField(i, head);
+        }
+        head.put(headEnd);
+        head.flip();
+        if( requestStreaming || (bodyLength == 0 && !request.isChunked()) )
+            return new ByteBuffer[] { head };
+
+        logger.debug("Size of request body: "+ bodyLength);
+        ByteBuffer[] body = request.getBodyBuffers();
+        if( !request.isChunked() ) {
+            ByteBuffer[] buffers = new ByteBuffer[body.length + 1];
+            buffers[0] = head;
+            System.arraycopy(body, 0, buffers, 1, body.length);
+            return buffers;
+        }
+        StringBuffer last = new StringBuffer();
+        if( bodyLength > 0 )
+            last.append("\r\n");
+        last.append("0\r\n");
+        List<String> trailers = request.getTrailers();
+        for( int i=0; trailers != null && i< trailers.size(); i++ )
+            last.append(trailers.get(i)).append("\r\n");
+        last.append("\r\n");
+        ByteBuffer[] buffers = new ByteBuffer[body.length + (bodyLength > 0 ? 3 : 2)];
+        int n = 0;
+        buffers[n++] = head;
+        if( bodyLength > 0 ) {
+            buffers[n++] = ByteBuffer.wrap( (Integer.toHexString(bodyLength) +"\r\n").getBytes("ISO-8859-1") );
+            System.arraycopy(body, 0, buffers, n, body.length);
+            n += body.length;
+        }
+        buffers[n] = ByteBuffer.wrap( last.toString().getBytes("ISO-8859-1") );
+        return buffers;
+    }
+
+    /** Build the fields of the request as sent over HTTP/2, the pseudo-header fields first and every name in lower case */
+    private List<String> encodeHttp2Request() {
+        Vector<String> fields = new Vector<String>();
+        URI uri = request.getUri();
+        String path = uri.getRawPath();
+        if( path == null || path.length() == 0 )
+            path = "/";
+        if( uri.getRawQuery() != null )
+            path += "?"+ uri.getRawQuery();
+        HttpHeaders headers = request.getHeaderTable();
+        String authority = headers.get(HttpMessage.HEADER_HOST);
+        fields.addElement(":method");
+        fields.addElement(request.getMethod());
+        fields.addElement(":scheme");
+        fields.addElement(request.isSecure() ? "https" : "http");
+        fields.addElement(":authority");
+        fields.addElement(authority != null ? authority : request.getToHost());
+        fields.addElement(":path");
+        fields.addElement(path);
+        //the connection specific fields have no place in HTTP/2, TE only with trailers
+        for( int i=0; i< headers.size(); i++ ) {
+            int id = headers.getId(i);
+            if( !isForwarded(id) || id == HOST || id == TRANSFER_ENCODING )
+                continue;
+            String name = headers.getName(i).toLowerCase();
+            String value = headers.getValue(i);
+            if( name.equals("upgrade") || (name.equals("te") && !value.equalsIgnoreCase("trailers")) )
+                continue;
+            fields.addElement(name);
+            fields.addElement(value);
+        }
+        if( !request.isChunked() ) {
+            if( requestStreaming ) {
+                fields.addElement(HttpMessage.HEADER_CONTENT_LENGTH);
+                fields.addElement( String.valueOf(request.getHeaderTable().getLong(HttpMessage.HEADER_CONTENT_LENGTH)) );
+            } else if( request.getBodyLength() > 0 || request.isContentLengthSet() ) {
+                fields.addElement(HttpMessage.HEADER_CONTENT_LENGTH);
+                fields.addElement( String.valueOf(request.getBodyLength()) );
+            }
+        }
+        return fields;
+    }
+
+    /** Turn trailer lines into alternate names and values for HTTP/2, null for none */
+    private static List<String> trailerFields( List<String> trailers ) {
+        if( trailers == null || trailers.isEmpty() )
+            return null;
+        Vector<String> fields = new Vector<String>();
+        for( int i=0; i< trailers.size(); i++ ) {
+            String s = trailers.get(i);
+            int colon = s.indexOf(':');
+            if( colon <= 0 )
+                continue;
+            fields.addElement( s.substring(0, colon).trim().toLowerCase() );
+            fields.addElement( s.substring(colon+1).trim() );
+        }
+        return fields.isEmpty() ? null : fields;
+    }
+
+    /** The reason phrase of a status, HTTP/2 has none and an HTTP/1.1 client expects one */
+    private static String reasonPhrase( int status ) {
+        switch( status ) {
+            case 101: return "Switching Protocols";
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 303: return "See Other";
+            case 304: return "Not Modified";
+            case 307: return "Temporary Redirect";
+            case 308: return "Permanent Redirect";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 409: return "Conflict";
+            case 410: return "Gone";
+            case 412: return "Precondition Failed";
+            case 413: return "Payload Too Large";
+            case 416: return "Range Not Satisfiable";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "";
+        }
+    }
+}
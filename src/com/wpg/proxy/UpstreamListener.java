@@ -0,0 +1,39 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+ 
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+ 
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+ 
+ You should have received a copy of the GNU Lesser General Public
+ 
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.nio.ByteBuffer;
+
+/** Callback interface used by an UpstreamConnection to report the outcome of an exchange with the remote host */
+interface UpstreamListener {
+    /** Streaming only: the header of the response has been received, the body follows through responseBodyReceived */
+    public void responseHeaderReceived( UpstreamConnection connection, HttpMessageResponse response );
+    /**
+     * Streaming only: the next piece of the response body, the buffer is only valid for the duration of the call.
+     * @return false if the listener cannot take more data for now, the connection then stops reading until resumeReading is called
+     */
+    public boolean responseBodyReceived( UpstreamConnection connection, ByteBuffer data );
+    /** Streaming requests only: the body queued with sendRequestBody has mostly been written, after it returned false */
+    public void requestBodyDrained( UpstreamConnection connection );
+    /** The complete response for the request has been received from the remote host, without its body when streaming */
+    public void responseReceived( UpstreamConnection connection, HttpMessageResponse response );
+    /** The exchange with the remote host failed, no response will follow */
+    public void requestFailed( UpstreamConnection connection, Exception exception );
+}
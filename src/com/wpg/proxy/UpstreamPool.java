@@ -0,0 +1,336 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of persistent connections to remote hosts, shared by all event loops of a proxy.<p>
+ * Connections are kept per scheme, host and port.  The number of connections open to a single
+ * remote host and to all of them together is capped, a request arriving while its host is at the
+ * cap waits for a connection to be handed back.  Connections idle for longer than the idle timeout
+ * are closed, and an idle connection is checked for having been closed by the remote host before
+ * it is reused.<p>
+ * Connections to https addresses keep their TLS session, the SSLByteChannel wrapped around the socket,
+ * so reusing one costs no handshake.  Their liveness check reads through the session, records the remote
+ * host sends while the connection is idle, like session tickets, are taken in by the engine.<p>
+ * An idle connection stays registered with the selector of the event loop that used it last, with
+ * no interest set, the loop that borrows it next takes the registration over.
+ */
+public class UpstreamPool {
+    private final static Logger logger = Logger.getLogger(UpstreamPool.class);
+
+    /** Receives a connection from the pool, on the event loop it asked from */
+    interface Waiter {
+        /** An idle connection for the address with its TLS session if it has one, or null if a new connection may be opened */
+        public void connectionAvailable( SocketChannel channel, SelectionKey key, SSLByteChannel tls );
+    }
+
+    private static class IdleConnection {
+        private String address;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private SSLByteChannel tls;
+        private long since;
+    }
+
+    private static class Waiting {
+        private String address;
+        private ProxyEventLoop loop;
+        private Waiter waiter;
+    }
+
+    private int maxConnectionsPerHost = 8;
+    private int maxConnections = 256;
+    private long idleTimeout = 30000;
+
+    /** Idle connections, the most recently used last */
+    private final LinkedList<IdleConnection> idle = new LinkedList<IdleConnection>();
+    private final LinkedList<Waiting> waiting = new LinkedList<Waiting>();
+    private final HashMap<String,Integer> openPerHost = new HashMap<String,Integer>();
+    /** Addresses that were expected to speak HTTP/2 and did not */
+    private final HashSet<String> http2Refused = new HashSet<String>();
+    private int openCount = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long waitCount = 0;
+    private long evictedCount = 0;
+
+    /** Build the pool address of a remote host */
+    public static String getAddress( String scheme, String host, int port ) {
+        return scheme +"://"+ host.toLowerCase() +":"+ port;
+    }
+
+    /** Set the maximum number of connections open to a single remote host */
+    public synchronized void setMaxConnectionsPerHost( int i ) {
+        if( i < 1 )
+            throw new IllegalArgumentException("At least one connection per host is required, got: "+ i);
+        maxConnectionsPerHost=i;
+    }
+    /** Get the maximum number of connections open to a single remote host */
+    public synchronized int getMaxConnectionsPerHost() { return maxConnectionsPerHost; }
+    /** Set the maximum number of connections open to all remote hosts together */
+    public synchronized void setMaxConnections( int i ) {
+        if( i < 1 )
+            throw new IllegalArgumentException("At least one connection is required, got: "+ i);
+        maxConnections=i;
+    }
+    /** Get the maximum number of connections open to all remote hosts together */
+    public synchronized int getMaxConnections() { return maxConnections; }
+    /** Set how long in milliseconds a connection may stay idle in the pool, 0 closes connections as soon as they are handed back */
+    public synchronized void setIdleTimeout( long l ) {
+        if( l < 0 )
+            throw new IllegalArgumentException("Idle Timeout can not be negative, got: "+ l);
+        idleTimeout=l;
+    }
+    /** Get how long in milliseconds a connection may stay idle in the pool */
+    public synchronized long getIdleTimeout() { return idleTimeout; }
+
+    /** Get the number of connections open to remote hosts, idle or in use */
+    public synchronized int getOpenCount() { return openCount; }
+    /** Get the number of idle connections */
+    public synchronized int getIdleCount() { return idle.size(); }
+    /** Get the number of requests that waited for a connection to be handed back */
+    public synchronized long getWaitCount() { return waitCount; }
+    /** Get the number of requests served with an idle connection */
+    public synchronized long getHitCount() { return hitCount; }
+    /** Get the number of requests that had to open a new connection */
+    public synchronized long getMissCount() { return missCount; }
+    /** Get the number of idle connections closed because they timed out or were closed by the remote host */
+    public synchronized long getEvictedCount() { return evictedCount; }
+
+    /** The remote host at the address did not answer HTTP/2, new connections to it use HTTP/1.1 */
+    public synchronized void setHttp2Refused( String address ) {
+        if( http2Refused.add(address) )
+            logger.info("No HTTP/2 from "+ address +", using HTTP/1.1");
+    }
+    /** Did the remote host at the address fail to answer HTTP/2? */
+    public synchronized boolean isHttp2Refused( String address ) { return http2Refused.contains(address); }
+
+    /**
+     * Ask for a connection to the given address. The waiter is called on the given loop with a live idle connection,
+     * or with null once a new connection may be opened, possibly before this method returns.
+     * Every connection obtained this way must be handed back with release.
+     */
+    public void acquire( String address, ProxyEventLoop loop, Waiter waiter ) {
+        while( true ) {
+            IdleConnection c;
+            synchronized( this ) {
+                c = pollIdle(address);
+                if( c == null ) {
+                    if( !reserve(address) ) {
+                        Waiting w = new Waiting();
+                        w.address = address;
+                        w.loop = loop;
+                        w.waiter = waiter;
+                        waiting.addLast(w);
+                        waitCount++;
+                        logger.debug("Waiting for a connection to: "+ address);
+                        return;
+                    }
+                    missCount++;
+                }
+            }
+            if( c == null ) {
+                waiter.connectionAvailable(null, null, null);
+                return;
+            }
+            if( isAlive(c) ) {
+                synchronized( this ) { hitCount++; }
+                waiter.connectionAvailable(c.channel, c.key, c.tls);
+                return;
+            }
+            logger.debug("Idle connection was closed by the remote host: "+ c.address);
+            synchronized( this ) {
+                evictedCount++;
+                closeConnection(c.address, c.channel, c.tls);
+            }
+        }
+    }
+
+    /**
+     * Hand back a connection obtained from acquire, also when opening it failed and channel is null.
+     * A reusable connection must have no interest set, it goes to a waiting request or stays idle.
+     * The TLS session of an https connection, null for others, goes with it.
+     */
+    public void release( String address, SocketChannel channel, SelectionKey key, SSLByteChannel tls, boolean reusable ) {
+        Waiting w;
+        synchronized( this ) {
+            if( reusable && channel != null && channel.isOpen() && idleTimeout > 0 ) {
+                w = pollWaiting(address);
+                if( w == null ) {
+                    IdleConnection c = new IdleConnection();
+                    c.address = address;
+                    c.channel = channel;
+                    c.key = key;
+                    c.tls = tls;
+                    c.since = System.currentTimeMillis();
+                    idle.addLast(c);
+                    return;
+                }
+                hitCount++;
+            } else {
+                closeConnection(address, channel, tls);
+                channel = null;
+                key = null;
+                tls = null;
+                w = pollWaitingThatFits();
+            }
+        }
+        if( w != null )
+            dispatch(w, channel, key, tls);
+    }
+
+    /** Close the connections idle for longer than the idle timeout and let waiting requests use the room, called periodically */
+    public void evictIdle( long now ) {
+        LinkedList<Waiting> ready = new LinkedList<Waiting>();
+        synchronized( this ) {
+            Iterator<IdleConnection> it = idle.iterator();
+            while( it.hasNext() ) {
+                IdleConnection c = it.next();
+                if( now - c.since <= idleTimeout )
+                    continue;
+                logger.debug("Closing idle connection to: "+ c.address);
+                it.remove();
+                evictedCount++;
+                closeConnection(c.address, c.channel, c.tls);
+            }
+            Waiting w;
+            while( (w = pollWaitingThatFits()) != null )
+                ready.add(w);
+        }
+        Iterator<Waiting> it = ready.iterator();
+        while( it.hasNext() )
+            dispatch(it.next(), null, null, null);
+    }
+
+    /** Close all idle connections, used when the proxy shuts down */
+    public synchronized void closeIdle() {
+        while( !idle.isEmpty() ) {
+            IdleConnection c = idle.removeFirst();
+            closeConnection(c.address, c.channel, c.tls);
+        }
+    }
+
+    /** Take the most recently used idle connection to the address */
+    private IdleConnection pollIdle( String address ) {
+        ListIterator<IdleConnection> it = idle.listIterator(idle.size());
+        while( it.hasPrevious() ) {
+            IdleConnection c = it.previous();
+            if( c.address.equals(address) ) {
+                it.remove();
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /** Count a new connection to the address if the caps allow it, closing the oldest idle connection to another host if needed */
+    private boolean reserve( String address ) {
+        Integer open = openPerHost.get(address);
+        if( open != null && open.intValue() >= maxConnectionsPerHost )
+            return false;
+        if( openCount >= maxConnections ) {
+            if( idle.isEmpty() )
+                return false;
+            IdleConnection oldest = idle.removeFirst();
+            closeConnection(oldest.address, oldest.channel, oldest.tls);
+        }
+        openPerHost.put(address, open == null ? 1 : open.intValue() + 1);
+        openCount++;
+        return true;
+    }
+
+    /** Close the connection, sending a close_notify first if it has a TLS session, and stop counting it */
+    private void closeConnection( String address, SocketChannel channel, SSLByteChannel tls ) {
+        try {
+            if( tls != null )
+                tls.close();
+            else if( channel != null )
+                channel.close();
+        } catch( IOException ignored ) {}
+        Integer open = openPerHost.get(address);
+        if( open == null )
+            return;
+        if( open.intValue() <= 1 )
+            openPerHost.remove(address);
+        else
+            openPerHost.put(address, open.intValue() - 1);
+        openCount--;
+    }
+
+    private Waiting pollWaiting( String address ) {
+        Iterator<Waiting> it = waiting.iterator();
+        while( it.hasNext() ) {
+            Waiting w = it.next();
+            if( w.address.equals(address) ) {
+                it.remove();
+                return w;
+            }
+        }
+        return null;
+    }
+
+    /** Take the first waiting request that may open a new connection, reserving it */
+    private Waiting pollWaitingThatFits() {
+        Iterator<Waiting> it = waiting.iterator();
+        while( it.hasNext() ) {
+            Waiting w = it.next();
+            if( reserve(w.address) ) {
+                it.remove();
+                missCount++;
+                return w;
+            }
+        }
+        return null;
+    }
+
+    /** Hand a connection to a waiting request on its own event loop */
+    private void dispatch( final Waiting w, final SocketChannel channel, final SelectionKey key, final SSLByteChannel tls ) {
+        w.loop.execute(new Runnable() {
+            public void run() {
+                w.waiter.connectionAvailable(channel, key, tls);
+            }
+        });
+    }
+
+    /** An idle connection is alive if reading from it neither finds the end of the stream nor unexpected bytes */
+    private boolean isAlive( IdleConnection c ) {
+        if( !c.channel.isOpen() )
+            return false;
+        try {
+            if( c.tls != null )
+                return c.tls.read( ByteBuffer.allocate(1) ) == 0;
+            return c.channel.read( ByteBuffer.allocate(1) ) == 0;
+        } catch( IOException e ) {
+            return false;
+        }
+    }
+}
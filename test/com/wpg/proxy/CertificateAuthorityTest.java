@@ -0,0 +1,215 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the certificates the authority issues: they parse, verify against the key of the authority, name the
+ * host in the subject alternative name as a dNSName or an iPAddress, and are presented with the authority's
+ * certificate in a handshake a client trusting the authority accepts.  Callers are not left waiting once the
+ * background pool is shut down.
+ */
+public class CertificateAuthorityTest {
+    private static final String OID_SUBJECT_ALT_NAME = "2.5.29.17";
+    private static final String OID_SERVER_AUTH = "1.3.6.1.5.5.7.3.1";
+    private static CertificateAuthority ca;
+    private static KeyPair keys;
+
+    @BeforeClass
+    public static void createAuthority() throws Exception {
+        ca = CertificateAuthority.generate("Test CA");
+        ca.setSpareKeyCount(0);
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        keys = kpg.generateKeyPair();
+    }
+
+    @AfterClass
+    public static void shutdown() {
+        ca.shutdown();
+    }
+
+    @Test
+    public void authorityCertificate() throws Exception {
+        X509Certificate cert = parse( ca.getCertificate() );
+        cert.verify( cert.getPublicKey() );
+        cert.checkValidity();
+        assertEquals( cert.getSubjectX500Principal(), cert.getIssuerX500Principal() );
+        assertTrue( cert.getSubjectX500Principal().getName().indexOf("CN=Test CA") >= 0 );
+        assertTrue( cert.getBasicConstraints() >= 0 );
+        assertTrue( cert.getKeyUsage()[5] ); //keyCertSign
+        assertEquals( 3, cert.getVersion() );
+    }
+
+    @Test
+    public void hostName() throws Exception {
+        X509Certificate cert = issue("www.example.com");
+        assertEquals( "www.example.com", altName(cert, 2) );
+        assertTrue( cert.getSubjectX500Principal().getName().indexOf("CN=www.example.com") >= 0 );
+        assertFalse( cert.getCriticalExtensionOIDs().contains(OID_SUBJECT_ALT_NAME) );
+    }
+
+    @Test
+    public void ipv4Address() throws Exception {
+        X509Certificate cert = issue("192.168.1.20");
+        assertEquals( InetAddress.getByName("192.168.1.20"), InetAddress.getByName( altName(cert, 7) ) );
+    }
+
+    @Test
+    public void ipv6Address() throws Exception {
+        X509Certificate cert = issue("2001:db8::1");
+        assertEquals( InetAddress.getByName("2001:db8::1"), InetAddress.getByName( altName(cert, 7) ) );
+    }
+
+    /** A name too long for the common name leaves the subject empty and makes the alternative name critical */
+    @Test
+    public void longHostName() throws Exception {
+        String host = "a-rather-long-label-for-a-host-name.another-long-label.example.com";
+        assertTrue( host.length() > 64 );
+        X509Certificate cert = issue(host);
+        assertEquals( host, altName(cert, 2) );
+        assertEquals( "", cert.getSubjectX500Principal().getName() );
+        assertTrue( cert.getCriticalExtensionOIDs().contains(OID_SUBJECT_ALT_NAME) );
+    }
+
+    /** A client trusting only the authority accepts the certificate presented for the host it connects to */
+    @Test
+    public void handshake() throws Exception {
+        SSLContext context = ca.getContext("localhost");
+        assertSame( context, ca.getContext("LOCALHOST") );
+        final SSLServerSocket server = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Thread accept = new Thread() {
+            public void run() {
+                try {
+                    SSLSocket s = (SSLSocket) server.accept();
+                    s.setSoTimeout(5000);
+                    s.startHandshake();
+                    s.getOutputStream().write(1);
+                    s.close();
+                } catch( Exception ignored ) {}
+            }
+        };
+        accept.start();
+        try {
+            KeyStore trust = KeyStore.getInstance("JKS");
+            trust.load(null, null);
+            trust.setCertificateEntry("ca", ca.getCertificate());
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(trust);
+            SSLContext client = SSLContext.getInstance("TLS");
+            client.init(null, tmf.getTrustManagers(), null);
+            SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("localhost", server.getLocalPort());
+            socket.setSoTimeout(5000);
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(parameters);
+            socket.startHandshake();
+            Certificate[] chain = socket.getSession().getPeerCertificates();
+            assertEquals( 2, chain.length );
+            assertEquals( "localhost", altName( (X509Certificate) chain[0], 2 ) );
+            assertEquals( ca.getCertificate(), chain[1] );
+            assertEquals( 1, socket.getInputStream().read() );
+            socket.close();
+        } finally {
+            server.close();
+            accept.join(5000);
+        }
+    }
+
+    /** Once the background pool is shut down the callers are told right away, none is left waiting */
+    @Test
+    public void shutDownPool() throws Exception {
+        CertificateAuthority stopped = CertificateAuthority.generate("Stopped CA");
+        stopped.setSpareKeyCount(0);
+        stopped.shutdown();
+        final List<String> failed = new ArrayList<String>();
+        CertificateAuthority.Callback callback = new CertificateAuthority.Callback() {
+            public void issued( String host, SSLContext context ) {
+                fail("Issued a certificate for "+ host);
+            }
+            public void failed( String host, Exception e ) {
+                failed.add(host);
+            }
+        };
+        assertNull( stopped.getContext("www.example.com", callback) );
+        assertNull( stopped.getContext("www.example.com", callback) );
+        assertEquals( Arrays.asList("www.example.com", "www.example.com"), failed );
+    }
+
+    /** Issue a certificate for the host and check what every certificate issued has in common */
+    private static X509Certificate issue( String host ) throws Exception {
+        X509Certificate cert = parse( ca.issue(host, keys.getPublic()) );
+        cert.verify( ca.getCertificate().getPublicKey() );
+        cert.checkValidity();
+        assertEquals( ca.getCertificate().getSubjectX500Principal(), cert.getIssuerX500Principal() );
+        assertEquals( keys.getPublic(), cert.getPublicKey() );
+        assertEquals( 3, cert.getVersion() );
+        assertEquals( -1, cert.getBasicConstraints() );
+        assertTrue( cert.getExtendedKeyUsage().contains(OID_SERVER_AUTH) );
+        assertFalse( cert.getNotAfter().after( ca.getCertificate().getNotAfter() ) );
+        return cert;
+    }
+
+    /** Parse the encoded certificate again, as a client receiving it would */
+    private static X509Certificate parse( X509Certificate cert ) throws Exception {
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate( new ByteArrayInputStream( cert.getEncoded() ) );
+    }
+
+    /** Get the only subject alternative name, which must be of the given type */
+    private static String altName( X509Certificate cert, int type ) throws Exception {
+        Collection<List<?>> names = cert.getSubjectAlternativeNames();
+        assertNotNull( names );
+        assertEquals( 1, names.size() );
+        Iterator<List<?>> it = names.iterator();
+        List<?> name = it.next();
+        assertEquals( Integer.valueOf(type), name.get(0) );
+        return (String) name.get(1);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import static com.wpg.proxy.HttpMessageParserTest.ascii;
+import static com.wpg.proxy.HttpMessageParserTest.checkBytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Test;
+
+/** Checks the chunked decoder on bodies split at every byte offset, chunk extensions, trailers and malformed input */
+public class ChunkedDecoderTest {
+    private static final String BODY = "1A;name=\"quoted;value\"\r\n"
+            + "abcdefghijklmnopqrstuvwxyz\r\n"
+            + "10 ; spaced\r\n"
+            + "\r\n\r\n\r\n\r\n\r\n\r\n\r\n\r\n\r\n"
+            + "0;last\r\n"
+            + "X-A: 1\r\n"
+            + "X-B: 2\r\n"
+            + "\tfolded\r\n"
+            + "\r\n";
+    private static final String DATA = "abcdefghijklmnopqrstuvwxyz\r\n\r\n\r\n\r\n\r\n\r\n\r\n\r\n";
+    /** The start of the next message, which the decoder must leave alone */
+    private static final String NEXT = "HTTP/1.1 200 OK\r\n";
+
+    @Test
+    public void splitAtEveryOffset() throws IOException {
+        byte[] body = ascii(BODY + NEXT);
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        for( int split=0; split<= BODY.length(); split++ ) {
+            decoder.reset();
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            ByteBuffer first = ByteBuffer.wrap(body, 0, split);
+            decodeAll(decoder, first, data);
+            assertEquals( "split at "+ split, split == BODY.length(), decoder.isComplete() );
+            ByteBuffer rest = ByteBuffer.wrap(body, split, body.length - split);
+            decodeAll(decoder, rest, data);
+            assertTrue( "split at "+ split, decoder.isComplete() );
+            checkBody(decoder, data);
+            assertEquals( NEXT.length(), rest.remaining() );
+        }
+    }
+
+    @Test
+    public void byteByByte() throws IOException {
+        byte[] body = ascii(BODY);
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for( int i=0; i< body.length; i++ ) {
+            assertFalse( decoder.isComplete() );
+            decodeAll(decoder, ByteBuffer.wrap(body, i, 1), data);
+        }
+        assertTrue( decoder.isComplete() );
+        checkBody(decoder, data);
+    }
+
+    /** Chunk data is handed out as it arrives, without waiting for the whole chunk */
+    @Test
+    public void partialChunk() throws IOException {
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        ByteBuffer data = decoder.decode( ByteBuffer.wrap( ascii("100\r\nabc") ) );
+        assertEquals( 3, data.remaining() );
+        assertNull( decoder.decode( ByteBuffer.wrap( new byte[0] ) ) );
+        assertFalse( decoder.isComplete() );
+    }
+
+    @Test
+    public void withoutTrailers() throws IOException {
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        //a bare line feed ends a line too
+        decodeAll(decoder, ByteBuffer.wrap( ascii("3\nabc\n0\n\n") ), data);
+        assertTrue( decoder.isComplete() );
+        assertEquals( "abc", data.toString("ISO-8859-1") );
+        assertNull( decoder.getTrailers() );
+    }
+
+    @Test
+    public void malformedSize() {
+        String[] sizes = { "", " ", "xyz", "-1", "+1", "0x10", "1 2", "1000000000000000" };
+        for( int i=0; i< sizes.length; i++ )
+            checkRejected( new ChunkedDecoder(), sizes[i] +"\r\n" );
+        StringBuffer longLine = new StringBuffer("1;");
+        while( longLine.length() <= 1024*8 )
+            longLine.append('x');
+        checkRejected( new ChunkedDecoder(), longLine +"\r\n" );
+    }
+
+    @Test
+    public void malformedBody() {
+        checkRejected( new ChunkedDecoder(), "3\r\nabcd\r\n0\r\n\r\n" );
+        checkRejected( new ChunkedDecoder(), "0\r\nno colon\r\n\r\n" );
+        checkRejected( new ChunkedDecoder(), "0\r\n: no name\r\n\r\n" );
+        checkRejected( new ChunkedDecoder(), "0\r\n folded first\r\n\r\n" );
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        decoder.setMaxTrailerSize(10);
+        checkRejected( decoder, "0\r\nX-Trailer: too long\r\n\r\n" );
+    }
+
+    private static void decodeAll( ChunkedDecoder decoder, ByteBuffer in, ByteArrayOutputStream out ) throws IOException {
+        ByteBuffer data;
+        while( (data = decoder.decode(in)) != null || (in.hasRemaining() && !decoder.isComplete()) ) {
+            while( data != null && data.hasRemaining() )
+                out.write( data.get() );
+        }
+    }
+
+    private static void checkBody( ChunkedDecoder decoder, ByteArrayOutputStream data ) {
+        checkBytes( ascii(DATA), data.toByteArray() );
+        List<String> trailers = decoder.getTrailers();
+        assertEquals( 2, trailers.size() );
+        assertEquals( "X-A: 1", trailers.get(0) );
+        assertEquals( "X-B: 2 folded", trailers.get(1) );
+    }
+
+    private static void checkRejected( ChunkedDecoder decoder, String body ) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap( ascii(body) );
+            while( in.hasRemaining() && !decoder.isComplete() )
+                decoder.decode(in);
+            fail("Accepted: "+ body);
+        } catch( IOException expected ) {}
+    }
+}
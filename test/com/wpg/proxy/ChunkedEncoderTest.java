@@ -0,0 +1,122 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import static com.wpg.proxy.HttpMessageParserTest.ascii;
+import static com.wpg.proxy.HttpMessageParserTest.checkBytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/** Checks the chunks the encoder writes, and that the decoder gets back what went in */
+public class ChunkedEncoderTest {
+
+    @Test
+    public void encode() throws IOException {
+        List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+        ByteBuffer data = ByteBuffer.wrap( ascii("hello world, chunked") );
+        int added = ChunkedEncoder.encode(data, out);
+        assertEquals( 0, data.remaining() );
+        added += ChunkedEncoder.encode(ByteBuffer.wrap( new byte[0] ), out);
+        added += ChunkedEncoder.encodeLast(null, out);
+        String encoded = drain(out, added);
+        assertEquals( "14\r\nhello world, chunked\r\n0\r\n\r\n", encoded );
+    }
+
+    @Test
+    public void encodeLastWithTrailers() throws IOException {
+        List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+        int added = ChunkedEncoder.encodeLast( Arrays.asList( new String[] { "x-a: 1", "x-b: 2" } ), out );
+        assertEquals( "0\r\nx-a: 1\r\nx-b: 2\r\n\r\n", drain(out, added) );
+    }
+
+    /** Data larger than the largest pooled buffer goes out as several chunks */
+    @Test
+    public void largeData() throws IOException {
+        byte[] data = body( BufferPool.getSingleton().getMaxBufferSize()*3 + 7 );
+        List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+        int added = ChunkedEncoder.encode(ByteBuffer.wrap(data), out);
+        assertTrue( out.size() >= 4 );
+        for( int i=0; i< out.size(); i++ )
+            assertTrue( out.get(i).remaining() <= BufferPool.getSingleton().getMaxBufferSize() );
+        added += ChunkedEncoder.encodeLast(null, out);
+        checkBytes( data, roundTrip(out, added, null) );
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        int[] sizes = { 1, 15, 16, 255, 256, 4096-12, 4096, 1024*64-12, 1024*64, 100000 };
+        List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        int added = 0;
+        for( int i=0; i< sizes.length; i++ ) {
+            byte[] data = body(sizes[i]);
+            expected.write(data, 0, data.length);
+            added += ChunkedEncoder.encode(ByteBuffer.wrap(data), out);
+        }
+        List<String> trailers = Arrays.asList( new String[] { "x-checksum: 1234", "x-more: yes" } );
+        added += ChunkedEncoder.encodeLast(trailers, out);
+        checkBytes( expected.toByteArray(), roundTrip(out, added, trailers) );
+    }
+
+    /** Decode the encoded buffers, checking the trailers come back as they were given */
+    private static byte[] roundTrip( List<ByteBuffer> out, int added, List<String> trailers ) throws IOException {
+        ByteBuffer encoded = ByteBuffer.wrap( ascii( drain(out, added) ) );
+        ChunkedDecoder decoder = new ChunkedDecoder();
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        while( !decoder.isComplete() ) {
+            ByteBuffer data = decoder.decode(encoded);
+            while( data != null && data.hasRemaining() )
+                decoded.write( data.get() );
+        }
+        assertEquals( 0, encoded.remaining() );
+        assertEquals( trailers, decoder.getTrailers() );
+        return decoded.toByteArray();
+    }
+
+    /** Read the buffers into a string of the bytes, checking their size and handing them back to the pool */
+    private static String drain( List<ByteBuffer> buffers, int size ) {
+        StringBuffer sb = new StringBuffer();
+        for( int i=0; i< buffers.size(); i++ ) {
+            ByteBuffer b = buffers.get(i);
+            while( b.hasRemaining() )
+                sb.append( (char) (b.get() & 0xff) );
+            BufferPool.getSingleton().release(b);
+        }
+        buffers.clear();
+        assertEquals( size, sb.length() );
+        return sb.toString();
+    }
+
+    private static byte[] body( int size ) {
+        byte[] b = new byte[size];
+        for( int i=0; i< size; i++ )
+            b[i] = (byte) (i * 31 + i / 251);
+        return b;
+    }
+}
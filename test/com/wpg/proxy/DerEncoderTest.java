@@ -0,0 +1,80 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import static com.wpg.proxy.HpackTest.hex;
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/** Checks the DER encodings against known bytes */
+public class DerEncoderTest {
+
+    @Test
+    public void lengths() {
+        assertEquals( "0400", hex( DerEncoder.octetString( new byte[0] ) ) );
+        assertEquals( "047f", hex( DerEncoder.octetString( new byte[0x7f] ) ).substring(0, 4) );
+        assertEquals( "048180", hex( DerEncoder.octetString( new byte[0x80] ) ).substring(0, 6) );
+        assertEquals( "0481ff", hex( DerEncoder.octetString( new byte[0xff] ) ).substring(0, 6) );
+        assertEquals( "04820100", hex( DerEncoder.octetString( new byte[0x100] ) ).substring(0, 8) );
+        assertEquals( "0483010000", hex( DerEncoder.octetString( new byte[0x10000] ) ).substring(0, 10) );
+    }
+
+    @Test
+    public void integers() {
+        assertEquals( "020100", hex( DerEncoder.integer(0) ) );
+        assertEquals( "02017f", hex( DerEncoder.integer(127) ) );
+        assertEquals( "02020080", hex( DerEncoder.integer(128) ) );
+        assertEquals( "0201ff", hex( DerEncoder.integer(-1) ) );
+        assertEquals( "0209010000000000000000", hex( DerEncoder.integer( BigInteger.ONE.shiftLeft(64) ) ) );
+    }
+
+    @Test
+    public void objectIdentifiers() {
+        assertEquals( "06092a864886f70d01010b", hex( DerEncoder.oid("1.2.840.113549.1.1.11") ) ); //sha256WithRSAEncryption
+        assertEquals( "0603551d11", hex( DerEncoder.oid("2.5.29.17") ) ); //subjectAltName
+        assertEquals( "06082b06010505070301", hex( DerEncoder.oid("1.3.6.1.5.5.7.3.1") ) ); //serverAuth
+    }
+
+    @Test
+    public void constructed() {
+        assertEquals( "3000", hex( DerEncoder.sequence() ) );
+        assertEquals( "30050101ff0500", hex( DerEncoder.sequence( DerEncoder.bool(true), null, DerEncoder.nul() ) ) );
+        assertEquals( "3103020101", hex( DerEncoder.set( DerEncoder.integer(1) ) ) );
+        assertEquals( "a003020102", hex( DerEncoder.explicit(0, DerEncoder.integer(2)) ) );
+        assertEquals( "030205a0", hex( DerEncoder.bitString( new byte[] { (byte) 0xa0 }, 5 ) ) );
+        assertEquals( "0c03c3a961", hex( DerEncoder.utf8String("\u00e9a") ) );
+    }
+
+    /** UTCTime up to 2049, GeneralizedTime from 2050 on */
+    @Test
+    public void times() {
+        Calendar c = Calendar.getInstance( TimeZone.getTimeZone("UTC") );
+        c.clear();
+        c.set(2049, Calendar.DECEMBER, 31, 23, 59, 58);
+        assertEquals( "170d3439313233313233353935385a", hex( DerEncoder.time( c.getTime() ) ) ); //491231235958Z
+        c.set(2050, Calendar.JANUARY, 1, 0, 0, 0);
+        assertEquals( "180f32303530303130313030303030305a", hex( DerEncoder.time( c.getTime() ) ) ); //20500101000000Z
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the HPACK decoder and encoder against the examples of RFC 7541 Appendix C, the blocks of each example
+ * going through one instance in order so the dynamic table is exercised along the way.
+ */
+public class HpackTest {
+
+    /** C.2.1 Literal Header Field with Indexing */
+    @Test
+    public void literalWithIndexing() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        checkDecode(decoder, "400a637573746f6d2d6b65790d637573746f6d2d686561646572", "custom-key", "custom-header");
+        //the field went into the dynamic table
+        checkDecode(decoder, "be", "custom-key", "custom-header");
+    }
+
+    /** C.2.2 Literal Header Field without Indexing */
+    @Test
+    public void literalWithoutIndexing() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        checkDecode(decoder, "040c2f73616d706c652f70617468", ":path", "/sample/path");
+        checkIndexError(decoder, "be");
+    }
+
+    /** C.2.3 Literal Header Field Never Indexed */
+    @Test
+    public void literalNeverIndexed() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        checkDecode(decoder, "100870617373776f726406736563726574", "password", "secret");
+        checkIndexError(decoder, "be");
+    }
+
+    /** C.2.4 Indexed Header Field */
+    @Test
+    public void indexed() throws IOException {
+        checkDecode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "82", ":method", "GET");
+    }
+
+    /** C.3 Request Examples without Huffman Coding */
+    @Test
+    public void requestsWithoutHuffman() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        checkDecode(decoder, "828684410f7777772e6578616d706c652e636f6d",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        checkDecode(decoder, "828684be58086e6f2d6361636865",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+        checkDecode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565",
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+    }
+
+    /** C.4 Request Examples with Huffman Coding */
+    @Test
+    public void requestsWithHuffman() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        checkDecode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        checkDecode(decoder, "828684be5886a8eb10649cbf",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+        checkDecode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf",
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+    }
+
+    /** C.4 again, the encoder indexes the same fields and picks the Huffman code for the same strings as the RFC */
+    @Test
+    public void encodeRequestsWithHuffman() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        checkEncode(encoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        checkEncode(encoder, "828684be5886a8eb10649cbf",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+        checkEncode(encoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf",
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+    }
+
+    /** C.5 Response Examples without Huffman Coding, the 256 byte table evicts entries along the way */
+    @Test
+    public void responsesWithoutHuffman() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        checkDecode(decoder, "4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d546e1768747470733a2f2f7777772e6578616d706c652e636f6d",
+                ":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+        checkDecode(decoder, "4803333037c1c0bf",
+                ":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+        checkDecode(decoder, "88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04677a69707738666f6f3d4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d6167653d333630303b2076657273696f6e3d31",
+                ":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT", "location", "https://www.example.com",
+                "content-encoding", "gzip", "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+    }
+
+    /** C.6 Response Examples with Huffman Coding */
+    @Test
+    public void responsesWithHuffman() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        checkDecode(decoder, "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3",
+                ":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+        checkDecode(decoder, "4883640effc1c0bf",
+                ":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com");
+        checkDecode(decoder, "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007",
+                ":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT", "location", "https://www.example.com",
+                "content-encoding", "gzip", "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+    }
+
+    /** Fields the encoder keeps out of the tables or indexes come back unchanged, block after block */
+    @Test
+    public void roundTrip() throws IOException {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        for( int i=0; i< 50; i++ ) {
+            String[] fields = { ":method", "POST", ":scheme", "https", ":path", "/upload/"+ i, ":authority", "example.com",
+                "authorization", "Basic secret"+ i, "content-length", String.valueOf(i * 1000), "x-binary", "\u00ff\u0000\u0080 "+ i };
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.encode(Arrays.asList(fields), out);
+            checkDecode(decoder, out.toByteArray(), fields);
+        }
+    }
+
+    /** A table size the peer lowered reaches the decoder with the next block */
+    @Test
+    public void tableSizeUpdate() throws IOException {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        String[] fields = { ":method", "GET", ":authority", "www.example.com" };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(Arrays.asList(fields), out);
+        checkDecode(decoder, out.toByteArray(), fields);
+        encoder.setMaxTableSize(0);
+        out.reset();
+        encoder.encode(Arrays.asList(fields), out);
+        byte[] block = out.toByteArray();
+        assertEquals(0x20, block[0] & 0xff);
+        checkDecode(decoder, block, fields);
+    }
+
+    @Test
+    public void malformedBlocks() throws IOException {
+        //an index past both tables, a string longer than the block and an integer that does not end
+        checkIndexError(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "ff00");
+        checkIndexError(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "400a6375");
+        checkIndexError(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "ffffffffffff");
+        //a table size update above the size the decoder allows
+        checkIndexError(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "3fe21f");
+    }
+
+    private static void checkDecode( Hpack.Decoder decoder, String hex, String... expected ) throws IOException {
+        checkDecode(decoder, bytes(hex), expected);
+    }
+
+    private static void checkDecode( Hpack.Decoder decoder, byte[] block, String... expected ) throws IOException {
+        final List<String> fields = new ArrayList<String>();
+        decoder.decode(block, 0, block.length, new Hpack.FieldListener() {
+            public void field( String name, String value ) {
+                fields.add(name);
+                fields.add(value);
+            }
+        });
+        assertEquals(Arrays.asList(expected), fields);
+    }
+
+    private static void checkEncode( Hpack.Encoder encoder, String hex, String... fields ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(Arrays.asList(fields), out);
+        assertEquals(hex, hex(out.toByteArray()));
+    }
+
+    private static void checkIndexError( Hpack.Decoder decoder, String hex ) {
+        byte[] block = bytes(hex);
+        try {
+            decoder.decode(block, 0, block.length, new Hpack.FieldListener() {
+                public void field( String name, String value ) {
+                }
+            });
+            fail("Decoded the malformed block "+ hex);
+        } catch( IOException expected ) {
+        }
+    }
+
+    static byte[] bytes( String hex ) {
+        byte[] b = new byte[hex.length() / 2];
+        for( int i=0; i< b.length; i++ )
+            b[i] = (byte) Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+        return b;
+    }
+
+    static String hex( byte[] b ) {
+        StringBuilder sb = new StringBuilder();
+        for( int i=0; i< b.length; i++ )
+            sb.append( Integer.toHexString((b[i] & 0xff) | 0x100).substring(1) );
+        return sb.toString();
+    }
+}
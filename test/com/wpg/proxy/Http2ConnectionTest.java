@@ -0,0 +1,368 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.security.KeyStore;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs requests through a proxy to the stand-in origin, checking how the proxy picks HTTP/2, through ALPN or prior
+ * knowledge, falls back to HTTP/1.1 when the origin does not speak it, and keeps to the flow control and header limits.
+ * Intercepted connections are also checked to serve several requests in turn.
+ */
+public class Http2ConnectionTest {
+    private static CertificateAuthority ca;
+    private static SSLContext clientContext;
+    private Proxy proxy;
+    private int proxyPort;
+    private Http2Origin origin;
+
+    @BeforeClass
+    public static void createAuthority() throws Exception {
+        ca = CertificateAuthority.generate("Test CA");
+        KeyStore trust = KeyStore.getInstance("JKS");
+        trust.load(null, null);
+        trust.setCertificateEntry("ca", ca.getCertificate());
+        //the proxy trusts what the JVM trusts, so the authority of the origin joins that
+        File file = File.createTempFile("proxy-test", ".jks");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            trust.store(out, "password".toCharArray());
+        } finally {
+            out.close();
+        }
+        System.setProperty("javax.net.ssl.trustStore", file.getPath());
+        System.setProperty("javax.net.ssl.trustStorePassword", "password");
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trust);
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, tmf.getTrustManagers(), null);
+    }
+
+    private void start( int mode ) throws Exception {
+        origin = new Http2Origin(mode, ca.getContext("127.0.0.1"));
+        //bound the way the proxy binds, so the port is not one a closed connection still holds
+        ServerSocketChannel free = ServerSocketChannel.open();
+        free.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        proxyPort = free.socket().getLocalPort();
+        free.close();
+        proxy = new Proxy(InetAddress.getByName("127.0.0.1"), proxyPort, 50);
+        proxy.setEventLoopCount(1);
+        proxy.setSecurePort(0);
+        proxy.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while( true ) {
+            try {
+                new Socket("127.0.0.1", proxyPort).close();
+                return;
+            } catch( IOException e ) {
+                if( System.currentTimeMillis() > deadline )
+                    throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @After
+    public void stop() throws Exception {
+        if( proxy != null )
+            proxy.shutdown();
+        if( origin != null )
+            origin.close();
+        ProxyRegistry.removeHttp2Host("127.0.0.1");
+        ProxyRegistry.enableHttp2(false);
+        ProxyRegistry.setCertificateAuthority(null);
+        ProxyRegistry.enableResponseStreaming(false);
+    }
+
+    @Test(timeout=30000)
+    public void priorKnowledge() throws Exception {
+        ProxyRegistry.addHttp2Host("127.0.0.1");
+        start(Http2Origin.MODE_H2C);
+        checkBody( get("http://127.0.0.1:"+ origin.getPort() +"/body/100000"), 100000 );
+        checkBody( get("http://127.0.0.1:"+ origin.getPort() +"/body/0"), 0 );
+        assertEquals("h2c", origin.protocols.get(0));
+        assertEquals(Integer.valueOf(1024*64), origin.settings.get(0x6));
+    }
+
+    @Test(timeout=30000)
+    public void priorKnowledgeFallsBackToHttp1() throws Exception {
+        ProxyRegistry.addHttp2Host("127.0.0.1");
+        start(Http2Origin.MODE_HTTP1);
+        checkBody( get("http://127.0.0.1:"+ origin.getPort() +"/body/5000"), 5000 );
+        checkBody( get("http://127.0.0.1:"+ origin.getPort() +"/body/5000"), 5000 );
+        assertEquals(2, origin.protocols.size());
+        assertEquals("http/1.1", origin.protocols.get(0));
+        assertEquals("http/1.1", origin.protocols.get(1));
+    }
+
+    @Test(timeout=30000)
+    public void alpn() throws Exception {
+        ProxyRegistry.enableHttp2(true);
+        ProxyRegistry.setCertificateAuthority(ca);
+        start(Http2Origin.MODE_TLS_H2);
+        checkBody( getIntercepted("/body/100000"), 100000 );
+        //runtimes without ALPN speak HTTP/1.1 with the origin
+        if( hasAlpn() )
+            assertEquals("h2", origin.protocols.get(0));
+        else
+            assertEquals("http/1.1", origin.protocols.get(0));
+    }
+
+    @Test(timeout=30000)
+    public void alpnFallsBackToHttp1() throws Exception {
+        ProxyRegistry.enableHttp2(true);
+        ProxyRegistry.setCertificateAuthority(ca);
+        start(Http2Origin.MODE_TLS_HTTP1);
+        checkBody( getIntercepted("/body/100000"), 100000 );
+        assertEquals("http/1.1", origin.protocols.get(0));
+    }
+
+    @Test(timeout=30000)
+    public void interceptedKeepAlive() throws Exception {
+        ProxyRegistry.setCertificateAuthority(ca);
+        start(Http2Origin.MODE_TLS_HTTP1);
+        Socket client = new Socket("127.0.0.1", proxyPort);
+        try {
+            client.setSoTimeout(20000);
+            SSLSocket tls = intercept(client);
+            //pipelined one record each, the proxy reads the later ones from the TLS session after the first response
+            OutputStream out = tls.getOutputStream();
+            int[] sizes = { 1000, 20000, 0, 5000 };
+            for( int i=0; i< sizes.length; i++ )
+                out.write( ("GET /body/"+ sizes[i] +" HTTP/1.1\r\nHost: 127.0.0.1:"+ origin.getPort() +"\r\n\r\n").getBytes("ISO-8859-1") );
+            out.flush();
+            for( int i=0; i< sizes.length; i++ )
+                checkBody( readKeptResponse(tls.getInputStream()), sizes[i] );
+            //and one more once the connection went quiet
+            out.write( ("GET /body/300 HTTP/1.1\r\nHost: 127.0.0.1:"+ origin.getPort() +"\r\n\r\n").getBytes("ISO-8859-1") );
+            checkBody( readKeptResponse(tls.getInputStream()), 300 );
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout=60000)
+    public void flowControl() throws Exception {
+        ProxyRegistry.addHttp2Host("127.0.0.1");
+        start(Http2Origin.MODE_H2C);
+        //larger than both the stream and the default windows, the origin only sends what the proxy grants
+        final byte[][] bodies = new byte[4][];
+        Thread[] threads = new Thread[bodies.length];
+        for( int i=0; i< threads.length; i++ ) {
+            final int n = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        bodies[n] = get("http://127.0.0.1:"+ origin.getPort() +"/body/2000000");
+                    } catch( IOException e ) {
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for( int i=0; i< threads.length; i++ ) {
+            threads[i].join();
+            checkBody( bodies[i], 2000000 );
+        }
+        assertTrue("The proxy never opened the windows", origin.windowUpdates > 0);
+        assertTrue(origin.resets.isEmpty());
+        assertTrue(origin.goAways.isEmpty());
+    }
+
+    @Test(timeout=30000)
+    public void streamWindowExceeded() throws Exception {
+        ProxyRegistry.addHttp2Host("127.0.0.1");
+        ProxyRegistry.enableResponseStreaming(true);
+        start(Http2Origin.MODE_H2C);
+        //a client that does not read makes the proxy pause the stream, the origin goes on regardless
+        Socket client = new Socket();
+        client.setReceiveBufferSize(4096);
+        client.connect(new InetSocketAddress("127.0.0.1", proxyPort));
+        try {
+            sendRequest(client, "http://127.0.0.1:"+ origin.getPort() +"/greedy/8000000");
+            while( origin.resets.isEmpty() )
+                Thread.sleep(50);
+            assertEquals(Integer.valueOf(0x3), origin.resets.get(0)); //FLOW_CONTROL_ERROR
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout=30000)
+    public void headerBlockLimit() throws Exception {
+        ProxyRegistry.addHttp2Host("127.0.0.1");
+        start(Http2Origin.MODE_H2C);
+        Socket client = new Socket("127.0.0.1", proxyPort);
+        try {
+            sendRequest(client, "http://127.0.0.1:"+ origin.getPort() +"/flood");
+            while( origin.goAways.isEmpty() )
+                Thread.sleep(50);
+            assertEquals(Integer.valueOf(0x1), origin.goAways.get(0)); //PROTOCOL_ERROR
+        } finally {
+            client.close();
+        }
+    }
+
+    private static boolean hasAlpn() {
+        try {
+            SSLSocket.class.getMethod("getApplicationProtocol");
+            return true;
+        } catch( NoSuchMethodException e ) {
+            return false;
+        }
+    }
+
+    /** Get the body of the given URL through the proxy, failing on any status but 200 */
+    private byte[] get( String url ) throws IOException {
+        Socket client = new Socket("127.0.0.1", proxyPort);
+        try {
+            client.setSoTimeout(20000);
+            sendRequest(client, url);
+            return readResponse(client.getInputStream());
+        } finally {
+            client.close();
+        }
+    }
+
+    /** Get the body of the given path of the origin through a CONNECT tunnel the proxy intercepts */
+    private byte[] getIntercepted( String path ) throws IOException {
+        Socket client = new Socket("127.0.0.1", proxyPort);
+        try {
+            client.setSoTimeout(20000);
+            SSLSocket tls = intercept(client);
+            tls.getOutputStream().write( ("GET "+ path +" HTTP/1.1\r\nHost: 127.0.0.1:"+ origin.getPort() +"\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1") );
+            return readResponse(tls.getInputStream());
+        } finally {
+            client.close();
+        }
+    }
+
+    /** Open a CONNECT tunnel to the origin over the client connection and start the TLS session the proxy intercepts */
+    private SSLSocket intercept( Socket client ) throws IOException {
+        String authority = "127.0.0.1:"+ origin.getPort();
+        client.getOutputStream().write( ("CONNECT "+ authority +" HTTP/1.1\r\nHost: "+ authority +"\r\n\r\n").getBytes("ISO-8859-1") );
+        String head = readHead(client.getInputStream());
+        assertTrue(head, head.startsWith("HTTP/1.") && head.contains(" 200 "));
+        SSLSocket tls = (SSLSocket) clientContext.getSocketFactory().createSocket(client, "127.0.0.1", origin.getPort(), true);
+        tls.startHandshake();
+        return tls;
+    }
+
+    private static void sendRequest( Socket client, String url ) throws IOException {
+        String authority = url.substring(7, url.indexOf('/', 7));
+        client.getOutputStream().write( ("GET "+ url +" HTTP/1.1\r\nHost: "+ authority +"\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1") );
+    }
+
+    /** Read a response up to the end of the connection and get its body, decoded if it is chunked */
+    private static byte[] readResponse( InputStream in ) throws IOException {
+        String head = readHead(in);
+        assertTrue("No response", head != null);
+        assertTrue(head, head.startsWith("HTTP/1.1 200 "));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while( (n = in.read(buffer)) > 0 )
+            body.write(buffer, 0, n);
+        if( !head.toLowerCase().contains("transfer-encoding: chunked") )
+            return body.toByteArray();
+        InputStream chunks = new java.io.ByteArrayInputStream(body.toByteArray());
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        while( true ) {
+            String line = readLine(chunks);
+            int size = Integer.parseInt(line.split(";")[0].trim(), 16);
+            if( size == 0 )
+                return decoded.toByteArray();
+            for( int i=0; i< size; i++ )
+                decoded.write(chunks.read());
+            readLine(chunks);
+        }
+    }
+
+    /** Read a response the connection stays open after and get its body, going by its Content-Length */
+    private static byte[] readKeptResponse( InputStream in ) throws IOException {
+        String head = readHead(in);
+        assertTrue("No response", head != null);
+        assertTrue(head, head.startsWith("HTTP/1.1 200 "));
+        int length = 0;
+        String[] lines = head.split("\r\n");
+        for( int i=1; i< lines.length; i++ ) {
+            if( lines[i].toLowerCase().startsWith("content-length:") )
+                length = Integer.parseInt( lines[i].substring(15).trim() );
+        }
+        byte[] body = new byte[length];
+        int offset = 0;
+        while( offset < length ) {
+            int n = in.read(body, offset, length - offset);
+            assertTrue("Connection closed within the body", n > 0);
+            offset += n;
+        }
+        return body;
+    }
+
+    private static String readHead( InputStream in ) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while( sb.length() < 4 || !sb.substring(sb.length() - 4).equals("\r\n\r\n") ) {
+            int b = in.read();
+            if( b < 0 )
+                return sb.length() == 0 ? null : sb.toString();
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    private static String readLine( InputStream in ) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while( (b = in.read()) >= 0 && b != '\n' )
+            if( b != '\r' )
+                sb.append((char) b);
+        return sb.toString();
+    }
+
+    private static void checkBody( byte[] body, int size ) {
+        assertTrue("No body", body != null);
+        assertEquals(size, body.length);
+        for( int i=0; i< size; i++ ) {
+            if( body[i] != Http2Origin.bodyByte(i) )
+                throw new AssertionError("Body differs at byte "+ i);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Stand-in origin for the HTTP/2 tests, speaking just enough HTTP/2 and HTTP/1.1 to serve the proxy.<p>
+ * It listens in one of four modes: h2c by prior knowledge, TLS offering h2 and http/1.1 through ALPN, TLS offering
+ * http/1.1 only, and plain HTTP/1.1.  The path of a request picks the answer:
+ * /body/n answers n bytes sent within the windows the proxy grants, /greedy/n answers n bytes ignoring them and
+ * /flood answers a header block that never ends.  What the proxy sent back is recorded for the tests to check.
+ */
+class Http2Origin implements Runnable {
+    static final int MODE_H2C = 0;
+    static final int MODE_TLS_H2 = 1;
+    static final int MODE_TLS_HTTP1 = 2;
+    static final int MODE_HTTP1 = 3;
+
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    private final int mode;
+    private final ServerSocket server;
+    private volatile boolean closed = false;
+    /** The protocol of every request served, h2c, h2 or http/1.1 */
+    final List<String> protocols = Collections.synchronizedList(new ArrayList<String>());
+    /** The error codes of the RST_STREAM frames the proxy sent */
+    final List<Integer> resets = Collections.synchronizedList(new ArrayList<Integer>());
+    /** The error codes of the GOAWAY frames the proxy sent */
+    final List<Integer> goAways = Collections.synchronizedList(new ArrayList<Integer>());
+    /** The settings the proxy sent last */
+    final Map<Integer,Integer> settings = Collections.synchronizedMap(new HashMap<Integer,Integer>());
+    /** The number of WINDOW_UPDATE frames the proxy sent */
+    volatile int windowUpdates = 0;
+
+    /** Listen on an ephemeral port of the loopback address, the TLS modes present a certificate from the given context */
+    Http2Origin( int mode, SSLContext context ) throws IOException {
+        this.mode = mode;
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        if( mode == MODE_TLS_H2 || mode == MODE_TLS_HTTP1 )
+            server = context.getServerSocketFactory().createServerSocket(0, 50, loopback);
+        else
+            server = new ServerSocket(0, 50, loopback);
+        Thread t = new Thread(this, "Origin "+ server.getLocalPort());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    int getPort() { return server.getLocalPort(); }
+
+    void close() throws IOException {
+        closed = true;
+        server.close();
+    }
+
+    /** The byte at the given offset of every body served */
+    static byte bodyByte( int i ) { return (byte) (i % 251); }
+
+    public void run() {
+        while( !closed ) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch( IOException e ) {
+                return;
+            }
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch( IOException e ) {
+                        //the proxy went away
+                    } finally {
+                        try { socket.close(); } catch( IOException ignored ) {}
+                    }
+                }
+            }, "Origin connection");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void serve( Socket socket ) throws IOException {
+        if( mode == MODE_H2C ) {
+            new Session(socket, "h2c").run();
+            return;
+        }
+        if( socket instanceof SSLSocket ) {
+            SSLSocket ssl = (SSLSocket) socket;
+            setApplicationProtocols(ssl, mode == MODE_TLS_H2 ? new String[] { "h2", "http/1.1" } : new String[] { "http/1.1" });
+            ssl.startHandshake();
+            if( "h2".equals( getApplicationProtocol(ssl) ) ) {
+                new Session(socket, "h2").run();
+                return;
+            }
+        }
+        serveHttp1(socket);
+    }
+
+    /** Offer the given protocols through ALPN, the API is looked up so the tests also build on runtimes without it */
+    private static void setApplicationProtocols( SSLSocket socket, String[] protocols ) {
+        try {
+            SSLParameters params = socket.getSSLParameters();
+            params.getClass().getMethod("setApplicationProtocols", String[].class).invoke(params, (Object) protocols);
+            socket.setSSLParameters(params);
+        } catch( Exception e ) {
+            //no ALPN, the proxy falls back to HTTP/1.1
+        }
+    }
+
+    private static String getApplicationProtocol( SSLSocket socket ) {
+        try {
+            Method get = SSLSocket.class.getMethod("getApplicationProtocol");
+            return (String) get.invoke(socket);
+        } catch( Exception e ) {
+            return null;
+        }
+    }
+
+    /** Answer HTTP/1.1 requests on the connection, anything else is refused */
+    private void serveHttp1( Socket socket ) throws IOException {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        while( true ) {
+            String head = readHead(in);
+            if( head == null )
+                return;
+            String[] requestLine = head.substring(0, head.indexOf("\r\n")).split(" ");
+            if( !requestLine[2].startsWith("HTTP/1.") ) {
+                //the HTTP/2 preface of a proxy trying prior knowledge
+                out.write("HTTP/1.1 400 Bad Request\r\nConnection: close\r\nContent-Length: 0\r\n\r\n".getBytes("ISO-8859-1"));
+                out.flush();
+                return;
+            }
+            protocols.add("http/1.1");
+            byte[] body = body(requestLine[1]);
+            out.write( ("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: "+ body.length +"\r\n\r\n").getBytes("ISO-8859-1") );
+            out.write(body);
+            out.flush();
+        }
+    }
+
+    /** Read a message head up to the empty line, null at the end of the connection */
+    private static String readHead( InputStream in ) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while( sb.length() < 4 || !sb.substring(sb.length() - 4).equals("\r\n\r\n") ) {
+            int b = in.read();
+            if( b < 0 )
+                return null;
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    /** The body for a path ending in its size */
+    private static byte[] body( String path ) {
+        int size = Integer.parseInt( path.substring(path.lastIndexOf('/') + 1) );
+        byte[] body = new byte[size];
+        for( int i=0; i< size; i++ )
+            body[i] = bodyByte(i);
+        return body;
+    }
+
+    /** The server side of an HTTP/2 connection, frames are read on the connection thread and answers written from threads of their own */
+    private class Session {
+        private final String protocol;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        private final Hpack.Encoder encoder = new Hpack.Encoder();
+        private final Map<Integer,String> paths = new HashMap<Integer,String>();
+        private final Map<Integer,Integer> windows = new HashMap<Integer,Integer>();
+        private int connectionWindow = 65535;
+        private int initialWindow = 65535;
+        private boolean gone = false;
+
+        Session( Socket socket, String protocol ) throws IOException {
+            this.protocol = protocol;
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        void run() throws IOException {
+            byte[] preface = new byte[24];
+            in.readFully(preface);
+            if( !new String(preface, "ISO-8859-1").equals("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n") )
+                throw new IOException("No HTTP/2 preface");
+            write(SETTINGS, 0, 0, new byte[0], 0, 0);
+            try {
+                while( true ) {
+                    int length = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                    int type = in.readUnsignedByte();
+                    int flags = in.readUnsignedByte();
+                    int stream = in.readInt() & 0x7fffffff;
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    frame(type, flags, stream, payload);
+                }
+            } finally {
+                synchronized( this ) {
+                    gone = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void frame( int type, int flags, int stream, byte[] payload ) throws IOException {
+            switch( type ) {
+                case SETTINGS:
+                    if( (flags & FLAG_ACK) != 0 )
+                        break;
+                    for( int i=0; i+6<= payload.length; i+=6 ) {
+                        int id = ((payload[i] & 0xff) << 8) | (payload[i+1] & 0xff);
+                        int value = readInt(payload, i+2);
+                        settings.put(id, value);
+                        if( id == SETTINGS_INITIAL_WINDOW_SIZE ) {
+                            synchronized( this ) {
+                                for( Map.Entry<Integer,Integer> e : windows.entrySet() )
+                                    e.setValue(e.getValue() + value - initialWindow);
+                                initialWindow = value;
+                                notifyAll();
+                            }
+                        }
+                    }
+                    write(SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+                    break;
+                case HEADERS:
+                    final Vector<String> fields = new Vector<String>();
+                    decoder.decode(payload, 0, payload.length, new Hpack.FieldListener() {
+                        public void field( String name, String value ) {
+                            fields.add(name);
+                            fields.add(value);
+                        }
+                    });
+                    String path = fields.get(fields.indexOf(":path") + 1);
+                    synchronized( this ) {
+                        windows.put(stream, initialWindow);
+                    }
+                    if( (flags & FLAG_END_STREAM) != 0 )
+                        answer(stream, path);
+                    else
+                        paths.put(stream, path);
+                    break;
+                case DATA:
+                    if( payload.length > 0 ) {
+                        windowUpdate(0, payload.length);
+                        windowUpdate(stream, payload.length);
+                    }
+                    if( (flags & FLAG_END_STREAM) != 0 && paths.containsKey(stream) )
+                        answer(stream, paths.remove(stream));
+                    break;
+                case WINDOW_UPDATE:
+                    windowUpdates++;
+                    synchronized( this ) {
+                        if( stream == 0 )
+                            connectionWindow += readInt(payload, 0);
+                        else if( windows.containsKey(stream) )
+                            windows.put(stream, windows.get(stream) + readInt(payload, 0));
+                        notifyAll();
+                    }
+                    break;
+                case RST_STREAM:
+                    resets.add(readInt(payload, 0));
+                    synchronized( this ) {
+                        windows.remove(stream);
+                        notifyAll();
+                    }
+                    break;
+                case PING:
+                    if( (flags & FLAG_ACK) == 0 )
+                        write(PING, FLAG_ACK, 0, payload, 0, payload.length);
+                    break;
+                case GOAWAY:
+                    goAways.add(readInt(payload, 4));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /** Answer a request on a thread of its own, so frames keep being read while the answer is written */
+        private void answer( final int stream, final String path ) {
+            protocols.add(protocol);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        if( path.equals("/flood") )
+                            flood(stream);
+                        else
+                            respond(stream, body(path), path.startsWith("/greedy/"));
+                    } catch( IOException e ) {
+                        //the proxy closed the connection
+                    } catch( InterruptedException e ) {
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private void respond( int stream, byte[] body, boolean greedy ) throws IOException, InterruptedException {
+            List<String> fields = new ArrayList<String>();
+            fields.add(":status");
+            fields.add("200");
+            fields.add("content-type");
+            fields.add("application/octet-stream");
+            fields.add("content-length");
+            fields.add(String.valueOf(body.length));
+            writeHeaders(stream, fields, body.length == 0);
+            int sent = 0;
+            while( sent < body.length ) {
+                int size = Math.min(16384, body.length - sent);
+                if( !greedy ) {
+                    synchronized( this ) {
+                        while( !gone && windows.containsKey(stream) && (connectionWindow <= 0 || windows.get(stream) <= 0) )
+                            wait();
+                        if( gone || !windows.containsKey(stream) )
+                            return;
+                        size = Math.min(size, Math.min(connectionWindow, windows.get(stream)));
+                        connectionWindow -= size;
+                        windows.put(stream, windows.get(stream) - size);
+                    }
+                } else {
+                    synchronized( this ) {
+                        if( gone || !windows.containsKey(stream) )
+                            return;
+                    }
+                }
+                boolean last = sent + size == body.length;
+                write(DATA, last ? FLAG_END_STREAM : 0, stream, body, sent, size);
+                sent += size;
+            }
+        }
+
+        /** Start a header block and keep it going with CONTINUATION frames until the proxy gives up */
+        private void flood( int stream ) throws IOException {
+            List<String> fields = new ArrayList<String>();
+            fields.add(":status");
+            fields.add("200");
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            synchronized( encoder ) {
+                encoder.encode(fields, block);
+            }
+            byte[] b = block.toByteArray();
+            write(HEADERS, 0, stream, b, 0, b.length);
+            byte[] filler = new byte[16384];
+            for( int i=0; i< 1024 && goAways.isEmpty(); i++ )
+                write(CONTINUATION, 0, stream, filler, 0, filler.length);
+        }
+
+        private void writeHeaders( int stream, List<String> fields, boolean end ) throws IOException {
+            //the encoder and the frame have to stay in step with the other streams
+            synchronized( encoder ) {
+                ByteArrayOutputStream block = new ByteArrayOutputStream();
+                encoder.encode(fields, block);
+                byte[] b = block.toByteArray();
+                write(HEADERS, FLAG_END_HEADERS | (end ? FLAG_END_STREAM : 0), stream, b, 0, b.length);
+            }
+        }
+
+        private void windowUpdate( int stream, int increment ) throws IOException {
+            byte[] b = { (byte) (increment >>> 24), (byte) (increment >>> 16), (byte) (increment >>> 8), (byte) increment };
+            write(WINDOW_UPDATE, 0, stream, b, 0, 4);
+        }
+
+        private void write( int type, int flags, int stream, byte[] payload, int off, int len ) throws IOException {
+            byte[] header = { (byte) (len >>> 16), (byte) (len >>> 8), (byte) len, (byte) type, (byte) flags,
+                (byte) (stream >>> 24), (byte) (stream >>> 16), (byte) (stream >>> 8), (byte) stream };
+            synchronized( out ) {
+                out.write(header);
+                out.write(payload, off, len);
+                out.flush();
+            }
+        }
+    }
+
+    private static int readInt( byte[] b, int off ) {
+        return ((b[off] & 0xff) << 24) | ((b[off+1] & 0xff) << 16) | ((b[off+2] & 0xff) << 8) | (b[off+3] & 0xff);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import static com.wpg.proxy.HttpMessageParserTest.ascii;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import org.junit.Test;
+
+/** Checks lookups, order and repetition of fields, removal and the numbers read from the header table, and the read-only views of it a message hands out */
+public class HttpHeadersTest {
+
+    @Test
+    public void caseInsensitiveLookup() {
+        HttpHeaders headers = new HttpHeaders();
+        add(headers, "Content-TYPE: text/html");
+        add(headers, "X-Custom-Header: custom");
+        headers.add("HOST", "example.com");
+        assertEquals( "text/html", headers.get("content-type") );
+        assertEquals( "text/html", headers.get("CONTENT-TYPE") );
+        assertEquals( "custom", headers.get("x-custom-header") );
+        assertEquals( "custom", headers.get("X-CUSTOM-HEADER") );
+        assertEquals( "example.com", headers.get(HttpMessage.HEADER_HOST) );
+        assertNull( headers.get("x-custom") );
+        assertNull( headers.get("x-custom-header-2") );
+        //names keep the case they arrived in
+        assertEquals( "Content-TYPE", headers.getName(0) );
+        assertEquals( HttpHeaders.getId(HttpMessage.HEADER_CONTENT_TYPE), headers.getId(0) );
+        assertEquals( HttpHeaders.UNKNOWN, headers.getId(1) );
+        assertEquals( HttpHeaders.getId("host"), HttpHeaders.getId("Host") );
+    }
+
+    @Test
+    public void orderAndRepetition() {
+        HttpHeaders headers = new HttpHeaders();
+        add(headers, "Set-Cookie: a=1");
+        add(headers, "Date: today");
+        add(headers, "set-cookie: b=2");
+        add(headers, "X-Empty:");
+        add(headers, "SET-COOKIE:c=3");
+        assertEquals( 5, headers.size() );
+        assertEquals( Arrays.asList( new String[] { "a=1", "b=2", "c=3" } ), headers.getValues("Set-Cookie") );
+        assertEquals( "a=1", headers.get("set-cookie") );
+        assertEquals( 2, headers.indexOf("set-cookie", 1) );
+        assertEquals( "", headers.get("x-empty") );
+        assertEquals( "Set-Cookie: a=1\r\nDate: today\r\nset-cookie: b=2\r\nX-Empty: \r\nSET-COOKIE: c=3\r\n", headers.toString() );
+    }
+
+    @Test
+    public void remove() {
+        HttpHeaders headers = new HttpHeaders();
+        add(headers, "Via: 1");
+        add(headers, "Connection: close");
+        add(headers, "Via: 2");
+        add(headers, "X-Via: 3");
+        add(headers, "connection: te");
+        assertEquals( 2, headers.remove("CONNECTION") );
+        assertEquals( 0, headers.remove("connection") );
+        assertEquals( 2, headers.remove("via") );
+        assertEquals( 1, headers.size() );
+        assertEquals( "X-Via", headers.getName(0) );
+        assertFalse( headers.contains("via") );
+        headers.clear();
+        assertEquals( 0, headers.size() );
+        assertNull( headers.get("x-via") );
+    }
+
+    /** set replaces every field of the name in place of the first of them */
+    @Test
+    public void set() {
+        HttpHeaders headers = new HttpHeaders();
+        add(headers, "Accept: a");
+        add(headers, "Cache-Control: no-cache");
+        add(headers, "accept: b");
+        headers.set("ACCEPT", Arrays.asList( new String[] { "c", "d" } ));
+        assertEquals( "ACCEPT: c\r\nACCEPT: d\r\nCache-Control: no-cache\r\n", headers.toString() );
+        headers.set("X-New", Arrays.asList( new String[] { "e" } ));
+        assertEquals( 3, headers.indexOf("x-new", 0) );
+    }
+
+    @Test
+    public void tokens() {
+        HttpHeaders headers = new HttpHeaders();
+        add(headers, "Connection: keep-alive, Upgrade");
+        add(headers, "Transfer-Encoding: gzip");
+        add(headers, "Transfer-Encoding: Chunked ");
+        assertTrue( headers.hasToken("connection", "upgrade") );
+        assertTrue( headers.hasToken("connection", "KEEP-ALIVE") );
+        assertFalse( headers.hasToken("connection", "keep") );
+        assertTrue( headers.isLastToken("transfer-encoding", "chunked") );
+        assertFalse( headers.isLastToken("transfer-encoding", "gzip") );
+        assertFalse( headers.isLastToken("te", "trailers") );
+    }
+
+    @Test
+    public void getLong() {
+        HttpHeaders headers = new HttpHeaders();
+        assertEquals( -1L, headers.getLong("content-length") );
+        assertEquals( 0L, getLong("0") );
+        assertEquals( 1234L, getLong("  1234  ") );
+        assertEquals( 5000000000L, getLong("5000000000") );
+        assertEquals( 999999999999999999L, getLong("999999999999999999") );
+        assertEquals( -12L, getLong("-12") );
+        assertEquals( 7L, getLong("007") );
+        String[] malformed = { "", "-", "1234567890123456789", "12a", "0x10", "+5", "1 2", "1.5" };
+        for( int i=0; i< malformed.length; i++ ) {
+            try {
+                getLong(malformed[i]);
+                fail("Accepted: "+ malformed[i]);
+            } catch( NumberFormatException expected ) {}
+        }
+        //only the first field counts
+        headers.add("Content-Length", "10");
+        headers.add("Content-Length", "20");
+        assertEquals( 10L, headers.getLong("CONTENT-LENGTH") );
+    }
+
+    @Test
+    public void malformedLines() {
+        HttpHeaders headers = new HttpHeaders();
+        assertEquals( -1, add(headers, "no colon") );
+        assertEquals( -1, add(headers, ": no name") );
+        assertEquals( -1, add(headers, "   : no name") );
+        assertEquals( 0, headers.size() );
+        assertEquals( 0, add(headers, "Name \t: \t value \t") );
+        assertEquals( "Name", headers.getName(0) );
+        assertEquals( "value", headers.getValue(0) );
+    }
+
+    /** The table grows past its initial room for fields and bytes */
+    @Test
+    public void growth() {
+        HttpHeaders headers = new HttpHeaders();
+        for( int i=0; i< 200; i++ )
+            add(headers, "X-Field-"+ i +": value number "+ i);
+        assertEquals( 200, headers.size() );
+        for( int i=0; i< 200; i++ )
+            assertEquals( "value number "+ i, headers.get("x-field-"+ i) );
+        int length = 0;
+        for( int i=0; i< 200; i++ )
+            length += ("X-Field-"+ i +": value number "+ i +"\r\n").length();
+        assertEquals( length, headers.getEncodedLength() );
+    }
+
+    /** The header maps and lists a message hands out are snapshots that refuse changes */
+    @Test
+    public void messageViewsAreReadOnly() {
+        HttpMessageResponse response = new HttpMessageResponse();
+        response.addHeader("Via", "1.1 one");
+        response.addHeader("Via", "1.1 two");
+        Map<String,List<String>> map = response.getHeaders();
+        assertEquals( Arrays.asList("1.1 one", "1.1 two"), map.get("via") );
+        try {
+            map.put("x-new", new Vector<String>());
+            fail("The map of headers could be changed");
+        } catch( UnsupportedOperationException expected ) {}
+        try {
+            map.get("via").add("1.1 three");
+            fail("A list of the map of headers could be changed");
+        } catch( UnsupportedOperationException expected ) {}
+        try {
+            response.getHeaderValues("Via").clear();
+            fail("The values of a header could be changed");
+        } catch( UnsupportedOperationException expected ) {}
+        assertEquals( 2, response.getHeaderTable().size() );
+        //a snapshot still sets the headers of a message
+        HttpMessageResponse copy = new HttpMessageResponse();
+        copy.setHeaders(map);
+        assertEquals( Arrays.asList("1.1 one", "1.1 two"), copy.getHeaderValues("via") );
+    }
+
+    private static long getLong( String value ) {
+        HttpHeaders headers = new HttpHeaders();
+        add(headers, "Content-Length: "+ value);
+        return headers.getLong("content-length");
+    }
+
+    private static int add( HttpHeaders headers, String line ) {
+        byte[] b = ascii("...."+ line +"..");
+        return headers.add(b, 4, b.length - 6);
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ Java HTTP Proxy Library (wpg-proxy),
+    more info at http://wpg-proxy.sourceforge.net/
+
+ This library is free software; you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public
+ License as published by the Free Software Foundation; either
+ version 2.1 of the License, or (at your option) any later version.
+
+ This library is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public
+
+ License along with this library; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.wpg.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the byte level request and response parsers and the header written back out: messages split at every
+ * byte offset, pipelined messages, binary and chunked bodies and the limits on what is accepted.
+ */
+public class HttpMessageParserTest {
+    /** A body holding every byte value, line ends included */
+    private static final byte[] BINARY = new byte[512];
+    static {
+        for( int i=0; i< BINARY.length; i++ )
+            BINARY[i] = (byte) i;
+    }
+
+    @Test
+    public void requestSplitAtEveryOffset() throws IOException {
+        byte[] message = concat( ascii("POST http://example.com:8080/upload?x=1 HTTP/1.1\r\n"
+                + "Host: example.com:8080\r\n"
+                + "X-Folded: first\r\n"
+                + " second\r\n"
+                + "Content-Length: "+ BINARY.length +"\r\n"
+                + "\r\n"), BINARY );
+        for( int split=0; split<= message.length; split++ ) {
+            HttpRequestParser parser = new HttpRequestParser();
+            assertEquals( "split at "+ split, split == message.length, parser.parse( ByteBuffer.wrap(message, 0, split) ) );
+            ByteBuffer rest = ByteBuffer.wrap(message, split, message.length - split);
+            if( split < message.length )
+                assertTrue( "split at "+ split, parser.parse(rest) );
+            assertFalse( rest.hasRemaining() );
+            checkUpload( parser.getRequest() );
+        }
+    }
+
+    @Test
+    public void requestByteByByte() throws IOException {
+        byte[] message = concat( ascii("POST http://example.com:8080/upload?x=1 HTTP/1.1\r\n"
+                + "Host: example.com:8080\r\n"
+                + "X-Folded: first\r\n"
+                + "\tsecond\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "\r\n"
+                + "100;name=value\r\n"), slice(BINARY, 0, 256), ascii("\r\n"
+                + "100\r\n"), slice(BINARY, 256, 256), ascii("\r\n"
+                + "0\r\n"
+                + "X-Checksum: abc\r\n"
+                + "\r\n") );
+        HttpRequestParser parser = new HttpRequestParser();
+        for( int i=0; i< message.length; i++ ) {
+            ByteBuffer b = ByteBuffer.wrap(message, i, 1);
+            assertEquals( "byte "+ i, i == message.length-1, parser.parse(b) );
+            assertFalse( b.hasRemaining() );
+        }
+        checkUpload( parser.getRequest() );
+        assertEquals( "x-checksum: abc", parser.getRequest().getTrailers().get(0) );
+    }
+
+    @Test
+    public void pipelinedRequests() throws IOException {
+        ByteBuffer in = ByteBuffer.wrap( concat( ascii("GET http://example.com/a HTTP/1.1\r\n"
+                + "Host: example.com\r\n"
+                + "\r\n"
+                + "POST http://example.com/b HTTP/1.1\r\n"
+                + "Host: example.com\r\n"
+                + "Content-Length: 3\r\n"
+                + "\r\n"
+                + "abc"
+                + "\r\n" //tolerated between messages
+                + "GET http://example.com/c HTTP/1.1\r\n"
+                + "Host: example.com\r\n"
+                + "\r\n"
+                + "GET http://exam"), new byte[0] ) );
+        HttpRequestParser parser = new HttpRequestParser();
+        assertTrue( parser.parse(in) );
+        assertEquals( "/a", parser.getRequest().getUri().getPath() );
+        assertEquals( 0, parser.getRequest().getBodyLength() );
+        parser.reset();
+        assertTrue( parser.parse(in) );
+        assertEquals( "/b", parser.getRequest().getUri().getPath() );
+        assertEquals( "abc", new String(parser.getRequest().getBodyContent(), "ISO-8859-1") );
+        parser.reset();
+        assertTrue( parser.parse(in) );
+        assertEquals( "/c", parser.getRequest().getUri().getPath() );
+        parser.reset();
+        assertFalse( parser.parse(in) );
+        assertTrue( parser.isStarted() );
+        try {
+            parser.endOfStream();
+            fail("A request cut short must be reported");
+        } catch( IOException expected ) {}
+    }
+
+    @Test
+    public void responseSplitAtEveryOffset() throws IOException {
+        byte[] message = concat( ascii("HTTP/1.1 100 Continue\r\n"
+                + "\r\n"
+                + "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Length: "+ BINARY.length +"\r\n"
+                + "\r\n"), BINARY, ascii("HTTP/1.1 304 Not Modified\r\n"
+                + "\r\n") );
+        for( int split=0; split<= message.length; split++ ) {
+            HttpResponseParser parser = new HttpResponseParser("GET");
+            ByteBuffer first = ByteBuffer.wrap(message, 0, split);
+            ByteBuffer rest = ByteBuffer.wrap(message, split, message.length - split);
+            if( !parser.parse(first) )
+                assertTrue( "split at "+ split, parser.parse(rest) );
+            //the interim response was skipped
+            assertEquals( 200, parser.getResponse().getStatusCode() );
+            checkBytes( BINARY, parser.getResponse().getBodyContent() );
+            parser.reset();
+            if( !parser.parse(first) )
+                assertTrue( parser.parse(rest) );
+            assertEquals( 304, parser.getResponse().getStatusCode() );
+            assertFalse( first.hasRemaining() || rest.hasRemaining() );
+        }
+    }
+
+    @Test
+    public void responseUntilClose() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser("GET");
+        assertFalse( parser.parse( ByteBuffer.wrap( concat(ascii("HTTP/1.0 200 OK\r\n\r\n"), BINARY) ) ) );
+        assertTrue( parser.endOfStream() );
+        checkBytes( BINARY, parser.getResponse().getBodyContent() );
+    }
+
+    @Test
+    public void responsesWithoutBody() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser("HEAD");
+        assertTrue( parser.parse( ByteBuffer.wrap( ascii("HTTP/1.1 200 OK\r\nContent-Length: 1000\r\n\r\n") ) ) );
+        assertEquals( 0, parser.getResponse().getBodyLength() );
+        parser = new HttpResponseParser("GET");
+        assertTrue( parser.parse( ByteBuffer.wrap( ascii("HTTP/1.1 204 No Content\r\nContent-Length: 1000\r\n\r\n") ) ) );
+    }
+
+    @Test
+    public void streamedBody() throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final List<HttpMessage> headers = new ArrayList<HttpMessage>();
+        HttpResponseParser parser = new HttpResponseParser("GET");
+        parser.setBodyListener(new HttpMessageParser.BodyListener() {
+            public void headerComplete( HttpMessage message ) { headers.add(message); }
+            public void bodyData( ByteBuffer data ) {
+                while( data.hasRemaining() )
+                    body.write( data.get() );
+            }
+        });
+        byte[] message = concat( ascii("HTTP/1.1 200 OK\r\nContent-Length: "+ BINARY.length +"\r\n\r\n"), BINARY );
+        for( int i=0; i< message.length; i+=7 )
+            parser.parse( ByteBuffer.wrap(message, i, Math.min(7, message.length - i)) );
+        assertTrue( parser.isComplete() );
+        assertEquals( 1, headers.size() );
+        checkBytes( BINARY, body.toByteArray() );
+        assertEquals( 0, parser.getResponse().getBodyLength() );
+    }
+
+    /** The scheme of an absolute target tells whether the request goes to the remote host over TLS */
+    @Test
+    public void requestScheme() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser();
+        assertTrue( parser.parse( ByteBuffer.wrap( ascii("GET https://example.com/a HTTP/1.1\r\nHost: example.com\r\n\r\n") ) ) );
+        assertTrue( parser.getRequest().isSecure() );
+        assertEquals( "example.com", parser.getRequest().getToHost() );
+        parser.reset();
+        assertTrue( parser.parse( ByteBuffer.wrap( ascii("GET http://example.com/a HTTP/1.1\r\nHost: example.com\r\n\r\n") ) ) );
+        assertFalse( parser.getRequest().isSecure() );
+        parser.reset();
+        assertTrue( parser.parse( ByteBuffer.wrap( ascii("GET /a HTTP/1.1\r\nHost: example.com\r\n\r\n") ) ) );
+        assertFalse( parser.getRequest().isSecure() );
+    }
+
+    /** A Content-Length past 2GB is framed as it is, the body is streamed */
+    @Test
+    public void largeContentLength() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser("GET");
+        parser.setBodyListener(new HttpMessageParser.BodyListener() {
+            public void headerComplete( HttpMessage message ) {}
+            public void bodyData( ByteBuffer data ) { data.position( data.limit() ); }
+        });
+        assertFalse( parser.parse( ByteBuffer.wrap( ascii("HTTP/1.1 200 OK\r\nContent-Length: 5000000000\r\n\r\n") ) ) );
+        assertTrue( parser.isBodyExpected() );
+        assertFalse( parser.parse( ByteBuffer.wrap(BINARY) ) );
+        assertEquals( (long) BINARY.length, parser.getBodyLength() );
+    }
+
+    @Test
+    public void invalidContentLength() {
+        String[] lengths = { "-1", "12a", "", "1234567890123456789" };
+        for( int i=0; i< lengths.length; i++ ) {
+            checkRejected( new HttpRequestParser(), "POST http://example.com/ HTTP/1.1\r\nContent-Length: "+ lengths[i] +"\r\n\r\n" );
+            checkRejected( new HttpResponseParser("GET"), "HTTP/1.1 200 OK\r\nContent-Length: "+ lengths[i] +"\r\n\r\n" );
+        }
+    }
+
+    @Test
+    public void malformedMessages() {
+        checkRejected( new HttpRequestParser(), "GET http://example.com/\r\n\r\n" );
+        checkRejected( new HttpRequestParser(), "GET http://example.com/ HTTP1.1\r\n\r\n" );
+        checkRejected( new HttpRequestParser(), "GET http://example.com/ HTTP/1.1\r\nno colon\r\n\r\n" );
+        checkRejected( new HttpRequestParser(), "GET http://example.com/ HTTP/1.1\r\n folded first\r\n\r\n" );
+        checkRejected( new HttpRequestParser(), "POST http://example.com/ HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n" );
+        checkRejected( new HttpResponseParser("GET"), "HTTP/1.1 abc OK\r\n\r\n" );
+    }
+
+    @Test
+    public void oversizedHeader() throws IOException {
+        StringBuffer header = new StringBuffer("GET http://example.com/ HTTP/1.1\r\nX-Padding: ");
+        while( header.length() < 1022 )
+            header.append('x');
+        header.append("\r\n");
+        //the empty line takes the header to exactly the limit
+        HttpRequestParser parser = new HttpRequestParser();
+        parser.setMaxHeaderSize(1026);
+        assertTrue( parser.parse( ByteBuffer.wrap( ascii(header +"\r\n") ) ) );
+        parser = new HttpRequestParser();
+        parser.setMaxHeaderSize(1025);
+        checkRejected( parser, header +"\r\n" );
+        //the limit holds however slowly the header arrives
+        parser = new HttpRequestParser();
+        parser.setMaxHeaderSize(1023);
+        byte[] b = ascii(header.toString());
+        try {
+            for( int i=0; i< b.length; i++ )
+                parser.parse( ByteBuffer.wrap(b, i, 1) );
+            fail("Header larger than the limit accepted");
+        } catch( IOException expected ) {}
+    }
+
+    @Test
+    public void headerWrittenBack() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser("GET");
+        String head = "HTTP/1.1 200 OK\r\n"
+                + "Content-Length: 0\r\n"
+                + "X-Mixed-Case:   value with spaces  \r\n"
+                + "Set-Cookie: a=1\r\n"
+                + "Set-Cookie: b=2\r\n"
+                + "\r\n";
+        assertTrue( parser.parse( ByteBuffer.wrap( ascii(head) ) ) );
+        List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+        int size = parser.getResponse().copyHeadTo(out);
+        byte[] written = drain(out);
+        assertEquals( size, written.length );
+        //names keep their case, values lose the spaces around them, repeated fields stay separate and in order
+        assertEquals( "HTTP/1.1 200 OK\r\n"
+                + "Content-Length: 0\r\n"
+                + "X-Mixed-Case: value with spaces\r\n"
+                + "Set-Cookie: a=1\r\n"
+                + "Set-Cookie: b=2\r\n"
+                + "\r\n", new String(written, "ISO-8859-1") );
+    }
+
+    /** A field longer than the largest pooled buffer is written over several of them */
+    @Test
+    public void largeHeaderWrittenBack() throws IOException {
+        StringBuffer value = new StringBuffer();
+        for( int i=0; value.length() < BufferPool.getSingleton().getMaxBufferSize()*2; i++ )
+            value.append(i % 10);
+        HttpMessageResponse response = new HttpMessageResponse();
+        response.setStartLine("HTTP/1.1 200 OK");
+        response.addHeader("X-Large", value.toString());
+        response.addHeader("Content-Length", "0");
+        List<ByteBuffer> out = new ArrayList<ByteBuffer>();
+        int size = response.copyHeadTo(out);
+        assertTrue( out.size() > 1 );
+        byte[] written = drain(out);
+        assertEquals( size, written.length );
+        HttpResponseParser parser = new HttpResponseParser("GET");
+        parser.setMaxHeaderSize( written.length );
+        assertTrue( parser.parse( ByteBuffer.wrap(written) ) );
+        assertEquals( value.toString(), parser.getResponse().getHeaderTable().get("x-large") );
+    }
+
+    private static void checkUpload( HttpMessageRequest request ) throws IOException {
+        assertEquals( "POST", request.getMethod() );
+        assertEquals( "/upload", request.getUri().getPath() );
+        assertEquals( "example.com", request.getToHost() );
+        assertEquals( 8080, request.getToPort() );
+        assertEquals( "first second", request.getHeaderTable().get("x-folded") );
+        checkBytes( BINARY, request.getBodyContent() );
+    }
+
+    static void checkBytes( byte[] expected, byte[] actual ) {
+        assertTrue( "expected "+ expected.length +" bytes, got "+ actual.length, Arrays.equals(expected, actual) );
+    }
+
+    private static void checkRejected( HttpMessageParser parser, String message ) {
+        try {
+            parser.parse( ByteBuffer.wrap( ascii(message) ) );
+            fail("Accepted: "+ message);
+        } catch( IOException expected ) {}
+    }
+
+    /** Read the buffers into one array, handing them back to the pool */
+    private static byte[] drain( List<ByteBuffer> buffers ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for( int i=0; i< buffers.size(); i++ ) {
+            ByteBuffer b = buffers.get(i);
+            while( b.hasRemaining() )
+                out.write( b.get() );
+            BufferPool.getSingleton().release(b);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] ascii( String s ) {
+        byte[] b = new byte[s.length()];
+        for( int i=0; i< b.length; i++ )
+            b[i] = (byte) s.charAt(i);
+        return b;
+    }
+
+    private static byte[] slice( byte[] b, int offset, int length ) {
+        byte[] s = new byte[length];
+        System.arraycopy(b, offset, s, 0, length);
+        return s;
+    }
+
+    private static byte[] concat( byte[]... parts ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for( int i=0; i< parts.length; i++ )
+            out.write(parts[i], 0, parts[i].length);
+        return out.toByteArray();
+    }
+}